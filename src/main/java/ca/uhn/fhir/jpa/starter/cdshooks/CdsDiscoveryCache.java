@@ -0,0 +1,137 @@
+package ca.uhn.fhir.jpa.starter.cdshooks;
+
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.Interceptor;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.jpa.starter.util.ETags;
+import ca.uhn.hapi.fhir.cdshooks.api.ICdsServiceRegistry;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Rendered /cds-services discovery document, one per pretty flag, with its strong ETag.
+ *
+ * Every (un)registration on the ICdsServiceRegistry drops the rendered document: the registry bean is wrapped by
+ * {@link #invalidating(ICdsServiceRegistry)}, a cached GET does not look at the registry at all. The CDS services
+ * backed by PlanDefinitions are (re)discovered through UpdatedCrDiscoveryServiceR4 and registered the same way, the
+ * document is also dropped on every PlanDefinition create / update / delete, at pre-commit and again once committed.
+ * A document rendered while an invalidation happened is not kept.
+ */
+@Interceptor
+public class CdsDiscoveryCache {
+
+	private static final String PLAN_DEFINITION = "PlanDefinition";
+
+	private final AtomicLong generation = new AtomicLong();
+	private final Map<Boolean, Rendered> rendered = new ConcurrentHashMap<>();
+
+	public static class Rendered {
+		private final byte[] body;
+		private final String etag;
+
+		private Rendered(byte[] theBody, String theEtag) {
+			body = theBody;
+			etag = theEtag;
+		}
+
+		public byte[] getBody() {
+			return body;
+		}
+
+		public String getEtag() {
+			return etag;
+		}
+	}
+
+	/**
+	 * To be read before rendering a document and handed to {@link #put(boolean, long, byte[])}
+	 */
+	public long getGeneration() {
+		return generation.get();
+	}
+
+	/**
+	 * @return the cached document, null when it has to be rendered
+	 */
+	public Rendered get(boolean thePretty) {
+		return rendered.get(thePretty);
+	}
+
+	/**
+	 * @param theGeneration the generation read before theBody was rendered, the body is not cached when it changed since
+	 */
+	public Rendered put(boolean thePretty, long theGeneration, byte[] theBody) {
+		Rendered document = new Rendered(theBody, ETags.strongETag(theBody));
+		if (generation.get() == theGeneration) {
+			rendered.put(thePretty, document);
+			// An invalidation may have cleared the map between the check and the put
+			if (generation.get() != theGeneration) {
+				rendered.remove(thePretty, document);
+			}
+		}
+		return document;
+	}
+
+	/**
+	 * @return theRegistry, calling {@link #invalidate()} after every register* / unregister* call it completes
+	 */
+	public ICdsServiceRegistry invalidating(ICdsServiceRegistry theRegistry) {
+		return (ICdsServiceRegistry) Proxy.newProxyInstance(
+				ICdsServiceRegistry.class.getClassLoader(),
+				new Class<?>[] {ICdsServiceRegistry.class},
+				(proxy, method, args) -> {
+					Object result;
+					try {
+						result = method.invoke(theRegistry, args);
+					} catch (InvocationTargetException e) {
+						throw e.getCause();
+					}
+					if (method.getName().startsWith("register") || method.getName().startsWith("unregister")) {
+						invalidate();
+					}
+					return result;
+				});
+	}
+
+	public void invalidate() {
+		generation.incrementAndGet();
+		rendered.clear();
+	}
+
+	@Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_CREATED)
+	public void resourceCreated(IBaseResource theResource) {
+		invalidateIfPlanDefinition(theResource);
+	}
+
+	@Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_UPDATED)
+	public void resourceUpdated(IBaseResource theOldResource, IBaseResource theNewResource) {
+		invalidateIfPlanDefinition(theNewResource);
+	}
+
+	@Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_DELETED)
+	public void resourceDeleted(IBaseResource theResource) {
+		invalidateIfPlanDefinition(theResource);
+	}
+
+	private void invalidateIfPlanDefinition(IBaseResource theResource) {
+		if (theResource == null || !PLAN_DEFINITION.equals(theResource.fhirType())) {
+			return;
+		}
+		invalidate();
+		if (TransactionSynchronizationManager.isSynchronizationActive()) {
+			TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+				@Override
+				public void afterCommit() {
+					invalidate();
+				}
+			});
+		}
+	}
+}
@@ -0,0 +1,60 @@
+package ca.uhn.fhir.jpa.starter.cdshooks;
+
+import org.hl7.fhir.r4.model.BooleanType;
+import org.hl7.fhir.r4.model.CanonicalType;
+import org.hl7.fhir.r4.model.Parameters;
+import org.hl7.fhir.r4.model.PlanDefinition;
+
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static ca.uhn.hapi.fhir.cdshooks.svc.cr.CdsCrConstants.APPLY_PARAMETER_DATA;
+import static org.opencds.cqf.fhir.utility.r4.Parameters.part;
+
+/**
+ * What a CDS service needs that does not depend on the hook request, resolved once per PlanDefinition:
+ * the PlanDefinition itself, the libraries it references and the request independent $apply parameters.
+ * The compiled libraries and the value set expansions are held by the CR caches (EvaluationSettings), kept up to
+ * date by their own resource change listeners.
+ */
+class CdsEvaluationPlan {
+	static final String APPLY_PARAMETER_PLAN_DEFINITION = "planDefinition";
+	static final String APPLY_PARAMETER_USE_SERVER_DATA = "useServerData";
+
+	private final PlanDefinition planDefinition;
+	private final List<String> libraries;
+
+	CdsEvaluationPlan(PlanDefinition thePlanDefinition) {
+		planDefinition = thePlanDefinition;
+		libraries = thePlanDefinition.getLibrary().stream().map(CanonicalType::getValue).collect(Collectors.toUnmodifiableList());
+	}
+
+	/**
+	 * Adds the request independent parameters to theParameters, the request dependent ones (context, prefetch data,
+	 * endpoint) are already encoded
+	 */
+	void bind(Parameters theParameters) {
+		if (!theParameters.hasParameter(APPLY_PARAMETER_PLAN_DEFINITION)) {
+			// Handed to $apply so that it does not read the PlanDefinition again, a copy as the processor owns it from there
+			theParameters.addParameter(part(APPLY_PARAMETER_PLAN_DEFINITION, planDefinition.copy()));
+		}
+		bindDataParameters(theParameters);
+	}
+
+	/**
+	 * The prefetch data is authoritative, the server data is not used on top of it
+	 */
+	static void bindDataParameters(Parameters theParameters) {
+		if (theParameters.hasParameter(APPLY_PARAMETER_DATA) && !theParameters.hasParameter(APPLY_PARAMETER_USE_SERVER_DATA)) {
+			theParameters.addParameter(part(APPLY_PARAMETER_USE_SERVER_DATA, new BooleanType(false)));
+		}
+	}
+
+	PlanDefinition getPlanDefinition() {
+		return planDefinition;
+	}
+
+	List<String> getLibraries() {
+		return libraries;
+	}
+}
@@ -0,0 +1,122 @@
+package ca.uhn.fhir.jpa.starter.cdshooks;
+
+import ca.uhn.fhir.jpa.cache.IResourceChangeEvent;
+import ca.uhn.fhir.jpa.cache.IResourceChangeListener;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.api.server.SystemRequestDetails;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.r4.model.PlanDefinition;
+import org.opencds.cqf.fhir.api.Repository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * CdsEvaluationPlans by partition (or tenant) and PlanDefinition id. Registered on the IResourceChangeListenerRegistry
+ * for PlanDefinition, a created / updated / deleted PlanDefinition drops its plans, the next hook call builds them again.
+ *
+ * A Spring bean, handed to the UpdatedCdsCrServiceR4 instances by the ICdsCrServiceFactory decorated in
+ * StarterCdsHooksConfig.
+ */
+public class CdsEvaluationPlanCache implements IResourceChangeListener {
+	private static final Logger logger = LoggerFactory.getLogger(CdsEvaluationPlanCache.class);
+
+	private final Map<Key, CdsEvaluationPlan> plans = new ConcurrentHashMap<>();
+	private final AtomicLong generation = new AtomicLong();
+
+	/**
+	 * @return the partition (or tenant) theRequestDetails reads the PlanDefinition from, null for the default one
+	 */
+	static String partitionOf(RequestDetails theRequestDetails) {
+		if (theRequestDetails instanceof SystemRequestDetails systemRequestDetails
+				&& systemRequestDetails.getRequestPartitionId() != null) {
+			return systemRequestDetails.getRequestPartitionId().toString();
+		}
+		return theRequestDetails != null ? theRequestDetails.getTenantId() : null;
+	}
+
+	/**
+	 * @param thePartition see partitionOf(RequestDetails), two partitions holding the same PlanDefinition id get their own plan
+	 * @return the plan of thePlanDefinitionId, built from theRepository on first use, null when the PlanDefinition cannot be read
+	 */
+	CdsEvaluationPlan getPlan(String thePartition, IIdType thePlanDefinitionId, Repository theRepository) {
+		Key key = new Key(thePartition, thePlanDefinitionId.getIdPart());
+		CdsEvaluationPlan plan = plans.get(key);
+		if (plan != null) {
+			return plan;
+		}
+
+		long currentGeneration = generation.get();
+		try {
+			plan = new CdsEvaluationPlan(theRepository.read(PlanDefinition.class, thePlanDefinitionId.toUnqualifiedVersionless()));
+		} catch (RuntimeException e) {
+			logger.warn("Could not build the evaluation plan of {}: {}", thePlanDefinitionId.getValue(), e.getMessage());
+			return null;
+		}
+		// Not kept when a PlanDefinition changed while it was read, it may be the previous version
+		if (generation.get() == currentGeneration) {
+			plans.putIfAbsent(key, plan);
+		}
+		logger.debug("Built the evaluation plan of {} ({}), libraries {}", key.planDefinitionId, thePartition, plan.getLibraries());
+		return plan;
+	}
+
+	/**
+	 * The change events do not carry the partition, the plans of thePlanDefinitionId are dropped in all of them
+	 */
+	public void invalidate(IIdType thePlanDefinitionId) {
+		generation.incrementAndGet();
+		String planDefinitionId = thePlanDefinitionId.getIdPart();
+		plans.keySet().removeIf(key -> key.planDefinitionId.equals(planDefinitionId));
+	}
+
+	@Override
+	public void handleInit(Collection<IIdType> theResourceIds) {
+		// Plans are built on the first hook call of each service
+	}
+
+	@Override
+	public void handleChange(IResourceChangeEvent theResourceChangeEvent) {
+		Stream.of(
+						theResourceChangeEvent.getCreatedResourceIds(),
+						theResourceChangeEvent.getUpdatedResourceIds(),
+						theResourceChangeEvent.getDeletedResourceIds())
+				.filter(ids -> ids != null)
+				.flatMap(List::stream)
+				.forEach(this::invalidate);
+	}
+
+	private static final class Key {
+		private final String partition;
+		private final String planDefinitionId;
+
+		private Key(String thePartition, String thePlanDefinitionId) {
+			partition = thePartition;
+			planDefinitionId = thePlanDefinitionId;
+		}
+
+		@Override
+		public boolean equals(Object theOther) {
+			if (this == theOther) {
+				return true;
+			}
+			if (!(theOther instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) theOther;
+			return Objects.equals(partition, other.partition) && planDefinitionId.equals(other.planDefinitionId);
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(partition, planDefinitionId);
+		}
+	}
+}
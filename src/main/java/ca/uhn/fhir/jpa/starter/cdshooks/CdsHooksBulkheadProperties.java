@@ -0,0 +1,72 @@
+package ca.uhn.fhir.jpa.starter.cdshooks;
+
+/**
+ * Settings of the CdsServiceBulkhead, bound from hapi.fhir.cdshooks.bulkhead
+ */
+public class CdsHooksBulkheadProperties {
+
+	/**
+	 * Limits the concurrent calls of each CDS service, the calls above the limit are answered 503
+	 */
+	private boolean enabled = true;
+
+	/**
+	 * Number of calls of one service evaluated at the same time
+	 */
+	private int maxConcurrent = 4;
+
+	/**
+	 * Number of calls of one service waiting for a free slot, a call arriving when the queue is full is rejected at once
+	 */
+	private int maxQueue = 8;
+
+	/**
+	 * How long a queued call waits for a free slot before being rejected
+	 */
+	private long maxWaitMs = 1000;
+
+	/**
+	 * Retry-After sent with the 503
+	 */
+	private int retryAfterSeconds = 5;
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	public void setEnabled(boolean enabled) {
+		this.enabled = enabled;
+	}
+
+	public int getMaxConcurrent() {
+		return maxConcurrent;
+	}
+
+	public void setMaxConcurrent(int maxConcurrent) {
+		this.maxConcurrent = maxConcurrent;
+	}
+
+	public int getMaxQueue() {
+		return maxQueue;
+	}
+
+	public void setMaxQueue(int maxQueue) {
+		this.maxQueue = maxQueue;
+	}
+
+	public long getMaxWaitMs() {
+		return maxWaitMs;
+	}
+
+	public void setMaxWaitMs(long maxWaitMs) {
+		this.maxWaitMs = maxWaitMs;
+	}
+
+	public int getRetryAfterSeconds() {
+		return retryAfterSeconds;
+	}
+
+	public void setRetryAfterSeconds(int retryAfterSeconds) {
+		this.retryAfterSeconds = retryAfterSeconds;
+	}
+}
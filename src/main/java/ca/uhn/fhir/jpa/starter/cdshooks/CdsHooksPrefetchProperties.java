@@ -0,0 +1,232 @@
+package ca.uhn.fhir.jpa.starter.cdshooks;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Settings of the ModuleConfigurationPrefetchSvc, bound from hapi.fhir.cdshooks.prefetch
+ */
+public class CdsHooksPrefetchProperties {
+
+	/**
+	 * Replaces the HAPI prefetch service with the ModuleConfigurationPrefetchSvc
+	 */
+	private boolean enabled = false;
+
+	/**
+	 * Number of prefetch queries executed concurrently, shared by all the hook calls
+	 */
+	private int threads = 8;
+
+	/**
+	 * Maximum number of queued prefetch queries, queries above this bound are skipped
+	 */
+	private int queueCapacity = 256;
+
+	/**
+	 * Overall time budget for the prefetch of one hook call
+	 */
+	private long deadlineMs = 3000;
+
+	/**
+	 * Time budget of a single prefetch query, bounded by what is left of the deadline
+	 */
+	private long queryTimeoutMs = 2000;
+
+	/**
+	 * Resolves the prefetch against the DaoRegistry instead of an HTTP loopback when fhirServer is this server
+	 */
+	private boolean localFastPath = true;
+
+	/**
+	 * Other base URLs under which this server is reached (e.g. an internal host name), server_address is always included
+	 */
+	private List<String> localServerAliases = new ArrayList<>();
+
+	/**
+	 * Splits the searches carrying a large token OR-list into shards executed concurrently
+	 */
+	private boolean shardingEnabled = true;
+
+	/**
+	 * Expected duration of one shard, the chunk size is derived from it and from the measured cost of one value
+	 */
+	private long shardTargetMs = 250;
+
+	/**
+	 * Chunk size used until the cost of a query has been measured
+	 */
+	private int shardInitialChunkSize = 100;
+
+	private int shardMinChunkSize = 20;
+
+	private int shardMaxChunkSize = 400;
+
+	/**
+	 * JSON object of prefetch key to template, a classpath: resource or a file
+	 */
+	private String templatesLocation = "classpath:cds-prefetch-templates.json";
+
+	/**
+	 * How often a templates file is checked for changes, 0 disables the hot reload
+	 */
+	private long templatesReloadIntervalMs = 5000;
+
+	/**
+	 * Reuses the prefetch results of a patient for the hooks fired in a burst, until a resource of that patient is written
+	 */
+	private boolean resultCacheEnabled = true;
+
+	private long resultCacheTtlMs = 30000;
+
+	private long resultCacheMaxEntries = 10000;
+
+	/**
+	 * Sends the prefetch queries to a remote fhirServer as one batch Bundle, one by one when the server does not support batch
+	 */
+	private boolean batchRemote = true;
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	public void setEnabled(boolean enabled) {
+		this.enabled = enabled;
+	}
+
+	public int getThreads() {
+		return threads;
+	}
+
+	public void setThreads(int threads) {
+		this.threads = threads;
+	}
+
+	public int getQueueCapacity() {
+		return queueCapacity;
+	}
+
+	public void setQueueCapacity(int queueCapacity) {
+		this.queueCapacity = queueCapacity;
+	}
+
+	public long getDeadlineMs() {
+		return deadlineMs;
+	}
+
+	public void setDeadlineMs(long deadlineMs) {
+		this.deadlineMs = deadlineMs;
+	}
+
+	public long getQueryTimeoutMs() {
+		return queryTimeoutMs;
+	}
+
+	public void setQueryTimeoutMs(long queryTimeoutMs) {
+		this.queryTimeoutMs = queryTimeoutMs;
+	}
+
+	public boolean isLocalFastPath() {
+		return localFastPath;
+	}
+
+	public void setLocalFastPath(boolean localFastPath) {
+		this.localFastPath = localFastPath;
+	}
+
+	public List<String> getLocalServerAliases() {
+		return localServerAliases;
+	}
+
+	public void setLocalServerAliases(List<String> localServerAliases) {
+		this.localServerAliases = localServerAliases;
+	}
+
+	public boolean isShardingEnabled() {
+		return shardingEnabled;
+	}
+
+	public void setShardingEnabled(boolean shardingEnabled) {
+		this.shardingEnabled = shardingEnabled;
+	}
+
+	public long getShardTargetMs() {
+		return shardTargetMs;
+	}
+
+	public void setShardTargetMs(long shardTargetMs) {
+		this.shardTargetMs = shardTargetMs;
+	}
+
+	public int getShardInitialChunkSize() {
+		return shardInitialChunkSize;
+	}
+
+	public void setShardInitialChunkSize(int shardInitialChunkSize) {
+		this.shardInitialChunkSize = shardInitialChunkSize;
+	}
+
+	public int getShardMinChunkSize() {
+		return shardMinChunkSize;
+	}
+
+	public void setShardMinChunkSize(int shardMinChunkSize) {
+		this.shardMinChunkSize = shardMinChunkSize;
+	}
+
+	public int getShardMaxChunkSize() {
+		return shardMaxChunkSize;
+	}
+
+	public void setShardMaxChunkSize(int shardMaxChunkSize) {
+		this.shardMaxChunkSize = shardMaxChunkSize;
+	}
+
+	public String getTemplatesLocation() {
+		return templatesLocation;
+	}
+
+	public void setTemplatesLocation(String templatesLocation) {
+		this.templatesLocation = templatesLocation;
+	}
+
+	public long getTemplatesReloadIntervalMs() {
+		return templatesReloadIntervalMs;
+	}
+
+	public void setTemplatesReloadIntervalMs(long templatesReloadIntervalMs) {
+		this.templatesReloadIntervalMs = templatesReloadIntervalMs;
+	}
+
+	public boolean isResultCacheEnabled() {
+		return resultCacheEnabled;
+	}
+
+	public void setResultCacheEnabled(boolean resultCacheEnabled) {
+		this.resultCacheEnabled = resultCacheEnabled;
+	}
+
+	public long getResultCacheTtlMs() {
+		return resultCacheTtlMs;
+	}
+
+	public void setResultCacheTtlMs(long resultCacheTtlMs) {
+		this.resultCacheTtlMs = resultCacheTtlMs;
+	}
+
+	public long getResultCacheMaxEntries() {
+		return resultCacheMaxEntries;
+	}
+
+	public void setResultCacheMaxEntries(long resultCacheMaxEntries) {
+		this.resultCacheMaxEntries = resultCacheMaxEntries;
+	}
+
+	public boolean isBatchRemote() {
+		return batchRemote;
+	}
+
+	public void setBatchRemote(boolean batchRemote) {
+		this.batchRemote = batchRemote;
+	}
+}
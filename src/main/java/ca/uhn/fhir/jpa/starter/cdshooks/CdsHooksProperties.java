@@ -24,4 +24,50 @@ public class CdsHooksProperties {
 	public void setClientIdHeaderName(String clientIdHeaderName) {
 		this.clientIdHeaderName = clientIdHeaderName;
 	}
+
+	/**
+	 * Pretty prints the CDS Hooks responses, a request can also ask for it with _pretty=true
+	 */
+	private boolean prettyPrint = false;
+
+	public boolean isPrettyPrint() {
+		return prettyPrint;
+	}
+
+	public void setPrettyPrint(boolean prettyPrint) {
+		this.prettyPrint = prettyPrint;
+	}
+
+	/**
+	 * Logs the full request and response JSON of the CDS Hooks calls, prefetch bundles included
+	 */
+	private boolean logPayloads = false;
+
+	public boolean isLogPayloads() {
+		return logPayloads;
+	}
+
+	public void setLogPayloads(boolean logPayloads) {
+		this.logPayloads = logPayloads;
+	}
+
+	private CdsHooksPrefetchProperties prefetch = new CdsHooksPrefetchProperties();
+
+	public CdsHooksPrefetchProperties getPrefetch() {
+		return prefetch;
+	}
+
+	public void setPrefetch(CdsHooksPrefetchProperties prefetch) {
+		this.prefetch = prefetch;
+	}
+
+	private CdsHooksBulkheadProperties bulkhead = new CdsHooksBulkheadProperties();
+
+	public CdsHooksBulkheadProperties getBulkhead() {
+		return bulkhead;
+	}
+
+	public void setBulkhead(CdsHooksBulkheadProperties bulkhead) {
+		this.bulkhead = bulkhead;
+	}
 }
@@ -1,15 +1,18 @@
 package ca.uhn.fhir.jpa.starter.cdshooks;
 
 import ca.uhn.fhir.jpa.starter.AppProperties;
+import ca.uhn.fhir.jpa.starter.util.ETags;
 import ca.uhn.fhir.rest.server.RestfulServer;
 import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
 import ca.uhn.hapi.fhir.cdshooks.api.ICdsServiceRegistry;
 import ca.uhn.hapi.fhir.cdshooks.api.json.CdsServiceRequestJson;
 import ca.uhn.hapi.fhir.cdshooks.api.json.CdsServiceResponseJson;
 import ca.uhn.hapi.fhir.cdshooks.api.json.CdsServicesJson;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.util.DefaultIndenter;
+import com.fasterxml.jackson.core.util.DefaultPrettyPrinter;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.google.gson.GsonBuilder;
-import com.google.gson.JsonParser;
+import com.fasterxml.jackson.databind.ObjectWriter;
 import org.apache.http.entity.ContentType;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -18,7 +21,7 @@ import org.springframework.beans.factory.annotation.Configurable;
 import org.springframework.beans.factory.annotation.Qualifier;
 
 import java.io.IOException;
-import java.util.stream.Collectors;
+import java.nio.charset.StandardCharsets;
 import jakarta.servlet.ServletException;
 import jakarta.servlet.http.HttpServlet;
 import jakarta.servlet.http.HttpServletRequest;
@@ -37,6 +40,15 @@ public class CdsHooksServlet extends HttpServlet {
 	@Autowired
 	private ProviderConfiguration providerConfiguration;
 
+	@Autowired
+	private CdsHooksProperties cdsHooksProperties;
+
+	@Autowired
+	private CdsDiscoveryCache discoveryCache;
+
+	@Autowired
+	private CdsServiceBulkhead serviceBulkhead;
+
 	@Autowired
 	ICdsServiceRegistry cdsServiceRegistry;
 
@@ -70,12 +82,23 @@ public class CdsHooksServlet extends HttpServlet {
 			throw new ServletException("This servlet is not configured to handle GET requests.");
 		}
 		ErrorHandling.setAccessControlHeaders(response, appProperties);
+
+		// Rendered once, until a PlanDefinition change or a (un)registered service drops it
+		boolean pretty = isPretty(request);
+		CdsDiscoveryCache.Rendered discovery = discoveryCache.get(pretty);
+		if (discovery == null) {
+			long generation = discoveryCache.getGeneration();
+			discovery = discoveryCache.put(pretty, generation, responseWriter(request).writeValueAsBytes(getServices()));
+		}
+
+		response.setHeader("ETag", discovery.getEtag());
+		if (ETags.matchesIfNoneMatch(request.getHeader("If-None-Match"), discovery.getEtag())) {
+			response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+			return;
+		}
 		response.setHeader("Content-Type", ContentType.APPLICATION_JSON.getMimeType());
-		response.getWriter()
-				.println(new GsonBuilder()
-						.setPrettyPrinting()
-						.create()
-						.toJson(JsonParser.parseString(objectMapper.writeValueAsString(getServices()))));
+		response.setContentLength(discovery.getBody().length);
+		response.getOutputStream().write(discovery.getBody());
 	}
 
 	@Override
@@ -89,32 +112,65 @@ public class CdsHooksServlet extends HttpServlet {
 			logger.info(request.getRequestURI());
 			String service = request.getPathInfo().replace("/", "");
 
-			String requestJson = request.getReader().lines().collect(Collectors.joining());
-			CdsHooksRequest cdsHooksRequest = objectMapper.readValue(requestJson, CdsHooksRequest.class);
-			logRequestInfo(cdsHooksRequest, requestJson);
+			// A saturated service is answered before the body is even read
+			boolean bulkhead = cdsHooksProperties.getBulkhead().isEnabled();
+			if (bulkhead && serviceBulkhead.rejectIfSaturated(service)) {
+				ErrorHandling.handleServiceUnavailable(response, service, serviceBulkhead.getRetryAfterSeconds(), appProperties);
+				return;
+			}
 
-			CdsServiceResponseJson serviceResponseJson = cdsServiceRegistry.callService(service, cdsHooksRequest);
+			// Streamed in and out, the payload is only buffered when it has to be logged
+			CdsHooksRequest cdsHooksRequest;
+			if (cdsHooksProperties.isLogPayloads()) {
+				byte[] requestJson = request.getInputStream().readAllBytes();
+				cdsHooksRequest = objectMapper.readValue(requestJson, CdsHooksRequest.class);
+				logger.info(new String(requestJson, StandardCharsets.UTF_8));
+			} else {
+				cdsHooksRequest = objectMapper.readValue(request.getInputStream(), CdsHooksRequest.class);
+			}
+			logRequestInfo(cdsHooksRequest);
+
+			// The slot is only taken once the body is read, a slow upload does not hold it
+			CdsServiceBulkhead.Permit permit = null;
+			if (bulkhead) {
+				permit = serviceBulkhead.tryAcquire(service);
+				if (permit == null) {
+					ErrorHandling.handleServiceUnavailable(response, service, serviceBulkhead.getRetryAfterSeconds(), appProperties);
+					return;
+				}
+			}
+			CdsServiceResponseJson serviceResponseJson;
+			try {
+				serviceResponseJson = cdsServiceRegistry.callService(service, cdsHooksRequest);
+			} finally {
+				// Released before the response is written, a slow client does not hold an evaluation slot
+				if (permit != null) {
+					permit.close();
+				}
+			}
 
-			// Using GSON pretty print format as Jackson's is ugly
-			String jsonResponse = new GsonBuilder()
-					.disableHtmlEscaping()
-					.setPrettyPrinting()
-					.create()
-					.toJson(JsonParser.parseString(objectMapper.writeValueAsString(serviceResponseJson)));
-			logger.info(jsonResponse);
 			response.setContentType("text/json;charset=UTF-8");
-			response.getWriter().println(jsonResponse);
+			ObjectWriter writer = responseWriter(request);
+			if (cdsHooksProperties.isLogPayloads()) {
+				byte[] jsonResponse = writer.writeValueAsBytes(serviceResponseJson);
+				logger.info(new String(jsonResponse, StandardCharsets.UTF_8));
+				response.getOutputStream().write(jsonResponse);
+			} else {
+				writer.writeValue(response.getOutputStream(), serviceResponseJson);
+			}
 		} catch (BaseServerResponseException e) {
 			ErrorHandling.handleError(response, "ERROR: Exception connecting to remote server.", e, appProperties);
 			logger.error(e.toString());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ServletException("ERROR: Interrupted while waiting for the cds-hooks service.", e);
 		} catch (Exception e) {
 			logger.error(e.toString());
 			throw new ServletException("ERROR: Exception in cds-hooks processing.", e);
 		}
 	}
 
-	private void logRequestInfo(CdsServiceRequestJson request, String jsonRequest) {
-		logger.info(jsonRequest);
+	private void logRequestInfo(CdsServiceRequestJson request) {
 		logger.info("cds-hooks hook instance: {}", request.getHookInstance());
 		logger.info("cds-hooks local server address: {}", appProperties.getServer_address());
 		logger.info("cds-hooks fhir server address: {}", request.getFhirServer());
@@ -123,6 +179,47 @@ public class CdsHooksServlet extends HttpServlet {
 				this.getProviderConfiguration().getCqlLoggingEnabled());
 	}
 
+	/**
+	 * Compact unless pretty printing is configured or asked for with _pretty=true
+	 */
+	private ObjectWriter responseWriter(HttpServletRequest request) {
+		ObjectWriter writer = objectMapper.writer().without(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+		if (isPretty(request)) {
+			writer = writer.with(new TwoSpacePrettyPrinter());
+		}
+		return writer;
+	}
+
+	private boolean isPretty(HttpServletRequest request) {
+		String pretty = request.getParameter("_pretty");
+		return pretty != null ? Boolean.parseBoolean(pretty) : cdsHooksProperties.isPrettyPrint();
+	}
+
+	/**
+	 * Same layout as the GSON pretty printing used so far: two spaces, arrays on separate lines and "key": value
+	 */
+	private static class TwoSpacePrettyPrinter extends DefaultPrettyPrinter {
+		private static final long serialVersionUID = 1L;
+
+		TwoSpacePrettyPrinter() {
+			_arrayIndenter = DefaultIndenter.SYSTEM_LINEFEED_INSTANCE;
+		}
+
+		TwoSpacePrettyPrinter(TwoSpacePrettyPrinter base) {
+			super(base);
+		}
+
+		@Override
+		public DefaultPrettyPrinter createInstance() {
+			return new TwoSpacePrettyPrinter(this);
+		}
+
+		@Override
+		public void writeObjectFieldValueSeparator(JsonGenerator generator) throws IOException {
+			generator.writeRaw(": ");
+		}
+	}
+
 	private CdsServicesJson getServices() {
 		return cdsServiceRegistry.getCdsServicesJson();
 	}
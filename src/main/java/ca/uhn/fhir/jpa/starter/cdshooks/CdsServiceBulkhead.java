@@ -0,0 +1,117 @@
+package ca.uhn.fhir.jpa.starter.cdshooks;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Metrics;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Per CDS service bulkhead: at most maxConcurrent evaluations of a service at the same time, at most maxQueue calls
+ * waiting up to maxWaitMs for a slot, any other call is rejected at once. The CDS Hooks calls run on the servlet
+ * threads, this bounds how many of them one slow service (PlanDefinition / CQL) can hold, the rest of the pool stays
+ * available to the FHIR traffic.
+ *
+ * Metrics, tagged by service: "cds.bulkhead.active" and "cds.bulkhead.queue" gauges, "cds.bulkhead.rejected" counter.
+ */
+public class CdsServiceBulkhead {
+
+	/**
+	 * Service ids come from the request path, past this number of distinct ids the others share one compartment
+	 */
+	private static final int MAX_SERVICES = 256;
+	private static final String OTHER_SERVICES = "other";
+
+	private final CdsHooksBulkheadProperties properties;
+	private final Map<String, Compartment> compartments = new ConcurrentHashMap<>();
+
+	public CdsServiceBulkhead(CdsHooksBulkheadProperties theProperties) {
+		properties = theProperties;
+	}
+
+	/**
+	 * A held slot, to be closed once the call is done
+	 */
+	public interface Permit extends AutoCloseable {
+		@Override
+		void close();
+	}
+
+	/**
+	 * @return the permit, null when theService is saturated
+	 */
+	public Permit tryAcquire(String theService) throws InterruptedException {
+		Compartment compartment = compartment(theService);
+		if (!compartment.permits.tryAcquire()) {
+			if (compartment.waiting.incrementAndGet() > properties.getMaxQueue()) {
+				compartment.waiting.decrementAndGet();
+				compartment.rejected.increment();
+				return null;
+			}
+			try {
+				if (!compartment.permits.tryAcquire(properties.getMaxWaitMs(), TimeUnit.MILLISECONDS)) {
+					compartment.rejected.increment();
+					return null;
+				}
+			} finally {
+				compartment.waiting.decrementAndGet();
+			}
+		}
+		return compartment.permits::release;
+	}
+
+	/**
+	 * Non blocking check for a call that is not ready to take a slot yet (its body is still to be read): rejects it,
+	 * and counts it as rejected, when no slot is free and the queue is full
+	 *
+	 * @return true when the call is rejected
+	 */
+	public boolean rejectIfSaturated(String theService) {
+		Compartment compartment = compartment(theService);
+		if (compartment.permits.availablePermits() > 0 || compartment.waiting.get() < properties.getMaxQueue()) {
+			return false;
+		}
+		compartment.rejected.increment();
+		return true;
+	}
+
+	public int getRetryAfterSeconds() {
+		return properties.getRetryAfterSeconds();
+	}
+
+	private Compartment compartment(String theService) {
+		Compartment compartment = compartments.get(theService);
+		if (compartment != null) {
+			return compartment;
+		}
+		String service = compartments.size() < MAX_SERVICES ? theService : OTHER_SERVICES;
+		return compartments.computeIfAbsent(service, Compartment::new);
+	}
+
+	private class Compartment {
+		private final Semaphore permits;
+		private final AtomicInteger waiting = new AtomicInteger();
+		private final Counter rejected;
+
+		private Compartment(String theService) {
+			int maxConcurrent = Math.max(1, properties.getMaxConcurrent());
+			permits = new Semaphore(maxConcurrent, true);
+			rejected = Counter.builder("cds.bulkhead.rejected")
+					.description("CDS Hooks calls answered 503 because the service was saturated")
+					.tag("service", theService)
+					.register(Metrics.globalRegistry);
+			Gauge.builder("cds.bulkhead.queue", waiting, AtomicInteger::get)
+					.description("CDS Hooks calls waiting for a free evaluation slot")
+					.tag("service", theService)
+					.register(Metrics.globalRegistry);
+			Gauge.builder("cds.bulkhead.active", permits, available -> maxConcurrent - available.availablePermits())
+					.description("CDS Hooks calls being evaluated")
+					.tag("service", theService)
+					.register(Metrics.globalRegistry);
+		}
+	}
+}
@@ -28,6 +28,18 @@ public class ErrorHandling {
 		printStackTrack(e, response);
 	}
 
+	/**
+	 * 503 answered when a CDS service is saturated, the caller is expected to retry after theRetryAfterSeconds
+	 */
+	public static void handleServiceUnavailable(
+			HttpServletResponse response, String service, int theRetryAfterSeconds, AppProperties myAppProperties)
+			throws IOException {
+		setAccessControlHeaders(response, myAppProperties);
+		response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+		response.setHeader("Retry-After", String.valueOf(theRetryAfterSeconds));
+		response.getWriter().println("CDS service " + service + " is saturated, retry later.");
+	}
+
 	private static void handleServerResponseException(BaseServerResponseException e, HttpServletResponse response)
 			throws IOException {
 		switch (e.getStatusCode()) {
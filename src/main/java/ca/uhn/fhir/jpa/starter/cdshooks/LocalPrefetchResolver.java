@@ -0,0 +1,443 @@
+package ca.uhn.fhir.jpa.starter.cdshooks;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.RuntimeResourceDefinition;
+import ca.uhn.fhir.i18n.Msg;
+import ca.uhn.fhir.interceptor.api.HookParams;
+import ca.uhn.fhir.interceptor.api.IInterceptorBroadcaster;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
+import ca.uhn.fhir.jpa.searchparam.MatchUrlService;
+import ca.uhn.fhir.jpa.searchparam.SearchParameterMap;
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.api.RequestTypeEnum;
+import ca.uhn.fhir.rest.api.RestOperationTypeEnum;
+import ca.uhn.fhir.rest.api.server.IBundleProvider;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.api.server.ResponseDetails;
+import ca.uhn.fhir.rest.server.IPagingProvider;
+import ca.uhn.fhir.rest.server.RestfulServer;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+import ca.uhn.fhir.util.BundleBuilder;
+import ca.uhn.fhir.util.UrlUtil;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletRequestWrapper;
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.WriteListener;
+import jakarta.servlet.http.HttpServletResponse;
+import jakarta.servlet.http.HttpServletResponseWrapper;
+import org.apache.commons.lang3.StringUtils;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.web.context.request.RequestAttributes;
+import org.springframework.web.context.request.RequestContextHolder;
+import org.springframework.web.context.request.ServletRequestAttributes;
+
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.net.URI;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Resolves prefetch templates directly against the DaoRegistry when the CDS Hooks fhirServer is this very server,
+ * instead of an HTTP loopback (serialization, servlet stack and parsing twice).
+ *
+ * The authorization semantics of the HTTP path are kept: for each query the same server pointcuts
+ * (SERVER_INCOMING_REQUEST_PRE_PROCESSED, _POST_PROCESSED and _PRE_HANDLED) are invoked on the RestfulServer interceptor
+ * service, with a GET request carrying the fhirAuthorization access token as its bearer token, and the DAO is then
+ * called with those request details so that the storage pointcuts (pre-access, pre-show, consent, ...) apply as well.
+ * The result then goes through SERVER_OUTGOING_RESPONSE (AuthorizationInterceptor outgoing rules, masking, ...) like an
+ * HTTP response would, a hook that denies it or answers the request itself leaves the prefetch key out.
+ *
+ * The hooks get a response that discards what they write, the CDS Hooks response is never touched. A search returns
+ * its first page, sized like the REST path: _count capped by the paging provider maximum, its default page size otherwise.
+ */
+public class LocalPrefetchResolver {
+	private static final Logger logger = LoggerFactory.getLogger(LocalPrefetchResolver.class);
+
+	// The server defaults, used when the RestfulServer has no paging provider
+	private static final int DEFAULT_PAGE_SIZE = 20;
+	private static final int MAXIMUM_PAGE_SIZE = 200;
+
+	private final RestfulServer restfulServer;
+	private final DaoRegistry daoRegistry;
+	private final MatchUrlService matchUrlService;
+	private final FhirContext fhirContext;
+	private final String serverBase;
+	private final String serverBasePath;
+	private final Set<String> localBases = new HashSet<>();
+
+	public LocalPrefetchResolver(
+			RestfulServer theRestfulServer,
+			DaoRegistry theDaoRegistry,
+			MatchUrlService theMatchUrlService,
+			String theServerAddress,
+			List<String> theLocalServerAliases) {
+		restfulServer = theRestfulServer;
+		daoRegistry = theDaoRegistry;
+		matchUrlService = theMatchUrlService;
+		fhirContext = theRestfulServer.getFhirContext();
+		serverBase = StringUtils.removeEnd(theServerAddress, "/");
+		serverBasePath = StringUtils.defaultString(URI.create(serverBase).getPath());
+
+		localBases.add(normalize(theServerAddress));
+		theLocalServerAliases.forEach(alias -> localBases.add(normalize(alias)));
+		logger.info("CDS Hooks local prefetch enabled for {}", localBases);
+	}
+
+	/**
+	 * @return true when theFhirServer designates this server (server_address or one of its configured aliases)
+	 */
+	public boolean isLocalServer(String theFhirServer) {
+		return theFhirServer != null && localBases.contains(normalize(theFhirServer));
+	}
+
+	/**
+	 * @return true when the current thread serves an HTTP request, the server pointcuts need it
+	 */
+	public boolean isAvailable() {
+		ServletRequestAttributes attributes = currentServletAttributes();
+		return attributes != null && attributes.getResponse() != null;
+	}
+
+	/**
+	 * Runs the server pointcuts for theUrl on the calling (servlet) thread and returns the DAO call to execute.
+	 * An authentication / authorization failure is thrown here, exactly where the HTTP path would have failed.
+	 */
+	public Callable<IBaseResource> prepare(String theUrl, String theAccessToken) {
+		UrlUtil.UrlParts parts = UrlUtil.parseUrl(theUrl);
+		String resourceType = parts.getResourceType();
+		if (StringUtils.isEmpty(resourceType)) {
+			throw new InvalidRequestException(
+				Msg.code(2383) + "Failed to resolve " + theUrl + ". Url does not start with a resource type.");
+		}
+		String resourceId = parts.getResourceId();
+		if (resourceId == null && parts.getParams() == null) {
+			throw new InvalidRequestException(
+				Msg.code(2384) + "Unable to translate url " + theUrl + " into a resource or a bundle.");
+		}
+
+		ServletRequestAttributes attributes = currentServletAttributes();
+		String path = resourceId != null ? resourceType + "/" + resourceId : resourceType;
+		PrefetchServletRequest servletRequest = new PrefetchServletRequest(
+			attributes.getRequest(), serverBasePath + "/" + path, serverBase + "/" + path, parts.getParams(), theAccessToken);
+		HttpServletResponse servletResponse = new DiscardingServletResponse(attributes.getResponse());
+		RestOperationTypeEnum operationType = resourceId != null ? RestOperationTypeEnum.READ : RestOperationTypeEnum.SEARCH_TYPE;
+
+		ServletRequestDetails requestDetails = new ServletRequestDetails(restfulServer.getInterceptorService());
+		requestDetails.setServer(restfulServer);
+		requestDetails.setServletRequest(servletRequest);
+		requestDetails.setServletResponse(servletResponse);
+		requestDetails.setFhirServerBase(serverBase);
+		requestDetails.setRequestType(RequestTypeEnum.GET);
+		requestDetails.setResourceName(resourceType);
+		requestDetails.setRequestPath(path);
+		requestDetails.setCompleteUrl(serverBase + "/" + theUrl);
+		requestDetails.setRestOperationType(operationType);
+		if (resourceId != null) {
+			requestDetails.setId(newId(resourceType, resourceId));
+		}
+		if (parts.getParams() != null) {
+			requestDetails.setParameters(UrlUtil.parseQueryString(parts.getParams()));
+		}
+
+		IInterceptorBroadcaster broadcaster = restfulServer.getInterceptorService();
+		HookParams preProcessedParams = new HookParams()
+			.add(HttpServletRequest.class, servletRequest)
+			.add(HttpServletResponse.class, servletResponse);
+		if (!broadcaster.callHooks(Pointcut.SERVER_INCOMING_REQUEST_PRE_PROCESSED, preProcessedParams)) {
+			throw new InvalidRequestException("Prefetch " + theUrl + " was stopped by an interceptor.");
+		}
+
+		HookParams postProcessedParams = new HookParams()
+			.add(RequestDetails.class, requestDetails)
+			.add(ServletRequestDetails.class, requestDetails)
+			.add(HttpServletRequest.class, servletRequest)
+			.add(HttpServletResponse.class, servletResponse);
+		if (!broadcaster.callHooks(Pointcut.SERVER_INCOMING_REQUEST_POST_PROCESSED, postProcessedParams)) {
+			throw new InvalidRequestException("Prefetch " + theUrl + " was stopped by an interceptor.");
+		}
+
+		HookParams preHandledParams = new HookParams()
+			.add(RequestDetails.class, requestDetails)
+			.add(ServletRequestDetails.class, requestDetails)
+			.add(RestOperationTypeEnum.class, operationType);
+		broadcaster.callHooks(Pointcut.SERVER_INCOMING_REQUEST_PRE_HANDLED, preHandledParams);
+
+		IFhirResourceDao<? extends IBaseResource> dao = daoRegistry.getResourceDao(resourceType);
+		if (resourceId != null) {
+			IIdType id = newId(resourceType, resourceId);
+			return () -> outgoingResponse(theUrl, dao.read(id, requestDetails), requestDetails);
+		}
+		return () -> outgoingResponse(theUrl, search(dao, resourceType, theUrl, requestDetails), requestDetails);
+	}
+
+	private IBaseResource search(IFhirResourceDao<? extends IBaseResource> theDao, String theResourceType, String theUrl, RequestDetails theRequestDetails) {
+		RuntimeResourceDefinition resourceDefinition = fhirContext.getResourceDefinition(theResourceType);
+		SearchParameterMap searchParameterMap = matchUrlService.translateMatchUrl(theUrl, resourceDefinition);
+		int pageSize = pageSize(searchParameterMap.getCount());
+		searchParameterMap.setCount(pageSize);
+		searchParameterMap.setLoadSynchronousUpTo(pageSize);
+
+		IBundleProvider bundleProvider = theDao.search(searchParameterMap, theRequestDetails);
+		BundleBuilder bundleBuilder = new BundleBuilder(fhirContext);
+		bundleBuilder.setType("searchset");
+		for (IBaseResource resource : bundleProvider.getResources(0, pageSize)) {
+			bundleBuilder.addCollectionEntry(resource);
+		}
+		return bundleBuilder.getBundle();
+	}
+
+	/**
+	 * @return theCount capped by the paging provider maximum, the paging provider default page size without one
+	 */
+	int pageSize(Integer theCount) {
+		IPagingProvider pagingProvider = restfulServer.getPagingProvider();
+		int defaultPageSize = pagingProvider != null ? pagingProvider.getDefaultPageSize() : DEFAULT_PAGE_SIZE;
+		int maximumPageSize = pagingProvider != null ? pagingProvider.getMaximumPageSize() : MAXIMUM_PAGE_SIZE;
+		if (theCount == null || theCount <= 0) {
+			return Math.min(defaultPageSize, maximumPageSize);
+		}
+		return Math.min(theCount, maximumPageSize);
+	}
+
+	/**
+	 * @return theResource as left by the SERVER_OUTGOING_RESPONSE hooks, null when one of them handled the response
+	 */
+	private IBaseResource outgoingResponse(String theUrl, IBaseResource theResource, ServletRequestDetails theRequestDetails) {
+		ResponseDetails responseDetails = new ResponseDetails(theResource);
+		HookParams outgoingParams = new HookParams()
+			.add(RequestDetails.class, theRequestDetails)
+			.add(ServletRequestDetails.class, theRequestDetails)
+			.add(IBaseResource.class, theResource)
+			.add(ResponseDetails.class, responseDetails)
+			.add(HttpServletRequest.class, theRequestDetails.getServletRequest())
+			.add(HttpServletResponse.class, theRequestDetails.getServletResponse());
+		if (!restfulServer.getInterceptorService().callHooks(Pointcut.SERVER_OUTGOING_RESPONSE, outgoingParams)) {
+			logger.warn("Prefetch {} omitted, an interceptor handled the response", theUrl);
+			return null;
+		}
+		return responseDetails.getResponseResource();
+	}
+
+	private IIdType newId(String theResourceType, String theResourceId) {
+		return fhirContext.getVersion().newIdType().setValue(theResourceType + "/" + theResourceId);
+	}
+
+	private static ServletRequestAttributes currentServletAttributes() {
+		RequestAttributes attributes = RequestContextHolder.getRequestAttributes();
+		return attributes instanceof ServletRequestAttributes ? (ServletRequestAttributes) attributes : null;
+	}
+
+	private static String normalize(String theBase) {
+		String base = StringUtils.removeEnd(theBase.trim(), "/");
+		URI uri = URI.create(base);
+		int port = uri.getPort();
+		if (port == -1) {
+			port = "https".equalsIgnoreCase(uri.getScheme()) ? 443 : 80;
+		}
+		return StringUtils.lowerCase(uri.getScheme()) + "://" + StringUtils.lowerCase(uri.getHost()) + ":" + port
+				+ StringUtils.defaultString(uri.getPath());
+	}
+
+	/**
+	 * Response handed to the server pointcuts of one prefetch query: what a hook writes or sets is discarded.
+	 */
+	private static class DiscardingServletResponse extends HttpServletResponseWrapper {
+		private final ServletOutputStream outputStream = new ServletOutputStream() {
+			@Override
+			public boolean isReady() {
+				return true;
+			}
+
+			@Override
+			public void setWriteListener(WriteListener theWriteListener) {
+				throw new UnsupportedOperationException();
+			}
+
+			@Override
+			public void write(int theByte) {
+				// Discarded
+			}
+		};
+		private final PrintWriter writer = new PrintWriter(OutputStream.nullOutputStream());
+
+		DiscardingServletResponse(HttpServletResponse theResponse) {
+			super(theResponse);
+		}
+
+		@Override
+		public ServletOutputStream getOutputStream() {
+			return outputStream;
+		}
+
+		@Override
+		public PrintWriter getWriter() {
+			return writer;
+		}
+
+		@Override
+		public boolean isCommitted() {
+			return false;
+		}
+
+		@Override
+		public void setStatus(int theStatus) {}
+
+		@Override
+		public void sendError(int theStatus) {}
+
+		@Override
+		public void sendError(int theStatus, String theMessage) {}
+
+		@Override
+		public void sendRedirect(String theLocation) {}
+
+		@Override
+		public void setHeader(String theName, String theValue) {}
+
+		@Override
+		public void addHeader(String theName, String theValue) {}
+
+		@Override
+		public void setIntHeader(String theName, int theValue) {}
+
+		@Override
+		public void addIntHeader(String theName, int theValue) {}
+
+		@Override
+		public void setDateHeader(String theName, long theValue) {}
+
+		@Override
+		public void addDateHeader(String theName, long theValue) {}
+
+		@Override
+		public void setContentType(String theType) {}
+
+		@Override
+		public void setCharacterEncoding(String theCharset) {}
+
+		@Override
+		public void setContentLength(int theLength) {}
+
+		@Override
+		public void setContentLengthLong(long theLength) {}
+
+		@Override
+		public void setBufferSize(int theSize) {}
+
+		@Override
+		public void flushBuffer() {}
+
+		@Override
+		public void reset() {}
+
+		@Override
+		public void resetBuffer() {}
+	}
+
+	/**
+	 * GET request used for the server pointcuts of one prefetch query. Everything a hook may read about the request
+	 * (method, URI, headers, attributes) is answered locally, the wrapped CDS Hooks request is never read from the
+	 * prefetch pool threads.
+	 */
+	private static class PrefetchServletRequest extends HttpServletRequestWrapper {
+		private final String requestURI;
+		private final String requestURL;
+		private final String queryString;
+		private final String authorization;
+		private final Map<String, Object> attributes = new ConcurrentHashMap<>();
+
+		PrefetchServletRequest(HttpServletRequest theRequest, String theRequestURI, String theRequestURL, String theQueryString, String theAccessToken) {
+			super(theRequest);
+			requestURI = theRequestURI;
+			requestURL = theRequestURL;
+			queryString = theQueryString;
+			authorization = theAccessToken != null ? Constants.HEADER_AUTHORIZATION_VALPREFIX_BEARER + theAccessToken : null;
+		}
+
+		@Override
+		public String getMethod() {
+			return "GET";
+		}
+
+		@Override
+		public String getRequestURI() {
+			return requestURI;
+		}
+
+		@Override
+		public StringBuffer getRequestURL() {
+			return new StringBuffer(requestURL);
+		}
+
+		@Override
+		public String getQueryString() {
+			return queryString;
+		}
+
+		@Override
+		public String getContentType() {
+			return null;
+		}
+
+		@Override
+		public String getHeader(String theName) {
+			return Constants.HEADER_AUTHORIZATION.equalsIgnoreCase(theName) ? authorization : null;
+		}
+
+		@Override
+		public Enumeration<String> getHeaders(String theName) {
+			String value = getHeader(theName);
+			return value != null ? Collections.enumeration(List.of(value)) : Collections.emptyEnumeration();
+		}
+
+		@Override
+		public Enumeration<String> getHeaderNames() {
+			return authorization != null
+				? Collections.enumeration(List.of(Constants.HEADER_AUTHORIZATION))
+				: Collections.emptyEnumeration();
+		}
+
+		@Override
+		public Object getAttribute(String theName) {
+			return attributes.get(theName);
+		}
+
+		@Override
+		public Enumeration<String> getAttributeNames() {
+			return Collections.enumeration(attributes.keySet());
+		}
+
+		@Override
+		public void setAttribute(String theName, Object theValue) {
+			if (theValue == null) {
+				attributes.remove(theName);
+			} else {
+				attributes.put(theName, theValue);
+			}
+		}
+
+		@Override
+		public void removeAttribute(String theName) {
+			attributes.remove(theName);
+		}
+
+		@Override
+		public Locale getLocale() {
+			return Locale.getDefault();
+		}
+	}
+}
@@ -0,0 +1,185 @@
+package ca.uhn.fhir.jpa.starter.cdshooks;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.util.BundleBuilder;
+import ca.uhn.fhir.util.BundleUtil;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+import org.hl7.fhir.instance.model.api.IBaseBundle;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Splits prefetch searches carrying a large token OR-list (e.g. hundreds of LOINC codes in code=a,b,c,...) into shards
+ * that are executed in parallel, then merges the shard Bundles back into one searchset, de-duplicated by resource id.
+ *
+ * The chunk size is not hardcoded: the planner keeps, per resource type and parameter, a moving average of the
+ * measured cost of one value (shard duration / number of values) and sizes the chunks so that a shard is expected to
+ * take about shardTargetMs. The initial chunk size is only used until the first measurement.
+ *
+ * Each shard duration is recorded in the global Micrometer registry as "cds.prefetch.shard" tagged by prefetch key.
+ */
+public class PrefetchQueryPlanner {
+	private static final Logger logger = LoggerFactory.getLogger(PrefetchQueryPlanner.class);
+
+	private static final double COST_SMOOTHING = 0.2;
+
+	private final FhirContext fhirContext;
+	private final CdsHooksPrefetchProperties prefetchProperties;
+	private final Map<String, Double> costPerValueMs = new ConcurrentHashMap<>();
+
+	public PrefetchQueryPlanner(FhirContext theFhirContext, CdsHooksPrefetchProperties thePrefetchProperties) {
+		fhirContext = theFhirContext;
+		prefetchProperties = thePrefetchProperties;
+	}
+
+	/**
+	 * One shard of a prefetch query
+	 */
+	public static class Shard {
+		private final String url;
+		private final String costKey;
+		private final int values;
+
+		Shard(String theUrl, String theCostKey, int theValues) {
+			url = theUrl;
+			costKey = theCostKey;
+			values = theValues;
+		}
+
+		public String getUrl() {
+			return url;
+		}
+
+		public int getValues() {
+			return values;
+		}
+	}
+
+	/**
+	 * @return the shards of theUrl, a single shard holding theUrl itself when it does not need to be split
+	 */
+	public List<Shard> plan(String theUrl) {
+		int queryStart = theUrl.indexOf('?');
+		if (!prefetchProperties.isShardingEnabled() || queryStart == -1) {
+			return List.of(new Shard(theUrl, null, 0));
+		}
+
+		String resourceType = theUrl.substring(0, queryStart);
+		String[] parameters = theUrl.substring(queryStart + 1).split("&");
+
+		// Shard on the parameter with the longest OR-list
+		int largestIndex = -1;
+		List<String> largestValues = List.of();
+		for (int i = 0; i < parameters.length; i++) {
+			int equals = parameters[i].indexOf('=');
+			if (equals == -1) {
+				continue;
+			}
+			List<String> values = splitOrList(parameters[i].substring(equals + 1));
+			if (values.size() > largestValues.size()) {
+				largestIndex = i;
+				largestValues = values;
+			}
+		}
+		if (largestIndex == -1 || largestValues.size() < 2) {
+			return List.of(new Shard(theUrl, null, 0));
+		}
+
+		String parameterName = parameters[largestIndex].substring(0, parameters[largestIndex].indexOf('='));
+		String costKey = resourceType + "?" + parameterName;
+		int chunkSize = chunkSize(costKey);
+		if (largestValues.size() <= chunkSize) {
+			return List.of(new Shard(theUrl, costKey, largestValues.size()));
+		}
+
+		List<Shard> shards = new ArrayList<>();
+		for (int from = 0; from < largestValues.size(); from += chunkSize) {
+			List<String> chunk = largestValues.subList(from, Math.min(from + chunkSize, largestValues.size()));
+			parameters[largestIndex] = parameterName + "=" + String.join(",", chunk);
+			shards.add(new Shard(resourceType + "?" + String.join("&", parameters), costKey, chunk.size()));
+		}
+		return shards;
+	}
+
+	/**
+	 * Chunk size expected to run in shardTargetMs given the measured cost of one value
+	 */
+	int chunkSize(String theCostKey) {
+		Double cost = costPerValueMs.get(theCostKey);
+		int chunkSize = cost == null || cost <= 0
+				? prefetchProperties.getShardInitialChunkSize()
+				: (int) (prefetchProperties.getShardTargetMs() / cost);
+		return Math.max(prefetchProperties.getShardMinChunkSize(), Math.min(prefetchProperties.getShardMaxChunkSize(), chunkSize));
+	}
+
+	/**
+	 * Records the measured duration of a shard, feeds the cost model and the shard timer
+	 */
+	public void record(String thePrefetchKey, Shard theShard, long theElapsedNanos) {
+		Timer.builder("cds.prefetch.shard")
+				.description("Duration of one CDS Hooks prefetch query shard")
+				.tag("key", thePrefetchKey)
+				.register(Metrics.globalRegistry)
+				.record(theElapsedNanos, TimeUnit.NANOSECONDS);
+
+		if (theShard.costKey != null && theShard.values > 0) {
+			double sample = TimeUnit.NANOSECONDS.toMicros(theElapsedNanos) / 1000d / theShard.values;
+			costPerValueMs.merge(theShard.costKey, sample, (previous, current) -> previous + COST_SMOOTHING * (current - previous));
+		}
+		logger.debug("Prefetch {} shard of {} values took {}ms", thePrefetchKey, theShard.values, TimeUnit.NANOSECONDS.toMillis(theElapsedNanos));
+	}
+
+	/**
+	 * @return a searchset Bundle holding the resources of all theShardResults, each resource id at most once
+	 */
+	public IBaseBundle merge(List<IBaseResource> theShardResults) {
+		Map<String, IBaseResource> resources = new LinkedHashMap<>();
+		List<IBaseResource> anonymous = new ArrayList<>();
+		for (IBaseResource shardResult : theShardResults) {
+			if (!(shardResult instanceof IBaseBundle)) {
+				continue;
+			}
+			for (IBaseResource resource : BundleUtil.toListOfResources(fhirContext, (IBaseBundle) shardResult)) {
+				if (resource.getIdElement().isEmpty()) {
+					anonymous.add(resource);
+				} else {
+					resources.putIfAbsent(resource.fhirType() + "/" + resource.getIdElement().getIdPart(), resource);
+				}
+			}
+		}
+
+		BundleBuilder bundleBuilder = new BundleBuilder(fhirContext);
+		bundleBuilder.setType("searchset");
+		resources.values().forEach(bundleBuilder::addCollectionEntry);
+		anonymous.forEach(bundleBuilder::addCollectionEntry);
+		return bundleBuilder.getBundle();
+	}
+
+	/**
+	 * Splits a token OR-list on the commas that are not escaped with a backslash
+	 */
+	static List<String> splitOrList(String theValue) {
+		List<String> values = new ArrayList<>();
+		int start = 0;
+		for (int i = 0; i < theValue.length(); i++) {
+			char c = theValue.charAt(i);
+			if (c == '\\') {
+				i++;
+			} else if (c == ',') {
+				values.add(theValue.substring(start, i));
+				start = i + 1;
+			}
+		}
+		values.add(theValue.substring(start));
+		return values;
+	}
+}
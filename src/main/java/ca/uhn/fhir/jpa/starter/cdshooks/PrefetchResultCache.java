@@ -0,0 +1,252 @@
+package ca.uhn.fhir.jpa.starter.cdshooks;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.Interceptor;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Short-lived cache of the prefetch results, for the bursts of hooks (patient-view, order-select, ...) an EHR fires
+ * for the same patient within seconds.
+ *
+ * An entry is keyed by fhirServer, patient, rendered prefetch url and access token: the token is part of the key so
+ * that a result is never handed to a caller with other authorizations. Like the TokenValidationCache, the key only
+ * holds the SHA-256 hash of the token. Entries expire after resultCacheTtlMs, the cache holds at most
+ * resultCacheMaxEntries of them.
+ *
+ * A write of a resource in the Patient compartment stamps the patient (at pre-commit and again after the commit), an
+ * entry whose load started before the last stamp of its patient is a miss. This also drops the results loaded while
+ * the write was in flight. A stamp lives as long as an entry loaded before it can: resultCacheTtlMs plus the prefetch
+ * deadline.
+ *
+ * Metrics: "cds.prefetch.cache" counts the lookups tagged result=hit|miss, "cds.prefetch.cache.hit.ratio" is the
+ * ratio since startup and "cds.prefetch.cache.saved" records, per hook call served at least in part from the cache,
+ * the load time of the cached results it reused.
+ */
+@Interceptor
+public class PrefetchResultCache {
+	private static final Logger logger = LoggerFactory.getLogger(PrefetchResultCache.class);
+
+	private static final String PATIENT = "Patient";
+
+	private final FhirContext fhirContext;
+	private final Cache<Key, Entry> results;
+	private final Cache<String, Long> patientWrites;
+	private final Counter hits;
+	private final Counter misses;
+	private final Timer saved;
+
+	public PrefetchResultCache(FhirContext theFhirContext, CdsHooksPrefetchProperties thePrefetchProperties) {
+		fhirContext = theFhirContext;
+		Duration ttl = Duration.ofMillis(thePrefetchProperties.getResultCacheTtlMs());
+		results = Caffeine.newBuilder()
+				.expireAfterWrite(ttl)
+				.maximumSize(thePrefetchProperties.getResultCacheMaxEntries())
+				.build();
+		// A stamp only matters for the entries whose load was in flight or that are still alive, it is kept exactly that
+		// long: no size bound, evicting a stamp early would hand out the stale entries of its patient again
+		patientWrites = Caffeine.newBuilder()
+				.expireAfterWrite(ttl.plusMillis(thePrefetchProperties.getDeadlineMs()))
+				.build();
+
+		hits = Counter.builder("cds.prefetch.cache").description("CDS Hooks prefetch cache lookups").tag("result", "hit").register(Metrics.globalRegistry);
+		misses = Counter.builder("cds.prefetch.cache").description("CDS Hooks prefetch cache lookups").tag("result", "miss").register(Metrics.globalRegistry);
+		Gauge.builder("cds.prefetch.cache.hit.ratio", this, cache -> cache.hitRatio())
+				.description("Share of the CDS Hooks prefetch cache lookups that were hits")
+				.register(Metrics.globalRegistry);
+		Gauge.builder("cds.prefetch.cache.size", results, Cache::estimatedSize)
+				.description("Number of cached CDS Hooks prefetch results")
+				.register(Metrics.globalRegistry);
+		saved = Timer.builder("cds.prefetch.cache.saved")
+				.description("Prefetch load time avoided per hook call served from the cache")
+				.register(Metrics.globalRegistry);
+	}
+
+	/**
+	 * A cached prefetch result, theResource is shared between the hook calls and must be treated as read-only
+	 */
+	public static final class Entry {
+		private final IBaseResource resource;
+		private final long loadStartNanos;
+		private final long loadNanos;
+
+		private Entry(IBaseResource theResource, long theLoadStartNanos, long theLoadNanos) {
+			resource = theResource;
+			loadStartNanos = theLoadStartNanos;
+			loadNanos = theLoadNanos;
+		}
+
+		public IBaseResource getResource() {
+			return resource;
+		}
+
+		public long getLoadNanos() {
+			return loadNanos;
+		}
+	}
+
+	/**
+	 * @return the cached result, null on a miss
+	 */
+	public Entry get(String theFhirServer, String thePatientId, String theAccessToken, String theUrl) {
+		Entry entry = results.getIfPresent(new Key(theFhirServer, normalizePatientId(thePatientId), theAccessToken, theUrl));
+		if (entry != null) {
+			Long lastWrite = patientWrites.getIfPresent(normalizePatientId(thePatientId));
+			if (lastWrite == null || entry.loadStartNanos - lastWrite > 0) {
+				hits.increment();
+				return entry;
+			}
+		}
+		misses.increment();
+		return null;
+	}
+
+	/**
+	 * @param theLoadStartNanos System.nanoTime() before the result was requested, a patient write after it makes the entry stale
+	 * @param theLoadNanos      the time it took to load the result
+	 */
+	public void put(String theFhirServer, String thePatientId, String theAccessToken, String theUrl, IBaseResource theResource, long theLoadStartNanos, long theLoadNanos) {
+		results.put(new Key(theFhirServer, normalizePatientId(thePatientId), theAccessToken, theUrl), new Entry(theResource, theLoadStartNanos, theLoadNanos));
+	}
+
+	/**
+	 * Records the load time a hook call avoided thanks to the cache
+	 */
+	public void recordSaved(long theSavedNanos) {
+		saved.record(theSavedNanos, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Makes every result cached so far for thePatientId stale, on all the fhirServers
+	 */
+	public void invalidatePatient(String thePatientId) {
+		patientWrites.put(normalizePatientId(thePatientId), System.nanoTime());
+	}
+
+	@Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_CREATED)
+	public void resourceCreated(IBaseResource theResource) {
+		invalidateCompartment(theResource);
+	}
+
+	@Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_UPDATED)
+	public void resourceUpdated(IBaseResource theOldResource, IBaseResource theNewResource) {
+		invalidateCompartment(theOldResource);
+		invalidateCompartment(theNewResource);
+	}
+
+	@Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_DELETED)
+	public void resourceDeleted(IBaseResource theResource) {
+		invalidateCompartment(theResource);
+	}
+
+	private void invalidateCompartment(IBaseResource theResource) {
+		if (theResource == null) {
+			return;
+		}
+		List<String> patientIds;
+		try {
+			patientIds = compartmentOwners(theResource);
+		} catch (RuntimeException e) {
+			logger.warn("Could not find the patient of {}, the prefetch cache is not invalidated: {}", theResource.getIdElement().getValue(), e.getMessage());
+			return;
+		}
+		if (patientIds.isEmpty()) {
+			return;
+		}
+		patientIds.forEach(this::invalidatePatient);
+		// Again once committed, a prefetch running between the pre-commit and the commit may have read the previous data
+		if (TransactionSynchronizationManager.isSynchronizationActive()) {
+			TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+				@Override
+				public void afterCommit() {
+					patientIds.forEach(PrefetchResultCache.this::invalidatePatient);
+				}
+			});
+		}
+	}
+
+	private List<String> compartmentOwners(IBaseResource theResource) {
+		if (PATIENT.equals(theResource.fhirType())) {
+			return theResource.getIdElement().hasIdPart() ? List.of(theResource.getIdElement().getIdPart()) : List.of();
+		}
+		return fhirContext.newTerser().getCompartmentOwnersForResource(PATIENT, theResource, List.of()).stream()
+				.filter(IIdType::hasIdPart)
+				.map(IIdType::getIdPart)
+				.toList();
+	}
+
+	private double hitRatio() {
+		double lookups = hits.count() + misses.count();
+		return lookups == 0 ? 0 : hits.count() / lookups;
+	}
+
+	private static String normalizePatientId(String thePatientId) {
+		return thePatientId.startsWith("Patient/") ? thePatientId.substring("Patient/".length()) : thePatientId;
+	}
+
+	private static String hash(String theAccessToken) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			return HexFormat.of().formatHex(digest.digest(theAccessToken.getBytes(StandardCharsets.UTF_8)));
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-256 is not available.", e);
+		}
+	}
+
+	private static final class Key {
+		private final String fhirServer;
+		private final String patientId;
+		private final String accessToken;
+		private final String url;
+		private final int hashCode;
+
+		private Key(String theFhirServer, String thePatientId, String theAccessToken, String theUrl) {
+			fhirServer = theFhirServer;
+			patientId = thePatientId;
+			accessToken = theAccessToken == null ? null : hash(theAccessToken);
+			url = theUrl;
+			hashCode = Objects.hash(fhirServer, patientId, accessToken, url);
+		}
+
+		@Override
+		public boolean equals(Object theOther) {
+			if (this == theOther) {
+				return true;
+			}
+			if (!(theOther instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) theOther;
+			return Objects.equals(fhirServer, other.fhirServer)
+					&& patientId.equals(other.patientId)
+					&& Objects.equals(accessToken, other.accessToken)
+					&& url.equals(other.url);
+		}
+
+		@Override
+		public int hashCode() {
+			return hashCode;
+		}
+	}
+}
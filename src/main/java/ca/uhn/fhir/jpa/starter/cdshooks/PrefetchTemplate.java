@@ -0,0 +1,176 @@
+package ca.uhn.fhir.jpa.starter.cdshooks;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A prefetch template compiled once into alternating literal / variable tokens, e.g.
+ * "Encounter?patient={{context.patientId}}&date=ge{{today-1y}}" -> ["Encounter?patient=", context.patientId, "&date=ge", today-1y, ""]
+ *
+ * Supported variables:
+ * {{context.name}}      a value of the CDS Hooks context, a "Patient/" prefix is dropped from context.patientId
+ * {{today}}             the current date (yyyy-MM-dd)
+ * {{today-Nd|w|m|y}}    the current date minus N days, weeks, months or years
+ *
+ * The literals are copied as written, the substituted values are percent-encoded (everything but the RFC 3986
+ * unreserved characters). Rendering appends into a single pre-sized builder, the dates are formatted once per day.
+ */
+public final class PrefetchTemplate {
+
+	private static final Pattern VARIABLE = Pattern.compile("\\{\\{\\s*([^}]+?)\\s*}}");
+	private static final Pattern DATE = Pattern.compile("today(?:\\s*-\\s*(\\d+)\\s*([dwmy]))?");
+	private static final String CONTEXT_PREFIX = "context.";
+	private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+	private final String source;
+	private final String[] literals;
+	private final Variable[] variables;
+	private final int literalLength;
+
+	private PrefetchTemplate(String theSource, String[] theLiterals, Variable[] theVariables) {
+		source = theSource;
+		literals = theLiterals;
+		variables = theVariables;
+		int length = 0;
+		for (String literal : theLiterals) {
+			length += literal.length();
+		}
+		literalLength = length;
+	}
+
+	/**
+	 * @throws IllegalArgumentException on an unsupported variable
+	 */
+	public static PrefetchTemplate compile(String theTemplate) {
+		List<String> literals = new ArrayList<>();
+		List<Variable> variables = new ArrayList<>();
+		Matcher matcher = VARIABLE.matcher(theTemplate);
+		int position = 0;
+		while (matcher.find()) {
+			literals.add(theTemplate.substring(position, matcher.start()));
+			variables.add(Variable.parse(matcher.group(1), theTemplate));
+			position = matcher.end();
+		}
+		literals.add(theTemplate.substring(position));
+		return new PrefetchTemplate(theTemplate, literals.toArray(new String[0]), variables.toArray(new Variable[0]));
+	}
+
+	/**
+	 * @param theContext the CDS Hooks context values by name
+	 * @return the rendered url, null when a context variable has no value
+	 */
+	public String render(Function<String, String> theContext) {
+		LocalDate today = null;
+		StringBuilder url = new StringBuilder(literalLength + variables.length * 24);
+		for (int i = 0; i < variables.length; i++) {
+			url.append(literals[i]);
+			Variable variable = variables[i];
+			String value;
+			if (variable.contextName != null) {
+				value = theContext.apply(variable.contextName);
+				if (value == null) {
+					return null;
+				}
+				if ("patientId".equals(variable.contextName) && value.startsWith("Patient/")) {
+					value = value.substring("Patient/".length());
+				}
+			} else {
+				if (today == null) {
+					today = LocalDate.now();
+				}
+				value = variable.date(today);
+			}
+			appendEncoded(url, value);
+		}
+		url.append(literals[variables.length]);
+		return url.toString();
+	}
+
+	public String getSource() {
+		return source;
+	}
+
+	private static void appendEncoded(StringBuilder theUrl, String theValue) {
+		for (int i = 0; i < theValue.length(); i++) {
+			char c = theValue.charAt(i);
+			if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '-' || c == '.' || c == '_' || c == '~') {
+				theUrl.append(c);
+			} else {
+				// Slow path, only taken for values that actually need escaping
+				for (byte b : String.valueOf(c).getBytes(StandardCharsets.UTF_8)) {
+					theUrl.append('%').append(HEX[(b >> 4) & 0xF]).append(HEX[b & 0xF]);
+				}
+			}
+		}
+	}
+
+	private static final class Variable {
+		private final String contextName;
+		private final long amount;
+		private final ChronoUnit unit;
+
+		// Formatted date of the last day it was rendered for, replaced as a whole so that readers never see a torn pair
+		private volatile CachedDate cachedDate;
+
+		private Variable(String theContextName, long theAmount, ChronoUnit theUnit) {
+			contextName = theContextName;
+			amount = theAmount;
+			unit = theUnit;
+		}
+
+		static Variable parse(String theExpression, String theTemplate) {
+			if (theExpression.startsWith(CONTEXT_PREFIX) && theExpression.length() > CONTEXT_PREFIX.length()) {
+				return new Variable(theExpression.substring(CONTEXT_PREFIX.length()), 0, null);
+			}
+			Matcher date = DATE.matcher(theExpression);
+			if (date.matches()) {
+				if (date.group(1) == null) {
+					return new Variable(null, 0, ChronoUnit.DAYS);
+				}
+				ChronoUnit unit;
+				switch (date.group(2)) {
+					case "d":
+						unit = ChronoUnit.DAYS;
+						break;
+					case "w":
+						unit = ChronoUnit.WEEKS;
+						break;
+					case "m":
+						unit = ChronoUnit.MONTHS;
+						break;
+					default:
+						unit = ChronoUnit.YEARS;
+						break;
+				}
+				return new Variable(null, Long.parseLong(date.group(1)), unit);
+			}
+			throw new IllegalArgumentException("Unsupported variable {{" + theExpression + "}} in prefetch template " + theTemplate);
+		}
+
+		String date(LocalDate theToday) {
+			CachedDate cached = cachedDate;
+			long epochDay = theToday.toEpochDay();
+			if (cached == null || cached.epochDay != epochDay) {
+				cached = new CachedDate(epochDay, theToday.minus(amount, unit).toString());
+				cachedDate = cached;
+			}
+			return cached.value;
+		}
+	}
+
+	private static final class CachedDate {
+		private final long epochDay;
+		private final String value;
+
+		private CachedDate(long theEpochDay, String theValue) {
+			epochDay = theEpochDay;
+			value = theValue;
+		}
+	}
+}
@@ -0,0 +1,141 @@
+package ca.uhn.fhir.jpa.starter.cdshooks;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Holds the compiled prefetch templates of the ModuleConfigurationPrefetchSvc, keyed by prefetch key.
+ *
+ * The templates are a JSON object {"key": "template", ...} read from templatesLocation, either a classpath: resource
+ * or a file. A file is polled every templatesReloadIntervalMs and recompiled when its modification time changes, a
+ * file that cannot be read or compiled keeps the previous templates in place.
+ *
+ * Templates coming from the service definitions (PlanDefinition based services) are compiled on first use and kept
+ * by template text.
+ */
+public class PrefetchTemplateRegistry implements AutoCloseable {
+	private static final Logger logger = LoggerFactory.getLogger(PrefetchTemplateRegistry.class);
+
+	private static final String CLASSPATH_PREFIX = "classpath:";
+	private static final String FILE_PREFIX = "file:";
+	private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+	private final String location;
+	private final Map<String, PrefetchTemplate> serviceTemplates = new ConcurrentHashMap<>();
+	private final ScheduledExecutorService reloadExecutor;
+
+	private volatile Map<String, PrefetchTemplate> templates;
+	private volatile FileTime lastModified;
+
+	public PrefetchTemplateRegistry(String theLocation, long theReloadIntervalMs) {
+		location = theLocation;
+		templates = load();
+		if (!location.startsWith(CLASSPATH_PREFIX) && theReloadIntervalMs > 0) {
+			reloadExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+				Thread thread = new Thread(runnable, "cds-prefetch-templates");
+				thread.setDaemon(true);
+				return thread;
+			});
+			reloadExecutor.scheduleWithFixedDelay(this::reloadIfModified, theReloadIntervalMs, theReloadIntervalMs, TimeUnit.MILLISECONDS);
+		} else {
+			reloadExecutor = null;
+		}
+	}
+
+	/**
+	 * @return the configured templates in declaration order
+	 */
+	public Map<String, PrefetchTemplate> getTemplates() {
+		return templates;
+	}
+
+	/**
+	 * @return theTemplate compiled, null when it uses an unsupported variable
+	 */
+	public PrefetchTemplate getServiceTemplate(String theTemplate) {
+		PrefetchTemplate template = serviceTemplates.get(theTemplate);
+		if (template == null) {
+			try {
+				template = serviceTemplates.computeIfAbsent(theTemplate, PrefetchTemplate::compile);
+			} catch (IllegalArgumentException e) {
+				logger.warn(e.getMessage());
+			}
+		}
+		return template;
+	}
+
+	void reloadIfModified() {
+		FileTime modified;
+		try {
+			modified = Files.getLastModifiedTime(filePath());
+		} catch (IOException e) {
+			logger.warn("Could not check the prefetch templates at {}: {}", location, e.getMessage());
+			return;
+		}
+		if (modified.equals(lastModified)) {
+			return;
+		}
+		try {
+			templates = load();
+			logger.info("Reloaded {} prefetch templates from {}", templates.size(), location);
+		} catch (RuntimeException e) {
+			// Not retried until the file changes again
+			lastModified = modified;
+			logger.error("Could not reload the prefetch templates from {}, keeping the previous ones", location, e);
+		}
+	}
+
+	private Map<String, PrefetchTemplate> load() {
+		Map<String, String> sources;
+		try {
+			if (location.startsWith(CLASSPATH_PREFIX)) {
+				String resource = location.substring(CLASSPATH_PREFIX.length());
+				try (InputStream inputStream = PrefetchTemplateRegistry.class.getClassLoader().getResourceAsStream(resource.startsWith("/") ? resource.substring(1) : resource)) {
+					if (inputStream == null) {
+						throw new IOException("Resource not found");
+					}
+					sources = OBJECT_MAPPER.readValue(inputStream, new TypeReference<LinkedHashMap<String, String>>() {});
+				}
+			} else {
+				Path path = filePath();
+				FileTime modified = Files.getLastModifiedTime(path);
+				try (InputStream inputStream = Files.newInputStream(path)) {
+					sources = OBJECT_MAPPER.readValue(inputStream, new TypeReference<LinkedHashMap<String, String>>() {});
+				}
+				lastModified = modified;
+			}
+		} catch (IOException e) {
+			throw new IllegalStateException("Could not read the prefetch templates from " + location, e);
+		}
+
+		Map<String, PrefetchTemplate> compiled = new LinkedHashMap<>();
+		sources.forEach((key, source) -> compiled.put(key, PrefetchTemplate.compile(source)));
+		return Collections.unmodifiableMap(compiled);
+	}
+
+	private Path filePath() {
+		return Path.of(location.startsWith(FILE_PREFIX) ? location.substring(FILE_PREFIX.length()) : location);
+	}
+
+	@Override
+	public void close() {
+		if (reloadExecutor != null) {
+			reloadExecutor.shutdownNow();
+		}
+	}
+}
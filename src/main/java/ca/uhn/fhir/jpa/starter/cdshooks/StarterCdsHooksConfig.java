@@ -1,14 +1,24 @@
 package ca.uhn.fhir.jpa.starter.cdshooks;
 
+import ca.uhn.fhir.interceptor.api.IInterceptorService;
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.cache.IResourceChangeListenerRegistry;
+import ca.uhn.fhir.jpa.searchparam.MatchUrlService;
+import ca.uhn.fhir.jpa.searchparam.SearchParameterMap;
+import ca.uhn.fhir.jpa.starter.AppProperties;
 import ca.uhn.fhir.jpa.starter.cr.CrCommonConfig;
 import ca.uhn.fhir.jpa.starter.cr.CrConfigCondition;
 import ca.uhn.fhir.jpa.starter.cr.CrProperties;
+import ca.uhn.fhir.rest.server.RestfulServer;
 import ca.uhn.hapi.fhir.cdshooks.api.ICdsHooksDaoAuthorizationSvc;
+import ca.uhn.hapi.fhir.cdshooks.api.ICdsServiceRegistry;
 import ca.uhn.hapi.fhir.cdshooks.config.CdsHooksConfig;
 import ca.uhn.hapi.fhir.cdshooks.svc.CdsHooksContextBooter;
 import ca.uhn.hapi.fhir.cdshooks.svc.cr.CdsCrSettings;
 import ca.uhn.fhir.context.FhirVersionEnum;
 import ca.uhn.hapi.fhir.cdshooks.svc.cr.CdsCrServiceRegistry;
+import ca.uhn.hapi.fhir.cdshooks.svc.cr.ICdsCrService;
+import ca.uhn.hapi.fhir.cdshooks.svc.cr.ICdsCrServiceFactory;
 import ca.uhn.hapi.fhir.cdshooks.svc.cr.ICdsCrServiceRegistry;
 import ca.uhn.hapi.fhir.cdshooks.svc.cr.discovery.CdsCrDiscoveryServiceRegistry;
 import ca.uhn.hapi.fhir.cdshooks.svc.cr.discovery.ICdsCrDiscoveryServiceRegistry;
@@ -17,30 +27,65 @@ import ca.uhn.hapi.fhir.cdshooks.svc.prefetch.CdsPrefetchFhirClientSvc;
 import ca.uhn.hapi.fhir.cdshooks.svc.prefetch.CdsPrefetchSvc;
 import ca.uhn.hapi.fhir.cdshooks.svc.prefetch.CdsResolutionStrategySvc;
 import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.beans.factory.config.AutowireCapableBeanFactory;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.boot.web.servlet.ServletRegistrationBean;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Conditional;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.Import;
+import org.springframework.context.annotation.Primary;
 
 @Configuration
 @Conditional({CdsHooksConfigCondition.class, CrConfigCondition.class})
 @Import({CdsHooksConfig.class, CrCommonConfig.class})
 public class StarterCdsHooksConfig {
 
-//	@Bean
-//	CdsPrefetchSvc cdsPrefetchSvc(
-//		CdsResolutionStrategySvc theCdsResolutionStrategySvc,
-//		CdsPrefetchDaoSvc theResourcePrefetchDao,
-//		CdsPrefetchFhirClientSvc theResourcePrefetchFhirClient,
-//		ICdsHooksDaoAuthorizationSvc theCdsHooksDaoAuthorizationSvc) {
-//		return new ModuleConfigurationPrefetchSvc(
-//			theCdsResolutionStrategySvc,
-//			theResourcePrefetchDao,
-//			theResourcePrefetchFhirClient,
-//			theCdsHooksDaoAuthorizationSvc);
-//	}
+	/**
+	 * Registered under its own name and marked @Primary so that it takes precedence over the HAPI prefetch
+	 * service without relying on bean definition overriding
+	 */
+	@Bean
+	@Primary
+	@ConditionalOnProperty(prefix = "hapi.fhir.cdshooks.prefetch", name = "enabled", havingValue = "true")
+	CdsPrefetchSvc moduleConfigurationPrefetchSvc(
+		CdsResolutionStrategySvc theCdsResolutionStrategySvc,
+		CdsPrefetchDaoSvc theResourcePrefetchDao,
+		CdsPrefetchFhirClientSvc theResourcePrefetchFhirClient,
+		ICdsHooksDaoAuthorizationSvc theCdsHooksDaoAuthorizationSvc,
+		CdsHooksProperties theCdsHooksProperties,
+		AppProperties theAppProperties,
+		RestfulServer theRestfulServer,
+		DaoRegistry theDaoRegistry,
+		MatchUrlService theMatchUrlService,
+		IInterceptorService theInterceptorService) {
+		CdsHooksPrefetchProperties prefetchProperties = theCdsHooksProperties.getPrefetch();
+		LocalPrefetchResolver localPrefetchResolver = null;
+		if (prefetchProperties.isLocalFastPath() && theAppProperties.getServer_address() != null) {
+			localPrefetchResolver = new LocalPrefetchResolver(
+				theRestfulServer,
+				theDaoRegistry,
+				theMatchUrlService,
+				theAppProperties.getServer_address(),
+				prefetchProperties.getLocalServerAliases());
+		}
+		PrefetchResultCache resultCache = null;
+		if (prefetchProperties.isResultCacheEnabled()) {
+			resultCache = new PrefetchResultCache(theResourcePrefetchDao.getFhirContext(), prefetchProperties);
+			// Storage pointcuts, the writes of a patient drop its cached prefetch results
+			theInterceptorService.registerInterceptor(resultCache);
+		}
+		return new ModuleConfigurationPrefetchSvc(
+			theCdsResolutionStrategySvc,
+			theResourcePrefetchDao,
+			theResourcePrefetchFhirClient,
+			theCdsHooksDaoAuthorizationSvc,
+			prefetchProperties,
+			localPrefetchResolver,
+			resultCache);
+	}
 
 	@Bean
 	public ICdsCrDiscoveryServiceRegistry cdsCrDiscoveryServiceRegistry() {
@@ -58,6 +103,36 @@ public class StarterCdsHooksConfig {
 		return registry;
 	}
 
+	@Bean
+	public CdsEvaluationPlanCache cdsEvaluationPlanCache(IResourceChangeListenerRegistry theResourceChangeListenerRegistry) {
+		CdsEvaluationPlanCache planCache = new CdsEvaluationPlanCache();
+		theResourceChangeListenerRegistry.registerResourceResourceChangeListener(
+			"PlanDefinition", SearchParameterMap.newSynchronous(), planCache, 1000);
+		return planCache;
+	}
+
+	/**
+	 * Wraps the HAPI ICdsCrServiceFactory so that the services it instantiates by reflection get the plan cache
+	 */
+	@Bean
+	static BeanPostProcessor cdsCrServicePlanCacheInjection(ObjectProvider<CdsEvaluationPlanCache> thePlanCache) {
+		return new BeanPostProcessor() {
+			@Override
+			public Object postProcessAfterInitialization(Object theBean, String theBeanName) {
+				if (theBean instanceof ICdsCrServiceFactory factory) {
+					return (ICdsCrServiceFactory) theServiceId -> {
+						ICdsCrService service = factory.create(theServiceId);
+						if (service instanceof UpdatedCdsCrServiceR4 updatedService) {
+							updatedService.setPlanCache(thePlanCache.getObject());
+						}
+						return service;
+					};
+				}
+				return theBean;
+			}
+		};
+	}
+
 	@Bean
 	public CdsHooksProperties cdsHooksProperties() {
 		return new CdsHooksProperties();
@@ -91,6 +166,35 @@ public class StarterCdsHooksConfig {
 		return new CdsHooksDaoAuthorizationSvc();
 	}
 
+	@Bean
+	public CdsDiscoveryCache cdsDiscoveryCache(IInterceptorService theInterceptorService) {
+		CdsDiscoveryCache discoveryCache = new CdsDiscoveryCache();
+		// Storage pointcuts, the PlanDefinition writes drop the rendered discovery document
+		theInterceptorService.registerInterceptor(discoveryCache);
+		return discoveryCache;
+	}
+
+	/**
+	 * Wraps the HAPI ICdsServiceRegistry so that every (un)registered service drops the rendered discovery document
+	 */
+	@Bean
+	static BeanPostProcessor cdsServiceRegistryInvalidation(ObjectProvider<CdsDiscoveryCache> theDiscoveryCache) {
+		return new BeanPostProcessor() {
+			@Override
+			public Object postProcessAfterInitialization(Object theBean, String theBeanName) {
+				if (theBean instanceof ICdsServiceRegistry registry) {
+					return theDiscoveryCache.getObject().invalidating(registry);
+				}
+				return theBean;
+			}
+		};
+	}
+
+	@Bean
+	public CdsServiceBulkhead cdsServiceBulkhead(CdsHooksProperties theCdsHooksProperties) {
+		return new CdsServiceBulkhead(theCdsHooksProperties.getBulkhead());
+	}
+
 	@Bean
 	public ServletRegistrationBean<CdsHooksServlet> cdsHooksRegistrationBean(AutowireCapableBeanFactory beanFactory) {
 		CdsHooksServlet cdsHooksServlet = new CdsHooksServlet();
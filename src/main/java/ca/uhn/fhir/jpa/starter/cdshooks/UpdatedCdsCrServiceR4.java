@@ -3,28 +3,70 @@ package ca.uhn.fhir.jpa.starter.cdshooks;
 import ca.uhn.fhir.rest.api.server.RequestDetails;
 import ca.uhn.hapi.fhir.cdshooks.api.ICdsConfigService;
 import ca.uhn.hapi.fhir.cdshooks.api.json.CdsServiceRequestJson;
+import ca.uhn.fhir.rest.server.provider.ProviderConstants;
 import ca.uhn.hapi.fhir.cdshooks.svc.cr.CdsCrServiceR4;
-import org.hl7.fhir.r4.model.BooleanType;
+import org.hl7.fhir.instance.model.api.IBaseParameters;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.r4.model.Bundle;
 import org.hl7.fhir.r4.model.Parameters;
+import org.hl7.fhir.r4.model.PlanDefinition;
 import org.opencds.cqf.fhir.api.Repository;
 
-import java.util.stream.Collectors;
-
-import static ca.uhn.hapi.fhir.cdshooks.svc.cr.CdsCrConstants.APPLY_PARAMETER_DATA;
-import static ca.uhn.hapi.fhir.cdshooks.svc.cr.CdsCrConstants.APPLY_PARAMETER_DATA_ENDPOINT;
-import static org.opencds.cqf.fhir.utility.r4.Parameters.part;
+import java.util.Map;
 
 public class UpdatedCdsCrServiceR4 extends CdsCrServiceR4 {
+	private final IIdType planDefinitionId;
+	private final String partition;
+	private final Repository repository;
+
+	private CdsEvaluationPlanCache planCache;
+
+	/**
+	 * Called by reflection (ICdsCrServiceRegistry), the plan cache is then set by the ICdsCrServiceFactory
+	 */
 	public UpdatedCdsCrServiceR4(RequestDetails theRequestDetails, Repository theRepository, ICdsConfigService theCdsConfigService) {
 		super(theRequestDetails, theRepository, theCdsConfigService);
+		planDefinitionId = theRequestDetails != null ? theRequestDetails.getId() : null;
+		partition = CdsEvaluationPlanCache.partitionOf(theRequestDetails);
+		repository = theRepository;
+	}
+
+	/**
+	 * @param thePlanCache null evaluates without a plan, the PlanDefinition is then read on every call
+	 */
+	public void setPlanCache(CdsEvaluationPlanCache thePlanCache) {
+		planCache = thePlanCache;
 	}
 
+	/**
+	 * Only the request dependent parameters are encoded per call, the rest comes from the evaluation plan of the service
+	 */
 	@Override
 	public Parameters encodeParams(CdsServiceRequestJson theJson) {
 		Parameters parameters = super.encodeParams(theJson);
-		if (parameters.hasParameter(APPLY_PARAMETER_DATA)) {
-			parameters.addParameter(part("useServerData", new BooleanType(false)));
+		CdsEvaluationPlan plan = planCache != null && planDefinitionId != null && planDefinitionId.hasIdPart()
+				? planCache.getPlan(partition, planDefinitionId, repository)
+				: null;
+		if (plan != null) {
+			plan.bind(parameters);
+		} else {
+			CdsEvaluationPlan.bindDataParameters(parameters);
 		}
 		return parameters;
 	}
+
+	/**
+	 * With the PlanDefinition bound from the evaluation plan, the type level $r5.apply is called: the instance level one
+	 * resolves the PlanDefinition from its id ahead of the planDefinition parameter and would read it again.
+	 */
+	@Override
+	public IBaseResource invokeApply(IBaseParameters theParams) {
+		if (theParams instanceof Parameters
+				&& ((Parameters) theParams).hasParameter(CdsEvaluationPlan.APPLY_PARAMETER_PLAN_DEFINITION)) {
+			return repository.invoke(
+					PlanDefinition.class, ProviderConstants.CR_OPERATION_R5_APPLY, (Parameters) theParams, Bundle.class, Map.of());
+		}
+		return super.invokeApply(theParams);
+	}
 }
@@ -0,0 +1,303 @@
+package ca.uhn.fhir.jpa.starter.cr;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.cqframework.cql.cql2elm.CqlCompilerOptions;
+import org.cqframework.cql.cql2elm.CqlTranslator;
+import org.cqframework.cql.cql2elm.LibraryContentType;
+import org.cqframework.cql.cql2elm.LibrarySourceProvider;
+import org.cqframework.cql.cql2elm.model.CompiledLibrary;
+import org.hl7.elm.r1.VersionedIdentifier;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IPrimitiveType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.ForwardingMap;
+
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
+import ca.uhn.fhir.jpa.searchparam.SearchParameterMap;
+import ca.uhn.fhir.rest.api.server.SystemRequestDetails;
+import ca.uhn.fhir.rest.param.StringParam;
+import ca.uhn.fhir.rest.param.TokenParam;
+
+/**
+ * On-disk store of the compiled libraries, so that a restart does not translate every Library from CQL again.
+ *
+ * A library is written as gzipped ELM JSON when it enters the globalLibraryCache, under a file named after its
+ * VersionedIdentifier, the hash of its Library content and the hash of the compiler options (and translator version).
+ * It is served back as a LibrarySourceProvider of JSON content: the LibraryManager loads ELM content compiled with
+ * the same options instead of translating the CQL, and translates as usual otherwise. A library whose content changed
+ * while the server was down is not found under its new content hash. The ElmCacheResourceChangeListener removals
+ * from the globalLibraryCache delete the stored files of the library.
+ *
+ * Every file starts with the SHA-256 of its ELM, a file that does not match it is deleted instead of being loaded.
+ * The directory is created readable by its owner only, an existing one writable by others is refused.
+ *
+ * The Library content hash is looked up once per library and remembered until the library is removed from the
+ * cache, an identifier without a Library resource (FHIRHelpers...) is remembered as such and never stored. The
+ * files are written on theWriter, off the evaluation thread.
+ */
+public class CompiledLibraryStore implements LibrarySourceProvider {
+	private static final Logger ourLog = LoggerFactory.getLogger(CompiledLibraryStore.class);
+
+	static final String EXTENSION = ".json.gz";
+	// Not produced by fileName, it separates the identifier from the hashes
+	private static final char SEPARATOR = '~';
+
+	private static final Set<PosixFilePermission> OWNER_ONLY = PosixFilePermissions.fromString("rwx------");
+
+	private final Path directory;
+	private final DaoRegistry daoRegistry;
+	private final Executor writer;
+	private final String optionsHash;
+	// Content hash of the Library of each identifier looked up, empty when there is none or several
+	private final Map<VersionedIdentifier, Optional<String>> contentHashes = new ConcurrentHashMap<>();
+
+	public CompiledLibraryStore(
+			Path theDirectory, DaoRegistry theDaoRegistry, CqlCompilerOptions theOptions, Executor theWriter) {
+		directory = theDirectory;
+		daoRegistry = theDaoRegistry;
+		writer = theWriter;
+		optionsHash = hash(List.of(
+				String.valueOf(theOptions.getOptions()),
+				String.valueOf(theOptions.getSignatureLevel()),
+				String.valueOf(theOptions.getCompatibilityLevel()),
+				String.valueOf(CqlTranslator.class.getPackage().getImplementationVersion())));
+	}
+
+	@Override
+	public InputStream getLibrarySource(VersionedIdentifier theIdentifier) {
+		// The CQL comes from the Library resources
+		return null;
+	}
+
+	@Override
+	public InputStream getLibraryContent(VersionedIdentifier theIdentifier, LibraryContentType theType) {
+		if (theType != LibraryContentType.JSON) {
+			return null;
+		}
+		String contentHash = contentHash(theIdentifier);
+		Path file = contentHash != null ? file(theIdentifier, contentHash) : null;
+		if (file == null || !Files.isRegularFile(file)) {
+			return null;
+		}
+		try {
+			ourLog.debug("Loading the compiled library {} from {}", theIdentifier.getId(), file);
+			byte[] content;
+			try (InputStream in = new GZIPInputStream(Files.newInputStream(file))) {
+				content = in.readAllBytes();
+			}
+			int newline = indexOf(content, (byte) '\n');
+			byte[] elm = newline < 0 ? new byte[0] : Arrays.copyOfRange(content, newline + 1, content.length);
+			if (newline < 0 || !new String(content, 0, newline, StandardCharsets.US_ASCII).equals(digest(elm))) {
+				ourLog.warn("The compiled library {} does not match its digest, deleting it", file);
+				Files.deleteIfExists(file);
+				return null;
+			}
+			return new ByteArrayInputStream(elm);
+		} catch (IOException e) {
+			ourLog.warn("Could not read the compiled library {}: {}", file, e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * Creates the directory readable by its owner only, or checks that an existing one is not writable by others.
+	 */
+	public void initialize() throws IOException {
+		if (!directory.getFileSystem().supportedFileAttributeViews().contains("posix")) {
+			Files.createDirectories(directory);
+			return;
+		}
+		if (!Files.exists(directory)) {
+			Files.createDirectories(directory, PosixFilePermissions.asFileAttribute(OWNER_ONLY));
+			// The umask may have removed some of them, but never added any
+			Files.setPosixFilePermissions(directory, OWNER_ONLY);
+			return;
+		}
+		Set<PosixFilePermission> permissions = Files.getPosixFilePermissions(directory);
+		if (permissions.contains(PosixFilePermission.GROUP_WRITE)
+				|| permissions.contains(PosixFilePermission.OTHERS_WRITE)) {
+			throw new IllegalStateException("The compiled library directory " + directory
+					+ " is writable by other users, restrict it to its owner (rwx------)");
+		}
+	}
+
+	/**
+	 * @return theCache, storing the libraries put in it and deleting the stored files of the ones removed from it
+	 */
+	public Map<VersionedIdentifier, CompiledLibrary> persisting(Map<VersionedIdentifier, CompiledLibrary> theCache) {
+		return new ForwardingMap<>() {
+			@Override
+			protected Map<VersionedIdentifier, CompiledLibrary> delegate() {
+				return theCache;
+			}
+
+			@Override
+			public CompiledLibrary put(VersionedIdentifier theKey, CompiledLibrary theValue) {
+				CompiledLibrary previous = theCache.put(theKey, theValue);
+				if (previous == null) {
+					store(theKey, theValue);
+				}
+				return previous;
+			}
+
+			@Override
+			public CompiledLibrary putIfAbsent(VersionedIdentifier theKey, CompiledLibrary theValue) {
+				CompiledLibrary previous = theCache.putIfAbsent(theKey, theValue);
+				if (previous == null) {
+					store(theKey, theValue);
+				}
+				return previous;
+			}
+
+			@Override
+			public CompiledLibrary remove(Object theKey) {
+				if (theKey instanceof VersionedIdentifier) {
+					delete((VersionedIdentifier) theKey);
+				}
+				return theCache.remove(theKey);
+			}
+		};
+	}
+
+	void store(VersionedIdentifier theIdentifier, CompiledLibrary theLibrary) {
+		// Known from the getLibraryContent lookup that preceded the compilation, no search in the common case
+		String contentHash = contentHash(theIdentifier);
+		if (contentHash == null || theLibrary.getLibrary() == null) {
+			return;
+		}
+		Path file = file(theIdentifier, contentHash);
+		if (Files.isRegularFile(file)) {
+			return;
+		}
+		writer.execute(() -> write(theIdentifier, theLibrary, file));
+	}
+
+	private void write(VersionedIdentifier theIdentifier, CompiledLibrary theLibrary, Path theFile) {
+		try {
+			byte[] elm = CqlTranslator.convertToJson(theLibrary.getLibrary()).getBytes(StandardCharsets.UTF_8);
+			Path temp = Files.createTempFile(directory, fileName(theIdentifier), ".tmp");
+			try (OutputStream out = new GZIPOutputStream(Files.newOutputStream(temp))) {
+				out.write((digest(elm) + "\n").getBytes(StandardCharsets.US_ASCII));
+				out.write(elm);
+			}
+			// Readers never see a partial file
+			Files.move(temp, theFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			ourLog.debug("Stored the compiled library {} in {}", theIdentifier.getId(), theFile);
+		} catch (IOException | RuntimeException e) {
+			ourLog.warn("Could not store the compiled library {}: {}", theIdentifier.getId(), e.getMessage());
+		}
+	}
+
+	void delete(VersionedIdentifier theIdentifier) {
+		// The Library may have been created, updated or deleted, look it up again on the next use
+		contentHashes.keySet().removeIf(key -> Objects.equals(key.getId(), theIdentifier.getId()));
+		if (!Files.isDirectory(directory)) {
+			return;
+		}
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, fileName(theIdentifier) + SEPARATOR + "*")) {
+			for (Path file : files) {
+				Files.deleteIfExists(file);
+			}
+		} catch (IOException e) {
+			ourLog.warn("Could not delete the compiled library {}: {}", theIdentifier.getId(), e.getMessage());
+		}
+	}
+
+	/**
+	 * @return the hash of the content of the one Library named theIdentifier, null when there is none or several
+	 */
+	String contentHash(VersionedIdentifier theIdentifier) {
+		if (theIdentifier.getId() == null) {
+			return null;
+		}
+		return contentHashes
+				.computeIfAbsent(theIdentifier, identifier -> Optional.ofNullable(searchContentHash(identifier)))
+				.orElse(null);
+	}
+
+	private String searchContentHash(VersionedIdentifier theIdentifier) {
+		SearchParameterMap map = SearchParameterMap.newSynchronous().add("name", new StringParam(theIdentifier.getId()).setExact(true));
+		if (theIdentifier.getVersion() != null) {
+			map.add("version", new TokenParam(theIdentifier.getVersion()));
+		}
+		// Two are enough to tell that the name is ambiguous
+		map.setCount(2);
+		IFhirResourceDao<?> dao = daoRegistry.getResourceDao("Library");
+		List<IBaseResource> libraries = dao.search(map, new SystemRequestDetails()).getResources(0, 2);
+		if (libraries.size() != 1) {
+			return null;
+		}
+		List<IPrimitiveType> data = dao.getContext().newTerser().getValues(libraries.get(0), "content.data", IPrimitiveType.class);
+		if (data.isEmpty()) {
+			return null;
+		}
+		return hash(data.stream().map(IPrimitiveType::getValueAsString).toList());
+	}
+
+	Path file(VersionedIdentifier theIdentifier, String theContentHash) {
+		return directory.resolve(fileName(theIdentifier) + SEPARATOR + theContentHash + SEPARATOR + optionsHash + EXTENSION);
+	}
+
+	private static String fileName(VersionedIdentifier theIdentifier) {
+		String version = theIdentifier.getVersion() != null ? theIdentifier.getVersion() : "unversioned";
+		return (theIdentifier.getId() + "-" + version).replaceAll("[^A-Za-z0-9._-]", "_");
+	}
+
+	private static String digest(byte[] theContent) {
+		try {
+			return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(theContent));
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static int indexOf(byte[] theContent, byte theValue) {
+		for (int i = 0; i < theContent.length; i++) {
+			if (theContent[i] == theValue) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	static String hash(List<String> theValues) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			for (String value : theValues) {
+				digest.update(String.valueOf(value).getBytes(StandardCharsets.UTF_8));
+				digest.update((byte) 0);
+			}
+			// 64 bits are enough to tell the versions of one library apart
+			return HexFormat.of().formatHex(digest.digest(), 0, 8);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
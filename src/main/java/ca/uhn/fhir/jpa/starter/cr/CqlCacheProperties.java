@@ -0,0 +1,52 @@
+package ca.uhn.fhir.jpa.starter.cr;
+
+public class CqlCacheProperties {
+	// Estimated bytes of the compiled libraries, see CqlCaches.weighLibrary
+	private Long library_max_bytes = 64L * 1024 * 1024;
+	// Estimated bytes of the value set expansions, see CqlCaches.weighValueSet
+	private Long valueset_max_bytes = 128L * 1024 * 1024;
+	private Long model_max_entries = 32L;
+	// Compiled libraries kept on disk across restarts, see CompiledLibraryStore. Needs a dedicated elm_store_directory
+	private Boolean elm_store_enabled = false;
+	private String elm_store_directory;
+
+	public long getLibraryMaxBytes() {
+		return library_max_bytes;
+	}
+
+	public void setLibraryMaxBytes(long library_max_bytes) {
+		this.library_max_bytes = library_max_bytes;
+	}
+
+	public long getValuesetMaxBytes() {
+		return valueset_max_bytes;
+	}
+
+	public void setValuesetMaxBytes(long valueset_max_bytes) {
+		this.valueset_max_bytes = valueset_max_bytes;
+	}
+
+	public long getModelMaxEntries() {
+		return model_max_entries;
+	}
+
+	public void setModelMaxEntries(long model_max_entries) {
+		this.model_max_entries = model_max_entries;
+	}
+
+	public boolean isElmStoreEnabled() {
+		return elm_store_enabled;
+	}
+
+	public void setElmStoreEnabled(boolean elm_store_enabled) {
+		this.elm_store_enabled = elm_store_enabled;
+	}
+
+	public String getElmStoreDirectory() {
+		return elm_store_directory;
+	}
+
+	public void setElmStoreDirectory(String elm_store_directory) {
+		this.elm_store_directory = elm_store_directory;
+	}
+}
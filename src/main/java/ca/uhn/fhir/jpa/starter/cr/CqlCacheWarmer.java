@@ -0,0 +1,235 @@
+package ca.uhn.fhir.jpa.starter.cr;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.cqframework.cql.cql2elm.model.CompiledLibrary;
+import org.hl7.elm.r1.ValueSetDef;
+import org.hl7.elm.r1.VersionedIdentifier;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.opencds.cqf.cql.engine.execution.CqlEngine;
+import org.opencds.cqf.cql.engine.runtime.Code;
+import org.opencds.cqf.cql.engine.terminology.ValueSetInfo;
+import org.opencds.cqf.fhir.cql.Engines;
+import org.opencds.cqf.fhir.cql.EvaluationSettings;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.boot.actuate.health.HealthIndicator;
+
+import ca.uhn.fhir.cr.common.IRepositoryFactory;
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
+import ca.uhn.fhir.jpa.searchparam.SearchParameterMap;
+import ca.uhn.fhir.rest.api.server.SystemRequestDetails;
+import ca.uhn.fhir.rest.param.TokenParam;
+import ca.uhn.fhir.util.FhirTerser;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Metrics;
+
+/**
+ * Compiles the active Library resources (or the configured ones) into the globalLibraryCache and expands the
+ * ValueSets they reference into the globalValueSetCache, in parallel on the CQL executor, so that the first
+ * evaluations do not pay for it.
+ *
+ * It runs as an ApplicationRunner: the readiness state stays REFUSING_TRAFFIC (the readiness probe answers 503) until
+ * it is done or timed out. Progress and timing are reported by the cqlCacheWarmer health component and the
+ * cql.warmup.* metrics.
+ */
+public class CqlCacheWarmer implements ApplicationRunner, HealthIndicator {
+	private static final Logger ourLog = LoggerFactory.getLogger(CqlCacheWarmer.class);
+
+	enum State {
+		PENDING,
+		RUNNING,
+		DONE,
+		TIMED_OUT
+	}
+
+	private final CqlWarmupProperties properties;
+	private final DaoRegistry daoRegistry;
+	private final IRepositoryFactory repositoryFactory;
+	private final EvaluationSettings evaluationSettings;
+	private final ExecutorService executor;
+
+	private final AtomicInteger librariesTotal = new AtomicInteger();
+	private final AtomicInteger librariesWarmed = new AtomicInteger();
+	private final AtomicInteger valueSetsTotal = new AtomicInteger();
+	private final AtomicInteger valueSetsWarmed = new AtomicInteger();
+	private final AtomicInteger failures = new AtomicInteger();
+	private volatile State state = State.PENDING;
+	private volatile long durationMs;
+
+	public CqlCacheWarmer(
+			CqlWarmupProperties theProperties,
+			DaoRegistry theDaoRegistry,
+			IRepositoryFactory theRepositoryFactory,
+			EvaluationSettings theEvaluationSettings,
+			ExecutorService theExecutor) {
+		properties = theProperties;
+		daoRegistry = theDaoRegistry;
+		repositoryFactory = theRepositoryFactory;
+		evaluationSettings = theEvaluationSettings;
+		executor = theExecutor;
+
+		gauge("cql.warmup.libraries", "total", librariesTotal);
+		gauge("cql.warmup.libraries", "warmed", librariesWarmed);
+		gauge("cql.warmup.valuesets", "total", valueSetsTotal);
+		gauge("cql.warmup.valuesets", "warmed", valueSetsWarmed);
+		Gauge.builder("cql.warmup.duration", () -> durationMs / 1000.0)
+				.description("Duration of the CQL cache warm-up")
+				.baseUnit("seconds")
+				.register(Metrics.globalRegistry);
+	}
+
+	private static void gauge(String theName, String theState, AtomicInteger theValue) {
+		Gauge.builder(theName, theValue, AtomicInteger::get).tag("state", theState).register(Metrics.globalRegistry);
+	}
+
+	@Override
+	public void run(ApplicationArguments theArguments) {
+		if (properties.isEnabled()) {
+			warm();
+		} else {
+			state = State.DONE;
+		}
+	}
+
+	void warm() {
+		state = State.RUNNING;
+		long start = System.nanoTime();
+		long deadline = start + TimeUnit.SECONDS.toNanos(properties.getTimeoutSeconds());
+
+		List<VersionedIdentifier> libraries = librariesToWarm();
+		librariesTotal.set(libraries.size());
+		ourLog.info("Warming the CQL caches: compiling {} libraries", libraries.size());
+		Set<String> valueSets = ConcurrentHashMap.newKeySet();
+		List<Future<?>> compilations = new ArrayList<>();
+		for (VersionedIdentifier library : libraries) {
+			compilations.add(executor.submit(() -> valueSets.addAll(compile(library))));
+		}
+		boolean done = awaitAll(compilations, deadline);
+
+		if (done) {
+			valueSetsTotal.set(valueSets.size());
+			ourLog.info("Warming the CQL caches: expanding {} value sets", valueSets.size());
+			List<Future<?>> expansions = new ArrayList<>();
+			for (String valueSet : valueSets) {
+				expansions.add(executor.submit(() -> expand(valueSet)));
+			}
+			done = awaitAll(expansions, deadline);
+		}
+
+		durationMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+		state = done ? State.DONE : State.TIMED_OUT;
+		ourLog.info(
+				"CQL cache warm-up {} in {}ms: {}/{} libraries, {}/{} value sets, {} failures",
+				done ? "done" : "timed out, the rest is compiled on first use,",
+				durationMs,
+				librariesWarmed.get(),
+				librariesTotal.get(),
+				valueSetsWarmed.get(),
+				valueSetsTotal.get(),
+				failures.get());
+	}
+
+	/**
+	 * @return the identifiers (name and version) of the active Library resources, or of the configured ones
+	 */
+	List<VersionedIdentifier> librariesToWarm() {
+		IFhirResourceDao<?> dao = daoRegistry.getResourceDao("Library");
+		SearchParameterMap map = SearchParameterMap.newSynchronous().add("status", new TokenParam("active"));
+		FhirTerser terser = dao.getContext().newTerser();
+		List<String> configured = properties.getLibraries();
+
+		List<VersionedIdentifier> libraries = new ArrayList<>();
+		for (IBaseResource library : dao.search(map, new SystemRequestDetails()).getAllResources()) {
+			String name = terser.getSinglePrimitiveValueOrNull(library, "name");
+			String url = terser.getSinglePrimitiveValueOrNull(library, "url");
+			if (name != null && (configured.isEmpty() || configured.contains(name) || configured.contains(url))) {
+				libraries.add(new VersionedIdentifier().withId(name).withVersion(terser.getSinglePrimitiveValueOrNull(library, "version")));
+			}
+		}
+		return libraries;
+	}
+
+	/**
+	 * @return the urls of the ValueSets theIdentifier references
+	 */
+	private List<String> compile(VersionedIdentifier theIdentifier) {
+		try {
+			// One engine (LibraryManager) per task, they share the global caches of the EvaluationSettings
+			CompiledLibrary library = newEngine().getEnvironment().getLibraryManager().resolveLibrary(theIdentifier);
+			librariesWarmed.incrementAndGet();
+			if (library.getLibrary() == null || library.getLibrary().getValueSets() == null) {
+				return List.of();
+			}
+			return library.getLibrary().getValueSets().getDef().stream().map(ValueSetDef::getId).toList();
+		} catch (RuntimeException e) {
+			failures.incrementAndGet();
+			ourLog.warn("Could not compile the library {} {}: {}", theIdentifier.getId(), theIdentifier.getVersion(), e.getMessage());
+			return List.of();
+		}
+	}
+
+	private void expand(String theValueSet) {
+		Map<String, List<Code>> valueSetCache = evaluationSettings.getValueSetCache();
+		try {
+			if (!valueSetCache.containsKey(theValueSet)) {
+				List<Code> codes = new ArrayList<>();
+				newEngine().getEnvironment().getTerminologyProvider().expand(new ValueSetInfo().withId(theValueSet)).forEach(codes::add);
+				valueSetCache.putIfAbsent(theValueSet, codes);
+			}
+			valueSetsWarmed.incrementAndGet();
+		} catch (RuntimeException e) {
+			failures.incrementAndGet();
+			ourLog.warn("Could not expand the value set {}: {}", theValueSet, e.getMessage());
+		}
+	}
+
+	private CqlEngine newEngine() {
+		return Engines.forRepository(repositoryFactory.create(new SystemRequestDetails()), evaluationSettings);
+	}
+
+	private static boolean awaitAll(List<Future<?>> theFutures, long theDeadlineNanos) {
+		for (Future<?> future : theFutures) {
+			try {
+				future.get(Math.max(0, theDeadlineNanos - System.nanoTime()), TimeUnit.NANOSECONDS);
+			} catch (TimeoutException e) {
+				return false;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			} catch (ExecutionException e) {
+				// Counted and logged by the task
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public Health health() {
+		Health.Builder health = state == State.RUNNING ? Health.outOfService() : Health.up();
+		return health.withDetail("state", state)
+				.withDetail("libraries", librariesWarmed.get() + "/" + librariesTotal.get())
+				.withDetail("valueSets", valueSetsWarmed.get() + "/" + valueSetsTotal.get())
+				.withDetail("failures", failures.get())
+				.withDetail("durationMs", durationMs)
+				.build();
+	}
+
+	State getState() {
+		return state;
+	}
+}
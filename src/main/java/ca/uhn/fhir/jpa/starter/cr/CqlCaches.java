@@ -0,0 +1,103 @@
+package ca.uhn.fhir.jpa.starter.cr;
+
+import java.util.List;
+import java.util.Map;
+
+import org.cqframework.cql.cql2elm.model.CompiledLibrary;
+import org.cqframework.cql.cql2elm.model.Model;
+import org.hl7.cql.model.ModelIdentifier;
+import org.hl7.elm.r1.Library;
+import org.hl7.elm.r1.VersionedIdentifier;
+import org.opencds.cqf.cql.engine.runtime.Code;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+
+/**
+ * The global CQL caches handed to EvaluationSettings, bounded and evicting (W-TinyLFU) instead of growing with every
+ * Library version and ValueSet expansion ever evaluated. They are exposed as the Map views of the caches, so that the
+ * ElmCacheResourceChangeListener / CodeCacheResourceChangeListener invalidation keeps working unchanged.
+ *
+ * Hits, misses, evictions and sizes are exported as the Micrometer cache metrics, tagged cache=cql.library /
+ * cql.model / cql.valueset.
+ */
+public class CqlCaches {
+	// Rough retained size of a compiled library: the translated ELM, its annotations and the resolved type info
+	static final int LIBRARY_BASE_BYTES = 16 * 1024;
+	static final int LIBRARY_STATEMENT_BYTES = 4 * 1024;
+	// Object header, fields and list slot of a Code, and of a String without its characters
+	static final int CODE_BYTES = 48;
+	static final int STRING_BYTES = 40;
+
+	private CqlCaches() {}
+
+	public static Map<VersionedIdentifier, CompiledLibrary> libraryCache(CqlCacheProperties theProperties) {
+		Cache<VersionedIdentifier, CompiledLibrary> cache = Caffeine.newBuilder()
+				.maximumWeight(theProperties.getLibraryMaxBytes())
+				.weigher(CqlCaches::weighLibrary)
+				.recordStats()
+				.build();
+		return monitor(cache, "cql.library");
+	}
+
+	public static Map<ModelIdentifier, Model> modelCache(CqlCacheProperties theProperties) {
+		// A handful of models (System, FHIR, QDM...), bounded by count
+		Cache<ModelIdentifier, Model> cache = Caffeine.newBuilder()
+				.maximumSize(theProperties.getModelMaxEntries())
+				.recordStats()
+				.build();
+		return monitor(cache, "cql.model");
+	}
+
+	public static Map<String, List<Code>> valueSetCache(CqlCacheProperties theProperties) {
+		Cache<String, List<Code>> cache = Caffeine.newBuilder()
+				.maximumWeight(theProperties.getValuesetMaxBytes())
+				.weigher(CqlCaches::weighValueSet)
+				.recordStats()
+				.build();
+		return monitor(cache, "cql.valueset");
+	}
+
+	private static <K, V> Map<K, V> monitor(Cache<K, V> theCache, String theName) {
+		CaffeineCacheMetrics.monitor(Metrics.globalRegistry, theCache, theName);
+		return theCache.asMap();
+	}
+
+	/**
+	 * @return the estimated bytes of theLibrary, growing with its number of statements
+	 */
+	static int weighLibrary(VersionedIdentifier theIdentifier, CompiledLibrary theLibrary) {
+		Library library = theLibrary.getLibrary();
+		long statements = library != null && library.getStatements() != null
+				? library.getStatements().getDef().size()
+				: 0;
+		return saturate(LIBRARY_BASE_BYTES + statements * LIBRARY_STATEMENT_BYTES);
+	}
+
+	/**
+	 * @return the estimated bytes of the theCodes expansion of theUrl
+	 */
+	static int weighValueSet(String theUrl, List<Code> theCodes) {
+		long bytes = weighString(theUrl);
+		for (Code code : theCodes) {
+			bytes += CODE_BYTES
+					+ weighString(code.getCode())
+					+ weighString(code.getSystem())
+					+ weighString(code.getVersion())
+					+ weighString(code.getDisplay());
+		}
+		return saturate(bytes);
+	}
+
+	private static long weighString(String theValue) {
+		// Compact strings, one byte per character for the usual codes and urls
+		return theValue != null ? STRING_BYTES + theValue.length() : 0;
+	}
+
+	private static int saturate(long theBytes) {
+		return (int) Math.min(theBytes, Integer.MAX_VALUE);
+	}
+}
@@ -0,0 +1,110 @@
+package ca.uhn.fhir.jpa.starter.cr;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ca.uhn.fhir.cr.common.CqlThreadFactory;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.binder.jvm.ExecutorServiceMetrics;
+
+/**
+ * Builds the executor the CQL evaluations (measures, care gaps, $apply) run on, from the CqlRuntimeProperties.
+ *
+ * Its state is exported as the Micrometer executor metrics tagged name=cql (executor.active, executor.queued,
+ * executor.completed, executor.pool.size...), plus executor.rejected for the tasks refused by a full queue.
+ */
+public class CqlExecutors {
+	private static final Logger ourLog = LoggerFactory.getLogger(CqlExecutors.class);
+
+	static final String METRICS_NAME = "cql";
+
+	private CqlExecutors() {}
+
+	public static ExecutorService create(CqlRuntimeProperties theProperties) {
+		int parallelism = theProperties.getExecutorParallelism() > 0
+				? theProperties.getExecutorParallelism()
+				: Runtime.getRuntime().availableProcessors();
+		Counter rejected = Counter.builder("executor.rejected")
+				.description("Tasks refused by the executor")
+				.tag("name", METRICS_NAME)
+				.register(Metrics.globalRegistry);
+
+		ExecutorService executor;
+		switch (theProperties.getExecutorType()) {
+			case WORK_STEALING:
+				executor = workStealing(parallelism);
+				break;
+			case VIRTUAL:
+				executor = virtual();
+				if (executor == null) {
+					ourLog.warn("Virtual threads need Java 21 or later, the CQL executor falls back to work stealing");
+					executor = workStealing(parallelism);
+				}
+				break;
+			case FIXED:
+			default:
+				executor = fixed(parallelism, theProperties.getExecutorQueueCapacity(), theProperties.getExecutorRejectionPolicy(), rejected);
+				break;
+		}
+		new ExecutorServiceMetrics(executor, METRICS_NAME, Tags.empty()).bindTo(Metrics.globalRegistry);
+		ourLog.info("CQL executor: {} with parallelism {}", theProperties.getExecutorType(), parallelism);
+		return executor;
+	}
+
+	static ThreadPoolExecutor fixed(
+			int theParallelism,
+			int theQueueCapacity,
+			CqlRuntimeProperties.RejectionPolicy theRejectionPolicy,
+			Counter theRejected) {
+		BlockingQueue<Runnable> queue =
+				theQueueCapacity > 0 ? new ArrayBlockingQueue<>(theQueueCapacity) : new LinkedBlockingQueue<>();
+		RejectedExecutionHandler policy = theRejectionPolicy == CqlRuntimeProperties.RejectionPolicy.CALLER_RUNS
+				? new ThreadPoolExecutor.CallerRunsPolicy()
+				: new ThreadPoolExecutor.AbortPolicy();
+		RejectedExecutionHandler handler = (task, executor) -> {
+			theRejected.increment();
+			policy.rejectedExecution(task, executor);
+		};
+		return new ThreadPoolExecutor(
+				theParallelism, theParallelism, 0L, TimeUnit.MILLISECONDS, queue, new CqlThreadFactory(), handler);
+	}
+
+	private static ForkJoinPool workStealing(int theParallelism) {
+		// Unbounded per worker deques, tasks are only refused once the pool is shut down
+		return new ForkJoinPool(
+				theParallelism,
+				pool -> {
+					ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+					thread.setName("cql-worker-" + thread.getPoolIndex());
+					return thread;
+				},
+				null,
+				true);
+	}
+
+	/**
+	 * @return a virtual thread per task executor, null before Java 21 (the server is built for Java 17)
+	 */
+	private static ExecutorService virtual() {
+		try {
+			return (ExecutorService) Executors.class
+					.getMethod("newVirtualThreadPerTaskExecutor")
+					.invoke(null);
+		} catch (ReflectiveOperationException e) {
+			return null;
+		}
+	}
+}
@@ -10,6 +10,8 @@ public class CqlProperties {
     private CqlRuntimeProperties runtime = new CqlRuntimeProperties();
     private TerminologySettings terminology = new TerminologySettings();
     private RetrieveSettings data = new RetrieveSettings();
+    private CqlCacheProperties cache = new CqlCacheProperties();
+    private CqlWarmupProperties warmup = new CqlWarmupProperties();
     
     public Boolean getUse_embedded_libraries() {
         return use_embedded_libraries;
@@ -50,4 +52,20 @@ public class CqlProperties {
     public void setData(RetrieveSettings data) {
         this.data = data;
     }
+
+    public CqlCacheProperties getCache() {
+        return cache;
+    }
+
+    public void setCache(CqlCacheProperties cache) {
+        this.cache = cache;
+    }
+
+    public CqlWarmupProperties getWarmup() {
+        return warmup;
+    }
+
+    public void setWarmup(CqlWarmupProperties warmup) {
+        this.warmup = warmup;
+    }
 }
@@ -5,6 +5,28 @@ public class CqlRuntimeProperties {
     private Boolean debug_logging_enabled = false;
 	private Boolean enable_validation = false;
 	private Boolean enable_expression_caching = true;
+	private ExecutorType executor_type = ExecutorType.FIXED;
+	// 0 for one thread per available processor
+	private Integer executor_parallelism = 0;
+	// FIXED only, 0 for an unbounded queue
+	private Integer executor_queue_capacity = 1000;
+	private RejectionPolicy executor_rejection_policy = RejectionPolicy.CALLER_RUNS;
+
+	public enum ExecutorType {
+		// Thread pool with a bounded queue
+		FIXED,
+		// ForkJoinPool, idle workers steal the queued evaluations of the busy ones
+		WORK_STEALING,
+		// A virtual thread per evaluation (Java 21 or later, WORK_STEALING otherwise)
+		VIRTUAL
+	}
+
+	public enum RejectionPolicy {
+		// The evaluation fails with a RejectedExecutionException
+		ABORT,
+		// The submitting request thread runs the evaluation itself
+		CALLER_RUNS
+	}
 
 	public boolean isDebugLoggingEnabled() {
 		return debug_logging_enabled;
@@ -31,5 +53,37 @@ public class CqlRuntimeProperties {
 		this.enable_validation = enable_validation;
 	}
 
+	public ExecutorType getExecutorType() {
+		return executor_type;
+	}
+
+	public void setExecutorType(ExecutorType executor_type) {
+		this.executor_type = executor_type;
+	}
+
+	public int getExecutorParallelism() {
+		return executor_parallelism;
+	}
+
+	public void setExecutorParallelism(int executor_parallelism) {
+		this.executor_parallelism = executor_parallelism;
+	}
+
+	public int getExecutorQueueCapacity() {
+		return executor_queue_capacity;
+	}
+
+	public void setExecutorQueueCapacity(int executor_queue_capacity) {
+		this.executor_queue_capacity = executor_queue_capacity;
+	}
+
+	public RejectionPolicy getExecutorRejectionPolicy() {
+		return executor_rejection_policy;
+	}
+
+	public void setExecutorRejectionPolicy(RejectionPolicy executor_rejection_policy) {
+		this.executor_rejection_policy = executor_rejection_policy;
+	}
+
     
 }
@@ -0,0 +1,36 @@
+package ca.uhn.fhir.jpa.starter.cr;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class CqlWarmupProperties {
+	private Boolean enabled = false;
+	// Canonical urls or names of the Library resources to compile, all the active ones when empty
+	private List<String> libraries = new ArrayList<>();
+	// Readiness is reported once the warm-up is done or after this many seconds
+	private Integer timeout_seconds = 300;
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	public void setEnabled(boolean enabled) {
+		this.enabled = enabled;
+	}
+
+	public List<String> getLibraries() {
+		return libraries;
+	}
+
+	public void setLibraries(List<String> libraries) {
+		this.libraries = libraries;
+	}
+
+	public int getTimeoutSeconds() {
+		return timeout_seconds;
+	}
+
+	public void setTimeoutSeconds(int timeout_seconds) {
+		this.timeout_seconds = timeout_seconds;
+	}
+}
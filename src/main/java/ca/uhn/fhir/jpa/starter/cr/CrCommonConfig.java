@@ -1,14 +1,18 @@
 package ca.uhn.fhir.jpa.starter.cr;
 
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.EnumSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
 import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
 import org.cqframework.cql.cql2elm.CqlCompilerOptions;
+import org.cqframework.cql.cql2elm.LibrarySourceProvider;
 import org.cqframework.cql.cql2elm.model.CompiledLibrary;
 import org.cqframework.cql.cql2elm.model.Model;
 import org.hl7.cql.model.ModelIdentifier;
@@ -21,6 +25,7 @@ import org.opencds.cqf.fhir.cql.engine.terminology.TerminologySettings;
 import org.opencds.cqf.fhir.cr.measure.CareGapsProperties;
 import org.opencds.cqf.fhir.cr.measure.MeasureEvaluationOptions;
 import org.opencds.cqf.fhir.utility.ValidationProfile;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Conditional;
@@ -29,8 +34,8 @@ import org.springframework.context.annotation.Primary;
 import org.springframework.security.concurrent.DelegatingSecurityContextExecutorService;
 
 import ca.uhn.fhir.cr.common.CodeCacheResourceChangeListener;
-import ca.uhn.fhir.cr.common.CqlThreadFactory;
 import ca.uhn.fhir.cr.common.ElmCacheResourceChangeListener;
+import ca.uhn.fhir.cr.common.IRepositoryFactory;
 import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
 import ca.uhn.fhir.jpa.cache.IResourceChangeListenerRegistry;
 import ca.uhn.fhir.jpa.cache.ResourceChangeListenerRegistryInterceptor;
@@ -65,7 +70,8 @@ public class CrCommonConfig {
 			TerminologySettings theTerminologySettings,
 			Map<VersionedIdentifier, CompiledLibrary> theGlobalLibraryCache,
 			Map<ModelIdentifier, Model> theGlobalModelCache,
-			Map<String, List<Code>> theGlobalValueSetCache) {
+			Map<String, List<Code>> theGlobalValueSetCache,
+			Optional<CompiledLibraryStore> theCompiledLibraryStore) {
 		var evaluationSettings = EvaluationSettings.getDefault();
 		var cqlOptions = evaluationSettings.getCqlOptions();
 
@@ -84,9 +90,25 @@ public class CrCommonConfig {
 		}
 		cqlOptions.setCqlEngineOptions(cqlEngineOptions);
 
-		var cqlCompilerOptions = new CqlCompilerOptions();
+		var cqlCompilerOptions = cqlCompilerOptions(theCrProperties.getCql().getCompiler());
+		cqlOptions.setCqlCompilerOptions(cqlCompilerOptions);
+		evaluationSettings.setLibraryCache(theGlobalLibraryCache);
+		if (theCompiledLibraryStore.isPresent()) {
+			// Ahead of the Library resources, the stored ELM spares translating the CQL again
+			List<LibrarySourceProvider> librarySourceProviders = new ArrayList<>();
+			librarySourceProviders.add(theCompiledLibraryStore.get());
+			librarySourceProviders.addAll(evaluationSettings.getLibrarySourceProviders());
+			evaluationSettings.setLibrarySourceProviders(librarySourceProviders);
+		}
+		evaluationSettings.setModelCache(theGlobalModelCache);
+		evaluationSettings.setValueSetCache(theGlobalValueSetCache);
+		evaluationSettings.setRetrieveSettings(theRetrieveSettings);
+		evaluationSettings.setTerminologySettings(theTerminologySettings);
+		return evaluationSettings;
+	}
 
-		var cqlCompilerProperties = theCrProperties.getCql().getCompiler();
+	static CqlCompilerOptions cqlCompilerOptions(CqlCompilerProperties cqlCompilerProperties) {
+		var cqlCompilerOptions = new CqlCompilerOptions();
 
 		if (cqlCompilerProperties.isEnableDateRangeOptimization()) {
 			cqlCompilerOptions.setOptions(CqlCompilerOptions.Options.EnableDateRangeOptimization);
@@ -134,21 +156,13 @@ public class CrCommonConfig {
 		cqlCompilerOptions.setCompatibilityLevel(cqlCompilerProperties.getCompatibilityLevel());
 		cqlCompilerOptions.setAnalyzeDataRequirements(cqlCompilerProperties.isAnalyzeDataRequirements());
 		cqlCompilerOptions.setCollapseDataRequirements(cqlCompilerProperties.isCollapseDataRequirements());
-
-		cqlOptions.setCqlCompilerOptions(cqlCompilerOptions);
-		evaluationSettings.setLibraryCache(theGlobalLibraryCache);
-		evaluationSettings.setModelCache(theGlobalModelCache);
-		evaluationSettings.setValueSetCache(theGlobalValueSetCache);
-		evaluationSettings.setRetrieveSettings(theRetrieveSettings);
-		evaluationSettings.setTerminologySettings(theTerminologySettings);
-		return evaluationSettings;
+		return cqlCompilerOptions;
 	}
 
 	@Primary
 	@Bean
-	public ExecutorService cqlExecutor() {
-		CqlThreadFactory factory = new CqlThreadFactory();
-		ExecutorService executor = Executors.newFixedThreadPool(2, factory);
+	public ExecutorService cqlExecutor(CrProperties theCrProperties) {
+		ExecutorService executor = CqlExecutors.create(theCrProperties.getCql().getRuntime());
 		executor = new DelegatingSecurityContextExecutorService(executor);
 
 		return executor;
@@ -180,18 +194,59 @@ public class CrCommonConfig {
 	}
 
 	@Bean
-	public Map<VersionedIdentifier, CompiledLibrary> globalLibraryCache() {
-		return new ConcurrentHashMap<>();
+	public Map<VersionedIdentifier, CompiledLibrary> globalLibraryCache(
+			CrProperties theCrProperties, Optional<CompiledLibraryStore> theCompiledLibraryStore) {
+		Map<VersionedIdentifier, CompiledLibrary> libraryCache =
+				CqlCaches.libraryCache(theCrProperties.getCql().getCache());
+		return theCompiledLibraryStore.map(store -> store.persisting(libraryCache)).orElse(libraryCache);
+	}
+
+	@Bean
+	@ConditionalOnProperty(prefix = "hapi.fhir.cr.cql.cache", name = "elm_store_enabled", havingValue = "true")
+	public CompiledLibraryStore compiledLibraryStore(CrProperties theCrProperties, DaoRegistry theDaoRegistry)
+			throws IOException {
+		String directory = theCrProperties.getCql().getCache().getElmStoreDirectory();
+		if (directory == null || directory.isBlank()) {
+			throw new IllegalStateException(
+					"hapi.fhir.cr.cql.cache.elm_store_directory is required when elm_store_enabled is true");
+		}
+		CompiledLibraryStore store = new CompiledLibraryStore(
+				Path.of(directory),
+				theDaoRegistry,
+				cqlCompilerOptions(theCrProperties.getCql().getCompiler()),
+				// One daemon thread writes the files, the evaluations never wait for the disk
+				Executors.newSingleThreadExecutor(runnable -> {
+					Thread thread = new Thread(runnable, "cql-elm-store");
+					thread.setDaemon(true);
+					return thread;
+				}));
+		store.initialize();
+		return store;
+	}
+
+	@Bean
+	public Map<ModelIdentifier, Model> globalModelCache(CrProperties theCrProperties) {
+		return CqlCaches.modelCache(theCrProperties.getCql().getCache());
 	}
 
 	@Bean
-	public Map<ModelIdentifier, Model> globalModelCache() {
-		return new ConcurrentHashMap<>();
+	public Map<String, List<Code>> globalValueSetCache(CrProperties theCrProperties) {
+		return CqlCaches.valueSetCache(theCrProperties.getCql().getCache());
 	}
 
 	@Bean
-	public Map<String, List<Code>> globalValueSetCache() {
-		return new ConcurrentHashMap<>();
+	public CqlCacheWarmer cqlCacheWarmer(
+			CrProperties theCrProperties,
+			DaoRegistry theDaoRegistry,
+			IRepositoryFactory theRepositoryFactory,
+			EvaluationSettings theEvaluationSettings,
+			ExecutorService theCqlExecutor) {
+		return new CqlCacheWarmer(
+				theCrProperties.getCql().getWarmup(),
+				theDaoRegistry,
+				theRepositoryFactory,
+				theEvaluationSettings,
+				theCqlExecutor);
 	}
 
 	@Bean
@@ -9,6 +9,7 @@ public class CrProperties {
 
 	private CareGapsProperties careGaps = new CareGapsProperties();
 	private CqlProperties cql = new CqlProperties();
+	private MeasureEvaluationProperties measure = new MeasureEvaluationProperties();
 
 	public Boolean getEnabled() {
 		return enabled;
@@ -33,4 +34,12 @@ public class CrProperties {
 	public void setCql(CqlProperties cql) {
 		this.cql = cql;
 	}
+
+	public MeasureEvaluationProperties getMeasure() {
+		return measure;
+	}
+
+	public void setMeasure(MeasureEvaluationProperties measure) {
+		this.measure = measure;
+	}
 }
@@ -0,0 +1,33 @@
+package ca.uhn.fhir.jpa.starter.cr;
+
+public class MeasureEvaluationProperties {
+	// Population reports evaluated in chunks of subjects on the CQL executor, see ParallelR4MeasureService
+	private Boolean parallel_enabled = false;
+	private Integer chunk_size = 500;
+	// Chunks evaluated at the same time for one report, 0 for one per available processor
+	private Integer max_parallelism = 0;
+
+	public boolean isParallelEnabled() {
+		return parallel_enabled;
+	}
+
+	public void setParallelEnabled(boolean parallel_enabled) {
+		this.parallel_enabled = parallel_enabled;
+	}
+
+	public int getChunkSize() {
+		return chunk_size;
+	}
+
+	public void setChunkSize(int chunk_size) {
+		this.chunk_size = chunk_size;
+	}
+
+	public int getMaxParallelism() {
+		return max_parallelism;
+	}
+
+	public void setMaxParallelism(int max_parallelism) {
+		this.max_parallelism = max_parallelism;
+	}
+}
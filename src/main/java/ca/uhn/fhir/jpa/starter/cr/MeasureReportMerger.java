@@ -0,0 +1,162 @@
+package ca.uhn.fhir.jpa.starter.cr;
+
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.Measure;
+import org.hl7.fhir.r4.model.MeasureReport;
+import org.hl7.fhir.r4.model.MeasureReport.MeasureReportGroupComponent;
+import org.hl7.fhir.r4.model.MeasureReport.MeasureReportGroupPopulationComponent;
+import org.hl7.fhir.r4.model.MeasureReport.MeasureReportGroupStratifierComponent;
+import org.hl7.fhir.r4.model.MeasureReport.StratifierGroupComponent;
+import org.hl7.fhir.r4.model.MeasureReport.StratifierGroupPopulationComponent;
+import org.hl7.fhir.r4.model.Quantity;
+import org.hl7.fhir.r4.model.Reference;
+
+/**
+ * Merges the population MeasureReports of disjoint sets of subjects into the report of all of them: population and
+ * stratum counts are summed, evaluated resources are united and the proportion / ratio scores are computed again from
+ * the merged counts, exactly as the serial evaluation scores them.
+ *
+ * Only counts can be merged: continuous variable observations and supplemental data are not, see isMergeable.
+ */
+public class MeasureReportMerger {
+	static final Set<String> MERGEABLE_SCORINGS = Set.of("proportion", "ratio", "cohort");
+
+	private MeasureReportMerger() {}
+
+	/**
+	 * @return whether the population reports of theMeasure can be merged
+	 */
+	public static boolean isMergeable(Measure theMeasure) {
+		return !theMeasure.hasSupplementalData()
+				&& theMeasure.hasScoring()
+				&& MERGEABLE_SCORINGS.contains(theMeasure.getScoring().getCodingFirstRep().getCode());
+	}
+
+	public static MeasureReport merge(Measure theMeasure, List<MeasureReport> theReports) {
+		MeasureReport merged = theReports.get(0).copy();
+		for (MeasureReport report : theReports.subList(1, theReports.size())) {
+			for (int g = 0; g < report.getGroup().size(); g++) {
+				MeasureReportGroupComponent group = report.getGroup().get(g);
+				MeasureReportGroupComponent target = merged.getGroup().get(g);
+				mergePopulations(target.getPopulation(), group.getPopulation());
+				for (int s = 0; s < group.getStratifier().size(); s++) {
+					mergeStrata(target.getStratifier().get(s), group.getStratifier().get(s));
+				}
+			}
+			Set<String> evaluated = merged.getEvaluatedResource().stream().map(Reference::getReference).collect(Collectors.toSet());
+			for (Reference reference : report.getEvaluatedResource()) {
+				if (evaluated.add(reference.getReference())) {
+					merged.addEvaluatedResource(reference.copy());
+				}
+			}
+		}
+
+		String scoring = theMeasure.getScoring().getCodingFirstRep().getCode();
+		if (!"cohort".equals(scoring)) {
+			boolean increase = isIncreaseImprovementNotation(theMeasure);
+			for (MeasureReportGroupComponent group : merged.getGroup()) {
+				group.setMeasureScore(score(count(group.getPopulation(), "numerator"), count(group.getPopulation(), "denominator"), increase));
+				for (MeasureReportGroupStratifierComponent stratifier : group.getStratifier()) {
+					for (StratifierGroupComponent stratum : stratifier.getStratum()) {
+						stratum.setMeasureScore(score(stratumCount(stratum, "numerator"), stratumCount(stratum, "denominator"), increase));
+					}
+				}
+			}
+		}
+		return merged;
+	}
+
+	private static void mergePopulations(
+			List<MeasureReportGroupPopulationComponent> theTarget, List<MeasureReportGroupPopulationComponent> theSource) {
+		for (MeasureReportGroupPopulationComponent population : theSource) {
+			MeasureReportGroupPopulationComponent target = theTarget.stream()
+					.filter(p -> code(p.getCode()).equals(code(population.getCode())))
+					.findFirst()
+					.orElse(null);
+			if (target == null) {
+				theTarget.add(population.copy());
+			} else {
+				target.setCount(target.getCount() + population.getCount());
+			}
+		}
+	}
+
+	private static void mergeStrata(MeasureReportGroupStratifierComponent theTarget, MeasureReportGroupStratifierComponent theSource) {
+		for (StratifierGroupComponent stratum : theSource.getStratum()) {
+			StratifierGroupComponent target = theTarget.getStratum().stream()
+					.filter(s -> stratumKey(s).equals(stratumKey(stratum)))
+					.findFirst()
+					.orElse(null);
+			if (target == null) {
+				theTarget.addStratum(stratum.copy());
+				continue;
+			}
+			for (StratifierGroupPopulationComponent population : stratum.getPopulation()) {
+				StratifierGroupPopulationComponent targetPopulation = target.getPopulation().stream()
+						.filter(p -> code(p.getCode()).equals(code(population.getCode())))
+						.findFirst()
+						.orElse(null);
+				if (targetPopulation == null) {
+					target.addPopulation(population.copy());
+				} else {
+					targetPopulation.setCount(targetPopulation.getCount() + population.getCount());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Same arithmetic as the serial R4MeasureReportScorer: numerator / denominator as a double, the reported denominator
+	 * already leaves out the exclusions and exceptions; no score when the denominator is empty
+	 */
+	private static Quantity score(Integer theNumerator, Integer theDenominator, boolean theIncrease) {
+		if (theDenominator == null || theDenominator == 0) {
+			return null;
+		}
+		double score = (theNumerator == null ? 0 : theNumerator) / (double) theDenominator;
+		return new Quantity(theIncrease ? score : 1 - score);
+	}
+
+	private static boolean isIncreaseImprovementNotation(Measure theMeasure) {
+		return !theMeasure.hasImprovementNotation()
+				|| !"decrease".equals(theMeasure.getImprovementNotation().getCodingFirstRep().getCode());
+	}
+
+	private static Integer count(List<MeasureReportGroupPopulationComponent> thePopulations, String theCode) {
+		return thePopulations.stream()
+				.filter(p -> theCode.equals(p.getCode().getCodingFirstRep().getCode()))
+				.findFirst()
+				.map(MeasureReportGroupPopulationComponent::getCount)
+				.orElse(null);
+	}
+
+	private static Integer stratumCount(StratifierGroupComponent theStratum, String theCode) {
+		return theStratum.getPopulation().stream()
+				.filter(p -> theCode.equals(p.getCode().getCodingFirstRep().getCode()))
+				.findFirst()
+				.map(StratifierGroupPopulationComponent::getCount)
+				.orElse(null);
+	}
+
+	private static String code(CodeableConcept theCode) {
+		return theCode.getCoding().stream().map(Coding::getCode).collect(Collectors.joining("|"));
+	}
+
+	private static String stratumKey(StratifierGroupComponent theStratum) {
+		if (theStratum.hasValue()) {
+			return stratumValue(theStratum.getValue());
+		}
+		return theStratum.getComponent().stream()
+				.map(c -> code(c.getCode()) + "=" + stratumValue(c.getValue()))
+				.collect(Collectors.joining(","));
+	}
+
+	private static String stratumValue(CodeableConcept theValue) {
+		return theValue.hasText() ? theValue.getText() : code(theValue);
+	}
+}
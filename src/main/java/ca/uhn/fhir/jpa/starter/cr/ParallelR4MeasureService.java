@@ -0,0 +1,228 @@
+package ca.uhn.fhir.jpa.starter.cr;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.CanonicalType;
+import org.hl7.fhir.r4.model.Endpoint;
+import org.hl7.fhir.r4.model.Group;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.Measure;
+import org.hl7.fhir.r4.model.MeasureReport;
+import org.hl7.fhir.r4.model.Parameters;
+import org.hl7.fhir.r4.model.Reference;
+import org.opencds.cqf.fhir.api.Repository;
+import org.opencds.cqf.fhir.cr.measure.MeasureEvaluationOptions;
+import org.opencds.cqf.fhir.cr.measure.r4.R4MeasureProcessor;
+import org.opencds.cqf.fhir.cr.measure.r4.R4MeasureService;
+import org.opencds.cqf.fhir.cr.measure.r4.R4RepositorySubjectProvider;
+import org.opencds.cqf.fhir.utility.monad.Either3;
+import org.opencds.cqf.fhir.utility.monad.Eithers;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ca.uhn.fhir.cr.common.IRepositoryFactory;
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.searchparam.SearchParameterMap;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
+
+/**
+ * $evaluate-measure that evaluates the population reports of many subjects in parallel: the subjects are partitioned
+ * into chunks, each chunk is evaluated on the CQL executor by its own R4MeasureProcessor (its own engine and retrieve
+ * context) and the chunk reports are merged by the MeasureReportMerger.
+ *
+ * Everything else (individual and subject-list reports, a practitioner, a product line or endpoints, measures with
+ * continuous variable scoring or supplemental data, fewer subjects than a chunk) is evaluated serially as before.
+ */
+public class ParallelR4MeasureService extends R4MeasureService {
+	private static final Logger ourLog = LoggerFactory.getLogger(ParallelR4MeasureService.class);
+	private static final String POPULATION = "population";
+
+	private final Repository repository;
+	private final IRepositoryFactory repositoryFactory;
+	private final RequestDetails requestDetails;
+	private final MeasureEvaluationOptions measureEvaluationOptions;
+	private final MeasureEvaluationProperties properties;
+	private final DaoRegistry daoRegistry;
+	private final ExecutorService executor;
+
+	public ParallelR4MeasureService(
+			IRepositoryFactory theRepositoryFactory,
+			RequestDetails theRequestDetails,
+			MeasureEvaluationOptions theMeasureEvaluationOptions,
+			MeasureEvaluationProperties theProperties,
+			DaoRegistry theDaoRegistry,
+			ExecutorService theExecutor) {
+		this(theRepositoryFactory.create(theRequestDetails), theRepositoryFactory, theRequestDetails,
+				theMeasureEvaluationOptions, theProperties, theDaoRegistry, theExecutor);
+	}
+
+	private ParallelR4MeasureService(
+			Repository theRepository,
+			IRepositoryFactory theRepositoryFactory,
+			RequestDetails theRequestDetails,
+			MeasureEvaluationOptions theMeasureEvaluationOptions,
+			MeasureEvaluationProperties theProperties,
+			DaoRegistry theDaoRegistry,
+			ExecutorService theExecutor) {
+		super(theRepository, theMeasureEvaluationOptions);
+		repository = theRepository;
+		repositoryFactory = theRepositoryFactory;
+		requestDetails = theRequestDetails;
+		measureEvaluationOptions = theMeasureEvaluationOptions;
+		properties = theProperties;
+		daoRegistry = theDaoRegistry;
+		executor = theExecutor;
+	}
+
+	@Override
+	public MeasureReport evaluate(
+			Either3<CanonicalType, IdType, Measure> theMeasure,
+			String thePeriodStart,
+			String thePeriodEnd,
+			String theReportType,
+			String theSubjectId,
+			String theLastReceivedOn,
+			Endpoint theContentEndpoint,
+			Endpoint theTerminologyEndpoint,
+			Endpoint theDataEndpoint,
+			Bundle theAdditionalData,
+			Parameters theParameters,
+			String theProductLine,
+			String thePractitioner) {
+		Measure measure = null;
+		List<String> subjects = null;
+		if (properties.isParallelEnabled()
+				&& isPopulation(theReportType)
+				&& thePractitioner == null
+				&& theProductLine == null
+				&& theContentEndpoint == null
+				&& theTerminologyEndpoint == null
+				&& theDataEndpoint == null) {
+			measure = resolveMeasure(theMeasure);
+			subjects = measure != null && MeasureReportMerger.isMergeable(measure) ? subjects(theSubjectId) : null;
+		}
+		if (subjects == null || subjects.size() <= properties.getChunkSize()) {
+			return super.evaluate(theMeasure, thePeriodStart, thePeriodEnd, theReportType, theSubjectId,
+					theLastReceivedOn, theContentEndpoint, theTerminologyEndpoint, theDataEndpoint, theAdditionalData,
+					theParameters, theProductLine, thePractitioner);
+		}
+		// Without a reportType the processor tells a population from the subjects it is given: the chunks name theirs,
+		// they must still be evaluated as a population like the serial call without subjects
+		String chunkReportType = theReportType != null ? theReportType : POPULATION;
+		MeasureReport merged = evaluateInChunks(measure, thePeriodStart, thePeriodEnd, chunkReportType, subjects, theAdditionalData, theParameters);
+		// The chunks only know their Patients, the serial report of a Group names the Group as its subject
+		if (theSubjectId != null && theSubjectId.startsWith("Group/")) {
+			merged.setSubject(new Reference(theSubjectId));
+		}
+		return merged;
+	}
+
+	MeasureReport evaluateInChunks(
+			Measure theMeasure,
+			String thePeriodStart,
+			String thePeriodEnd,
+			String theReportType,
+			List<String> theSubjects,
+			Bundle theAdditionalData,
+			Parameters theParameters) {
+		int chunkSize = Math.max(1, properties.getChunkSize());
+		int parallelism = properties.getMaxParallelism() > 0
+				? properties.getMaxParallelism()
+				: Runtime.getRuntime().availableProcessors();
+		long start = System.nanoTime();
+
+		// Bounds the chunks in flight, the request thread waits for a slot before submitting the next one
+		Semaphore slots = new Semaphore(parallelism);
+		List<Future<MeasureReport>> chunks = new ArrayList<>();
+		try {
+			for (int from = 0; from < theSubjects.size(); from += chunkSize) {
+				List<String> chunk = theSubjects.subList(from, Math.min(from + chunkSize, theSubjects.size()));
+				slots.acquire();
+				Future<MeasureReport> submitted;
+				try {
+					submitted = executor.submit(() -> {
+						try {
+							return new R4MeasureProcessor(
+											repositoryFactory.create(requestDetails),
+											measureEvaluationOptions,
+											new R4RepositorySubjectProvider())
+									.evaluateMeasure(Eithers.forRight3(theMeasure), thePeriodStart, thePeriodEnd,
+											theReportType, chunk, theAdditionalData, theParameters);
+						} finally {
+							slots.release();
+						}
+					});
+				} catch (RejectedExecutionException e) {
+					slots.release();
+					throw e;
+				}
+				chunks.add(submitted);
+			}
+
+			List<MeasureReport> reports = new ArrayList<>();
+			for (Future<MeasureReport> chunk : chunks) {
+				reports.add(chunk.get());
+			}
+			MeasureReport merged = MeasureReportMerger.merge(theMeasure, reports);
+			ourLog.debug("Evaluated {} for {} subjects in {} chunks in {}ms", theMeasure.getUrl(), theSubjects.size(),
+					reports.size(), (System.nanoTime() - start) / 1_000_000);
+			return merged;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			chunks.forEach(chunk -> chunk.cancel(true));
+			throw new InternalErrorException("Interrupted while evaluating " + theMeasure.getUrl(), e);
+		} catch (RejectedExecutionException e) {
+			chunks.forEach(chunk -> chunk.cancel(true));
+			throw new InternalErrorException("The CQL executor rejected a chunk of " + theMeasure.getUrl(), e);
+		} catch (ExecutionException e) {
+			chunks.forEach(chunk -> chunk.cancel(true));
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new InternalErrorException("Failed to evaluate " + theMeasure.getUrl(), e.getCause());
+		}
+	}
+
+	private static boolean isPopulation(String theReportType) {
+		return theReportType == null || POPULATION.equals(theReportType) || "summary".equals(theReportType);
+	}
+
+	private Measure resolveMeasure(Either3<CanonicalType, IdType, Measure> theMeasure) {
+		if (theMeasure.isRight()) {
+			return theMeasure.rightOrThrow();
+		}
+		if (theMeasure.isMiddle()) {
+			return repository.read(Measure.class, theMeasure.middleOrThrow());
+		}
+		// Canonical references are resolved by the serial path
+		return null;
+	}
+
+	/**
+	 * @return the Patient references of the population, null when theSubjectId is not a population
+	 */
+	List<String> subjects(String theSubjectId) {
+		if (theSubjectId == null || theSubjectId.isEmpty()) {
+			return daoRegistry.getResourceDao("Patient").search(SearchParameterMap.newSynchronous(), requestDetails)
+					.getAllResourceIds().stream()
+					.map(id -> id.contains("/") ? id : "Patient/" + id)
+					.toList();
+		}
+		if (theSubjectId.startsWith("Group/")) {
+			Group group = (Group) daoRegistry.getResourceDao("Group").read(new IdType(theSubjectId), requestDetails);
+			return group.getMember().stream()
+					.map(member -> member.getEntity().getReference())
+					.filter(reference -> reference != null && reference.startsWith("Patient/"))
+					.toList();
+		}
+		return null;
+	}
+}
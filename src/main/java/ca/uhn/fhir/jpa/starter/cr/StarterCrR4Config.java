@@ -1,15 +1,23 @@
 package ca.uhn.fhir.jpa.starter.cr;
 
+import ca.uhn.fhir.cr.common.IRepositoryFactory;
 import ca.uhn.fhir.cr.config.r4.ApplyOperationConfig;
 import ca.uhn.fhir.cr.config.r4.CrR4Config;
 import ca.uhn.fhir.cr.config.r4.ExtractOperationConfig;
 import ca.uhn.fhir.cr.config.r4.PackageOperationConfig;
 import ca.uhn.fhir.cr.config.r4.PopulateOperationConfig;
 import ca.uhn.fhir.cr.config.r4.QuestionnaireOperationConfig;
+import ca.uhn.fhir.cr.r4.R4MeasureEvaluatorSingleFactory;
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
 import ca.uhn.fhir.jpa.starter.annotations.OnR4Condition;
+import org.opencds.cqf.fhir.cr.measure.MeasureEvaluationOptions;
+import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Conditional;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.Import;
+import org.springframework.context.annotation.Primary;
+
+import java.util.concurrent.ExecutorService;
 
 @Configuration
 @Conditional({OnR4Condition.class, CrConfigCondition.class})
@@ -23,5 +31,21 @@ import org.springframework.context.annotation.Import;
 	QuestionnaireOperationConfig.class
 })
 public class StarterCrR4Config {
-	
+
+	@Bean
+	@Primary
+	R4MeasureEvaluatorSingleFactory parallelR4MeasureServiceFactory(
+			IRepositoryFactory theRepositoryFactory,
+			MeasureEvaluationOptions theMeasureEvaluationOptions,
+			CrProperties theCrProperties,
+			DaoRegistry theDaoRegistry,
+			ExecutorService theCqlExecutor) {
+		return rd -> new ParallelR4MeasureService(
+				theRepositoryFactory,
+				rd,
+				theMeasureEvaluationOptions,
+				theCrProperties.getMeasure(),
+				theDaoRegistry,
+				theCqlExecutor);
+	}
 }
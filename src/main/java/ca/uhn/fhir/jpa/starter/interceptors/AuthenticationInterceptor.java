@@ -2,23 +2,20 @@ package ca.uhn.fhir.jpa.starter.interceptors;
 
 import java.net.URI;
 import org.slf4j.Logger;
-import org.json.JSONArray;
 import org.json.JSONObject;
 import org.slf4j.LoggerFactory;
-import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
 import java.net.URISyntaxException;
-import java.util.stream.Collectors;
 import ca.uhn.fhir.interceptor.api.Hook;
 import ca.uhn.fhir.interceptor.api.Pointcut;
 import jakarta.servlet.http.HttpServletRequest;
-import java.net.http.HttpResponse.BodyHandlers;
 import ca.uhn.fhir.rest.api.server.RequestDetails;
 import org.apache.http.client.HttpResponseException;
 
 import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
 import ca.uhn.fhir.rest.server.exceptions.AuthenticationException;
+import ca.uhn.fhir.rest.server.exceptions.PayloadTooLargeException;
 import ca.uhn.fhir.rest.server.exceptions.ForbiddenOperationException;
 import ca.uhn.fhir.rest.server.exceptions.UnprocessableEntityException;
 import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
@@ -28,42 +25,106 @@ import jakarta.servlet.ReadListener;
 import jakarta.servlet.ServletInputStream;
 import jakarta.servlet.http.HttpServletRequestWrapper;
 import java.io.*;
+import java.util.Arrays;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 
 public class AuthenticationInterceptor {
     private static final Logger logger = LoggerFactory.getLogger(AuthenticationInterceptor.class);
 
-    private int apiErrorCode        = 500;
-    private String apiErrorResponse = "Internal Server error.";
+    private static final String BEARER_PREFIX                  = "Bearer ";
+    private static final String DEFAULT_ERROR_RESPONSE         = "Internal Server error.";
+    private static final int INITIAL_BODY_BUFFER_BYTES         = 64 * 1024;
+
+    /**
+     * ? Largest Patient body buffered for the VALIDATE_PATIENT checks, a larger one is refused with a 413 (HCH_MAX_REQUEST_BODY_BYTES, default 1 MiB)
+     */
+    private static final int MAX_REQUEST_BODY_BYTES            = HomecareHubProperties.getInt("HCH_MAX_REQUEST_BODY_BYTES", 1024 * 1024);
+
+    /**
+     * ! This interceptor is a singleton shared by every servlet thread, it MUST NOT hold any per request state
+     * ! Everything a request needs is carried by the immutable AuthenticationResult returned from validateTokenAndRequest
+     */
+    private final TokenValidationCache tokenValidationCache   = new TokenValidationCache();
+    private final HomecareHubHttpClient homecareHubHttpClient = HomecareHubHttpClient.getInstance();
+    private final JwtTokenVerifier jwtTokenVerifier           = JwtTokenVerifier.fromProperties();     // ? null unless HCH_AUTH_MODE=jwt
 
 
     /**
      * ? Custom request wrapper to cache the request body
+     * ? The body is read once into a buffer sized after the Content-Length, HAPI's parser then replays that same buffer without any further copy
+     * ! The Content-Length is only a hint: the first allocation is capped at 64 KiB and the buffer grows with what is actually read, up to maxBodyBytes
      */
-    private static class CachedBodyHttpServletRequest extends HttpServletRequestWrapper {
-        private byte[] cachedBody;
+    static class CachedBodyHttpServletRequest extends HttpServletRequestWrapper {
+        private final byte[] cachedBody;
+        private final int cachedBodyLength;
 
-        public CachedBodyHttpServletRequest(HttpServletRequest request) throws IOException {
+        /**
+         * @param HttpServletRequest request
+         * @param int maxBodyBytes
+         *
+         * @throws IOException
+         * @throws PayloadTooLargeException when the declared or the actual body is larger than maxBodyBytes
+         */
+        CachedBodyHttpServletRequest(HttpServletRequest request, int maxBodyBytes) throws IOException {
             super(request);
+            long contentLength = request.getContentLengthLong();
+            if (contentLength > maxBodyBytes) {
+                throw new PayloadTooLargeException("The request body exceeds " + maxBodyBytes + " bytes.");
+            }
+
             InputStream requestInputStream = request.getInputStream();
-            this.cachedBody = requestInputStream.readAllBytes();
+            int initialSize = contentLength >= 0 ? (int) Math.min(contentLength, INITIAL_BODY_BUFFER_BYTES) : 8192;
+            byte[] buffer   = new byte[Math.max(1, initialSize)];
+            int length      = 0;
+            while (true) {
+                if (length == buffer.length) {
+                    if (length >= maxBodyBytes) {
+                        if (requestInputStream.read() < 0) {
+                            break;      // ? Exactly maxBodyBytes
+                        }
+                        throw new PayloadTooLargeException("The request body exceeds " + maxBodyBytes + " bytes.");
+                    }
+                    buffer = Arrays.copyOf(buffer, (int) Math.min((long) buffer.length * 2, maxBodyBytes));
+                }
+                int read = requestInputStream.readNBytes(buffer, length, buffer.length - length);
+                if (read == 0) {
+                    break;      // ? readNBytes only returns short at the end of the stream
+                }
+                length += read;
+                if (length < buffer.length) {
+                    break;
+                }
+            }
+            this.cachedBody         = buffer;
+            this.cachedBodyLength   = length;
+        }
+
+        public byte[] getCachedBody() {
+            return this.cachedBody;
+        }
+
+        public int getCachedBodyLength() {
+            return this.cachedBodyLength;
         }
 
         @Override
         public ServletInputStream getInputStream() throws IOException {
-            return new CachedBodyServletInputStream(this.cachedBody);
+            return new CachedBodyServletInputStream(this.cachedBody, this.cachedBodyLength);
         }
 
         @Override
         public BufferedReader getReader() throws IOException {
-            ByteArrayInputStream byteArrayInputStream = new ByteArrayInputStream(this.cachedBody);
-            return new BufferedReader(new InputStreamReader(byteArrayInputStream));
+            String characterEncoding = getCharacterEncoding();
+            Charset charset = characterEncoding != null ? Charset.forName(characterEncoding) : StandardCharsets.UTF_8;
+            return new BufferedReader(new InputStreamReader(new ByteArrayInputStream(this.cachedBody, 0, this.cachedBodyLength), charset));
         }
 
         private static class CachedBodyServletInputStream extends ServletInputStream {
             private final ByteArrayInputStream byteArrayInputStream;
 
-            public CachedBodyServletInputStream(byte[] cachedBody) {
-                this.byteArrayInputStream = new ByteArrayInputStream(cachedBody);
+            public CachedBodyServletInputStream(byte[] cachedBody, int length) {
+                this.byteArrayInputStream = new ByteArrayInputStream(cachedBody, 0, length);  // ? A view over the cached array, not a copy
             }
 
             @Override
@@ -85,9 +146,58 @@ public class AuthenticationInterceptor {
             public int read() throws IOException {
                 return byteArrayInputStream.read();
             }
+
+            @Override
+            public int read(byte[] buffer, int offset, int length) throws IOException {
+                return byteArrayInputStream.read(buffer, offset, length);     // ? Bulk reads, the parser never falls back to byte by byte reads
+            }
+
+            @Override
+            public int available() throws IOException {
+                return byteArrayInputStream.available();
+            }
+        }
+    }
+
+    /**
+     * ? Immutable outcome of the validation of one request
+     */
+    private static final class AuthenticationResult {
+        private static final AuthenticationResult UNAUTHENTICATED  = new AuthenticationResult(401, "Unauthenticated.");
+        private static final AuthenticationResult FORBIDDEN        = new AuthenticationResult(403, "Unautorized.");
+
+        private final int statusCode;
+        private final String errorResponse;
+
+        private AuthenticationResult(int statusCode, String errorResponse) {
+            this.statusCode     = statusCode;
+            this.errorResponse  = errorResponse;
+        }
+
+        private static AuthenticationResult authenticated() {
+            return new AuthenticationResult(200, null);
+        }
+
+        private static AuthenticationResult rejected(int statusCode) {
+            if (statusCode == 401) {
+                return UNAUTHENTICATED;
+            } else if (statusCode == 403) {
+                return FORBIDDEN;
+            }
+            return new AuthenticationResult(statusCode, DEFAULT_ERROR_RESPONSE);
+        }
+
+        private static AuthenticationResult unprocessable(String errorResponse) {
+            return new AuthenticationResult(422, errorResponse);
+        }
+
+        private boolean isAuthenticated() {
+            return statusCode < 400;
         }
     }
 
+    private static final AuthenticationResult AUTHENTICATED = AuthenticationResult.authenticated();
+
     /**
      * 
      * @param RequestDetails requestDetails
@@ -101,30 +211,24 @@ public class AuthenticationInterceptor {
     // public void incomingRequestPreHandled(RequestDetails requestDetails, ServletRequestDetails servletRequestDetails) {
         logger.info("--------------- AUTHENTICATION INTERCEPTOR ---------------");
     
-        String authHeader       = requestDetails.getHeader("Authorization");
-        String BEARER_PREFIX    = "Bearer ";
+        String authHeader = requestDetails.getHeader("Authorization");
         if (authHeader == null || !authHeader.startsWith(BEARER_PREFIX)) {
             throw new AuthenticationException("Invalid or missing Authorization header.");
         }
 
-        String token                    = authHeader.substring(BEARER_PREFIX.length()).trim();
-        boolean validateTokenResponse   = validateTokenAndRequest(token, servletRequest, requestDetails, servletRequestDetails);
-
-        if (validateTokenResponse == false) {
-            if(this.apiErrorCode == 401) {
-                this.apiErrorResponse = "Unauthenticated.";
-                logger.info(this.apiErrorResponse);
-                throw new AuthenticationException(this.apiErrorResponse);
-            } else if(this.apiErrorCode == 403) {
-                this.apiErrorResponse = "Unautorized.";
-                logger.info(this.apiErrorResponse);
-                throw new ForbiddenOperationException(this.apiErrorResponse);
-            } else if(this.apiErrorCode == 422) {
-                logger.info(this.apiErrorResponse);
-                throw new UnprocessableEntityException(this.apiErrorResponse);
+        String token                            = authHeader.substring(BEARER_PREFIX.length()).trim();
+        AuthenticationResult authenticationResult = validateTokenAndRequest(token, servletRequest, requestDetails, servletRequestDetails);
+
+        if (!authenticationResult.isAuthenticated()) {
+            logger.info(authenticationResult.errorResponse);
+            if(authenticationResult.statusCode == 401) {
+                throw new AuthenticationException(authenticationResult.errorResponse);
+            } else if(authenticationResult.statusCode == 403) {
+                throw new ForbiddenOperationException(authenticationResult.errorResponse);
+            } else if(authenticationResult.statusCode == 422) {
+                throw new UnprocessableEntityException(authenticationResult.errorResponse);
             } else {
-                logger.info(this.apiErrorResponse);
-                throw new InternalErrorException(this.apiErrorResponse);
+                throw new InternalErrorException(authenticationResult.errorResponse);
             }
         }
     }
@@ -139,9 +243,9 @@ public class AuthenticationInterceptor {
      * @param RequestDetails requestDetails
      * @param ServletRequestDetails servletRequestDetails
      * 
-     * @return boolean
+     * @return AuthenticationResult
      */
-    private boolean validateTokenAndRequest(String token, HttpServletRequest servletRequest, RequestDetails requestDetails, ServletRequestDetails servletRequestDetails) {
+    private AuthenticationResult validateTokenAndRequest(String token, HttpServletRequest servletRequest, RequestDetails requestDetails, ServletRequestDetails servletRequestDetails) {
         try {
             String AUTHENTICATE_USER_URL        = System.getProperty("HCH_BASE_URL") + System.getProperty("HCH_AUTHENTICATE_USER_URL");
             String VALIDATE_PATIENT             = System.getProperty("VALIDATE_PATIENT");
@@ -156,43 +260,25 @@ public class AuthenticationInterceptor {
             if ("true".equals(VALIDATE_PATIENT) && "Patient".equals(resourceName) && ("POST".equals(requestHttpMethod) || "PATCH".equals(requestHttpMethod))) {
                 // HttpServletRequest servletRequest = servletRequestDetails.getServletRequest();
                 // Wrap the HttpServletRequest to cache the request body
-                HttpServletRequest wrappedRequest;
+                CachedBodyHttpServletRequest wrappedRequest;
                 try {
-                    wrappedRequest = new CachedBodyHttpServletRequest(servletRequest);
+                    wrappedRequest = new CachedBodyHttpServletRequest(servletRequest, MAX_REQUEST_BODY_BYTES);
                     servletRequestDetails.setServletRequest(wrappedRequest); // Update the ServletRequestDetails with the wrapped request
                 } catch (IOException e) {
                     throw new InternalErrorException("Failed to read request body.", e);
                 }
                 
-                BufferedReader reader   = wrappedRequest.getReader();           // Read the cached incoming request
-                String requestJson      = reader.lines().collect(Collectors.joining(System.lineSeparator()));
-                JSONObject jsonObject   = new JSONObject(requestJson);          // Parse the JSON string using JSONObject
-                
-                String phone            = null;
-                String email            = null;
-                JSONArray telecomArray  = jsonObject.getJSONArray("telecom");    // Extract the telecom key
-                
-                for (int i = 0; i < telecomArray.length(); i++) {
-                    JSONObject telecom  = telecomArray.getJSONObject(i);
-                    String system       = telecom.getString("system");
-                    
-                    if ("phone".equals(system)) {
-                        phone = telecom.getString("value");
-                    } else if ("email".equals(system)) {
-                        email = telecom.getString("value");
-                    }
-                }
+                // ? Only the telecom email / phone are needed, stream them out of the cached body instead of building the whole JSON tree
+                PatientTelecomExtractor.Telecom telecom = PatientTelecomExtractor.extract(wrappedRequest.getCachedBody(), wrappedRequest.getCachedBodyLength());
+                String phone            = telecom.getPhone();
+                String email            = telecom.getEmail();
     
                 if (email == null || email.isEmpty()) {
-                    this.apiErrorCode       = 422;
-                    this.apiErrorResponse   = "The Email is required.";
-                    return false;
+                    return AuthenticationResult.unprocessable("The Email is required.");
                 }
     
                 if (phone == null || phone.isEmpty()) {
-                    this.apiErrorCode       = 422;
-                    this.apiErrorResponse   = "The phone number is required.";
-                    return false;
+                    return AuthenticationResult.unprocessable("The phone number is required.");
                 }
 
                 JSONObject jsonPayloadObject = new JSONObject();
@@ -201,16 +287,38 @@ public class AuthenticationInterceptor {
                 jsonPayloadObject.put("requestHttpMethod", requestHttpMethod); // "POST" for create, "PATCH" for update
                 
                 // String jsonPayload = jsonPayloadObject.toString();
-                authenticationRequest = HttpRequest.newBuilder()
-                    .uri(new URI(AUTHENTICATE_USER_URL))                        // ? This can throw the URISyntaxException
+                authenticationRequest = homecareHubHttpClient.newRequestBuilder(new URI(AUTHENTICATE_USER_URL))  // ? This can throw the URISyntaxException
                     .header("Authorization", "Bearer " + token)
                     .header("Accept", "application/json")
                     .header("Content-Type", "application/json")
                     .POST(HttpRequest.BodyPublishers.ofString(jsonPayloadObject.toString()))
                     .build();
+            } else if (jwtTokenVerifier != null) {
+                /**
+                 * ? Local verification against the cached JWKS, HCH is not called at all
+                 */
+                try {
+                    JwtTokenVerifier.VerifiedToken verifiedToken = jwtTokenVerifier.verify(token);
+                    servletRequestDetails.getUserData().put("authenticatedUserLoginId", verifiedToken.getAuthenticatedUserLoginId());
+                    return AUTHENTICATED;
+                } catch (JwtTokenVerifier.InvalidTokenException e) {
+                    logger.debug("Bearer token rejected: {}", e.getMessage());
+                    return AuthenticationResult.rejected(401);
+                }
             } else {
-                authenticationRequest = HttpRequest.newBuilder()
-                    .uri(new URI(AUTHENTICATE_USER_URL))                      // ? This can throw the URISyntaxException
+                /**
+                 * ? Plain token verification does not depend on the request, answer it from the cache when the same token was validated recently
+                 */
+                TokenValidationCache.CachedValidation cachedValidation = tokenValidationCache.get(token);
+                if (cachedValidation != null) {
+                    if (!cachedValidation.isAuthenticated()) {
+                        return AuthenticationResult.rejected(cachedValidation.getStatusCode());
+                    }
+                    servletRequestDetails.getUserData().put("authenticatedUserLoginId", cachedValidation.getAuthenticatedUserLoginId());
+                    return AUTHENTICATED;
+                }
+
+                authenticationRequest = homecareHubHttpClient.newRequestBuilder(new URI(AUTHENTICATE_USER_URL))  // ? This can throw the URISyntaxException
                     .header("Authorization", "Bearer " + token)
                     .header("Accept", "application/json")
                     .header("Content-Type", "application/json")
@@ -218,21 +326,24 @@ public class AuthenticationInterceptor {
                     .build();
             }
     
-            HttpClient httpClient                       = HttpClient.newHttpClient();
-            HttpResponse<String> authenticationResponse = httpClient.send(authenticationRequest, BodyHandlers.ofString()); // ? This can throw the IOException / InterruptedException / HttpResponseException
+            HttpResponse<String> authenticationResponse = homecareHubHttpClient.send(HomecareHubHttpClient.ENDPOINT_AUTHENTICATE, authenticationRequest); // ? This can throw the IOException / InterruptedException / HttpResponseException
             
             logger.info("Authentication Response code: {}", authenticationResponse.statusCode());
             logger.info("Authentication Response: {}", authenticationResponse.body());
 
-            JSONObject jsonResponseObject = new JSONObject(authenticationResponse.body());
-            if(authenticationResponse.statusCode() >= 400) {
-                this.apiErrorCode = authenticationResponse.statusCode();
+            boolean cacheableRequest    = "GET".equals(authenticationRequest.method());   // ? Patient POST / PATCH validations always bypass the cache
+            int statusCode              = authenticationResponse.statusCode();
+            if(statusCode >= 400) {
+                if (cacheableRequest) {
+                    tokenValidationCache.put(token, statusCode, null);
+                }
                 
-                if(this.apiErrorCode == 422) {
-                    logger.info("Validation Error Object initialized: {}", jsonResponseObject.toString());
-                    this.apiErrorResponse = jsonResponseObject.toString();
+                if(statusCode == 422) {
+                    String validationErrors = new JSONObject(authenticationResponse.body()).toString();
+                    logger.info("Validation Error Object initialized: {}", validationErrors);
+                    return AuthenticationResult.unprocessable(validationErrors);
                 }
-                return false;
+                return AuthenticationResult.rejected(statusCode);   // ? 401 / 403 bodies are never parsed
             }
 
             /**
@@ -242,8 +353,14 @@ public class AuthenticationInterceptor {
              */
             
             // servletRequest.setAttribute("authenticatedUserLoginId", jsonResponseObject.getString("id"));
-            servletRequestDetails.getUserData().put("authenticatedUserLoginId", jsonResponseObject.getString("id"));
-            return true;
+            String authenticatedUserLoginId = new JSONObject(authenticationResponse.body()).getString("id");
+            if (cacheableRequest) {
+                tokenValidationCache.put(token, statusCode, authenticatedUserLoginId);
+            }
+            servletRequestDetails.getUserData().put("authenticatedUserLoginId", authenticatedUserLoginId);
+            return AUTHENTICATED;
+        } catch (PayloadTooLargeException exception) {
+            throw exception;        // ? A client error, answered as a 413 instead of the generic 500
         } catch (Exception exception) { // Todo: (Check if Line 215 can Handle this) Remove this Handle exception block because we want to stop the execution of request at this point.
             logger.info("************************** Authentication Interceptor EXCEPTION **************************");
             
@@ -263,7 +380,7 @@ public class AuthenticationInterceptor {
             }
             exception.printStackTrace();
 
-            throw new InternalErrorException(this.apiErrorResponse);    // To stop the further executing and dirpatch the response back to the UI
+            throw new InternalErrorException(DEFAULT_ERROR_RESPONSE);    // To stop the further executing and dirpatch the response back to the UI
         }
     }
 }
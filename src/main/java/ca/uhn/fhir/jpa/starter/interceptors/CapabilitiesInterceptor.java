@@ -1,57 +1,263 @@
 package ca.uhn.fhir.jpa.starter.interceptors;
 
+import java.util.Map;
+import java.util.Set;
+import java.util.List;
+import java.util.ArrayList;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.FhirVersionEnum;
+import ca.uhn.fhir.context.BaseRuntimeChildDefinition;
+import ca.uhn.fhir.context.BaseRuntimeElementCompositeDefinition;
 import ca.uhn.fhir.interceptor.api.Hook;
 import ca.uhn.fhir.interceptor.api.Pointcut;
 import ca.uhn.fhir.interceptor.api.Interceptor;
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.api.EncodingEnum;
+import ca.uhn.fhir.rest.api.RequestTypeEnum;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.jpa.starter.util.ETags;
+import ca.uhn.fhir.rest.server.RestfulServer;
+import ca.uhn.fhir.rest.server.RestfulServerUtils;
+import ca.uhn.fhir.rest.server.exceptions.NotModifiedException;
 import org.springframework.stereotype.Component;
-import org.hl7.fhir.r4.model.CapabilityStatement;
+import org.hl7.fhir.instance.model.api.IBase;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IPrimitiveType;
 import org.hl7.fhir.instance.model.api.IBaseConformance;
-import org.hl7.fhir.r4.model.CapabilityStatement.CapabilityStatementRestComponent;
-import org.hl7.fhir.r4.model.CapabilityStatement.CapabilityStatementRestResourceComponent;
 
 /**
- * ? Only display swagger-ui links related to Patient resource and System Level Operations at http://localhost:8080/fhir/swagger-ui/index.html
- * ? Only Display API documentation related to Patient resource and System Level Operations at http://localhost:8080/fhir/api-docs
- * ? Only displays the Patient related Actions at http://localhost:8080/
- *   
- * ! Only works with r4 resources for now
- * ! Need to implement a dynamic approach to handle other resource types
- * 
- * @param baseConformance
- * 
+ * ? Only display swagger-ui links related to the allowed resource types and System Level Operations at http://localhost:8080/fhir/swagger-ui/index.html
+ * ? Only Display API documentation related to the allowed resource types and System Level Operations at http://localhost:8080/fhir/api-docs
+ * ? Only displays the allowed resource types Actions at http://localhost:8080/
+ *
+ * * The allowed resource types come from the RouteAllowList, so the CapabilityStatement always advertises exactly what the IncomingRequestInterceptor lets through
+ * * The filter goes through the HAPI runtime model instead of the structure classes, it works for every FHIR version (Conformance / CapabilityStatement)
+ *
+ * * HAPI encodes and writes the filtered statement, this only adds a strong ETag computed once per FHIR version, encoding and pretty flag
+ * * If-None-Match answers 304
+ * * The ETags are dropped when a SearchParameter, ImplementationGuide, StructureDefinition, OperationDefinition or CapabilityStatement is stored
+ * * or when the set of registered providers changes
  */
 @Component
 @Interceptor
 public class CapabilitiesInterceptor {
     private static final Logger logger = LoggerFactory.getLogger(CapabilitiesInterceptor.class);
 
+    private static final String METADATA_PATH = "metadata";
+
+    /**
+     * ? Request parameters that do not change the content of the statement, anything else (_summary, _elements, mode, ...) bypasses the cache
+     */
+    private static final Set<String> CACHEABLE_PARAMETERS = Set.of("_format", "_pretty");
+
+    /**
+     * ? Resource types that change what HAPI puts in the CapabilityStatement
+     */
+    private static final Set<String> CONFORMANCE_RESOURCE_TYPES = Set.of("SearchParameter", "ImplementationGuide", "StructureDefinition", "OperationDefinition", "CapabilityStatement");
+
+    private final RouteAllowList routeAllowList                          = RouteAllowList.getInstance();
+    private final Map<String, RenderedCapabilityStatement> renderedCache = new ConcurrentHashMap<>();
+    private final AtomicLong generation                                  = new AtomicLong();
+
+    private volatile long providersFingerprint;
+
+    /**
+     * ? The statement instance HAPI handed out and the ETag of its rendering for one encoding / pretty flag
+     */
+    private static final class RenderedCapabilityStatement {
+        private final long generation;
+        private final IBaseResource source;
+        private final String etag;
+
+        private RenderedCapabilityStatement(long generation, IBaseResource source, String etag) {
+            this.generation     = generation;
+            this.source         = source;
+            this.etag           = etag;
+        }
+    }
+
+    /**
+     * ? Runs when HAPI (re)generates the statement, the filter is idempotent
+     *
+     * @param IBaseConformance baseConformance
+     */
     @Hook(Pointcut.SERVER_CAPABILITY_STATEMENT_GENERATED)
     public void customize(IBaseConformance baseConformance) {
-        logger.info("--------------- CAPABILIIES INTERCEPTOR ---------------");
+        FhirContext fhirContext                                 = FhirContext.forCached(baseConformance.getStructureFhirVersionEnum());
+        BaseRuntimeElementCompositeDefinition<?> conformanceDef = fhirContext.getResourceDefinition(baseConformance);
+        BaseRuntimeChildDefinition restChild                    = conformanceDef.getChildByName("rest");
+
+        for (IBase rest : restChild.getAccessor().getValues(baseConformance)) {
+            BaseRuntimeElementCompositeDefinition<?> restDef    = (BaseRuntimeElementCompositeDefinition<?>) fhirContext.getElementDefinition(rest.getClass());
+            BaseRuntimeChildDefinition resourceChild            = restDef.getChildByName("resource");
+            List<IBase> resources                               = new ArrayList<>(resourceChild.getAccessor().getValues(rest));
+
+            resourceChild.getMutator().setValue(rest, null);     // ? Clears the list, the allowed entries are added back in their original order
+            for (IBase resource : resources) {
+                if (routeAllowList.isResourceTypeAllowed(getResourceType(fhirContext, resource))) {
+                    resourceChild.getMutator().addValue(rest, resource);
+                }
+            }
+        }
+    }
+
+    private static String getResourceType(FhirContext fhirContext, IBase restResource) {
+        BaseRuntimeElementCompositeDefinition<?> resourceDef = (BaseRuntimeElementCompositeDefinition<?>) fhirContext.getElementDefinition(restResource.getClass());
+        return resourceDef.getChildByName("type").getAccessor().getFirstValueOrNull(restResource)
+            .map(type -> ((IPrimitiveType<?>) type).getValueAsString())
+            .orElse(null);
+    }
+
+    /**
+     * ? Answers 304 before HAPI builds anything when the client already holds the current rendering
+     * ? Runs after SERVER_INCOMING_REQUEST_POST_PROCESSED, i.e. after the AuthenticationInterceptor
+     *
+     * @param RequestDetails requestDetails
+     */
+    @Hook(Pointcut.SERVER_INCOMING_REQUEST_PRE_HANDLED)
+    public void incomingRequestPreHandled(RequestDetails requestDetails) {
+        if (!isCacheableMetadataRequest(requestDetails)) {
+            return;
+        }
+
+        checkProviders(requestDetails);
+
+        RenderedCapabilityStatement rendered = renderedCache.get(cacheKey(requestDetails, requestDetails.getFhirContext().getVersion().getVersion()));
+        if (rendered != null && rendered.generation == generation.get()) {
+            throwIfNotModified(requestDetails, rendered.etag);
+        }
+    }
+
+    /**
+     * ? Adds the ETag of the statement, HAPI still encodes and writes the body itself
+     * ? The ETag is computed once per statement instance, encoding and pretty flag
+     *
+     * @param RequestDetails requestDetails
+     * @param IBaseResource responseObject
+     *
+     * @return boolean always true, the response is left to HAPI
+     */
+    @Hook(Pointcut.SERVER_OUTGOING_RESPONSE)
+    public boolean outgoingResponse(RequestDetails requestDetails, IBaseResource responseObject) {
+        if (!(responseObject instanceof IBaseConformance) || requestDetails.getResponse() == null || !isCacheableMetadataRequest(requestDetails)) {
+            return true;
+        }
 
-        CapabilityStatement capabilityStatement = (CapabilityStatement) baseConformance;
+        checkProviders(requestDetails);
 
-        // Remove all resource types except "Patient"
-        for (CapabilityStatementRestComponent rest : capabilityStatement.getRest()) {
-            // rest.getResource().removeIf(resource -> !resource.getType().equals("Patient")); // OR
-            rest.getResource().removeIf(resource -> !isAllowedResource(resource));
+        FhirVersionEnum version                 = responseObject.getStructureFhirVersionEnum();
+        String cacheKey                         = cacheKey(requestDetails, version);
+        long currentGeneration                  = generation.get();
+        RenderedCapabilityStatement rendered    = renderedCache.get(cacheKey);
+
+        // ? HAPI re-generates the statement on its own schedule, a new instance means it may have changed
+        if (rendered == null || rendered.generation != currentGeneration || rendered.source != responseObject) {
+            rendered = render(requestDetails, responseObject, currentGeneration);
+            renderedCache.put(cacheKey, rendered);
+        }
+
+        throwIfNotModified(requestDetails, rendered.etag);
+        requestDetails.getResponse().addHeader(Constants.HEADER_ETAG, rendered.etag);
+        return true;
+    }
+
+    private static void throwIfNotModified(RequestDetails requestDetails, String etag) {
+        if (ETags.matchesIfNoneMatch(requestDetails.getHeader(Constants.HEADER_IF_NONE_MATCH), etag)) {
+            NotModifiedException notModified = new NotModifiedException("Not Modified");
+            notModified.addResponseHeader(Constants.HEADER_ETAG, etag);
+            throw notModified;
+        }
+    }
+
+    /**
+     * ? Encodes the statement the way HAPI will for this request, only to hash it
+     */
+    private RenderedCapabilityStatement render(RequestDetails requestDetails, IBaseResource capabilityStatement, long currentGeneration) {
+        EncodingEnum encoding   = getEncoding(requestDetails);
+        boolean pretty          = RestfulServerUtils.prettyPrintResponse(requestDetails.getServer(), requestDetails);
+        FhirContext fhirContext = FhirContext.forCached(capabilityStatement.getStructureFhirVersionEnum());
+
+        String encoded = encoding.newParser(fhirContext).setPrettyPrint(pretty).encodeResourceToString(capabilityStatement);
+        byte[] body    = encoded.getBytes(StandardCharsets.UTF_8);
+
+        logger.debug("CapabilityStatement ETag computed ({}, {}, pretty: {}, {} bytes)", fhirContext.getVersion().getVersion(), encoding, pretty, body.length);
+        return new RenderedCapabilityStatement(currentGeneration, capabilityStatement, ETags.strongETag(body));
+    }
+
+    /**
+     * @param IBaseResource resource
+     */
+    @Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_CREATED)
+    public void resourceCreated(IBaseResource resource) {
+        invalidateIfConformanceResource(resource);
+    }
+
+    /**
+     * @param IBaseResource oldResource
+     * @param IBaseResource newResource
+     */
+    @Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_UPDATED)
+    public void resourceUpdated(IBaseResource oldResource, IBaseResource newResource) {
+        invalidateIfConformanceResource(newResource);
+    }
+
+    /**
+     * @param IBaseResource resource
+     */
+    @Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_DELETED)
+    public void resourceDeleted(IBaseResource resource) {
+        invalidateIfConformanceResource(resource);
+    }
+
+    private void invalidateIfConformanceResource(IBaseResource resource) {
+        if (resource != null && CONFORMANCE_RESOURCE_TYPES.contains(resource.fhirType())) {
+            logger.info("{} changed, dropping the cached CapabilityStatement", resource.fhirType());
+            invalidate();
         }
     }
 
     /**
-     * ? List of allowed resource types from the documentation
-     * ? "Patient", "Observation", "Encounter", /* Add other resource types as needed
+     * ? Drops every ETag, the next /metadata call hashes the current statement again
      */
-    private boolean isAllowedResource(CapabilityStatementRestResourceComponent resource) {
-        String[] allowedResources = {"Patient", /* Add other resource types as needed */};
+    public void invalidate() {
+        generation.incrementAndGet();
+        renderedCache.clear();
+    }
 
-        for (String allowedResource : allowedResources) {
-            if (resource.getType().equals(allowedResource)) {
-                return true;
+    private void checkProviders(RequestDetails requestDetails) {
+        if (!(requestDetails.getServer() instanceof RestfulServer)) {
+            return;
+        }
+        RestfulServer restfulServer = (RestfulServer) requestDetails.getServer();
+        long fingerprint            = ((long) restfulServer.getResourceProviders().size() << 32) | restfulServer.getPlainProviders().size();
+        if (fingerprint != providersFingerprint) {
+            providersFingerprint = fingerprint;
+            invalidate();
+        }
+    }
+
+    private static boolean isCacheableMetadataRequest(RequestDetails requestDetails) {
+        if (requestDetails.getRequestType() != RequestTypeEnum.GET || !METADATA_PATH.equals(requestDetails.getRequestPath())) {
+            return false;
+        }
+        for (String parameter : requestDetails.getParameters().keySet()) {
+            if (!CACHEABLE_PARAMETERS.contains(parameter)) {
+                return false;
             }
         }
-        return false;
+        return true;
+    }
+
+    private static String cacheKey(RequestDetails requestDetails, FhirVersionEnum version) {
+        return version.name() + '|' + getEncoding(requestDetails).name() + '|' + RestfulServerUtils.prettyPrintResponse(requestDetails.getServer(), requestDetails);
+    }
+
+    private static EncodingEnum getEncoding(RequestDetails requestDetails) {
+        return RestfulServerUtils.determineResponseEncodingWithDefault(requestDetails).getEncoding();
     }
 }
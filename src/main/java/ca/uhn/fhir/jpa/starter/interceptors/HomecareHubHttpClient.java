@@ -0,0 +1,180 @@
+package ca.uhn.fhir.jpa.starter.interceptors;
+
+import java.net.URI;
+import org.slf4j.Logger;
+import java.time.Duration;
+import java.io.IOException;
+import org.slf4j.LoggerFactory;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+import java.net.http.HttpResponse.BodyHandlers;
+
+/**
+ *
+ * * Application scoped outbound HTTP client used for every call made to the Homecare Hub (HCH)
+ * * A single java.net.http.HttpClient is shared so that connections, HTTP/2 streams and TLS sessions are re-used between requests
+ * * Every call is timed in the global Micrometer registry as "hch.http.client.requests" tagged by endpoint, method and status
+ * * Redirects are never followed, the calls carry bearer tokens: a 3xx answer fails the call with an IOException
+ *
+ * * Configuration (System properties loaded from the .env file):
+ * *    HCH_HTTP_CONNECT_TIMEOUT_MS      Connection timeout (default 5000)
+ * *    HCH_HTTP_REQUEST_TIMEOUT_MS      Per call response timeout (default 10000)
+ * *    HCH_HTTP_EXECUTOR_THREADS        Size of the executor handling the async responses (default 8)
+ * *    HCH_HTTP_VIRTUAL_THREADS         Use a virtual thread per task executor instead, only honoured on Java 21+ (default false)
+ */
+public final class HomecareHubHttpClient {
+    private static final Logger logger = LoggerFactory.getLogger(HomecareHubHttpClient.class);
+
+    public static final String ENDPOINT_AUTHENTICATE        = "authenticate";
+    public static final String ENDPOINT_NOTIFICATIONS       = "notifications";
+    public static final String ENDPOINT_NOTIFICATIONS_BATCH = "notifications_batch";
+    public static final String ENDPOINT_JWKS                = "jwks";
+
+    private static final String TIMER_NAME = "hch.http.client.requests";
+
+    private final HttpClient httpClient;
+    private final Duration requestTimeout;
+
+    /**
+     * ? Lazily initialized on first use, shared by the AuthenticationInterceptor and the NotificationInterceptor
+     */
+    private static final class Holder {
+        private static final HomecareHubHttpClient INSTANCE = new HomecareHubHttpClient();
+    }
+
+    public static HomecareHubHttpClient getInstance() {
+        return Holder.INSTANCE;
+    }
+
+    private HomecareHubHttpClient() {
+        this(
+            HomecareHubProperties.getLong("HCH_HTTP_CONNECT_TIMEOUT_MS", 5000),
+            HomecareHubProperties.getLong("HCH_HTTP_REQUEST_TIMEOUT_MS", 10000),
+            HomecareHubProperties.getInt("HCH_HTTP_EXECUTOR_THREADS", 8),
+            HomecareHubProperties.getBoolean("HCH_HTTP_VIRTUAL_THREADS", false)
+        );
+    }
+
+    /**
+     * ? Package private for the tests, the application only uses the shared instance
+     */
+    HomecareHubHttpClient(long connectTimeoutMs, long requestTimeoutMs, int executorThreads, boolean virtualThreads) {
+        this.requestTimeout = Duration.ofMillis(requestTimeoutMs);
+        this.httpClient     = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_2)                         // ? Falls back to HTTP/1.1 when HCH does not negotiate HTTP/2
+            .connectTimeout(Duration.ofMillis(connectTimeoutMs))
+            .followRedirects(HttpClient.Redirect.NEVER)                // ? The bearer token must never reach a redirect target
+            .executor(createExecutor(virtualThreads, Math.max(1, executorThreads)))
+            .build();
+
+        logger.info("HCH HTTP client initialized (connect timeout: {}ms, request timeout: {}ms, executor threads: {}, virtual threads: {})", connectTimeoutMs, requestTimeoutMs, executorThreads, virtualThreads);
+    }
+
+    /**
+     * ? Request builder with the default per call timeout applied, callers can still override it through timeout()
+     *
+     * @param URI uri
+     * @return HttpRequest.Builder
+     */
+    public HttpRequest.Builder newRequestBuilder(URI uri) {
+        return HttpRequest.newBuilder(uri).timeout(requestTimeout);
+    }
+
+    public Duration getRequestTimeout() {
+        return requestTimeout;
+    }
+
+    /**
+     * ? Blocking call, used where the caller needs the response before continuing (e.g. token validation)
+     *
+     * @param String endpoint
+     * @param HttpRequest request
+     *
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public HttpResponse<String> send(String endpoint, HttpRequest request) throws IOException, InterruptedException {
+        long start  = System.nanoTime();
+        int status  = -1;
+        try {
+            HttpResponse<String> response = httpClient.send(request, BodyHandlers.ofString());
+            status = response.statusCode();
+            return rejectRedirect(response);
+        } finally {
+            record(endpoint, request.method(), status, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * ? Non blocking call, the returned future completes on the configured executor
+     *
+     * @param String endpoint
+     * @param HttpRequest request
+     */
+    public CompletableFuture<HttpResponse<String>> sendAsync(String endpoint, HttpRequest request) {
+        long start = System.nanoTime();
+        return httpClient.sendAsync(request, BodyHandlers.ofString())
+            .whenComplete((response, throwable) -> record(endpoint, request.method(), response != null ? response.statusCode() : -1, System.nanoTime() - start))
+            .thenApply(response -> {
+                try {
+                    return rejectRedirect(response);
+                } catch (IOException e) {
+                    throw new CompletionException(e);
+                }
+            });
+    }
+
+    /**
+     * ? A 3xx is a failure, the callers only check for >= 400 and would otherwise take it as a success
+     *
+     * @param HttpResponse response
+     * @return HttpResponse The response when it is not a redirect
+     *
+     * @throws IOException When HCH (or a proxy) answered with a redirect
+     */
+    private static HttpResponse<String> rejectRedirect(HttpResponse<String> response) throws IOException {
+        int status = response.statusCode();
+        if (status >= 300 && status < 400) {
+            throw new IOException("HCH answered " + status + " (redirect to " + response.headers().firstValue("Location").orElse("?") + "), redirects are not followed");
+        }
+        return response;
+    }
+
+    private static void record(String endpoint, String method, int status, long durationNanos) {
+        Timer.builder(TIMER_NAME)
+            .tag("endpoint", endpoint)
+            .tag("method", method)
+            .tag("status", status < 0 ? "IO_ERROR" : String.valueOf(status))
+            .register(Metrics.globalRegistry)
+            .record(Duration.ofNanos(durationNanos));
+    }
+
+    static Executor createExecutor(boolean virtualThreads, int threads) {
+        if (virtualThreads) {
+            try {
+                // ? Resolved reflectively so the application still runs on Java 17
+                return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (ReflectiveOperationException e) {
+                logger.warn("Virtual threads are not available on this JVM, falling back to a fixed thread pool of {} threads", threads);
+            }
+        }
+
+        AtomicInteger counter = new AtomicInteger();
+        ThreadFactory threadFactory = runnable -> {
+            Thread thread = new Thread(runnable, "hch-http-client-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+        return Executors.newFixedThreadPool(threads, threadFactory);
+    }
+}
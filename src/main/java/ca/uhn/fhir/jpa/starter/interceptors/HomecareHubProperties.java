@@ -0,0 +1,42 @@
+package ca.uhn.fhir.jpa.starter.interceptors;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ *
+ * * Typed access to the HCH_* settings
+ * * The values are copied from the .env file into the System properties by Application.main
+ */
+public final class HomecareHubProperties {
+    private static final Logger logger = LoggerFactory.getLogger(HomecareHubProperties.class);
+
+    private HomecareHubProperties() {}
+
+    public static String getString(String name, String defaultValue) {
+        String value = System.getProperty(name);
+        return (value == null || value.isBlank()) ? defaultValue : value.trim();
+    }
+
+    public static boolean getBoolean(String name, boolean defaultValue) {
+        String value = getString(name, null);
+        return value == null ? defaultValue : Boolean.parseBoolean(value);
+    }
+
+    public static long getLong(String name, long defaultValue) {
+        String value = getString(name, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            logger.warn("Invalid value '{}' for {}, falling back to {}", value, name, defaultValue);
+            return defaultValue;
+        }
+    }
+
+    public static int getInt(String name, int defaultValue) {
+        return (int) getLong(name, defaultValue);
+    }
+}
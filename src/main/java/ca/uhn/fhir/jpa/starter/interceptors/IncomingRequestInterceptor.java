@@ -1,39 +1,74 @@
 package ca.uhn.fhir.jpa.starter.interceptors;
 
+import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.interceptor.api.Hook;
 import ca.uhn.fhir.interceptor.api.Pointcut;
 import ca.uhn.fhir.interceptor.api.Interceptor;
 import jakarta.servlet.http.HttpServletRequest;
 
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
 
 
 /**
- * ? Block all other API end points except Patient resource
- * ? Allow all Patient / swagger-ui / api-docs / metadata routes
+ * ? Block all the API end points that are not in the RouteAllowList
+ * ? By default: all Patient / swagger-ui / api-docs / metadata routes
+ *
+ * ? Rejected requests are counted in the global Micrometer registry (Prometheus actuator) as "hch.requests.rejected" tagged by resource_type
+ * ! The tag is only set to the requested type when it is a resource type known by the FhirContext, anything else is reported as "other" to keep the cardinality bounded
+ * ! Nothing is logged on the accepted path, this runs for every request
  */
 
 @Component
 @Interceptor
 public class IncomingRequestInterceptor {
-   private static final Logger logger = LoggerFactory.getLogger(IncomingRequestInterceptor.class);
+   private static final String REJECTED_COUNTER = "hch.requests.rejected";
+   private static final String OTHER_TYPE       = "other";
+
+   private final RouteAllowList routeAllowList          = RouteAllowList.getInstance();
+   private final Map<String, Counter> rejectedCounters  = new ConcurrentHashMap<>();
+
+   @Autowired(required = false)
+   private FhirContext fhirContext;
+
+   private volatile Set<String> knownResourceTypes;     // ? FhirContext.getResourceTypes() builds a new set on every call
 
    @Hook(Pointcut.SERVER_INCOMING_REQUEST_PRE_PROCESSED)
    public void incomingRequestPreProcessed(HttpServletRequest servletRequest) {
-      logger.info("--------------- INCOMING REQUEST INTERCEPTOR ---------------");
-
       String requestURI = servletRequest.getRequestURI();
-      if (!requestURI.startsWith("/fhir/Patient") && !requestURI.startsWith("/fhir/swagger-ui") && !requestURI.equals("/fhir/api-docs") && !requestURI.equals("/fhir/metadata")) {
-         String extracted = "-";
-         int index = requestURI.indexOf("/fhir/");
-         if(index != -1) {
-            extracted = requestURI.substring(index + "/fhir/".length());
-         }
-
-         throw new InvalidRequestException("HAPI-0302: Unknown resource type " + "'" + extracted + "'" + " - Server knows how to handle: [Patient]");
+      if (routeAllowList.isAllowed(requestURI)) {
+         return;
+      }
+
+      String extracted = routeAllowList.extractFirstSegment(requestURI);
+      rejectedCounter(extracted).increment();
+
+      throw new InvalidRequestException("HAPI-0302: Unknown resource type " + "'" + extracted + "'" + " - Server knows how to handle: [" + routeAllowList.getResourceTypesDisplay() + "]");
+   }
+
+   private Counter rejectedCounter(String requestedType) {
+      String resourceType = isKnownResourceType(requestedType) ? requestedType : OTHER_TYPE;
+      return rejectedCounters.computeIfAbsent(resourceType, type -> Counter.builder(REJECTED_COUNTER)
+         .description("Requests rejected by the route allow-list")
+         .tag("resource_type", type)
+         .register(Metrics.globalRegistry));
+   }
+
+   private boolean isKnownResourceType(String requestedType) {
+      if (fhirContext == null) {
+         return false;
+      }
+      Set<String> resourceTypes = knownResourceTypes;
+      if (resourceTypes == null) {
+         resourceTypes = Set.copyOf(fhirContext.getResourceTypes());
+         knownResourceTypes = resourceTypes;
       }
+      return resourceTypes.contains(requestedType);
    }
-}
\ No newline at end of file
+}
@@ -0,0 +1,244 @@
+package ca.uhn.fhir.jpa.starter.interceptors;
+
+import java.io.File;
+import java.net.URI;
+import java.util.Set;
+import java.util.List;
+import java.util.HashSet;
+import org.slf4j.Logger;
+import java.io.IOException;
+import java.text.ParseException;
+import org.slf4j.LoggerFactory;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
+import com.nimbusds.jose.JOSEException;
+import com.nimbusds.jose.JWSAlgorithm;
+import com.nimbusds.jose.jwk.JWK;
+import com.nimbusds.jose.jwk.JWKSet;
+import com.nimbusds.jose.jwk.source.JWKSource;
+import com.nimbusds.jose.proc.BadJOSEException;
+import com.nimbusds.jose.proc.JWSVerificationKeySelector;
+import com.nimbusds.jose.proc.SecurityContext;
+import com.nimbusds.jwt.JWTClaimsSet;
+import com.nimbusds.jwt.proc.DefaultJWTClaimsVerifier;
+import com.nimbusds.jwt.proc.DefaultJWTProcessor;
+
+/**
+ *
+ * * Verifies HCH bearer tokens locally (signature, expiry, not before, audience and optionally issuer) instead of calling HCH_AUTHENTICATE_USER_URL
+ * * The JWKS document is loaded once at startup and refreshed in the background, the request thread never waits on the network
+ * * When a token is signed with an unknown "kid" (key rotation) an early refresh is scheduled, at most once per HCH_JWKS_MIN_REFRESH_INTERVAL_SECONDS
+ *
+ * * Configuration (System properties loaded from the .env file):
+ * *    HCH_AUTH_MODE                           "remote" (default) calls HCH for every token, "jwt" verifies the tokens locally
+ * *    HCH_JWKS_URL                            Location of the JWKS document, http(s):// or file:
+ * *    HCH_JWT_AUDIENCE                        Required "aud" value
+ * *    HCH_JWT_ISSUER                          Required "iss" value (optional)
+ * *    HCH_JWT_LOGIN_ID_CLAIM                  Claim holding the encrypted login id (default authenticatedUserLoginId)
+ * *    HCH_JWT_CLOCK_SKEW_SECONDS              Tolerance applied to exp / nbf (default 30)
+ * *    HCH_JWKS_REFRESH_INTERVAL_SECONDS       Background refresh period (default 300)
+ * *    HCH_JWKS_MIN_REFRESH_INTERVAL_SECONDS   Minimum delay between two unknown "kid" refreshes (default 30)
+ */
+public final class JwtTokenVerifier implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(JwtTokenVerifier.class);
+
+    public static final String MODE_PROPERTY    = "HCH_AUTH_MODE";
+    public static final String MODE_JWT         = "jwt";
+
+    private static final Set<JWSAlgorithm> ALLOWED_ALGORITHMS = new HashSet<>();
+    static {
+        ALLOWED_ALGORITHMS.addAll(JWSAlgorithm.Family.RSA);
+        ALLOWED_ALGORITHMS.addAll(JWSAlgorithm.Family.EC);
+    }
+
+    private final URI jwksUri;
+    private final String loginIdClaim;
+    private final long minRefreshIntervalMs;
+    private final DefaultJWTProcessor<SecurityContext> jwtProcessor;
+    private final ScheduledExecutorService refresher;
+    private final Executor earlyRefresher;
+    private final AtomicLong lastRefreshRequest = new AtomicLong();
+
+    private volatile JWKSet jwkSet;
+
+    /**
+     * ? Immutable outcome of a successful verification
+     */
+    public static final class VerifiedToken {
+        private final String authenticatedUserLoginId;
+
+        private VerifiedToken(String authenticatedUserLoginId) {
+            this.authenticatedUserLoginId = authenticatedUserLoginId;
+        }
+
+        public String getAuthenticatedUserLoginId() {
+            return authenticatedUserLoginId;
+        }
+    }
+
+    /**
+     * ? Thrown when the token is malformed, badly signed, expired or issued for another audience
+     */
+    public static final class InvalidTokenException extends Exception {
+        private InvalidTokenException(String message, Throwable cause) {
+            super(message, cause);
+        }
+    }
+
+    /**
+     * @return JwtTokenVerifier The verifier configured from the System properties, null when HCH_AUTH_MODE is not "jwt"
+     */
+    public static JwtTokenVerifier fromProperties() {
+        if (!MODE_JWT.equalsIgnoreCase(HomecareHubProperties.getString(MODE_PROPERTY, "remote"))) {
+            return null;
+        }
+
+        String jwksUrl  = HomecareHubProperties.getString("HCH_JWKS_URL", null);
+        String audience = HomecareHubProperties.getString("HCH_JWT_AUDIENCE", null);
+        if (jwksUrl == null || audience == null) {
+            throw new IllegalStateException("HCH_JWKS_URL and HCH_JWT_AUDIENCE are required when HCH_AUTH_MODE=jwt");
+        }
+
+        return new JwtTokenVerifier(
+            URI.create(jwksUrl),
+            audience,
+            HomecareHubProperties.getString("HCH_JWT_ISSUER", null),
+            HomecareHubProperties.getString("HCH_JWT_LOGIN_ID_CLAIM", "authenticatedUserLoginId"),
+            HomecareHubProperties.getInt("HCH_JWT_CLOCK_SKEW_SECONDS", 30),
+            HomecareHubProperties.getLong("HCH_JWKS_REFRESH_INTERVAL_SECONDS", 300),
+            HomecareHubProperties.getLong("HCH_JWKS_MIN_REFRESH_INTERVAL_SECONDS", 30)
+        );
+    }
+
+    /**
+     * @param URI jwksUri
+     * @param String audience
+     * @param String issuer May be null
+     * @param String loginIdClaim
+     * @param int clockSkewSeconds
+     * @param long refreshIntervalSeconds
+     * @param long minRefreshIntervalSeconds
+     */
+    public JwtTokenVerifier(URI jwksUri, String audience, String issuer, String loginIdClaim, int clockSkewSeconds, long refreshIntervalSeconds, long minRefreshIntervalSeconds) {
+        this(jwksUri, audience, issuer, loginIdClaim, clockSkewSeconds, refreshIntervalSeconds, minRefreshIntervalSeconds, null);
+    }
+
+    /**
+     * @param URI jwksUri
+     * @param String audience
+     * @param String issuer May be null
+     * @param String loginIdClaim
+     * @param int clockSkewSeconds
+     * @param long refreshIntervalSeconds
+     * @param long minRefreshIntervalSeconds
+     * @param Executor earlyRefresher Runs the unknown "kid" refreshes, null for the background refresh thread
+     */
+    JwtTokenVerifier(URI jwksUri, String audience, String issuer, String loginIdClaim, int clockSkewSeconds, long refreshIntervalSeconds, long minRefreshIntervalSeconds, Executor earlyRefresher) {
+        this.jwksUri                = jwksUri;
+        this.loginIdClaim           = loginIdClaim;
+        this.minRefreshIntervalMs   = TimeUnit.SECONDS.toMillis(minRefreshIntervalSeconds);
+
+        JWTClaimsSet.Builder exactMatchClaims = new JWTClaimsSet.Builder();
+        if (issuer != null) {
+            exactMatchClaims.issuer(issuer);
+        }
+        DefaultJWTClaimsVerifier<SecurityContext> claimsVerifier = new DefaultJWTClaimsVerifier<>(audience, exactMatchClaims.build(), Set.of("exp", loginIdClaim));
+        claimsVerifier.setMaxClockSkew(clockSkewSeconds);
+
+        // ? The key source always reads the latest published key set, the processor itself is thread safe once configured
+        JWKSource<SecurityContext> keySource = (jwkSelector, context) -> {
+            JWKSet current = this.jwkSet;
+            if (current == null) {
+                return List.of();
+            }
+            List<JWK> keys = jwkSelector.select(current);
+            if (keys.isEmpty()) {
+                requestRefresh();
+            }
+            return keys;
+        };
+
+        this.jwtProcessor = new DefaultJWTProcessor<>();
+        this.jwtProcessor.setJWSKeySelector(new JWSVerificationKeySelector<>(ALLOWED_ALGORITHMS, keySource));
+        this.jwtProcessor.setJWTClaimsSetVerifier(claimsVerifier);
+
+        this.refresher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "hch-jwks-refresh");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.earlyRefresher = earlyRefresher != null ? earlyRefresher : this.refresher;
+
+        refresh();      // ? Initial load on the calling thread, a failure is logged and retried by the scheduled refresh
+        this.refresher.scheduleWithFixedDelay(this::refresh, refreshIntervalSeconds, refreshIntervalSeconds, TimeUnit.SECONDS);
+
+        logger.info("HCH local JWT verification enabled (jwks: {}, audience: {}, issuer: {}, refresh: {}s)", jwksUri, audience, issuer, refreshIntervalSeconds);
+    }
+
+    /**
+     * @param String token
+     * @return VerifiedToken
+     *
+     * @throws InvalidTokenException When the token must be rejected with a 401
+     * @throws IllegalStateException When no key set could be loaded yet
+     */
+    public VerifiedToken verify(String token) throws InvalidTokenException {
+        if (jwkSet == null) {
+            throw new IllegalStateException("The JWKS document " + jwksUri + " has not been loaded.");
+        }
+
+        try {
+            JWTClaimsSet claims = jwtProcessor.process(token, null);
+            return new VerifiedToken(claims.getStringClaim(loginIdClaim));
+        } catch (ParseException | BadJOSEException | JOSEException e) {
+            throw new InvalidTokenException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * ? Schedules an early refresh unless one was requested within the last HCH_JWKS_MIN_REFRESH_INTERVAL_SECONDS
+     */
+    private void requestRefresh() {
+        long now        = System.currentTimeMillis();
+        long previous   = lastRefreshRequest.get();
+        if (now - previous >= minRefreshIntervalMs && lastRefreshRequest.compareAndSet(previous, now)) {
+            earlyRefresher.execute(this::refresh);
+        }
+    }
+
+    void refresh() {
+        try {
+            this.jwkSet = load();
+            logger.debug("JWKS document {} loaded ({} keys)", jwksUri, jwkSet.getKeys().size());
+        } catch (Exception e) {
+            logger.error("Unable to load the JWKS document {}, keeping the previous key set: {}", jwksUri, e.getMessage());
+        }
+    }
+
+    private JWKSet load() throws IOException, InterruptedException, ParseException {
+        if ("file".equalsIgnoreCase(jwksUri.getScheme())) {
+            return JWKSet.load(new File(jwksUri));
+        }
+
+        HomecareHubHttpClient httpClient = HomecareHubHttpClient.getInstance();
+        HttpRequest jwksRequest = httpClient.newRequestBuilder(jwksUri)
+            .header("Accept", "application/json")
+            .GET()
+            .build();
+        HttpResponse<String> jwksResponse = httpClient.send(HomecareHubHttpClient.ENDPOINT_JWKS, jwksRequest);
+        if (jwksResponse.statusCode() >= 400) {
+            throw new IOException("HTTP " + jwksResponse.statusCode());
+        }
+        return JWKSet.parse(jwksResponse.body());
+    }
+
+    @Override
+    public void close() {
+        refresher.shutdownNow();
+    }
+}
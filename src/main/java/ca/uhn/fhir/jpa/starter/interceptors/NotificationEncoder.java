@@ -0,0 +1,126 @@
+package ca.uhn.fhir.jpa.starter.interceptors;
+
+import java.io.Writer;
+import java.io.IOException;
+import org.json.JSONObject;
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.FhirVersionEnum;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+/**
+ *
+ * * Encodes the HCH notification body: the resource as FHIR JSON plus the top level "authenticatedUserLoginId" field
+ * * The resource is written once by the HAPI JSON parser into a per thread buffer, the extra field is appended in place of the closing brace
+ * * (previously: encodeResourceToString -> new JSONObject(...) -> put -> toString, i.e. the resource was serialized twice and parsed once)
+ *
+ * * The server's FhirContext is used when its version matches the resource, otherwise the HAPI cached context of the resource version is used
+ * * FhirContext creation is expensive (model scanning), a new one must never be created per request
+ */
+public final class NotificationEncoder {
+
+    private static final String LOGIN_ID_FIELD = "authenticatedUserLoginId";
+
+    /**
+     * ? Buffers above this size are not kept between calls so that one very large Patient does not pin memory on every thread
+     */
+    private static final int MAX_RETAINED_CAPACITY = 256 * 1024;
+
+    private static final ThreadLocal<StringBuilderWriter> BUFFER = ThreadLocal.withInitial(() -> new StringBuilderWriter(8 * 1024));
+
+    private final FhirContext serverContext;
+
+    /**
+     * @param FhirContext serverContext The server's singleton FhirContext, may be null
+     */
+    public NotificationEncoder(FhirContext serverContext) {
+        this.serverContext = serverContext;
+    }
+
+    /**
+     * @param IBaseResource iBaseResource
+     * @param String authenticatedUserLoginId Omitted from the output when null (same as JSONObject.put(key, null))
+     * @return String
+     */
+    public String encode(IBaseResource iBaseResource, String authenticatedUserLoginId) {
+        StringBuilderWriter writer  = BUFFER.get();
+        StringBuilder buffer        = writer.getBuilder();
+        buffer.setLength(0);
+
+        try {
+            getContext(iBaseResource).newJsonParser().encodeResourceToWriter(iBaseResource, writer);
+
+            if (authenticatedUserLoginId != null) {
+                int closingBrace = buffer.lastIndexOf("}");
+                buffer.setLength(closingBrace);
+                if (closingBrace > 1) {
+                    buffer.append(',');     // ? The resource always has at least "resourceType", guard anyway
+                }
+                buffer.append('"').append(LOGIN_ID_FIELD).append("\":").append(JSONObject.quote(authenticatedUserLoginId)).append('}');
+            }
+            return buffer.toString();
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to encode the notification body.", e);     // ? Never thrown by the in memory writer
+        } finally {
+            if (buffer.capacity() > MAX_RETAINED_CAPACITY) {
+                BUFFER.remove();
+            }
+        }
+    }
+
+    FhirContext getContext(IBaseResource iBaseResource) {
+        FhirVersionEnum resourceVersion = iBaseResource.getStructureFhirVersionEnum();
+        if (serverContext != null && serverContext.getVersion().getVersion() == resourceVersion) {
+            return serverContext;
+        }
+        return FhirContext.forCached(resourceVersion);
+    }
+
+    /**
+     * ? The buffer encode() writes into on the calling thread
+     */
+    static StringBuilder threadBuffer() {
+        return BUFFER.get().getBuilder();
+    }
+
+    /**
+     * ? Unsynchronized counterpart of java.io.StringWriter
+     */
+    private static final class StringBuilderWriter extends Writer {
+        private final StringBuilder builder;
+
+        private StringBuilderWriter(int initialCapacity) {
+            this.builder = new StringBuilder(initialCapacity);
+        }
+
+        private StringBuilder getBuilder() {
+            return builder;
+        }
+
+        @Override
+        public void write(int c) {
+            builder.append((char) c);
+        }
+
+        @Override
+        public void write(char[] chars, int offset, int length) {
+            builder.append(chars, offset, length);
+        }
+
+        @Override
+        public void write(String string, int offset, int length) {
+            builder.append(string, offset, offset + length);
+        }
+
+        @Override
+        public Writer append(CharSequence charSequence) {
+            builder.append(charSequence);
+            return this;
+        }
+
+        @Override
+        public void flush() {}
+
+        @Override
+        public void close() {}
+    }
+}
@@ -3,20 +3,17 @@ package ca.uhn.fhir.jpa.starter.interceptors;
 import java.net.URI;
 import org.slf4j.Logger;
 import java.io.IOException;
-import org.json.JSONObject;
 import org.slf4j.LoggerFactory;
-import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
-import ca.uhn.fhir.parser.IParser;
 import java.net.http.HttpResponse;
 import java.net.URISyntaxException;
 import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.interceptor.api.Hook;
 import ca.uhn.fhir.interceptor.api.Pointcut;
 import ca.uhn.fhir.interceptor.api.Interceptor;
-import java.net.http.HttpResponse.BodyHandlers;
 import jakarta.servlet.http.HttpServletRequest;
 import org.springframework.stereotype.Component;
+import org.springframework.beans.factory.annotation.Autowired;
 import jakarta.servlet.http.HttpServletResponse;
 import ca.uhn.fhir.rest.api.server.RequestDetails;
 import ca.uhn.fhir.rest.api.server.ResponseDetails;
@@ -30,12 +27,87 @@ import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
  * * The API calls initiated here will be Handled by "Fhir/NotificationController" in HCH
  * * The API calls initiated are non-blocking by default (i.e. The External Hospital Systems will receive the response back even if an exception is generated in this Interceptor)
  * *    Blocking respons eenable: change the return type of serverOutgoingResponse from void to boolean and return false is any exception is thrown ans return true for successfull execution 
+ *
+ * * HCH_NOTIFICATION_MODE selects how the notifications are delivered:
+ * *    sync (default)      The notification is sent on the SERVER_OUTGOING_RESPONSE pointcut before the response is returned (a failed notification is only logged)
+ * *    outbox              The notification is written to the NotificationOutbox in the same transaction as the Patient write and delivered by the NotificationOutboxDispatcher (at-least-once, retried)
+ * ! The outbox mode needs this interceptor to be a Spring Bean (custom-bean-packages), otherwise it falls back to the sync mode
  */
 @Component
 @Interceptor
 public class NotificationInterceptor {
     private static final Logger logger = LoggerFactory.getLogger(NotificationInterceptor.class);
 
+    static final String MODE_SYNC   = "sync";
+    static final String MODE_OUTBOX = "outbox";
+
+    @Autowired(required = false)
+    private NotificationOutbox notificationOutbox;             // ? Only defined by NotificationOutboxConfig in the outbox mode
+
+    @Autowired(required = false)
+    private FhirContext fhirContext;                            // ? The server's singleton FhirContext, null when this interceptor is not a Spring Bean
+
+    private volatile NotificationEncoder notificationEncoder;
+
+    private final String notificationMode = HomecareHubProperties.getString("HCH_NOTIFICATION_MODE", MODE_SYNC);
+
+    /**
+     * ? Outbox mode: record the notification inside the transaction creating the Patient
+     *
+     * @param IBaseResource iBaseResource
+     * @param RequestDetails requestDetails
+     */
+    @Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_CREATED)
+    public void resourceCreated(IBaseResource iBaseResource, RequestDetails requestDetails) {
+        enqueueNotification(iBaseResource, requestDetails);
+    }
+
+    /**
+     * ? Outbox mode: record the notification inside the transaction updating the Patient
+     *
+     * @param IBaseResource oldResource
+     * @param IBaseResource newResource
+     * @param RequestDetails requestDetails
+     */
+    @Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_UPDATED)
+    public void resourceUpdated(IBaseResource oldResource, IBaseResource newResource, RequestDetails requestDetails) {
+        enqueueNotification(newResource, requestDetails);
+    }
+
+    /**
+     * ? Outbox mode: record the notification inside the transaction deleting the Patient
+     *
+     * @param IBaseResource iBaseResource
+     * @param RequestDetails requestDetails
+     */
+    @Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_DELETED)
+    public void resourceDeleted(IBaseResource iBaseResource, RequestDetails requestDetails) {
+        enqueueNotification(iBaseResource, requestDetails);
+    }
+
+    private boolean isOutboxMode() {
+        return notificationOutbox != null && MODE_OUTBOX.equals(notificationMode);
+    }
+
+    /**
+     * * Any exception thrown here rolls back the Patient write, which is what guarantees that no notification is ever lost
+     *
+     * @param IBaseResource iBaseResource
+     * @param RequestDetails requestDetails
+     */
+    private void enqueueNotification(IBaseResource iBaseResource, RequestDetails requestDetails) {
+        // ? Internal writes (no client request) and non Patient resources are never notified, same as the sync mode
+        if (!isOutboxMode() || requestDetails == null || requestDetails.getRequestType() == null || !"Patient".equals(requestDetails.getResourceName())) {
+            return;
+        }
+
+        String resourceId                   = iBaseResource.getIdElement().getIdPart();
+        String authenticatedUserLoginId     = (String) requestDetails.getUserData().get("authenticatedUserLoginId");
+        String responseBody                 = getNotificationEncoder().encode(iBaseResource, authenticatedUserLoginId);
+
+        notificationOutbox.enqueue(requestDetails.getTenantId(), requestDetails.getRequestType().name(), resourceId, responseBody);
+    }
+
     /**
      * 
      * @param RequestDetails requestDetails
@@ -48,25 +120,18 @@ public class NotificationInterceptor {
      */
     @Hook(Pointcut.SERVER_OUTGOING_RESPONSE)
     public void serverOutgoingResponse(RequestDetails requestDetails, HttpServletRequest servletRequest, ServletRequestDetails servletRequestDetails, IBaseResource iBaseResource, ResponseDetails responseDetails, HttpServletResponse httpServletResponse) {
+        if (isOutboxMode()) {
+            return;     // ? Already recorded in the outbox by the STORAGE_PRECOMMIT_RESOURCE_* hooks
+        }
+
         try {
             logger.info("--------------- NOTIFICATION INTERCEPTOR ---------------");
             
-            Object[] contextAndId   = getResourceContext(iBaseResource);
-            String resourceId       = (String) contextAndId[0];
-            FhirContext context     = (FhirContext) contextAndId[1];
+            String resourceId = iBaseResource.getIdElement().getIdPart();     // ? The resourceId is used for PUT / PATCH and DELETE operation thorugh an API call to HCH
             
-            IParser parser      = context.newJsonParser(); // Or context.newXmlParser() for XML
-            String responseBody = parser.encodeResourceToString(iBaseResource);
-            
-            /**
-             * ? Appending the encrypted 'authenticatedUserLoginId' with the 'responseBody' before being sent over to the POST Request
-             */
             // String authenticatedUserLoginId = (String) servletRequest.getAttribute("authenticatedUserLoginId"); // Grab the value of 'authenticatedUserLoginId' initialized in AuthenticationInterceptor
             String authenticatedUserLoginId = (String) servletRequestDetails.getUserData().get("authenticatedUserLoginId"); // Grab the value of 'authenticatedUserLoginId' initialized in AuthenticationInterceptor
-            JSONObject jsonResponse         = new JSONObject(responseBody);                                     // Parse the responseBody into a JSON object
-            
-            jsonResponse.put("authenticatedUserLoginId", authenticatedUserLoginId);                             // Add the authenticatedUserLoginId to the JSON object
-            responseBody                    = jsonResponse.toString();                                          // Convert the modified JSON object back to a string
+            String responseBody             = getNotificationEncoder().encode(iBaseResource, authenticatedUserLoginId);    // ? Appending the encrypted 'authenticatedUserLoginId' with the encoded resource
 
             String requestURI           = servletRequestDetails.getServletRequest().getRequestURI().toString(); // Alternatively: Could have also used HttpServletRequest servletRequest object's getRequestURI() method directly
             String requestHttpMethod    = servletRequestDetails.getServletRequest().getMethod();                // Alternatively: Could have also used HttpServletRequest servletRequest object's getMethod() method directly
@@ -100,29 +165,15 @@ public class NotificationInterceptor {
     }
 
     /**
-     * * Select the appropriate FhirContext version and resourceId based on the IBaseResource iBaseResource instance
-     * * The resourceId is used for PUT / PATCH and DELETE operation thorugh an API call to HCH      
-     * 
-     * @param IBaseResource resource
-     * @return
+     * ? Built lazily because the FhirContext is injected after construction when this interceptor is a Spring Bean
      */
-    private Object[] getResourceContext(IBaseResource iBaseResource) {
-        String resourceId   = null;
-        FhirContext context = null;
-        if (iBaseResource instanceof org.hl7.fhir.r5.model.Resource) {
-            resourceId = ((org.hl7.fhir.r5.model.Resource) iBaseResource).getIdElement().getIdPart();
-            context = FhirContext.forR4();
-        } else if (iBaseResource instanceof org.hl7.fhir.r4.model.Resource) {
-            resourceId = ((org.hl7.fhir.r4.model.Resource) iBaseResource).getIdElement().getIdPart();
-            context = FhirContext.forR4();
-        } else if (iBaseResource instanceof org.hl7.fhir.dstu3.model.Resource) {
-            resourceId = ((org.hl7.fhir.dstu3.model.Resource) iBaseResource).getIdElement().getIdPart();
-            context = FhirContext.forDstu3();
-        } else if (iBaseResource instanceof org.hl7.fhir.dstu2.model.Resource) {
-            resourceId = ((org.hl7.fhir.dstu2.model.Resource) iBaseResource).getIdElement().getIdPart();
-            context = FhirContext.forDstu2();
+    private NotificationEncoder getNotificationEncoder() {
+        NotificationEncoder encoder = notificationEncoder;
+        if (encoder == null) {
+            encoder             = new NotificationEncoder(fhirContext);
+            notificationEncoder = encoder;
         }
-        return new Object[] {resourceId, context};  // Converting String resourceId to an object, context is already an object 
+        return encoder;
     }
 
     /**
@@ -137,35 +188,11 @@ public class NotificationInterceptor {
      * @throws InterruptedException
      */
     private void notifyHCH(String requestHttpMethod, String resourceId, String responseBody) throws URISyntaxException, IOException, InterruptedException, HttpResponseException {
-        String NOTIFICATIONS_URL                = System.getProperty("HCH_BASE_URL") + System.getProperty("HCH_NOTIFICATIONS_URL");
-        String HCH_CLIENT_GRANT_ACCESS_TOKEN    = System.getProperty("HCH_CLIENT_GRANT_ACCESS_TOKEN");
-
-        HttpRequest homecareHubRequest              = null;
+        HttpRequest homecareHubRequest              = buildNotificationRequest(requestHttpMethod, resourceId, responseBody);
         HttpResponse<String> homecareHubResponse    = null;
-        HttpClient httpClient                       = HttpClient.newHttpClient();
-        HttpRequest.Builder requestBuilder          = HttpRequest.newBuilder()
-            .header("Authorization", "Bearer " + HCH_CLIENT_GRANT_ACCESS_TOKEN)
-            .header("Accept", "application/json")
-            .header("Content-Type", "application/json");
-        
-        if("POST".equals(requestHttpMethod)) {
-            homecareHubRequest = requestBuilder.uri(new URI(NOTIFICATIONS_URL))                      // ? This can throw the URISyntaxException
-                .POST(HttpRequest.BodyPublishers.ofString(responseBody))                                        
-                .build();
-                
-            homecareHubResponse = httpClient.send(homecareHubRequest, BodyHandlers.ofString());     // ? This can throw the IOException / InterruptedException / HttpResponseException
-        } else if("PUT".equals(requestHttpMethod) || "PATCH".equals(requestHttpMethod)) {
-            homecareHubRequest = requestBuilder.uri(new URI(NOTIFICATIONS_URL + "/" + resourceId))  // ? This can throw the URISyntaxException
-                .method("PATCH", HttpRequest.BodyPublishers.ofString(responseBody))
-                .build();
 
-            homecareHubResponse = httpClient.send(homecareHubRequest, BodyHandlers.ofString());     // ? This can throw the IOException / InterruptedException / HttpResponseException
-        } else if("DELETE".equals(requestHttpMethod)) {
-            homecareHubRequest = requestBuilder.uri(new URI(NOTIFICATIONS_URL + "/" + resourceId))  // ? This can throw the URISyntaxException
-                .DELETE()
-                .build();
-
-            homecareHubResponse = httpClient.send(homecareHubRequest, BodyHandlers.ofString());     // ? This can throw the IOException / InterruptedException / HttpResponseException
+        if(homecareHubRequest != null) {
+            homecareHubResponse = HomecareHubHttpClient.getInstance().send(HomecareHubHttpClient.ENDPOINT_NOTIFICATIONS, homecareHubRequest);     // ? This can throw the IOException / InterruptedException / HttpResponseException
         }
                 
         if(homecareHubResponse != null) {
@@ -179,4 +206,46 @@ public class NotificationInterceptor {
             logger.info("The Request does not match POST, PUT, PATCH or DELETE.");
         }  
     }
+
+    /**
+     * * Build the HCH notification request matching the incoming request method, shared by the sync mode and the NotificationOutboxDispatcher
+     * 
+     * @param String requestHttpMethod
+     * @param String resourceId
+     * @param String responseBody
+     * @return HttpRequest or null when the request method is not notified
+     * 
+     * @throws URISyntaxException
+     */
+    static HttpRequest buildNotificationRequest(String requestHttpMethod, String resourceId, String responseBody) throws URISyntaxException {
+        String NOTIFICATIONS_URL                = System.getProperty("HCH_BASE_URL") + System.getProperty("HCH_NOTIFICATIONS_URL");
+        String HCH_CLIENT_GRANT_ACCESS_TOKEN    = System.getProperty("HCH_CLIENT_GRANT_ACCESS_TOKEN");
+
+        HomecareHubHttpClient homecareHubHttpClient = HomecareHubHttpClient.getInstance();
+
+        if("POST".equals(requestHttpMethod)) {
+            return notificationRequestBuilder(homecareHubHttpClient, new URI(NOTIFICATIONS_URL), HCH_CLIENT_GRANT_ACCESS_TOKEN)   // ? This can throw the URISyntaxException
+                .POST(HttpRequest.BodyPublishers.ofString(responseBody))
+                .build();
+        } else if("PUT".equals(requestHttpMethod) || "PATCH".equals(requestHttpMethod)) {
+            return notificationRequestBuilder(homecareHubHttpClient, new URI(NOTIFICATIONS_URL + "/" + resourceId), HCH_CLIENT_GRANT_ACCESS_TOKEN)
+                .method("PATCH", HttpRequest.BodyPublishers.ofString(responseBody))
+                .build();
+        } else if("DELETE".equals(requestHttpMethod)) {
+            return notificationRequestBuilder(homecareHubHttpClient, new URI(NOTIFICATIONS_URL + "/" + resourceId), HCH_CLIENT_GRANT_ACCESS_TOKEN)
+                .DELETE()
+                .build();
+        }
+        return null;
+    }
+
+    /**
+     * ? The shared client's builder carries the default per call timeout
+     */
+    private static HttpRequest.Builder notificationRequestBuilder(HomecareHubHttpClient homecareHubHttpClient, URI uri, String accessToken) {
+        return homecareHubHttpClient.newRequestBuilder(uri)
+            .header("Authorization", "Bearer " + accessToken)
+            .header("Accept", "application/json")
+            .header("Content-Type", "application/json");
+    }
 }
@@ -0,0 +1,263 @@
+package ca.uhn.fhir.jpa.starter.interceptors;
+
+import java.util.List;
+import org.slf4j.Logger;
+import java.sql.Connection;
+import java.sql.SQLException;
+import javax.sql.DataSource;
+import org.slf4j.LoggerFactory;
+import jakarta.annotation.PostConstruct;
+import ca.uhn.fhir.util.VersionEnum;
+import ca.uhn.fhir.jpa.migrate.HapiMigrator;
+import ca.uhn.fhir.jpa.migrate.DriverTypeEnum;
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+/**
+ *
+ * * Transactional outbox for the Homecare Hub notifications
+ * * Rows are inserted by the NotificationInterceptor from the STORAGE_PRECOMMIT_RESOURCE_* pointcuts, i.e. in the same database transaction as the Patient write
+ * * The JdbcTemplate joins the transaction opened by the JpaTransactionManager, so a rolled back write never produces a notification
+ * * Rows are drained by the NotificationOutboxDispatcher
+ *
+ * * Row life cycle: PENDING -> IN_FLIGHT -> (deleted on success) | PENDING (retry with backoff) | DEAD (max attempts reached)
+ * * A claimed row records its owner (CLAIMED_BY) and a lease (LEASE_UNTIL), a row is only handed back to PENDING once its lease expired,
+ * * so a node restarting never re-delivers the rows another node is still working on
+ * * The rows of one resource are delivered in order: a row is only due once no older PENDING or IN_FLIGHT row exists for its RESOURCE_ID
+ *
+ * * The schema is versioned in NotificationOutboxMigrationTasks and applied on startup
+ * ! Only PostgreSQL and H2 are migrated automatically, other databases need the table to be created manually
+ * ! Created by NotificationOutboxConfig, only when HCH_NOTIFICATION_MODE=outbox
+ */
+public class NotificationOutbox {
+    private static final Logger logger = LoggerFactory.getLogger(NotificationOutbox.class);
+
+    public static final String STATUS_PENDING   = "PENDING";
+    public static final String STATUS_IN_FLIGHT = "IN_FLIGHT";
+    public static final String STATUS_DEAD      = "DEAD";
+
+    private static final String TABLE = NotificationOutboxMigrationTasks.TABLE;
+
+    private final DataSource dataSource;
+    private final JdbcTemplate jdbcTemplate;
+    private final String nodeId;
+    private final long leaseMs;
+
+    /**
+     * ? A single outbox row
+     */
+    public static final class Entry {
+        private final long id;
+        private final String tenantId;
+        private final String requestHttpMethod;
+        private final String resourceId;
+        private final String payload;
+        private final int attempts;
+        private final long createdAt;
+        private final long pendingSince;
+
+        public Entry(long id, String tenantId, String requestHttpMethod, String resourceId, String payload, int attempts, long createdAt, long pendingSince) {
+            this.id                 = id;
+            this.tenantId           = tenantId;
+            this.requestHttpMethod  = requestHttpMethod;
+            this.resourceId         = resourceId;
+            this.payload            = payload;
+            this.attempts           = attempts;
+            this.createdAt          = createdAt;
+            this.pendingSince       = pendingSince;
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        public String getTenantId() {
+            return tenantId;
+        }
+
+        public String getRequestHttpMethod() {
+            return requestHttpMethod;
+        }
+
+        public String getResourceId() {
+            return resourceId;
+        }
+
+        public String getPayload() {
+            return payload;
+        }
+
+        public int getAttempts() {
+            return attempts;
+        }
+
+        public long getCreatedAt() {
+            return createdAt;
+        }
+
+        /**
+         * ? When the row last became PENDING and due (NEXT_ATTEMPT_AT), equals getCreatedAt() until the first retry or recovery
+         */
+        public long getPendingSince() {
+            return pendingSince;
+        }
+    }
+
+    private static final RowMapper<Entry> ENTRY_ROW_MAPPER = (resultSet, rowNum) -> new Entry(
+        resultSet.getLong("ID"),
+        resultSet.getString("TENANT_ID"),
+        resultSet.getString("HTTP_METHOD"),
+        resultSet.getString("RESOURCE_ID"),
+        resultSet.getString("PAYLOAD"),
+        resultSet.getInt("ATTEMPTS"),
+        resultSet.getLong("CREATED_AT"),
+        resultSet.getLong("NEXT_ATTEMPT_AT")
+    );
+
+    /**
+     * @param DataSource dataSource
+     * @param String nodeId         Claim owner recorded on the rows claimed by this node, must be unique per running instance
+     * @param long leaseMs          How long a claimed row belongs to this node, must exceed the HCH request timeout
+     */
+    public NotificationOutbox(DataSource dataSource, String nodeId, long leaseMs) {
+        this.dataSource     = dataSource;
+        this.jdbcTemplate   = new JdbcTemplate(dataSource);
+        this.nodeId         = nodeId;
+        this.leaseMs        = leaseMs;
+    }
+
+    @PostConstruct
+    public void initialize() {
+        migrate();
+
+        // ? Rows whose owner crashed are delivered again (at-least-once), rows still leased by a live node are left alone
+        int recovered = recoverExpiredLeases();
+        if (recovered > 0) {
+            logger.info("Recovered {} HCH notifications whose lease expired", recovered);
+        }
+    }
+
+    /**
+     * ? Applies the pending NotificationOutboxMigrationTasks versions
+     */
+    void migrate() {
+        DriverTypeEnum driverType = resolveDriverType();
+        if (driverType == null) {
+            logger.warn("The HCH notification outbox schema is only migrated on PostgreSQL and H2, {} must be created manually", TABLE);
+            return;
+        }
+
+        HapiMigrator migrator = new HapiMigrator(NotificationOutboxMigrationTasks.MIGRATION_TABLE, dataSource, driverType);
+        migrator.addTasks(new NotificationOutboxMigrationTasks().getAllTasks(VersionEnum.values()));
+        migrator.createMigrationTableIfRequired();
+        migrator.migrate();
+    }
+
+    private DriverTypeEnum resolveDriverType() {
+        String productName;
+        try (Connection connection = dataSource.getConnection()) {
+            productName = connection.getMetaData().getDatabaseProductName();
+        } catch (SQLException exception) {
+            throw new IllegalStateException("Unable to detect the database holding the HCH notification outbox", exception);
+        }
+
+        if ("H2".equalsIgnoreCase(productName)) {
+            return DriverTypeEnum.H2_EMBEDDED;
+        } else if ("PostgreSQL".equalsIgnoreCase(productName)) {
+            return DriverTypeEnum.POSTGRES_9_4;
+        }
+        return null;
+    }
+
+    /**
+     * ? Must be called from inside the transaction writing the resource
+     *
+     * @param String tenantId
+     * @param String requestHttpMethod
+     * @param String resourceId
+     * @param String payload
+     */
+    public void enqueue(String tenantId, String requestHttpMethod, String resourceId, String payload) {
+        long now = System.currentTimeMillis();
+        jdbcTemplate.update(
+            "INSERT INTO " + TABLE + " (TENANT_ID, HTTP_METHOD, RESOURCE_ID, PAYLOAD, STATUS, ATTEMPTS, NEXT_ATTEMPT_AT, CREATED_AT) VALUES (?, ?, ?, ?, ?, 0, ?, ?)",
+            tenantId, requestHttpMethod, resourceId, payload, STATUS_PENDING, now, now);
+    }
+
+    /**
+     * ? A row waits while an older row of the same resource is still PENDING (e.g. in its backoff) or IN_FLIGHT,
+     * ? so a create is never overtaken by the PATCH / DELETE that followed it, a DEAD row no longer holds the later ones back
+     *
+     * @param int limit
+     * @return The oldest PENDING rows that are due for (re)delivery
+     */
+    public List<Entry> findDue(int limit) {
+        JdbcTemplate queryTemplate = new JdbcTemplate(dataSource);     // ? Dedicated template so the row limit does not leak into the shared one
+        queryTemplate.setMaxRows(limit);
+        return queryTemplate.query(
+            "SELECT ID, TENANT_ID, HTTP_METHOD, RESOURCE_ID, PAYLOAD, ATTEMPTS, CREATED_AT, NEXT_ATTEMPT_AT FROM " + TABLE + " o"
+                + " WHERE STATUS = ? AND NEXT_ATTEMPT_AT <= ?"
+                + " AND NOT EXISTS (SELECT 1 FROM " + TABLE + " p WHERE p.RESOURCE_ID = o.RESOURCE_ID AND p.ID < o.ID AND p.STATUS IN (?, ?))"
+                + " ORDER BY ID",
+            ENTRY_ROW_MAPPER, STATUS_PENDING, System.currentTimeMillis(), STATUS_PENDING, STATUS_IN_FLIGHT);
+    }
+
+    /**
+     * ? Optimistic claim, only one dispatcher can move a row from PENDING to IN_FLIGHT, the row is then leased to this node
+     *
+     * @param long id
+     * @return boolean
+     */
+    public boolean claim(long id) {
+        return jdbcTemplate.update("UPDATE " + TABLE + " SET STATUS = ?, CLAIMED_BY = ?, LEASE_UNTIL = ? WHERE ID = ? AND STATUS = ?",
+            STATUS_IN_FLIGHT, nodeId, System.currentTimeMillis() + leaseMs, id, STATUS_PENDING) == 1;
+    }
+
+    /**
+     * ? Hands the IN_FLIGHT rows whose lease expired back to PENDING, due immediately
+     * ? Rows without a lease were claimed before the lease columns existed and are recovered as well
+     *
+     * @return The number of recovered rows
+     */
+    public int recoverExpiredLeases() {
+        long now = System.currentTimeMillis();
+        return jdbcTemplate.update("UPDATE " + TABLE + " SET STATUS = ?, CLAIMED_BY = NULL, LEASE_UNTIL = NULL, NEXT_ATTEMPT_AT = ? WHERE STATUS = ? AND (LEASE_UNTIL IS NULL OR LEASE_UNTIL < ?)",
+            STATUS_PENDING, now, STATUS_IN_FLIGHT, now);
+    }
+
+    public void markDelivered(long id) {
+        jdbcTemplate.update("DELETE FROM " + TABLE + " WHERE ID = ?", id);
+    }
+
+    public void markDelivered(List<Long> ids) {
+        jdbcTemplate.batchUpdate("DELETE FROM " + TABLE + " WHERE ID = ?", ids, ids.size(), (preparedStatement, id) -> preparedStatement.setLong(1, id));
+    }
+
+    /**
+     * ? Only applied while this node still owns the row, a row recovered by another node after a lease expiry is left to that node
+     */
+    public void markForRetry(long id, int attempts, long nextAttemptAt, String error) {
+        jdbcTemplate.update("UPDATE " + TABLE + " SET STATUS = ?, ATTEMPTS = ?, NEXT_ATTEMPT_AT = ?, LAST_ERROR = ?, CLAIMED_BY = NULL, LEASE_UNTIL = NULL WHERE ID = ? AND CLAIMED_BY = ?",
+            STATUS_PENDING, attempts, nextAttemptAt, truncate(error), id, nodeId);
+    }
+
+    public void markDead(long id, int attempts, String error) {
+        jdbcTemplate.update("UPDATE " + TABLE + " SET STATUS = ?, ATTEMPTS = ?, LAST_ERROR = ?, LEASE_UNTIL = NULL WHERE ID = ? AND CLAIMED_BY = ?",
+            STATUS_DEAD, attempts, truncate(error), id, nodeId);
+    }
+
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    public long getLeaseMs() {
+        return leaseMs;
+    }
+
+    private static String truncate(String error) {
+        if (error == null || error.length() <= 2000) {
+            return error;
+        }
+        return error.substring(0, 2000);
+    }
+}
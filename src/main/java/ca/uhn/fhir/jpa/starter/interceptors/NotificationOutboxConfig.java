@@ -0,0 +1,34 @@
+package ca.uhn.fhir.jpa.starter.interceptors;
+
+import java.util.UUID;
+import javax.sql.DataSource;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+
+/**
+ *
+ * * The NotificationOutbox and its NotificationOutboxDispatcher only exist when HCH_NOTIFICATION_MODE=outbox
+ * * In the default sync mode neither the table nor the polling thread is created
+ *
+ * * Configuration (System properties loaded from the .env file, visible to the Spring Environment):
+ * *    HCH_NOTIFICATION_MODE                sync (default) | outbox
+ * *    HCH_OUTBOX_NODE_ID                   Claim owner written on the claimed rows (default a random UUID per start)
+ * *    HCH_OUTBOX_LEASE_MS                  How long a claimed row belongs to its node before another node may recover it (default 300000)
+ */
+@Configuration
+@ConditionalOnProperty(name = "HCH_NOTIFICATION_MODE", havingValue = NotificationInterceptor.MODE_OUTBOX)
+public class NotificationOutboxConfig {
+
+    @Bean
+    public NotificationOutbox notificationOutbox(DataSource dataSource) {
+        String nodeId   = HomecareHubProperties.getString("HCH_OUTBOX_NODE_ID", UUID.randomUUID().toString());
+        long leaseMs    = HomecareHubProperties.getLong("HCH_OUTBOX_LEASE_MS", 300000);
+        return new NotificationOutbox(dataSource, nodeId, leaseMs);
+    }
+
+    @Bean
+    public NotificationOutboxDispatcher notificationOutboxDispatcher(NotificationOutbox notificationOutbox) {
+        return new NotificationOutboxDispatcher(notificationOutbox);
+    }
+}
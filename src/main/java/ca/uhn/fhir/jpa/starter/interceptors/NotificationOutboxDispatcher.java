@@ -0,0 +1,330 @@
+package ca.uhn.fhir.jpa.starter.interceptors;
+
+import java.net.URI;
+import java.util.Map;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import java.net.http.HttpRequest;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.Semaphore;
+import jakarta.annotation.PreDestroy;
+import jakarta.annotation.PostConstruct;
+import java.util.concurrent.ConcurrentHashMap;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Counter;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ *
+ * * Background dispatcher draining the NotificationOutbox towards the Homecare Hub
+ * * Delivery is at-least-once: a row is only deleted after HCH answered with a status < 400
+ * * Failed deliveries are retried with an exponential backoff, once HCH_OUTBOX_MAX_ATTEMPTS is reached the row is moved to the DEAD state
+ * * The rows of one resource are sent one at a time and in order, NotificationOutbox.findDue holds back a row until the older ones are done
+ *
+ * * Configuration (System properties loaded from the .env file):
+ * *    HCH_OUTBOX_POLL_INTERVAL_MS          Delay between two polls of the outbox table (default 500)
+ * *    HCH_OUTBOX_BATCH_SIZE                Max rows claimed per poll (default 100)
+ * *    HCH_OUTBOX_MAX_ATTEMPTS              Deliveries attempted before a row is dead-lettered (default 10)
+ * *    HCH_OUTBOX_BACKOFF_BASE_MS           First retry delay, doubled on every attempt (default 1000)
+ * *    HCH_OUTBOX_BACKOFF_MAX_MS            Upper bound of the retry delay (default 300000)
+ * *    HCH_OUTBOX_TENANT_CONCURRENCY        Max in-flight deliveries per tenant (default 4)
+ * * The rows of a crashed node are recovered once their lease (HCH_OUTBOX_LEASE_MS) expired, checked every half lease
+ *
+ * * Batch delivery (HCH_NOTIFICATION_DELIVERY=batch) groups the due rows of a tenant into a single NDJSON POST to HCH_NOTIFICATIONS_BATCH_URL
+ * * Every line is {"requestHttpMethod": "...", "resourceId": "...", "resource": { ... }}, HCH acknowledges the whole batch or none of it
+ * *    HCH_BATCH_MAX_SIZE                   Max notifications per batch (default 500)
+ * *    HCH_BATCH_MAX_LINGER_MS              Max time a notification waits for the batch to fill up, counted from when it became due (default 2000)
+ * *    HCH_BATCH_MAX_IN_FLIGHT              Max batches in flight across all tenants (default 2)
+ */
+public class NotificationOutboxDispatcher {
+    private static final Logger logger = LoggerFactory.getLogger(NotificationOutboxDispatcher.class);
+
+    private static final String DEFAULT_TENANT = "DEFAULT";
+    private static final String DELIVERY_BATCH = "batch";
+
+    private final NotificationOutbox notificationOutbox;
+    private final HomecareHubHttpClient homecareHubHttpClient;
+    private final Map<String, Semaphore> tenantPermits = new ConcurrentHashMap<>();
+
+    private final long pollIntervalMs   = HomecareHubProperties.getLong("HCH_OUTBOX_POLL_INTERVAL_MS", 500);
+    private final int batchSize         = HomecareHubProperties.getInt("HCH_OUTBOX_BATCH_SIZE", 100);
+    private final int maxAttempts       = HomecareHubProperties.getInt("HCH_OUTBOX_MAX_ATTEMPTS", 10);
+    private final long backoffBaseMs    = HomecareHubProperties.getLong("HCH_OUTBOX_BACKOFF_BASE_MS", 1000);
+    private final long backoffMaxMs     = HomecareHubProperties.getLong("HCH_OUTBOX_BACKOFF_MAX_MS", 300000);
+    private final int tenantConcurrency = HomecareHubProperties.getInt("HCH_OUTBOX_TENANT_CONCURRENCY", 4);
+
+    private final boolean batchDelivery  = DELIVERY_BATCH.equals(HomecareHubProperties.getString("HCH_NOTIFICATION_DELIVERY", "single"));
+    private final int batchMaxSize       = HomecareHubProperties.getInt("HCH_BATCH_MAX_SIZE", 500);
+    private final long batchMaxLingerMs  = HomecareHubProperties.getLong("HCH_BATCH_MAX_LINGER_MS", 2000);
+    private final Semaphore batchPermits = new Semaphore(Math.max(1, HomecareHubProperties.getInt("HCH_BATCH_MAX_IN_FLIGHT", 2)));
+
+    private final Counter deliveredCounter  = Metrics.counter("hch.notification.outbox", "outcome", "delivered");
+    private final Counter retriedCounter    = Metrics.counter("hch.notification.outbox", "outcome", "retried");
+    private final Counter deadCounter       = Metrics.counter("hch.notification.outbox", "outcome", "dead");
+
+    private ScheduledExecutorService scheduler;
+    private long nextLeaseRecoveryAt;
+
+    public NotificationOutboxDispatcher(NotificationOutbox notificationOutbox) {
+        this(notificationOutbox, HomecareHubHttpClient.getInstance());
+    }
+
+    NotificationOutboxDispatcher(NotificationOutbox notificationOutbox, HomecareHubHttpClient homecareHubHttpClient) {
+        this.notificationOutbox     = notificationOutbox;
+        this.homecareHubHttpClient  = homecareHubHttpClient;
+        this.nextLeaseRecoveryAt    = System.currentTimeMillis() + notificationOutbox.getLeaseMs() / 2;    // ? The startup recovery already ran in NotificationOutbox.initialize
+    }
+
+    @PostConstruct
+    public void start() {
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "hch-outbox-dispatcher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::drain, pollIntervalMs, pollIntervalMs, TimeUnit.MILLISECONDS);
+        logger.info("HCH notification outbox dispatcher started (poll interval: {}ms, batch size: {}, max attempts: {}, tenant concurrency: {}, batch delivery: {})", pollIntervalMs, batchSize, maxAttempts, tenantConcurrency, batchDelivery);
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+    }
+
+    /**
+     * ? One poll: claim the due rows the tenant limits allow and hand them over to the shared HCH client
+     * ? Rows skipped because their tenant is saturated stay PENDING and are picked up by a later poll
+     */
+    void drain() {
+        recoverExpiredLeases();
+        if (batchDelivery) {
+            drainBatches();
+            return;
+        }
+        try {
+            List<NotificationOutbox.Entry> dueEntries = notificationOutbox.findDue(batchSize);
+            for (NotificationOutbox.Entry entry : dueEntries) {
+                Semaphore permits = tenantPermits.computeIfAbsent(tenantKey(entry), key -> new Semaphore(Math.max(1, tenantConcurrency)));
+                if (!permits.tryAcquire()) {
+                    continue;
+                }
+                if (!notificationOutbox.claim(entry.getId())) {
+                    permits.release();      // ? Claimed by another node in the meantime
+                    continue;
+                }
+                dispatch(entry, permits);
+            }
+        } catch (Exception exception) {
+            logger.error("HCH notification outbox poll failed: {}", exception.getMessage());    // ? Never let an exception cancel the scheduled task
+        }
+    }
+
+    private void recoverExpiredLeases() {
+        long now = System.currentTimeMillis();
+        if (now < nextLeaseRecoveryAt) {
+            return;
+        }
+        nextLeaseRecoveryAt = now + Math.max(1, notificationOutbox.getLeaseMs() / 2);
+        try {
+            int recovered = notificationOutbox.recoverExpiredLeases();
+            if (recovered > 0) {
+                logger.warn("Recovered {} HCH notifications whose lease expired", recovered);
+            }
+        } catch (Exception exception) {
+            logger.error("HCH notification outbox lease recovery failed: {}", exception.getMessage());
+        }
+    }
+
+    private void dispatch(NotificationOutbox.Entry entry, Semaphore permits) {
+        HttpRequest homecareHubRequest;
+        try {
+            homecareHubRequest = NotificationInterceptor.buildNotificationRequest(entry.getRequestHttpMethod(), entry.getResourceId(), entry.getPayload());
+        } catch (Exception exception) {
+            permits.release();
+            fail(entry, exception.getMessage());
+            return;
+        }
+
+        if (homecareHubRequest == null) {
+            permits.release();
+            logger.info("The Request does not match POST, PUT, PATCH or DELETE.");
+            notificationOutbox.markDelivered(entry.getId());
+            return;
+        }
+
+        homecareHubHttpClient.sendAsync(HomecareHubHttpClient.ENDPOINT_NOTIFICATIONS, homecareHubRequest)
+            .whenComplete((homecareHubResponse, throwable) -> {
+                try {
+                    if (throwable != null) {
+                        fail(entry, throwable.getMessage());
+                    } else if (homecareHubResponse.statusCode() >= 400) {
+                        fail(entry, "HCH response error: " + homecareHubResponse.statusCode() + " " + homecareHubResponse.body());
+                    } else {
+                        logger.info("HCH Response Code: {}", homecareHubResponse.statusCode());
+                        notificationOutbox.markDelivered(entry.getId());
+                        deliveredCounter.increment();
+                    }
+                } catch (Exception exception) {
+                    logger.error("Unable to update HCH notification outbox row {}: {}", entry.getId(), exception.getMessage());
+                } finally {
+                    permits.release();
+                }
+            });
+    }
+
+    /**
+     * ? Batch mode poll: one batch per tenant, sent once it is full or one of its notifications waited HCH_BATCH_MAX_LINGER_MS
+     * ? The wait is counted from when the row became due (getPendingSince), a retried row lingers again instead of being sent alone
+     */
+    private void drainBatches() {
+        try {
+            long now = System.currentTimeMillis();
+            Map<String, List<NotificationOutbox.Entry>> entriesByTenant = new LinkedHashMap<>();
+            for (NotificationOutbox.Entry entry : notificationOutbox.findDue(Math.max(batchSize, batchMaxSize))) {
+                entriesByTenant.computeIfAbsent(tenantKey(entry), key -> new ArrayList<>()).add(entry);
+            }
+
+            for (Map.Entry<String, List<NotificationOutbox.Entry>> tenantEntries : entriesByTenant.entrySet()) {
+                List<NotificationOutbox.Entry> entries = tenantEntries.getValue();
+                if (entries.size() > batchMaxSize) {
+                    entries = entries.subList(0, batchMaxSize);
+                }
+                if (entries.size() < batchMaxSize && !lingered(entries, now)) {
+                    continue;   // ? Let the batch fill up
+                }
+
+                Semaphore permits = tenantPermits.computeIfAbsent(tenantEntries.getKey(), key -> new Semaphore(Math.max(1, tenantConcurrency)));
+                if (!batchPermits.tryAcquire()) {
+                    return;     // ? Global in-flight limit reached, retry on the next poll
+                }
+                if (!permits.tryAcquire()) {
+                    batchPermits.release();
+                    continue;
+                }
+
+                List<NotificationOutbox.Entry> claimed = new ArrayList<>(entries.size());
+                for (NotificationOutbox.Entry entry : entries) {
+                    if (notificationOutbox.claim(entry.getId())) {
+                        claimed.add(entry);
+                    }
+                }
+                if (claimed.isEmpty()) {
+                    permits.release();
+                    batchPermits.release();
+                    continue;
+                }
+                dispatchBatch(claimed, permits);
+            }
+        } catch (Exception exception) {
+            logger.error("HCH notification outbox poll failed: {}", exception.getMessage());
+        }
+    }
+
+    private boolean lingered(List<NotificationOutbox.Entry> entries, long now) {
+        for (NotificationOutbox.Entry entry : entries) {
+            if (now - entry.getPendingSince() >= batchMaxLingerMs) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void dispatchBatch(List<NotificationOutbox.Entry> entries, Semaphore permits) {
+        HttpRequest homecareHubRequest;
+        try {
+            String BATCH_URL                        = System.getProperty("HCH_BASE_URL") + System.getProperty("HCH_NOTIFICATIONS_BATCH_URL");
+            String HCH_CLIENT_GRANT_ACCESS_TOKEN    = System.getProperty("HCH_CLIENT_GRANT_ACCESS_TOKEN");
+
+            homecareHubRequest = homecareHubHttpClient.newRequestBuilder(new URI(BATCH_URL))
+                .header("Authorization", "Bearer " + HCH_CLIENT_GRANT_ACCESS_TOKEN)
+                .header("Accept", "application/json")
+                .header("Content-Type", "application/x-ndjson")
+                .POST(HttpRequest.BodyPublishers.ofString(toNdjson(entries)))
+                .build();
+        } catch (Exception exception) {
+            permits.release();
+            batchPermits.release();
+            entries.forEach(entry -> fail(entry, exception.getMessage()));
+            return;
+        }
+
+        homecareHubHttpClient.sendAsync(HomecareHubHttpClient.ENDPOINT_NOTIFICATIONS_BATCH, homecareHubRequest)
+            .whenComplete((homecareHubResponse, throwable) -> {
+                try {
+                    if (throwable != null) {
+                        entries.forEach(entry -> fail(entry, throwable.getMessage()));
+                    } else if (homecareHubResponse.statusCode() >= 400) {
+                        String error = "HCH batch response error: " + homecareHubResponse.statusCode() + " " + homecareHubResponse.body();
+                        entries.forEach(entry -> fail(entry, error));
+                    } else {
+                        logger.info("HCH Batch Response Code: {} ({} notifications)", homecareHubResponse.statusCode(), entries.size());
+                        List<Long> ids = new ArrayList<>(entries.size());
+                        entries.forEach(entry -> ids.add(entry.getId()));
+                        notificationOutbox.markDelivered(ids);
+                        deliveredCounter.increment(entries.size());
+                    }
+                } catch (Exception exception) {
+                    logger.error("Unable to update the HCH notification outbox after a batch delivery: {}", exception.getMessage());
+                } finally {
+                    permits.release();
+                    batchPermits.release();
+                }
+            });
+    }
+
+    /**
+     * ? The payloads are already JSON, they are appended as is instead of being parsed again
+     *
+     * @param List<NotificationOutbox.Entry> entries
+     * @return String
+     */
+    static String toNdjson(List<NotificationOutbox.Entry> entries) {
+        int capacity = 0;
+        for (NotificationOutbox.Entry entry : entries) {
+            capacity += entry.getPayload() == null ? 64 : entry.getPayload().length() + 96;
+        }
+
+        StringBuilder ndjson = new StringBuilder(capacity);
+        for (NotificationOutbox.Entry entry : entries) {
+            ndjson.append("{\"requestHttpMethod\":").append(JSONObject.quote(entry.getRequestHttpMethod()))
+                .append(",\"resourceId\":").append(entry.getResourceId() == null ? "null" : JSONObject.quote(entry.getResourceId()))
+                .append(",\"resource\":").append(entry.getPayload() == null ? "null" : entry.getPayload())
+                .append("}\n");
+        }
+        return ndjson.toString();
+    }
+
+    private void fail(NotificationOutbox.Entry entry, String error) {
+        int attempts = entry.getAttempts() + 1;
+        if (attempts >= maxAttempts) {
+            logger.error("HCH notification {} dead-lettered after {} attempts: {}", entry.getId(), attempts, error);
+            notificationOutbox.markDead(entry.getId(), attempts, error);
+            deadCounter.increment();
+            return;
+        }
+
+        long backoffMs = backoffMs(attempts);
+        logger.warn("HCH notification {} failed (attempt {}), retrying in {}ms: {}", entry.getId(), attempts, backoffMs, error);
+        notificationOutbox.markForRetry(entry.getId(), attempts, System.currentTimeMillis() + backoffMs, error);
+        retriedCounter.increment();
+    }
+
+    /**
+     * @param int attempts      Deliveries attempted so far, at least 1
+     * @return long             Delay before the next attempt: HCH_OUTBOX_BACKOFF_BASE_MS doubled on every attempt, capped by HCH_OUTBOX_BACKOFF_MAX_MS
+     */
+    long backoffMs(int attempts) {
+        return Math.min(backoffMaxMs, backoffBaseMs << Math.min(attempts - 1, 30));
+    }
+
+    private static String tenantKey(NotificationOutbox.Entry entry) {
+        return entry.getTenantId() == null ? DEFAULT_TENANT : entry.getTenantId();
+    }
+}
@@ -0,0 +1,61 @@
+package ca.uhn.fhir.jpa.starter.interceptors;
+
+import ca.uhn.fhir.util.VersionEnum;
+import ca.uhn.fhir.jpa.migrate.DriverTypeEnum;
+import ca.uhn.fhir.jpa.migrate.tasks.api.Builder;
+import ca.uhn.fhir.jpa.migrate.taskdef.ColumnTypeEnum;
+import ca.uhn.fhir.jpa.migrate.tasks.api.BaseMigrationTasks;
+
+/**
+ *
+ * * Versioned schema of the HCH_NOTIFICATION_OUTBOX table, applied by the HAPI migrator on startup (see NotificationOutbox.migrate)
+ * * The applied versions are tracked in their own HCH_MIGRATION table so they never interfere with the HAPI FHIR schema migrations
+ * ! Never edit a shipped task, append a new version instead
+ */
+public class NotificationOutboxMigrationTasks extends BaseMigrationTasks<VersionEnum> {
+
+    public static final String MIGRATION_TABLE = "HCH_MIGRATION";
+
+    static final String TABLE = "HCH_NOTIFICATION_OUTBOX";
+
+    public NotificationOutboxMigrationTasks() {
+        Builder version = forVersion(VersionEnum.V7_2_0);
+
+        // ? Same DDL for both databases, matches the table created by the first outbox release (hence IF NOT EXISTS)
+        String createTable = "CREATE TABLE IF NOT EXISTS " + TABLE + " ("
+            + "ID BIGINT GENERATED BY DEFAULT AS IDENTITY PRIMARY KEY, "
+            + "TENANT_ID VARCHAR(200), "
+            + "HTTP_METHOD VARCHAR(10) NOT NULL, "
+            + "RESOURCE_ID VARCHAR(64), "
+            + "PAYLOAD TEXT, "
+            + "STATUS VARCHAR(16) NOT NULL, "
+            + "ATTEMPTS INT NOT NULL, "
+            + "NEXT_ATTEMPT_AT BIGINT NOT NULL, "
+            + "CREATED_AT BIGINT NOT NULL, "
+            + "LAST_ERROR VARCHAR(2000))";
+        version.addTableRawSql("20261017.1", TABLE)
+            .addSql(DriverTypeEnum.H2_EMBEDDED, createTable)
+            .addSql(DriverTypeEnum.POSTGRES_9_4, createTable);
+
+        version.onTable(TABLE)
+            .addIndex("20261017.2", "IDX_HCH_OUTBOX_DUE")
+            .unique(false)
+            .withColumns("STATUS", "NEXT_ATTEMPT_AT");
+
+        // ? Claim owner and lease, only expired leases are handed over to another node
+        version.onTable(TABLE)
+            .addColumn("20261017.3", "CLAIMED_BY")
+            .nullable()
+            .type(ColumnTypeEnum.STRING, 200);
+        version.onTable(TABLE)
+            .addColumn("20261017.4", "LEASE_UNTIL")
+            .nullable()
+            .type(ColumnTypeEnum.LONG);
+
+        // ? Looks up the older rows of a resource, the rows of one resource are delivered in order (see NotificationOutbox.findDue)
+        version.onTable(TABLE)
+            .addIndex("20261017.5", "IDX_HCH_OUTBOX_RESOURCE")
+            .unique(false)
+            .withColumns("RESOURCE_ID", "ID");
+    }
+}
@@ -0,0 +1,94 @@
+package ca.uhn.fhir.jpa.starter.interceptors;
+
+import java.io.IOException;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonFactory;
+
+/**
+ *
+ * * Pulls the email and phone values out of the "telecom" array of a Patient JSON body with an incremental (Jackson streaming) parser
+ * * Only the telecom entries are materialized, every other member (names, addresses, base64 photos, ...) is skipped token by token
+ * * Parsing stops as soon as the top level "telecom" array has been read
+ *
+ * ? When a Patient has several phone / email entries the last one wins, same as the previous org.json based loop
+ */
+public final class PatientTelecomExtractor {
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();     // ? Thread safe, creating it is expensive
+
+    private PatientTelecomExtractor() {}
+
+    /**
+     * ? Immutable result, either value is null when the Patient does not carry it
+     */
+    public static final class Telecom {
+        private final String email;
+        private final String phone;
+
+        private Telecom(String email, String phone) {
+            this.email = email;
+            this.phone = phone;
+        }
+
+        public String getEmail() {
+            return email;
+        }
+
+        public String getPhone() {
+            return phone;
+        }
+    }
+
+    /**
+     * @param byte[] body
+     * @param int length Number of valid bytes in body
+     * @return Telecom
+     *
+     * @throws IOException When the body is not valid JSON
+     */
+    public static Telecom extract(byte[] body, int length) throws IOException {
+        String email = null;
+        String phone = null;
+
+        try (JsonParser parser = JSON_FACTORY.createParser(body, 0, length)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("The request body is not a JSON object.");
+            }
+
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String fieldName = parser.getCurrentName();
+                JsonToken value = parser.nextToken();
+
+                if (!"telecom".equals(fieldName) || value != JsonToken.START_ARRAY) {
+                    parser.skipChildren();      // ? No-op for scalars, skips nested objects / arrays without building them
+                    continue;
+                }
+
+                while (parser.nextToken() == JsonToken.START_OBJECT) {
+                    String system       = null;
+                    String systemValue  = null;
+                    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                        String telecomField = parser.getCurrentName();
+                        JsonToken telecomValue = parser.nextToken();
+                        if ("system".equals(telecomField) && telecomValue == JsonToken.VALUE_STRING) {
+                            system = parser.getText();
+                        } else if ("value".equals(telecomField) && telecomValue == JsonToken.VALUE_STRING) {
+                            systemValue = parser.getText();
+                        } else {
+                            parser.skipChildren();
+                        }
+                    }
+
+                    if ("phone".equals(system)) {
+                        phone = systemValue;
+                    } else if ("email".equals(system)) {
+                        email = systemValue;
+                    }
+                }
+                break;      // ? "telecom" appears once, the rest of the body is irrelevant
+            }
+        }
+        return new Telecom(email, phone);
+    }
+}
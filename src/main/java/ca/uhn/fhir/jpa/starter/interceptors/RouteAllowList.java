@@ -0,0 +1,182 @@
+package ca.uhn.fhir.jpa.starter.interceptors;
+
+import java.util.Set;
+import java.util.List;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ *
+ * * Allow-list of the FHIR routes exposed by this server, compiled once into a character trie
+ * * A request path is checked in a single pass over its characters, without any allocation
+ *
+ * * Three kinds of entries are supported, all relative to the FHIR base path:
+ * *    Resource types  "Patient"       matches /fhir/Patient, /fhir/Patient/123, /fhir/Patient/$everything, ... but not /fhir/PatientX
+ * *    Operations      "$meta"         system level operations, same segment semantic as the resource types
+ * *    Paths           "metadata"      exact match, a trailing "*" turns it into a prefix match ("swagger-ui*")
+ *
+ * * Configuration (System properties loaded from the .env file):
+ * *    HCH_FHIR_BASE_PATH              Servlet path of the FHIR server (default /fhir)
+ * *    HCH_ALLOWED_RESOURCE_TYPES      Comma separated resource types (default Patient)
+ * *    HCH_ALLOWED_OPERATIONS          Comma separated system level operations, e.g. $meta,$export (default none)
+ * *    HCH_ALLOWED_PATHS               Comma separated extra paths (default swagger-ui*,api-docs,metadata)
+ */
+public final class RouteAllowList {
+    private static final Logger logger = LoggerFactory.getLogger(RouteAllowList.class);
+
+    private static final char FIRST_CHAR = ' ';
+    private static final char LAST_CHAR  = '~';
+
+    private static final int MATCH_NONE      = 0;
+    private static final int MATCH_EXACT     = 1;   // ? The path must end on this node
+    private static final int MATCH_SEGMENT   = 2;   // ? The path must end on this node or continue with '/'
+    private static final int MATCH_PREFIX    = 3;   // ? Anything may follow
+
+    private final String basePath;
+    private final Set<String> resourceTypes;
+    private final String resourceTypesDisplay;
+    private final Node root = new Node();
+
+    /**
+     * ? Printable ASCII only, every other character is rejected (FHIR ids, types and operations never contain one un-encoded)
+     */
+    private static final class Node {
+        private final Node[] children = new Node[LAST_CHAR - FIRST_CHAR + 1];
+        private int match = MATCH_NONE;
+    }
+
+    private static final class Holder {
+        private static final RouteAllowList INSTANCE = new RouteAllowList(
+            HomecareHubProperties.getString("HCH_FHIR_BASE_PATH", "/fhir"),
+            split(HomecareHubProperties.getString("HCH_ALLOWED_RESOURCE_TYPES", "Patient")),
+            split(HomecareHubProperties.getString("HCH_ALLOWED_OPERATIONS", "")),
+            split(HomecareHubProperties.getString("HCH_ALLOWED_PATHS", "swagger-ui*,api-docs,metadata"))
+        );
+    }
+
+    /**
+     * ? Shared by the IncomingRequestInterceptor and the CapabilitiesInterceptor so that routing and the advertised capabilities never disagree
+     */
+    public static RouteAllowList getInstance() {
+        return Holder.INSTANCE;
+    }
+
+    /**
+     * @param String basePath
+     * @param List<String> resourceTypes
+     * @param List<String> operations
+     * @param List<String> paths
+     */
+    public RouteAllowList(String basePath, List<String> resourceTypes, List<String> operations, List<String> paths) {
+        this.basePath       = basePath.endsWith("/") ? basePath.substring(0, basePath.length() - 1) : basePath;
+        this.resourceTypes  = Collections.unmodifiableSet(new LinkedHashSet<>(resourceTypes));
+
+        for (String resourceType : resourceTypes) {
+            insert(resourceType, MATCH_SEGMENT);
+        }
+        for (String operation : operations) {
+            insert(operation.startsWith("$") ? operation : "$" + operation, MATCH_SEGMENT);
+        }
+        for (String path : paths) {
+            if (path.endsWith("*")) {
+                insert(path.substring(0, path.length() - 1), MATCH_PREFIX);
+            } else {
+                insert(path, MATCH_EXACT);
+            }
+        }
+
+        this.resourceTypesDisplay = String.join(", ", this.resourceTypes);
+        logger.info("Route allow-list compiled (base path: {}, resource types: {}, operations: {}, paths: {})", this.basePath, resourceTypes, operations, paths);
+    }
+
+    private void insert(String entry, int match) {
+        Node node = root;
+        for (int i = 0; i < entry.length(); i++) {
+            char c = entry.charAt(i);
+            if (c < FIRST_CHAR || c > LAST_CHAR) {
+                throw new IllegalArgumentException("Unsupported character in route allow-list entry '" + entry + "'");
+            }
+            Node child = node.children[c - FIRST_CHAR];
+            if (child == null) {
+                child = new Node();
+                node.children[c - FIRST_CHAR] = child;
+            }
+            node = child;
+        }
+        node.match = Math.max(node.match, match);
+    }
+
+    /**
+     * @param String requestURI Path of the request, without the query string
+     * @return boolean
+     */
+    public boolean isAllowed(String requestURI) {
+        int start = basePath.length() + 1;
+        if (requestURI == null || requestURI.length() < start || !requestURI.startsWith(basePath) || requestURI.charAt(start - 1) != '/') {
+            return false;
+        }
+
+        Node node = root;
+        int length = requestURI.length();
+        for (int i = start; ; i++) {
+            if (i == length) {
+                return node.match == MATCH_EXACT || node.match == MATCH_SEGMENT;
+            }
+
+            char c = requestURI.charAt(i);
+            if (c == '/' && node.match == MATCH_SEGMENT) {
+                return true;
+            }
+            if (c < FIRST_CHAR || c > LAST_CHAR) {
+                return false;
+            }
+
+            node = node.children[c - FIRST_CHAR];
+            if (node == null) {
+                return false;
+            }
+            if (node.match == MATCH_PREFIX) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * @param String requestURI
+     * @return String The first path segment after the base path, "-" when there is none
+     */
+    public String extractFirstSegment(String requestURI) {
+        int index = requestURI.indexOf(basePath + "/");
+        if (index == -1) {
+            return "-";
+        }
+        int start   = index + basePath.length() + 1;
+        int end     = requestURI.indexOf('/', start);
+        return requestURI.substring(start, end == -1 ? requestURI.length() : end);
+    }
+
+    public boolean isResourceTypeAllowed(String resourceType) {
+        return resourceTypes.contains(resourceType);
+    }
+
+    public Set<String> getResourceTypes() {
+        return resourceTypes;
+    }
+
+    /**
+     * @return String The allowed resource types as displayed in the HAPI-0302 error message
+     */
+    public String getResourceTypesDisplay() {
+        return resourceTypesDisplay;
+    }
+
+    private static List<String> split(String value) {
+        return Arrays.stream(value.split(","))
+            .map(String::trim)
+            .filter(entry -> !entry.isEmpty())
+            .toList();
+    }
+}
@@ -0,0 +1,166 @@
+package ca.uhn.fhir.jpa.starter.interceptors;
+
+import java.util.HexFormat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import java.util.concurrent.TimeUnit;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import io.micrometer.core.instrument.Metrics;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Ticker;
+import com.github.benmanes.caffeine.cache.Expiry;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+
+/**
+ *
+ * * Bounded Bearer Token -> authenticated principal cache used by the AuthenticationInterceptor
+ * * Successful validations are kept for HCH_TOKEN_CACHE_TTL_SECONDS, 401 / 403 responses for HCH_TOKEN_CACHE_NEGATIVE_TTL_SECONDS
+ * * Tokens are never stored in plain text, the cache is keyed by the SHA-256 hash of the token
+ * * Hit / miss / eviction counts are published to the global Micrometer registry as "hch.token.cache.*" (exposed through /actuator/prometheus)
+ *
+ * ! Patient POST / PATCH validation calls carry a request specific payload and MUST NOT be answered from this cache
+ */
+public class TokenValidationCache {
+    private static final Logger logger = LoggerFactory.getLogger(TokenValidationCache.class);
+
+    private static final String CACHE_NAME = "hch.token.cache";
+
+    private final boolean enabled;
+    private final Cache<String, CachedValidation> cache;
+
+    /**
+     * ? Result of a previous call to HCH_AUTHENTICATE_USER_URL
+     * ? statusCode < 400 carries the authenticatedUserLoginId, 401 / 403 are cached as negative results
+     */
+    public static final class CachedValidation {
+        private final int statusCode;
+        private final String authenticatedUserLoginId;
+
+        private CachedValidation(int statusCode, String authenticatedUserLoginId) {
+            this.statusCode                 = statusCode;
+            this.authenticatedUserLoginId   = authenticatedUserLoginId;
+        }
+
+        public static CachedValidation authenticated(String authenticatedUserLoginId) {
+            return new CachedValidation(200, authenticatedUserLoginId);
+        }
+
+        public static CachedValidation rejected(int statusCode) {
+            return new CachedValidation(statusCode, null);
+        }
+
+        public boolean isAuthenticated() {
+            return statusCode < 400;
+        }
+
+        public int getStatusCode() {
+            return statusCode;
+        }
+
+        public String getAuthenticatedUserLoginId() {
+            return authenticatedUserLoginId;
+        }
+    }
+
+    /**
+     * ? Reads the configuration from the System properties (loaded from the .env file in Application.main)
+     */
+    public TokenValidationCache() {
+        this(
+            HomecareHubProperties.getBoolean("HCH_TOKEN_CACHE_ENABLED", true),
+            HomecareHubProperties.getLong("HCH_TOKEN_CACHE_TTL_SECONDS", 60),
+            HomecareHubProperties.getLong("HCH_TOKEN_CACHE_NEGATIVE_TTL_SECONDS", 5),
+            HomecareHubProperties.getLong("HCH_TOKEN_CACHE_MAX_SIZE", 10000)
+        );
+    }
+
+    public TokenValidationCache(boolean enabled, long ttlSeconds, long negativeTtlSeconds, long maxSize) {
+        this(enabled, ttlSeconds, negativeTtlSeconds, maxSize, Ticker.systemTicker());
+    }
+
+    /**
+     * @param Ticker ticker Source of the time for the expiry, tests pass a fake one
+     */
+    TokenValidationCache(boolean enabled, long ttlSeconds, long negativeTtlSeconds, long maxSize, Ticker ticker) {
+        this.enabled = enabled && ttlSeconds > 0 && maxSize > 0;
+
+        final long ttlNanos         = TimeUnit.SECONDS.toNanos(ttlSeconds);
+        final long negativeTtlNanos = TimeUnit.SECONDS.toNanos(Math.max(0, negativeTtlSeconds));
+
+        this.cache = Caffeine.newBuilder()
+            .maximumSize(Math.max(1, maxSize))
+            .expireAfter(new Expiry<String, CachedValidation>() {
+                @Override
+                public long expireAfterCreate(String key, CachedValidation value, long currentTime) {
+                    return value.isAuthenticated() ? ttlNanos : negativeTtlNanos;
+                }
+
+                @Override
+                public long expireAfterUpdate(String key, CachedValidation value, long currentTime, long currentDuration) {
+                    return expireAfterCreate(key, value, currentTime);
+                }
+
+                @Override
+                public long expireAfterRead(String key, CachedValidation value, long currentTime, long currentDuration) {
+                    return currentDuration;     // ? Reading an entry never extends its lifetime
+                }
+            })
+            .ticker(ticker)
+            .recordStats()
+            .build();
+
+        if (this.enabled) {
+            CaffeineCacheMetrics.monitor(Metrics.globalRegistry, this.cache, CACHE_NAME);
+        }
+        logger.info("Token validation cache enabled: {} (ttl: {}s, negative ttl: {}s, max size: {})", this.enabled, ttlSeconds, negativeTtlSeconds, maxSize);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @param String token
+     * @return CachedValidation or null when the token has not been validated recently
+     */
+    public CachedValidation get(String token) {
+        if (!enabled) {
+            return null;
+        }
+        return cache.getIfPresent(hash(token));
+    }
+
+    /**
+     * ? Only successful validations and 401 / 403 responses are cached, everything else (422 / 5xx) is always re-validated
+     *
+     * @param String token
+     * @param int statusCode
+     * @param String authenticatedUserLoginId
+     */
+    public void put(String token, int statusCode, String authenticatedUserLoginId) {
+        if (!enabled) {
+            return;
+        }
+        if (statusCode < 400 && authenticatedUserLoginId != null) {
+            cache.put(hash(token), CachedValidation.authenticated(authenticatedUserLoginId));
+        } else if (statusCode == 401 || statusCode == 403) {
+            cache.put(hash(token), CachedValidation.rejected(statusCode));
+        }
+    }
+
+    public void invalidateAll() {
+        cache.invalidateAll();
+    }
+
+    private static String hash(String token) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return HexFormat.of().formatHex(digest.digest(token.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available.", e);    // ? Every JVM is required to support SHA-256
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package ca.uhn.fhir.jpa.starter.util;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+
+/**
+ * Strong ETags for the documents served from memory (the CapabilityStatement and the CDS Hooks discovery document)
+ * and the If-None-Match check that goes with them.
+ */
+public class ETags {
+
+	private ETags() {}
+
+	/**
+	 * @return the quoted hex of the first 16 bytes of the SHA-256 of theBody
+	 */
+	public static String strongETag(byte[] theBody) {
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-256").digest(theBody);
+			return '"' + HexFormat.of().formatHex(digest, 0, 16) + '"';
+		} catch (NoSuchAlgorithmException e) {
+			// SHA-256 is mandatory on every JVM
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Weak comparison, as RFC 7232 section 3.2 requires for If-None-Match: W/"x" matches "x". A gzip proxy turns the
+	 * strong tag it forwards into a weak one, its clients still get their 304.
+	 *
+	 * @param theIfNoneMatch the raw header, may list several tags or "*"
+	 * @return whether the client already holds theEtag
+	 */
+	public static boolean matchesIfNoneMatch(String theIfNoneMatch, String theEtag) {
+		if (theIfNoneMatch == null) {
+			return false;
+		}
+		String etag = opaqueTag(theEtag);
+		for (String candidate : theIfNoneMatch.split(",")) {
+			String tag = candidate.trim();
+			if (tag.equals("*") || opaqueTag(tag).equals(etag)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static String opaqueTag(String theTag) {
+		return theTag.startsWith("W/") ? theTag.substring(2) : theTag;
+	}
+}
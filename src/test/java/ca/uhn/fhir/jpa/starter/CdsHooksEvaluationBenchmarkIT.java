@@ -0,0 +1,143 @@
+package ca.uhn.fhir.jpa.starter;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.cr.config.RepositoryConfig;
+import ca.uhn.fhir.interceptor.api.IAnonymousInterceptor;
+import ca.uhn.fhir.interceptor.api.IInterceptorService;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.rest.api.server.IPreResourceAccessDetails;
+import ca.uhn.fhir.jpa.searchparam.config.NicknameServiceConfig;
+import ca.uhn.fhir.jpa.starter.cdshooks.StarterCdsHooksConfig;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.client.api.ServerValidationModeEnum;
+import ca.uhn.hapi.fhir.cdshooks.config.CdsHooksConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.util.EntityUtils;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.web.server.LocalServerPort;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.awaitility.Awaitility.await;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Cold (first call, the evaluation plan and the CQL caches are built) versus warm calls of a CDS service. Warm calls
+ * must not read the PlanDefinition again; the latencies are only logged
+ */
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT,
+	classes = {
+		Application.class,
+		NicknameServiceConfig.class,
+		RepositoryConfig.class,
+		CdsHooksConfig.class,
+		StarterCdsHooksConfig.class
+	}, properties = {
+	"spring.profiles.include=storageSettingsTest",
+	"spring.datasource.url=jdbc:h2:mem:dbr4-cds-benchmark",
+	"hapi.fhir.fhir_version=r4",
+	"hapi.fhir.cr.enabled=true",
+	"hapi.fhir.cr.caregaps.section_author=Organization/alphora-author",
+	"hapi.fhir.cr.caregaps.reporter=Organization/alphora",
+	"hapi.fhir.cdshooks.enabled=true",
+	"spring.main.allow-bean-definition-overriding=true"})
+class CdsHooksEvaluationBenchmarkIT implements IServerSupport {
+	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(CdsHooksEvaluationBenchmarkIT.class);
+	private static final int WARM_CALLS = 20;
+	private static final String CDS_REQUEST = "{\n" +
+		"  \"hookInstance\": \"12345\",\n" +
+		"  \"hook\": \"patient-view\",\n" +
+		"  \"context\": {\n" +
+		"    \"userId\": \"Practitioner/example\",\n" +
+		"    \"patientId\": \"Patient/example-hello-world\"\n" +
+		"  },\n" +
+		"  \"prefetch\": {\n" +
+		"    \"item1\": {\n" +
+		"      \"resourceType\": \"Patient\",\n" +
+		"      \"id\": \"example-hello-world\",\n" +
+		"      \"gender\": \"male\",\n" +
+		"      \"birthDate\": \"2000-01-01\"\n" +
+		"    }\n" +
+		"  }\n" +
+		"}";
+
+	private final FhirContext ourCtx = FhirContext.forR4Cached();
+
+	@LocalServerPort
+	private int port;
+
+	@Autowired
+	private IInterceptorService interceptorService;
+
+	@Test
+	void testWarmCallsDoNotReadThePlanDefinition() throws IOException {
+		ourCtx.getRestfulClientFactory().setServerValidationMode(ServerValidationModeEnum.NEVER);
+		IGenericClient client = ourCtx.newRestfulGenericClient("http://localhost:" + port + "/fhir/");
+		String cdsBase = "http://localhost:" + port + "/cds-services";
+		loadBundle("r4/HelloWorld-Bundle.json", ourCtx, client);
+		await().atMost(10000, TimeUnit.MILLISECONDS).until(() -> hasCdsServices(cdsBase));
+
+		AtomicInteger planDefinitionReads = new AtomicInteger();
+		IAnonymousInterceptor readCounter = (thePointcut, theArgs) -> {
+			IPreResourceAccessDetails details = theArgs.get(IPreResourceAccessDetails.class);
+			for (int i = 0; i < details.size(); i++) {
+				if ("PlanDefinition".equals(ourCtx.getResourceType(details.getResource(i)))) {
+					planDefinitionReads.incrementAndGet();
+				}
+			}
+		};
+		interceptorService.registerAnonymousInterceptor(Pointcut.STORAGE_PREACCESS_RESOURCES, readCounter);
+
+		try (CloseableHttpClient httpClient = HttpClients.createDefault()) {
+			long cold = callHelloWorld(httpClient, cdsBase);
+			int coldReads = planDefinitionReads.getAndSet(0);
+			long[] warm = new long[WARM_CALLS];
+			for (int i = 0; i < WARM_CALLS; i++) {
+				warm[i] = callHelloWorld(httpClient, cdsBase);
+			}
+			Arrays.sort(warm);
+
+			ourLog.info("CDS hook latency: cold {}ms ({} PlanDefinition reads), warm median {}ms, warm p90 {}ms",
+				TimeUnit.NANOSECONDS.toMillis(cold),
+				coldReads,
+				TimeUnit.NANOSECONDS.toMillis(warm[WARM_CALLS / 2]),
+				TimeUnit.NANOSECONDS.toMillis(warm[WARM_CALLS * 9 / 10]));
+			assertEquals(0, planDefinitionReads.get(), "warm calls read the PlanDefinition again");
+		} finally {
+			interceptorService.unregisterInterceptor(readCounter);
+		}
+	}
+
+	private long callHelloWorld(CloseableHttpClient theHttpClient, String theCdsBase) throws IOException {
+		HttpPost request = new HttpPost(theCdsBase + "/hello-world");
+		request.setEntity(new StringEntity(CDS_REQUEST));
+		request.addHeader("Content-Type", "application/json");
+
+		long start = System.nanoTime();
+		try (CloseableHttpResponse response = theHttpClient.execute(request)) {
+			String body = EntityUtils.toString(response.getEntity());
+			long elapsed = System.nanoTime() - start;
+			assertEquals(200, response.getStatusLine().getStatusCode(), body);
+			assertTrue(body.contains("Hello World!"), body);
+			return elapsed;
+		}
+	}
+
+	private boolean hasCdsServices(String theCdsBase) throws IOException {
+		try (CloseableHttpClient httpClient = HttpClients.createDefault();
+			  CloseableHttpResponse response = httpClient.execute(new HttpGet(theCdsBase))) {
+			return EntityUtils.toString(response.getEntity()).contains("hello-world");
+		}
+	}
+}
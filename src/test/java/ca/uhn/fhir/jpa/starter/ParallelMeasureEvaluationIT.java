@@ -0,0 +1,159 @@
+package ca.uhn.fhir.jpa.starter;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.cr.config.RepositoryConfig;
+import ca.uhn.fhir.jpa.searchparam.config.NicknameServiceConfig;
+import ca.uhn.fhir.jpa.starter.cr.CrProperties;
+import ca.uhn.fhir.model.primitive.IdDt;
+import ca.uhn.fhir.rest.api.CacheControlDirective;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.client.api.ServerValidationModeEnum;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.Expression;
+import org.hl7.fhir.r4.model.Group;
+import org.hl7.fhir.r4.model.Measure;
+import org.hl7.fhir.r4.model.MeasureReport;
+import org.hl7.fhir.r4.model.Parameters;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.StringType;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.web.server.LocalServerPort;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * The population report of the parallel (chunked) evaluation matches the serial one, counts, strata and scores alike,
+ * for all Patients and for a Group, with reportType summary and without a reportType
+ */
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT,
+	classes = {
+		Application.class,
+		NicknameServiceConfig.class,
+		RepositoryConfig.class
+	}, properties = {
+	"spring.profiles.include=storageSettingsTest",
+	"spring.datasource.url=jdbc:h2:mem:dbr4-parallel-measure",
+	"hapi.fhir.fhir_version=r4",
+	"hapi.fhir.cr.enabled=true",
+	"hapi.fhir.cr.caregaps.section_author=Organization/alphora-author",
+	"hapi.fhir.cr.caregaps.reporter=Organization/alphora",
+	"hapi.fhir.cr.measure.parallel_enabled=true",
+	// One chunk per patient of the EXM104 bundle
+	"hapi.fhir.cr.measure.chunk_size=1",
+	"spring.main.allow-bean-definition-overriding=true"})
+class ParallelMeasureEvaluationIT implements IServerSupport {
+	private static final String MEASURE_ID = "measure-EXM104-8.2.000";
+	private static final String GROUP_ID = "exm104-patients";
+
+	private final FhirContext ourCtx = FhirContext.forR4Cached();
+
+	@Autowired
+	private CrProperties crProperties;
+
+	@LocalServerPort
+	private int port;
+
+	@AfterEach
+	void tearDown() {
+		crProperties.getMeasure().setParallelEnabled(true);
+	}
+
+	@Test
+	void testParallelPopulationReportMatchesSerial() throws IOException {
+		ourCtx.getRestfulClientFactory().setServerValidationMode(ServerValidationModeEnum.NEVER);
+		IGenericClient client = ourCtx.newRestfulGenericClient("http://localhost:" + port + "/fhir/");
+
+		// Supplemental data is only evaluated serially, the stratifier is merged stratum by stratum
+		Bundle bundle = (Bundle) ourCtx.newJsonParser().parseResource(stringFromResource("r4/EXM104/EXM104-8.2.000-bundle.json"));
+		Group group = new Group().setType(Group.GroupType.PERSON).setActual(true);
+		group.setId(GROUP_ID);
+		for (Bundle.BundleEntryComponent entry : bundle.getEntry()) {
+			if (entry.getResource() instanceof Measure measure) {
+				measure.getSupplementalData().clear();
+				measure.getGroupFirstRep().addStratifier()
+					.setCode(new CodeableConcept().setText("sex"))
+					.setCriteria(new Expression().setLanguage("text/cql").setExpression("SDE Sex"));
+			} else if (entry.getResource() instanceof Patient patient) {
+				group.addMember().setEntity(new Reference("Patient/" + patient.getIdElement().getIdPart()));
+			}
+		}
+		bundle.addEntry().setResource(group).getRequest().setMethod(Bundle.HTTPVerb.PUT).setUrl("Group/" + GROUP_ID);
+		client.transaction().withBundle(bundle).execute();
+
+		MeasureReport parallel = evaluatePopulation(client, "summary", null);
+		MeasureReport parallelGroup = evaluatePopulation(client, "summary", "Group/" + GROUP_ID);
+		MeasureReport parallelDefault = evaluatePopulation(client, null, null);
+		crProperties.getMeasure().setParallelEnabled(false);
+		MeasureReport serial = evaluatePopulation(client, "summary", null);
+		MeasureReport serialGroup = evaluatePopulation(client, "summary", "Group/" + GROUP_ID);
+		MeasureReport serialDefault = evaluatePopulation(client, null, null);
+
+		assertTrue(counts(serial).get("initial-population") > 1, "the population spans several chunks");
+		assertSameReport(serial, parallel);
+		assertSameReport(serialGroup, parallelGroup);
+		assertEquals(serialGroup.getSubject().getReference(), parallelGroup.getSubject().getReference());
+		assertSameReport(serialDefault, parallelDefault);
+	}
+
+	private static void assertSameReport(MeasureReport theSerial, MeasureReport theParallel) {
+		assertEquals(theSerial.getType(), theParallel.getType());
+		assertEquals(counts(theSerial), counts(theParallel));
+		assertEquals(theSerial.getGroupFirstRep().getMeasureScore().getValue(), theParallel.getGroupFirstRep().getMeasureScore().getValue());
+		assertEquals(strata(theSerial), strata(theParallel));
+	}
+
+	private MeasureReport evaluatePopulation(IGenericClient theClient, String theReportType, String theSubject) {
+		Parameters inParams = new Parameters();
+		inParams.addParameter().setName("periodStart").setValue(new StringType("2019-01-01"));
+		inParams.addParameter().setName("periodEnd").setValue(new StringType("2019-12-31"));
+		if (theReportType != null) {
+			inParams.addParameter().setName("reportType").setValue(new StringType(theReportType));
+		}
+		if (theSubject != null) {
+			inParams.addParameter().setName("subject").setValue(new StringType(theSubject));
+		}
+
+		Parameters outParams = theClient
+			.operation()
+			.onInstance(new IdDt("Measure", MEASURE_ID))
+			.named("$evaluate-measure")
+			.withParameters(inParams)
+			.cacheControl(new CacheControlDirective().setNoCache(true))
+			.useHttpGet()
+			.execute();
+		return (MeasureReport) outParams.getParameterFirstRep().getResource();
+	}
+
+	/**
+	 * @return per stratum value, its population counts and its score
+	 */
+	private static Map<String, String> strata(MeasureReport theReport) {
+		Map<String, String> strata = new TreeMap<>();
+		theReport.getGroupFirstRep().getStratifierFirstRep().getStratum().forEach(stratum -> strata.put(
+			stratum.getValue().hasText() ? stratum.getValue().getText() : stratum.getValue().getCodingFirstRep().getCode(),
+			stratum.getPopulation().stream()
+				.map(population -> population.getCode().getCodingFirstRep().getCode() + "=" + population.getCount())
+				.sorted()
+				.toList()
+				+ " score=" + (stratum.hasMeasureScore() ? stratum.getMeasureScore().getValue() : null)));
+		return strata;
+	}
+
+	private static Map<String, Integer> counts(MeasureReport theReport) {
+		Map<String, Integer> counts = new LinkedHashMap<>();
+		theReport.getGroupFirstRep().getPopulation()
+			.forEach(population -> counts.put(population.getCode().getCodingFirstRep().getCode(), population.getCount()));
+		return counts;
+	}
+}
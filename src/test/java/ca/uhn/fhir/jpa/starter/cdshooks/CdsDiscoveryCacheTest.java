@@ -0,0 +1,68 @@
+package ca.uhn.fhir.jpa.starter.cdshooks;
+
+import ca.uhn.hapi.fhir.cdshooks.api.ICdsServiceRegistry;
+import org.hl7.fhir.r4.model.Library;
+import org.hl7.fhir.r4.model.PlanDefinition;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+
+import java.nio.charset.StandardCharsets;
+
+class CdsDiscoveryCacheTest {
+
+	private static final byte[] DISCOVERY = "{\"services\":[]}".getBytes(StandardCharsets.UTF_8);
+
+	private final CdsDiscoveryCache cache = new CdsDiscoveryCache();
+
+	@Test
+	void testRenderedDocumentIsKeptPerPrettyFlag() {
+		CdsDiscoveryCache.Rendered rendered = cache.put(false, cache.getGeneration(), DISCOVERY);
+
+		Assertions.assertSame(rendered, cache.get(false));
+		Assertions.assertNull(cache.get(true));
+		Assertions.assertTrue(rendered.getEtag().startsWith("\""));
+	}
+
+	@Test
+	void testRegistryChangeInvalidates() {
+		ICdsServiceRegistry registry = cache.invalidating(Mockito.mock(ICdsServiceRegistry.class));
+		cache.put(false, cache.getGeneration(), DISCOVERY);
+
+		registry.getCdsServicesJson();
+		Assertions.assertNotNull(cache.get(false));
+
+		registry.unregisterService("example", "module");
+		Assertions.assertNull(cache.get(false));
+	}
+
+	@Test
+	void testRegistryExceptionsAreRethrownAsIs() {
+		ICdsServiceRegistry target = Mockito.mock(ICdsServiceRegistry.class);
+		Mockito.when(target.getCdsServicesJson()).thenThrow(new IllegalStateException("boom"));
+
+		Assertions.assertThrows(IllegalStateException.class, () -> cache.invalidating(target).getCdsServicesJson());
+	}
+
+	@Test
+	void testPlanDefinitionWriteInvalidates() {
+		cache.put(false, cache.getGeneration(), DISCOVERY);
+
+		cache.resourceUpdated(new Library(), new Library());
+		Assertions.assertNotNull(cache.get(false));
+
+		cache.resourceUpdated(new PlanDefinition(), new PlanDefinition());
+		Assertions.assertNull(cache.get(false));
+	}
+
+	@Test
+	void testDocumentRenderedDuringAnInvalidationIsNotKept() {
+		long generation = cache.getGeneration();
+		cache.resourceDeleted(new PlanDefinition());
+
+		CdsDiscoveryCache.Rendered rendered = cache.put(false, generation, DISCOVERY);
+
+		Assertions.assertNotNull(rendered);
+		Assertions.assertNull(cache.get(false));
+	}
+}
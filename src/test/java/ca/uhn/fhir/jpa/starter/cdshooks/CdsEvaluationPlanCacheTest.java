@@ -0,0 +1,140 @@
+package ca.uhn.fhir.jpa.starter.cdshooks;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.interceptor.model.RequestPartitionId;
+import ca.uhn.fhir.jpa.cache.IResourceChangeEvent;
+import ca.uhn.fhir.rest.api.server.SystemRequestDetails;
+import ca.uhn.fhir.rest.server.provider.ProviderConstants;
+import ca.uhn.hapi.fhir.cdshooks.api.ICdsConfigService;
+import ca.uhn.hapi.fhir.cdshooks.svc.cr.ICdsCrServiceFactory;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.r4.model.BooleanType;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.Parameters;
+import org.hl7.fhir.r4.model.PlanDefinition;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentMatchers;
+import org.mockito.Mockito;
+import org.opencds.cqf.fhir.api.Repository;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.List;
+import java.util.Map;
+
+import static ca.uhn.hapi.fhir.cdshooks.svc.cr.CdsCrConstants.APPLY_PARAMETER_DATA;
+
+class CdsEvaluationPlanCacheTest {
+
+	private static final IdType PLAN_DEFINITION_ID = new IdType("PlanDefinition", "hello-world");
+
+	private final CdsEvaluationPlanCache planCache = new CdsEvaluationPlanCache();
+	private final Repository repository = Mockito.mock(Repository.class);
+
+	private void givenPlanDefinition(String theVersion) {
+		PlanDefinition planDefinition = new PlanDefinition();
+		planDefinition.setId(PLAN_DEFINITION_ID);
+		planDefinition.setVersion(theVersion);
+		planDefinition.addLibrary("http://example.org/Library/HelloWorld");
+		Mockito.when(repository.read(ArgumentMatchers.eq(PlanDefinition.class), ArgumentMatchers.any(IIdType.class))).thenReturn(planDefinition);
+	}
+
+	@Test
+	void testPlanIsBuiltOnce() {
+		givenPlanDefinition("1");
+
+		CdsEvaluationPlan plan = planCache.getPlan(null, PLAN_DEFINITION_ID, repository);
+
+		Assertions.assertSame(plan, planCache.getPlan(null, PLAN_DEFINITION_ID, repository));
+		Assertions.assertEquals(List.of("http://example.org/Library/HelloWorld"), plan.getLibraries());
+		Mockito.verify(repository, Mockito.times(1)).read(ArgumentMatchers.eq(PlanDefinition.class), ArgumentMatchers.any(IIdType.class));
+	}
+
+	@Test
+	void testChangedPlanDefinitionDropsThePlan() {
+		givenPlanDefinition("1");
+		planCache.getPlan(null, PLAN_DEFINITION_ID, repository);
+		planCache.getPlan("tenant-a", PLAN_DEFINITION_ID, repository);
+
+		IResourceChangeEvent event = Mockito.mock(IResourceChangeEvent.class);
+		Mockito.when(event.getUpdatedResourceIds()).thenReturn(List.of(PLAN_DEFINITION_ID));
+		givenPlanDefinition("2");
+		planCache.handleChange(event);
+
+		Assertions.assertEquals("2", planCache.getPlan(null, PLAN_DEFINITION_ID, repository).getPlanDefinition().getVersion());
+		Assertions.assertEquals("2", planCache.getPlan("tenant-a", PLAN_DEFINITION_ID, repository).getPlanDefinition().getVersion());
+	}
+
+	@Test
+	void testPartitionsHaveTheirOwnPlans() {
+		givenPlanDefinition("1");
+		CdsEvaluationPlan planA = planCache.getPlan("tenant-a", PLAN_DEFINITION_ID, repository);
+		givenPlanDefinition("2");
+		CdsEvaluationPlan planB = planCache.getPlan("tenant-b", PLAN_DEFINITION_ID, repository);
+
+		Assertions.assertEquals("1", planA.getPlanDefinition().getVersion());
+		Assertions.assertEquals("2", planB.getPlanDefinition().getVersion());
+		Assertions.assertSame(planA, planCache.getPlan("tenant-a", PLAN_DEFINITION_ID, repository));
+	}
+
+	@Test
+	void testPartitionOfTheRequest() {
+		SystemRequestDetails tenantRequest = new SystemRequestDetails();
+		tenantRequest.setTenantId("tenant-a");
+		SystemRequestDetails partitionRequest = new SystemRequestDetails();
+		partitionRequest.setRequestPartitionId(RequestPartitionId.fromPartitionId(1));
+		SystemRequestDetails otherPartitionRequest = new SystemRequestDetails();
+		otherPartitionRequest.setRequestPartitionId(RequestPartitionId.fromPartitionId(2));
+
+		Assertions.assertNull(CdsEvaluationPlanCache.partitionOf(new SystemRequestDetails()));
+		Assertions.assertEquals("tenant-a", CdsEvaluationPlanCache.partitionOf(tenantRequest));
+		Assertions.assertNotEquals(CdsEvaluationPlanCache.partitionOf(partitionRequest), CdsEvaluationPlanCache.partitionOf(otherPartitionRequest));
+	}
+
+	@Test
+	void testBindAddsTheRequestIndependentParameters() {
+		givenPlanDefinition("1");
+		Parameters parameters = new Parameters();
+		parameters.addParameter().setName(APPLY_PARAMETER_DATA).setResource(new Bundle());
+
+		planCache.getPlan(null, PLAN_DEFINITION_ID, repository).bind(parameters);
+
+		Assertions.assertTrue(parameters.getParameter(CdsEvaluationPlan.APPLY_PARAMETER_PLAN_DEFINITION).getResource() instanceof PlanDefinition);
+		Assertions.assertFalse(((BooleanType) parameters.getParameter(CdsEvaluationPlan.APPLY_PARAMETER_USE_SERVER_DATA).getValue()).booleanValue());
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	void testServicesFromTheFactoryGetThePlanCache() {
+		Mockito.when(repository.fhirContext()).thenReturn(FhirContext.forR4Cached());
+		SystemRequestDetails requestDetails = new SystemRequestDetails();
+		requestDetails.setId(PLAN_DEFINITION_ID);
+		UpdatedCdsCrServiceR4 service = new UpdatedCdsCrServiceR4(requestDetails, repository, Mockito.mock(ICdsConfigService.class));
+		ICdsCrServiceFactory factory = theServiceId -> service;
+		ObjectProvider<CdsEvaluationPlanCache> planCacheProvider = Mockito.mock(ObjectProvider.class);
+		Mockito.when(planCacheProvider.getObject()).thenReturn(planCache);
+
+		ICdsCrServiceFactory decorated = (ICdsCrServiceFactory) StarterCdsHooksConfig.cdsCrServicePlanCacheInjection(planCacheProvider)
+				.postProcessAfterInitialization(factory, "cdsCrServiceFactory");
+
+		Assertions.assertSame(service, decorated.create("hello-world"));
+		Assertions.assertSame(planCache, ReflectionTestUtils.getField(service, "planCache"));
+	}
+
+	@Test
+	void testBoundPlanIsAppliedAtTypeLevel() {
+		Parameters parameters = new Parameters();
+		parameters.addParameter().setName(CdsEvaluationPlan.APPLY_PARAMETER_PLAN_DEFINITION).setResource(new PlanDefinition());
+		Mockito.when(repository.fhirContext()).thenReturn(FhirContext.forR4Cached());
+		SystemRequestDetails requestDetails = new SystemRequestDetails();
+		requestDetails.setId(PLAN_DEFINITION_ID);
+		UpdatedCdsCrServiceR4 service = new UpdatedCdsCrServiceR4(requestDetails, repository, Mockito.mock(ICdsConfigService.class));
+
+		service.invokeApply(parameters);
+
+		Mockito.verify(repository).invoke(PlanDefinition.class, ProviderConstants.CR_OPERATION_R5_APPLY, parameters, Bundle.class, Map.of());
+		Mockito.verify(repository, Mockito.never()).invoke(ArgumentMatchers.any(IIdType.class), ArgumentMatchers.anyString(), ArgumentMatchers.any(), ArgumentMatchers.any(), ArgumentMatchers.any());
+	}
+}
@@ -0,0 +1,243 @@
+package ca.uhn.fhir.jpa.starter.cdshooks;
+
+import ca.uhn.fhir.jpa.starter.AppProperties;
+import ca.uhn.hapi.fhir.cdshooks.api.ICdsServiceRegistry;
+import ca.uhn.hapi.fhir.cdshooks.api.json.CdsServiceResponseCardJson;
+import ca.uhn.hapi.fhir.cdshooks.api.json.CdsServiceJson;
+import ca.uhn.hapi.fhir.cdshooks.api.json.CdsServiceResponseJson;
+import ca.uhn.hapi.fhir.cdshooks.api.json.CdsServicesJson;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.read.ListAppender;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.servlet.ServletInputStream;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentMatchers;
+import org.mockito.Mockito;
+import org.slf4j.LoggerFactory;
+import org.springframework.mock.web.DelegatingServletInputStream;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+class CdsHooksServletTest {
+
+	private static final String REQUEST = "{\"hookInstance\":\"instance-1\",\"hook\":\"patient-view\"}";
+
+	private final CdsHooksProperties cdsHooksProperties = new CdsHooksProperties();
+	private final ICdsServiceRegistry cdsServiceRegistry = Mockito.mock(ICdsServiceRegistry.class);
+	private final CdsDiscoveryCache discoveryCache = new CdsDiscoveryCache();
+	private final CdsServiceBulkhead serviceBulkhead = new CdsServiceBulkhead(cdsHooksProperties.getBulkhead());
+	private final CdsHooksServlet servlet = new CdsHooksServlet();
+	private final ListAppender<ILoggingEvent> logs = new ListAppender<>();
+
+	@BeforeEach
+	void setUp() {
+		cdsHooksProperties.getBulkhead().setEnabled(false);
+		ReflectionTestUtils.setField(servlet, "appProperties", new AppProperties());
+		ReflectionTestUtils.setField(servlet, "providerConfiguration", new ProviderConfiguration(false, null));
+		ReflectionTestUtils.setField(servlet, "cdsHooksProperties", cdsHooksProperties);
+		ReflectionTestUtils.setField(servlet, "discoveryCache", discoveryCache);
+		ReflectionTestUtils.setField(servlet, "serviceBulkhead", serviceBulkhead);
+		ReflectionTestUtils.setField(servlet, "cdsServiceRegistry", discoveryCache.invalidating(cdsServiceRegistry));
+		ReflectionTestUtils.setField(servlet, "objectMapper", new ObjectMapper());
+
+		CdsServiceResponseCardJson card = new CdsServiceResponseCardJson();
+		card.setSummary("Hello World!");
+		CdsServiceResponseJson serviceResponse = new CdsServiceResponseJson();
+		serviceResponse.addCard(card);
+		CdsServicesJson services = new CdsServicesJson();
+		services.addService(new CdsServiceJson().setId("example"));
+		Mockito.when(cdsServiceRegistry.getCdsServicesJson()).thenReturn(services);
+		Mockito.when(cdsServiceRegistry.callService(ArgumentMatchers.eq("example"), ArgumentMatchers.any())).thenReturn(serviceResponse);
+
+		logs.start();
+		((Logger) LoggerFactory.getLogger(CdsHooksServlet.class)).addAppender(logs);
+	}
+
+	@AfterEach
+	void tearDown() {
+		((Logger) LoggerFactory.getLogger(CdsHooksServlet.class)).detachAppender(logs);
+	}
+
+	private MockHttpServletResponse post(String thePretty) throws Exception {
+		MockHttpServletRequest request = new MockHttpServletRequest("POST", "/cds-services/example");
+		request.setPathInfo("/example");
+		request.setContentType("application/json");
+		request.setContent(REQUEST.getBytes(StandardCharsets.UTF_8));
+		if (thePretty != null) {
+			request.setParameter("_pretty", thePretty);
+		}
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		servlet.doPost(request, response);
+		return response;
+	}
+
+	/**
+	 * A POST whose body runs theOnRead when the servlet starts reading it
+	 */
+	private MockHttpServletResponse post(Runnable theOnRead) throws Exception {
+		InputStream body = new ByteArrayInputStream(REQUEST.getBytes(StandardCharsets.UTF_8)) {
+			private boolean read;
+
+			@Override
+			public synchronized int read(byte[] theBuffer, int theOffset, int theLength) {
+				if (!read) {
+					read = true;
+					theOnRead.run();
+				}
+				return super.read(theBuffer, theOffset, theLength);
+			}
+		};
+		MockHttpServletRequest request = new MockHttpServletRequest("POST", "/cds-services/example") {
+			@Override
+			public ServletInputStream getInputStream() {
+				return new DelegatingServletInputStream(body);
+			}
+		};
+		request.setPathInfo("/example");
+		request.setContentType("application/json");
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		servlet.doPost(request, response);
+		return response;
+	}
+
+	private void enableBulkhead() {
+		cdsHooksProperties.getBulkhead().setEnabled(true);
+		cdsHooksProperties.getBulkhead().setMaxConcurrent(1);
+		cdsHooksProperties.getBulkhead().setMaxQueue(0);
+	}
+
+	private MockHttpServletResponse discover(String theIfNoneMatch) throws Exception {
+		MockHttpServletRequest request = new MockHttpServletRequest("GET", "/cds-services");
+		if (theIfNoneMatch != null) {
+			request.addHeader("If-None-Match", theIfNoneMatch);
+		}
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		servlet.doGet(request, response);
+		return response;
+	}
+
+	private boolean logged(String theText) {
+		return logs.list.stream().anyMatch(event -> event.getFormattedMessage().contains(theText));
+	}
+
+	@Test
+	void testResponseIsCompactByDefault() throws Exception {
+		String body = post(null).getContentAsString();
+
+		Assertions.assertTrue(body.contains("\"summary\":\"Hello World!\""), body);
+		Assertions.assertFalse(body.contains("\n"), body);
+	}
+
+	@Test
+	void testPrettyParameterPrettyPrints() throws Exception {
+		String body = post("true").getContentAsString();
+
+		Assertions.assertTrue(body.contains("\"summary\": \"Hello World!\""), body);
+		Assertions.assertTrue(body.contains("\n  "), body);
+	}
+
+	@Test
+	void testPrettyParameterOverridesTheConfiguration() throws Exception {
+		cdsHooksProperties.setPrettyPrint(true);
+
+		Assertions.assertTrue(post(null).getContentAsString().contains("\n"));
+		Assertions.assertFalse(post("false").getContentAsString().contains("\n"));
+	}
+
+	@Test
+	void testPayloadsAreNotLoggedByDefault() throws Exception {
+		post(null);
+
+		Assertions.assertTrue(logged("instance-1"), "the hook instance is still logged");
+		Assertions.assertFalse(logged(REQUEST));
+		Assertions.assertFalse(logged("Hello World!"));
+	}
+
+	@Test
+	void testPayloadsAreLoggedWhenConfigured() throws Exception {
+		cdsHooksProperties.setLogPayloads(true);
+
+		String body = post(null).getContentAsString();
+
+		Assertions.assertTrue(logged(REQUEST));
+		Assertions.assertTrue(logged(body));
+	}
+
+	@Test
+	void testSlotIsNotHeldWhileTheBodyIsRead() throws Exception {
+		enableBulkhead();
+		AtomicBoolean slotFreeDuringRead = new AtomicBoolean();
+
+		MockHttpServletResponse response = post(() -> {
+			try (CdsServiceBulkhead.Permit permit = serviceBulkhead.tryAcquire("example")) {
+				slotFreeDuringRead.set(permit != null);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		});
+
+		Assertions.assertEquals(200, response.getStatus());
+		Assertions.assertTrue(slotFreeDuringRead.get());
+	}
+
+	@Test
+	void testSaturatedServiceIsRejectedBeforeTheBodyIsRead() throws Exception {
+		enableBulkhead();
+		AtomicBoolean bodyRead = new AtomicBoolean();
+
+		MockHttpServletResponse response;
+		try (CdsServiceBulkhead.Permit permit = serviceBulkhead.tryAcquire("example")) {
+			Assertions.assertNotNull(permit);
+			response = post(() -> bodyRead.set(true));
+		}
+
+		Assertions.assertEquals(503, response.getStatus());
+		Assertions.assertFalse(bodyRead.get());
+		Mockito.verify(cdsServiceRegistry, Mockito.never()).callService(ArgumentMatchers.any(), ArgumentMatchers.any());
+	}
+
+	@Test
+	void testCachedDiscoveryDoesNotAskTheRegistry() throws Exception {
+		MockHttpServletResponse first = discover(null);
+		MockHttpServletResponse second = discover(null);
+
+		Assertions.assertTrue(first.getContentAsString().contains("\"example\""), first.getContentAsString());
+		Assertions.assertEquals(first.getContentAsString(), second.getContentAsString());
+		Assertions.assertEquals(first.getHeader("ETag"), second.getHeader("ETag"));
+		Mockito.verify(cdsServiceRegistry, Mockito.times(1)).getCdsServicesJson();
+	}
+
+	@Test
+	void testIfNoneMatchAnswersNotModified() throws Exception {
+		String etag = discover(null).getHeader("ETag");
+
+		MockHttpServletResponse notModified = discover(etag);
+
+		Assertions.assertEquals(304, notModified.getStatus());
+		Assertions.assertEquals(0, notModified.getContentAsByteArray().length);
+	}
+
+	@Test
+	void testUnregisteredServiceIsNoLongerDiscovered() throws Exception {
+		String etag = discover(null).getHeader("ETag");
+		Mockito.when(cdsServiceRegistry.getCdsServicesJson()).thenReturn(new CdsServicesJson());
+
+		ICdsServiceRegistry registry = (ICdsServiceRegistry) ReflectionTestUtils.getField(servlet, "cdsServiceRegistry");
+		registry.unregisterService("example", "module");
+		MockHttpServletResponse response = discover(etag);
+
+		Assertions.assertEquals(200, response.getStatus());
+		Assertions.assertFalse(response.getContentAsString().contains("\"example\""), response.getContentAsString());
+		Assertions.assertNotEquals(etag, response.getHeader("ETag"));
+	}
+}
@@ -0,0 +1,81 @@
+package ca.uhn.fhir.jpa.starter.cdshooks;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+class CdsServiceBulkheadTest {
+
+	private CdsServiceBulkhead newBulkhead(int theMaxConcurrent, int theMaxQueue, long theMaxWaitMs) {
+		CdsHooksBulkheadProperties properties = new CdsHooksBulkheadProperties();
+		properties.setMaxConcurrent(theMaxConcurrent);
+		properties.setMaxQueue(theMaxQueue);
+		properties.setMaxWaitMs(theMaxWaitMs);
+		return new CdsServiceBulkhead(properties);
+	}
+
+	@Test
+	void testFullQueueIsRejectedAtOnce() throws Exception {
+		CdsServiceBulkhead bulkhead = newBulkhead(1, 0, 5000);
+
+		CdsServiceBulkhead.Permit permit = bulkhead.tryAcquire("slow-plan");
+		Assertions.assertNotNull(permit);
+
+		long start = System.nanoTime();
+		Assertions.assertNull(bulkhead.tryAcquire("slow-plan"));
+		Assertions.assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 1000);
+
+		// Another service is not affected
+		Assertions.assertNotNull(bulkhead.tryAcquire("other-plan"));
+
+		permit.close();
+		Assertions.assertNotNull(bulkhead.tryAcquire("slow-plan"));
+	}
+
+	@Test
+	void testSaturationCheckDoesNotTakeASlot() throws Exception {
+		CdsServiceBulkhead bulkhead = newBulkhead(1, 0, 5000);
+
+		Assertions.assertFalse(bulkhead.rejectIfSaturated("checked-plan"));
+		CdsServiceBulkhead.Permit permit = bulkhead.tryAcquire("checked-plan");
+		Assertions.assertNotNull(permit);
+		Assertions.assertTrue(bulkhead.rejectIfSaturated("checked-plan"));
+
+		permit.close();
+		Assertions.assertFalse(bulkhead.rejectIfSaturated("checked-plan"));
+	}
+
+	@Test
+	void testQueuedCallGetsTheReleasedSlot() throws Exception {
+		CdsServiceBulkhead bulkhead = newBulkhead(1, 1, 5000);
+		CdsServiceBulkhead.Permit permit = bulkhead.tryAcquire("queued-plan");
+
+		CountDownLatch waiting = new CountDownLatch(1);
+		CompletableFuture<CdsServiceBulkhead.Permit> queued = CompletableFuture.supplyAsync(() -> {
+			waiting.countDown();
+			try {
+				return bulkhead.tryAcquire("queued-plan");
+			} catch (InterruptedException e) {
+				throw new IllegalStateException(e);
+			}
+		});
+		waiting.await();
+		Thread.sleep(100);
+		permit.close();
+
+		Assertions.assertNotNull(queued.get(5, TimeUnit.SECONDS));
+	}
+
+	@Test
+	void testQueuedCallIsRejectedAfterMaxWait() throws Exception {
+		CdsServiceBulkhead bulkhead = newBulkhead(1, 1, 100);
+		Assertions.assertNotNull(bulkhead.tryAcquire("busy-plan"));
+
+		long start = System.nanoTime();
+		Assertions.assertNull(bulkhead.tryAcquire("busy-plan"));
+		Assertions.assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 100);
+	}
+}
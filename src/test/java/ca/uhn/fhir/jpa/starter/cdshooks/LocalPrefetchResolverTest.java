@@ -0,0 +1,189 @@
+package ca.uhn.fhir.jpa.starter.cdshooks;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
+import ca.uhn.fhir.jpa.searchparam.MatchUrlService;
+import ca.uhn.fhir.jpa.searchparam.SearchParameterMap;
+import ca.uhn.fhir.jpa.starter.interceptors.IncomingRequestInterceptor;
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.FifoMemoryPagingProvider;
+import ca.uhn.fhir.rest.server.RestfulServer;
+import ca.uhn.fhir.rest.server.SimpleBundleProvider;
+import ca.uhn.fhir.rest.server.exceptions.AuthenticationException;
+import ca.uhn.fhir.rest.server.exceptions.ForbiddenOperationException;
+import ca.uhn.hapi.fhir.cdshooks.api.ICdsHooksDaoAuthorizationSvc;
+import ca.uhn.hapi.fhir.cdshooks.api.json.CdsServiceRequestAuthorizationJson;
+import ca.uhn.hapi.fhir.cdshooks.api.json.CdsServiceRequestJson;
+import ca.uhn.hapi.fhir.cdshooks.svc.prefetch.CdsPrefetchDaoSvc;
+import ca.uhn.hapi.fhir.cdshooks.svc.prefetch.CdsPrefetchFhirClientSvc;
+import ca.uhn.hapi.fhir.cdshooks.svc.prefetch.CdsResolutionStrategySvc;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.r4.model.Patient;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentMatchers;
+import org.mockito.Mockito;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.web.context.request.RequestContextHolder;
+import org.springframework.web.context.request.ServletRequestAttributes;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+class LocalPrefetchResolverTest {
+
+	private static final String SERVER_ADDRESS = "http://localhost:8080/fhir";
+	private static final String VALID_TOKEN = "valid-token";
+	private static final String FORBIDDEN_TOKEN = "forbidden-token";
+
+	private RestfulServer restfulServer;
+	private MockHttpServletResponse cdsHooksResponse;
+	private ModuleConfigurationPrefetchSvc prefetchSvc;
+	private LocalPrefetchResolver resolver;
+
+	@BeforeEach
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	void setUp() {
+		FhirContext fhirContext = FhirContext.forR4Cached();
+		restfulServer = new RestfulServer(fhirContext);
+		FifoMemoryPagingProvider pagingProvider = new FifoMemoryPagingProvider(10);
+		pagingProvider.setDefaultPageSize(20);
+		pagingProvider.setMaximumPageSize(50);
+		restfulServer.setPagingProvider(pagingProvider);
+
+		// What the AuthenticationInterceptor answers: 401 without a valid token, 403 for a forbidden one
+		restfulServer.getInterceptorService().registerAnonymousInterceptor(Pointcut.SERVER_INCOMING_REQUEST_POST_PROCESSED, (pointcut, params) -> {
+			String authorization = params.get(HttpServletRequest.class).getHeader(Constants.HEADER_AUTHORIZATION);
+			if (("Bearer " + FORBIDDEN_TOKEN).equals(authorization)) {
+				throw new ForbiddenOperationException("Forbidden");
+			}
+			if (!("Bearer " + VALID_TOKEN).equals(authorization)) {
+				throw new AuthenticationException("Invalid or missing Authorization header.");
+			}
+		});
+		restfulServer.getInterceptorService().registerInterceptor(new IncomingRequestInterceptor());
+
+		IFhirResourceDao patientDao = Mockito.mock(IFhirResourceDao.class);
+		Mockito.when(patientDao.read(ArgumentMatchers.any(IIdType.class), ArgumentMatchers.any(RequestDetails.class)))
+			.thenAnswer(invocation -> new Patient().setId(invocation.<IIdType>getArgument(0).getIdPart()));
+		Mockito.when(patientDao.search(ArgumentMatchers.any(SearchParameterMap.class), ArgumentMatchers.any(RequestDetails.class)))
+			.thenReturn(new SimpleBundleProvider(new Patient().setId("123")));
+		DaoRegistry daoRegistry = Mockito.mock(DaoRegistry.class);
+		Mockito.when(daoRegistry.getResourceDao(ArgumentMatchers.anyString())).thenReturn(patientDao);
+		MatchUrlService matchUrlService = Mockito.mock(MatchUrlService.class);
+		Mockito.when(matchUrlService.translateMatchUrl(ArgumentMatchers.anyString(), ArgumentMatchers.any()))
+			.thenAnswer(invocation -> new SearchParameterMap());
+
+		resolver = new LocalPrefetchResolver(restfulServer, daoRegistry, matchUrlService, SERVER_ADDRESS, List.of());
+
+		CdsPrefetchDaoSvc prefetchDaoSvc = Mockito.mock(CdsPrefetchDaoSvc.class);
+		Mockito.when(prefetchDaoSvc.getFhirContext()).thenReturn(fhirContext);
+		prefetchSvc = new ModuleConfigurationPrefetchSvc(
+			Mockito.mock(CdsResolutionStrategySvc.class),
+			prefetchDaoSvc,
+			Mockito.mock(CdsPrefetchFhirClientSvc.class),
+			Mockito.mock(ICdsHooksDaoAuthorizationSvc.class),
+			new CdsHooksPrefetchProperties(),
+			resolver,
+			null);
+
+		cdsHooksResponse = new MockHttpServletResponse();
+		RequestContextHolder.setRequestAttributes(new ServletRequestAttributes(new MockHttpServletRequest("POST", "/cds-services/example"), cdsHooksResponse));
+	}
+
+	@AfterEach
+	void tearDown() {
+		RequestContextHolder.resetRequestAttributes();
+		prefetchSvc.shutdown();
+	}
+
+	@Test
+	void testAuthorizedQueriesAreResolved() {
+		Map<String, IBaseResource> resolved = resolve(VALID_TOKEN, Map.of("patient", "Patient/123"));
+
+		Assertions.assertEquals(Set.of("patient"), resolved.keySet());
+		Assertions.assertEquals("123", resolved.get("patient").getIdElement().getIdPart());
+	}
+
+	@Test
+	void testUnauthenticatedQueryIsOmitted() {
+		Assertions.assertTrue(resolve("expired-token", Map.of("patient", "Patient/123")).isEmpty());
+		Assertions.assertTrue(resolve(null, Map.of("patient", "Patient/123")).isEmpty());
+	}
+
+	@Test
+	void testForbiddenQueryIsOmitted() {
+		Assertions.assertTrue(resolve(FORBIDDEN_TOKEN, Map.of("patient", "Patient/123")).isEmpty());
+	}
+
+	@Test
+	void testRouteAllowListApplies() {
+		Map<String, String> urls = new LinkedHashMap<>();
+		urls.put("patient", "Patient/123");
+		urls.put("observations", "Observation?subject=Patient/123");
+
+		Map<String, IBaseResource> resolved = resolve(VALID_TOKEN, urls);
+
+		// Only Patient is allowed by the default HCH_ALLOWED_RESOURCE_TYPES
+		Assertions.assertEquals(Set.of("patient"), resolved.keySet());
+	}
+
+	@Test
+	void testOutgoingResponseDenialOmitsTheKey() {
+		// What the AuthorizationInterceptor outgoing rules do for a resource the token may not see
+		restfulServer.getInterceptorService().registerAnonymousInterceptor(Pointcut.SERVER_OUTGOING_RESPONSE, (pointcut, params) -> {
+			throw new ForbiddenOperationException("Access denied by rule");
+		});
+
+		Assertions.assertTrue(resolve(VALID_TOKEN, Map.of("patient", "Patient/123")).isEmpty());
+	}
+
+	@Test
+	void testHooksNeverWriteTheCdsHooksResponse() throws Exception {
+		restfulServer.getInterceptorService().registerAnonymousInterceptor(Pointcut.SERVER_OUTGOING_RESPONSE, (pointcut, params) -> {
+			HttpServletResponse response = params.get(HttpServletResponse.class);
+			response.setStatus(418);
+			response.setHeader("X-Prefetch", "leaked");
+			try {
+				response.getWriter().write("leaked");
+			} catch (java.io.IOException e) {
+				throw new IllegalStateException(e);
+			}
+		});
+
+		Assertions.assertNotNull(resolver.prepare("Patient/123", VALID_TOKEN).call());
+
+		Assertions.assertEquals(200, cdsHooksResponse.getStatus());
+		Assertions.assertNull(cdsHooksResponse.getHeader("X-Prefetch"));
+		Assertions.assertEquals("", cdsHooksResponse.getContentAsString());
+	}
+
+	@Test
+	void testSearchPageIsSizedLikeTheRestPath() {
+		Assertions.assertEquals(20, resolver.pageSize(null));
+		Assertions.assertEquals(5, resolver.pageSize(5));
+		Assertions.assertEquals(50, resolver.pageSize(500));
+	}
+
+	private Map<String, IBaseResource> resolve(String theAccessToken, Map<String, String> theUrls) {
+		CdsServiceRequestJson request = new CdsServiceRequestJson();
+		request.setFhirServer(SERVER_ADDRESS);
+		if (theAccessToken != null) {
+			CdsServiceRequestAuthorizationJson authorization = new CdsServiceRequestAuthorizationJson();
+			authorization.setAccessToken(theAccessToken);
+			request.setServiceRequestAuthorizationJson(authorization);
+		}
+		return prefetchSvc.executePrefetch(prefetchSvc.buildQueries(request, theUrls));
+	}
+}
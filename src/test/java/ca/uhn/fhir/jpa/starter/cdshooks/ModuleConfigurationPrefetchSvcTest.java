@@ -0,0 +1,207 @@
+package ca.uhn.fhir.jpa.starter.cdshooks;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.hapi.fhir.cdshooks.api.ICdsHooksDaoAuthorizationSvc;
+import ca.uhn.hapi.fhir.cdshooks.api.ICdsServiceMethod;
+import ca.uhn.hapi.fhir.cdshooks.api.json.CdsServiceJson;
+import ca.uhn.hapi.fhir.cdshooks.api.json.CdsServiceRequestJson;
+import ca.uhn.hapi.fhir.cdshooks.svc.prefetch.CdsPrefetchDaoSvc;
+import ca.uhn.hapi.fhir.cdshooks.svc.prefetch.CdsPrefetchFhirClientSvc;
+import ca.uhn.hapi.fhir.cdshooks.svc.prefetch.CdsResolutionStrategySvc;
+import io.micrometer.core.instrument.Metrics;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.hl7.fhir.r4.model.Patient;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.ArgumentMatchers;
+import org.mockito.Mockito;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+class ModuleConfigurationPrefetchSvcTest {
+
+	private ModuleConfigurationPrefetchSvc prefetchSvc;
+
+	@AfterEach
+	void tearDown() {
+		prefetchSvc.shutdown();
+	}
+
+	@Test
+	void testSlowAndFailingQueriesAreOmitted() {
+		CdsHooksPrefetchProperties properties = new CdsHooksPrefetchProperties();
+		properties.setQueryTimeoutMs(200);
+		properties.setDeadlineMs(1000);
+		prefetchSvc = newPrefetchSvc(properties);
+
+		Map<String, Callable<IBaseResource>> queries = new LinkedHashMap<>();
+		queries.put("item1", () -> query(0));
+		queries.put("item2", () -> query(5000));
+		queries.put("item3", () -> {
+			throw new IllegalStateException("HTTP 500");
+		});
+		queries.put("item4", () -> query(0));
+
+		long start = System.nanoTime();
+		Map<String, IBaseResource> resolved = prefetchSvc.executePrefetch(queries);
+		long elapsedMs = (System.nanoTime() - start) / 1_000_000;
+
+		Assertions.assertEquals(List.of("item1", "item4"), List.copyOf(resolved.keySet()));
+		Assertions.assertTrue(elapsedMs < 2000, "prefetch took " + elapsedMs + "ms");
+	}
+
+	@Test
+	void testQueriesRunConcurrently() {
+		CdsHooksPrefetchProperties properties = new CdsHooksPrefetchProperties();
+		properties.setThreads(6);
+		prefetchSvc = newPrefetchSvc(properties);
+
+		Map<String, Callable<IBaseResource>> queries = new LinkedHashMap<>();
+		for (int i = 1; i <= 6; i++) {
+			queries.put("item" + i, () -> query(300));
+		}
+
+		long start = System.nanoTime();
+		Map<String, IBaseResource> resolved = prefetchSvc.executePrefetch(queries);
+		long elapsedMs = (System.nanoTime() - start) / 1_000_000;
+
+		Assertions.assertEquals(6, resolved.size());
+		Assertions.assertTrue(elapsedMs < 6 * 300, "prefetch took " + elapsedMs + "ms");
+	}
+
+	@Test
+	void testBatchBundleHasOneGetEntryPerQuery() {
+		prefetchSvc = newPrefetchSvc(new CdsHooksPrefetchProperties());
+
+		Bundle batch = (Bundle) prefetchSvc.batchBundle(List.of("Patient/123", "Observation?subject=Patient/123&code=1234-5"));
+
+		Assertions.assertEquals(Bundle.BundleType.BATCH, batch.getType());
+		Assertions.assertEquals(2, batch.getEntry().size());
+		Assertions.assertEquals(Bundle.HTTPVerb.GET, batch.getEntry().get(1).getRequest().getMethod());
+		Assertions.assertEquals("Observation?subject=Patient/123&code=1234-5", batch.getEntry().get(1).getRequest().getUrl());
+	}
+
+	@Test
+	void testBatchResponseIsUnpackedByPosition() {
+		prefetchSvc = newPrefetchSvc(new CdsHooksPrefetchProperties());
+		Bundle response = new Bundle().setType(Bundle.BundleType.BATCHRESPONSE);
+		response.addEntry().setResource(new Patient().setId("123")).getResponse().setStatus("200 OK");
+		response.addEntry().getResponse().setStatus("404 Not Found");
+		response.addEntry().setResource(new Bundle().setType(Bundle.BundleType.SEARCHSET)).getResponse().setStatus("200 OK");
+
+		Map<String, IBaseResource> resolved = prefetchSvc.unpackBatchResponse(List.of("item1", "item2", "item3"), response);
+
+		Assertions.assertEquals(List.of("item1", "item3"), List.copyOf(resolved.keySet()));
+		Assertions.assertEquals("123", resolved.get("item1").getIdElement().getIdPart());
+	}
+
+	@Test
+	void testNotABatchResponseFallsBack() {
+		prefetchSvc = newPrefetchSvc(new CdsHooksPrefetchProperties());
+		Bundle response = new Bundle().setType(Bundle.BundleType.BATCHRESPONSE);
+		response.addEntry().setResource(new Patient()).getResponse().setStatus("200 OK");
+
+		Assertions.assertNull(prefetchSvc.unpackBatchResponse(List.of("item1", "item2"), response));
+		Assertions.assertNull(prefetchSvc.unpackBatchResponse(List.of("item1"), new OperationOutcome()));
+		Assertions.assertEquals(Map.of(), prefetchSvc.unpackBatchResponse(List.of("item1"), null));
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	void testOnlyTheMissingPrefetchIsResolved() {
+		prefetchSvc = Mockito.spy(newPrefetchSvc(new CdsHooksPrefetchProperties()));
+		Mockito.doReturn(Map.of()).when(prefetchSvc).resolveCachedPrefetch(ArgumentMatchers.any(), ArgumentMatchers.anyMap());
+		CdsServiceJson serviceSpec = new CdsServiceJson();
+		serviceSpec.addPrefetch("item1", "Patient/{{context.patientId}}");
+		serviceSpec.addPrefetch("item2", "MedicationRequest?subject={{context.patientId}}");
+		ICdsServiceMethod serviceMethod = Mockito.mock(ICdsServiceMethod.class);
+		Mockito.when(serviceMethod.getCdsServiceJson()).thenReturn(serviceSpec);
+		CdsServiceRequestJson request = new CdsServiceRequestJson();
+		request.setFhirServer("http://remote.example.org/fhir");
+		request.addContext("patientId", "123");
+		request.addPrefetch("item1", new Patient().setId("123"));
+
+		prefetchSvc.augmentRequest(request, serviceMethod);
+
+		ArgumentCaptor<Map<String, String>> prefetchUrls = ArgumentCaptor.forClass(Map.class);
+		Mockito.verify(prefetchSvc).resolveCachedPrefetch(ArgumentMatchers.same(request), prefetchUrls.capture());
+		Assertions.assertEquals(List.of("item2"), List.copyOf(prefetchUrls.getValue().keySet()));
+	}
+
+	@Test
+	void testBatchedShardsAreRecorded() {
+		CdsHooksPrefetchProperties properties = new CdsHooksPrefetchProperties();
+		properties.setBatchRemote(true);
+		prefetchSvc = Mockito.spy(newPrefetchSvc(properties));
+		Map<String, IBaseResource> batchResults = new LinkedHashMap<>();
+		batchResults.put("batchedPatient", new Patient().setId("123"));
+		batchResults.put("batchedObservations", new Bundle().setType(Bundle.BundleType.SEARCHSET));
+		Mockito.doReturn(batchResults).when(prefetchSvc).executeBatch(ArgumentMatchers.any(), ArgumentMatchers.any(), ArgumentMatchers.anyLong());
+		CdsServiceRequestJson request = new CdsServiceRequestJson();
+		request.setFhirServer("http://remote.example.org/fhir");
+		Map<String, String> urls = new LinkedHashMap<>();
+		urls.put("batchedPatient", "Patient/123");
+		urls.put("batchedObservations", "Observation?subject=Patient/123");
+
+		Map<String, IBaseResource> resolved = prefetchSvc.resolvePrefetch(request, urls);
+
+		Assertions.assertEquals(List.of("batchedPatient", "batchedObservations"), List.copyOf(resolved.keySet()));
+		Assertions.assertEquals(1, Metrics.globalRegistry.get("cds.prefetch.shard").tag("key", "batchedPatient").timer().count());
+		Assertions.assertEquals(1, Metrics.globalRegistry.get("cds.prefetch.shard").tag("key", "batchedObservations").timer().count());
+	}
+
+	@Test
+	void testFallbackAfterUnsupportedBatchKeepsTheDeadline() {
+		CdsHooksPrefetchProperties properties = new CdsHooksPrefetchProperties();
+		properties.setBatchRemote(true);
+		properties.setDeadlineMs(1000);
+		prefetchSvc = Mockito.spy(newPrefetchSvc(properties));
+		Mockito.doAnswer(invocation -> {
+			Thread.sleep(300);
+			return null;
+		}).when(prefetchSvc).executeBatch(ArgumentMatchers.any(), ArgumentMatchers.any(), ArgumentMatchers.anyLong());
+		Mockito.doReturn(Map.of()).when(prefetchSvc).executePrefetch(ArgumentMatchers.anyMap(), ArgumentMatchers.anyLong());
+		CdsServiceRequestJson request = new CdsServiceRequestJson();
+		request.setFhirServer("http://remote.example.org/fhir");
+		Map<String, String> urls = new LinkedHashMap<>();
+		urls.put("fallbackPatient", "Patient/123");
+		urls.put("fallbackObservations", "Observation?subject=Patient/123");
+
+		long start = System.nanoTime();
+		prefetchSvc.resolvePrefetch(request, urls);
+
+		ArgumentCaptor<Long> batchDeadline = ArgumentCaptor.forClass(Long.class);
+		Mockito.verify(prefetchSvc).executeBatch(ArgumentMatchers.any(), ArgumentMatchers.any(), batchDeadline.capture());
+		ArgumentCaptor<Long> fallbackDeadline = ArgumentCaptor.forClass(Long.class);
+		Mockito.verify(prefetchSvc).executePrefetch(ArgumentMatchers.anyMap(), fallbackDeadline.capture());
+		Assertions.assertEquals(batchDeadline.getValue(), fallbackDeadline.getValue());
+		Assertions.assertTrue(fallbackDeadline.getValue() - start <= TimeUnit.MILLISECONDS.toNanos(1000));
+	}
+
+	private static IBaseResource query(long theSleepMs) throws InterruptedException {
+		Thread.sleep(theSleepMs);
+		return new Patient();
+	}
+
+	private static ModuleConfigurationPrefetchSvc newPrefetchSvc(CdsHooksPrefetchProperties properties) {
+		CdsPrefetchDaoSvc prefetchDaoSvc = Mockito.mock(CdsPrefetchDaoSvc.class);
+		Mockito.when(prefetchDaoSvc.getFhirContext()).thenReturn(FhirContext.forR4Cached());
+
+		return new ModuleConfigurationPrefetchSvc(
+				Mockito.mock(CdsResolutionStrategySvc.class),
+				prefetchDaoSvc,
+				Mockito.mock(CdsPrefetchFhirClientSvc.class),
+				Mockito.mock(ICdsHooksDaoAuthorizationSvc.class),
+				properties,
+				null,
+				null);
+	}
+}
@@ -0,0 +1,85 @@
+package ca.uhn.fhir.jpa.starter.cdshooks;
+
+import ca.uhn.fhir.context.FhirContext;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Observation;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+class PrefetchQueryPlannerTest {
+
+	private final CdsHooksPrefetchProperties properties = new CdsHooksPrefetchProperties();
+	private final PrefetchQueryPlanner planner = new PrefetchQueryPlanner(FhirContext.forR4Cached(), properties);
+
+	@Test
+	void testSmallQueryIsNotSharded() {
+		String url = "Observation?subject=123&code=1,2,3";
+
+		List<PrefetchQueryPlanner.Shard> shards = planner.plan(url);
+
+		Assertions.assertEquals(1, shards.size());
+		Assertions.assertEquals(url, shards.get(0).getUrl());
+	}
+
+	@Test
+	void testLargestOrListIsShardedKeepingTheOtherParameters() {
+		String codes = IntStream.range(0, 250).mapToObj(Integer::toString).collect(Collectors.joining(","));
+
+		List<PrefetchQueryPlanner.Shard> shards = planner.plan("Observation?subject=123&category=laboratory&code=" + codes);
+
+		Assertions.assertEquals(3, shards.size());
+		Assertions.assertEquals(List.of(100, 100, 50), shards.stream().map(PrefetchQueryPlanner.Shard::getValues).collect(Collectors.toList()));
+		Assertions.assertTrue(shards.get(2).getUrl().startsWith("Observation?subject=123&category=laboratory&code=200,201,"));
+	}
+
+	@Test
+	void testChunkSizeFollowsTheMeasuredCost() {
+		String codes = IntStream.range(0, 1000).mapToObj(Integer::toString).collect(Collectors.joining(","));
+		String url = "Observation?code=" + codes;
+		PrefetchQueryPlanner.Shard shard = planner.plan(url).get(0);
+
+		// 100 values in 1000ms: 10ms per value, a 250ms shard holds 25 values
+		for (int i = 0; i < 50; i++) {
+			planner.record("item6", shard, TimeUnit.MILLISECONDS.toNanos(1000));
+		}
+		Assertions.assertEquals(25, planner.chunkSize("Observation?code"));
+
+		// 100 values in 10ms: the chunk size is capped by shardMaxChunkSize
+		for (int i = 0; i < 50; i++) {
+			planner.record("item6", shard, TimeUnit.MILLISECONDS.toNanos(10));
+		}
+		Assertions.assertEquals(properties.getShardMaxChunkSize(), planner.chunkSize("Observation?code"));
+	}
+
+	@Test
+	void testSplitOrListHonoursEscapedCommas() {
+		Assertions.assertEquals(List.of("a", "b\\,c", "d"), PrefetchQueryPlanner.splitOrList("a,b\\,c,d"));
+	}
+
+	@Test
+	void testMergeDeduplicatesById() {
+		Bundle first = new Bundle();
+		first.addEntry().setResource(observation("1"));
+		first.addEntry().setResource(observation("2"));
+		Bundle second = new Bundle();
+		second.addEntry().setResource(observation("2"));
+		second.addEntry().setResource(observation("3"));
+
+		Bundle merged = (Bundle) planner.merge(List.<IBaseResource>of(first, second));
+
+		Assertions.assertEquals(Bundle.BundleType.SEARCHSET, merged.getType());
+		Assertions.assertEquals(List.of("1", "2", "3"), merged.getEntry().stream().map(entry -> entry.getResource().getIdElement().getIdPart()).collect(Collectors.toList()));
+	}
+
+	private static Observation observation(String id) {
+		Observation observation = new Observation();
+		observation.setId("Observation/" + id);
+		return observation;
+	}
+}
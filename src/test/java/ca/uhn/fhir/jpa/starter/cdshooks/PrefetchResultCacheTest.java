@@ -0,0 +1,78 @@
+package ca.uhn.fhir.jpa.starter.cdshooks;
+
+import ca.uhn.fhir.context.FhirContext;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Reference;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+class PrefetchResultCacheTest {
+
+	private static final String SERVER = "http://localhost:8080/fhir";
+	private static final String URL = "Observation?subject=123&category=laboratory";
+
+	private final PrefetchResultCache cache = new PrefetchResultCache(FhirContext.forR4Cached(), new CdsHooksPrefetchProperties());
+
+	@Test
+	void testHitIsScopedToServerPatientAndToken() {
+		Bundle bundle = new Bundle();
+		cache.put(SERVER, "Patient/123", "token-a", URL, bundle, System.nanoTime(), 1_000_000);
+
+		Assertions.assertSame(bundle, cache.get(SERVER, "123", "token-a", URL).getResource());
+		Assertions.assertNull(cache.get(SERVER, "123", "token-b", URL));
+		Assertions.assertNull(cache.get("http://other/fhir", "123", "token-a", URL));
+		Assertions.assertNull(cache.get(SERVER, "456", "token-a", URL));
+	}
+
+	@Test
+	void testWriteInThePatientCompartmentInvalidates() {
+		cache.put(SERVER, "123", null, URL, new Bundle(), System.nanoTime(), 1_000_000);
+		cache.put(SERVER, "456", null, URL, new Bundle(), System.nanoTime(), 1_000_000);
+
+		Observation observation = new Observation();
+		observation.setId("Observation/1");
+		observation.setSubject(new Reference("Patient/123"));
+		cache.resourceCreated(observation);
+
+		Assertions.assertNull(cache.get(SERVER, "123", null, URL));
+		Assertions.assertNotNull(cache.get(SERVER, "456", null, URL));
+	}
+
+	@Test
+	void testPatientWriteInvalidates() {
+		cache.put(SERVER, "123", null, URL, new Bundle(), System.nanoTime(), 1_000_000);
+
+		Patient patient = new Patient();
+		patient.setId("Patient/123");
+		cache.resourceUpdated(patient, patient);
+
+		Assertions.assertNull(cache.get(SERVER, "123", null, URL));
+	}
+
+	@Test
+	void testResultLoadedDuringAWriteIsStale() {
+		long loadStart = System.nanoTime();
+		cache.invalidatePatient("123");
+		cache.put(SERVER, "123", null, URL, new Bundle(), loadStart, 1_000_000);
+
+		Assertions.assertNull(cache.get(SERVER, "123", null, URL));
+	}
+
+	@Test
+	void testStampOutlivesManyOtherPatientWrites() {
+		CdsHooksPrefetchProperties properties = new CdsHooksPrefetchProperties();
+		properties.setResultCacheMaxEntries(1);
+		PrefetchResultCache smallCache = new PrefetchResultCache(FhirContext.forR4Cached(), properties);
+		long loadStart = System.nanoTime();
+		smallCache.put(SERVER, "123", null, URL, new Bundle(), loadStart, 1_000_000);
+
+		smallCache.invalidatePatient("123");
+		for (int i = 0; i < 1_000; i++) {
+			smallCache.invalidatePatient("other-" + i);
+		}
+
+		Assertions.assertNull(smallCache.get(SERVER, "123", null, URL));
+	}
+}
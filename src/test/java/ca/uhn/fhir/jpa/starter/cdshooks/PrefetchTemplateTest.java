@@ -0,0 +1,79 @@
+package ca.uhn.fhir.jpa.starter.cdshooks;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.LocalDate;
+import java.util.List;
+import java.util.Map;
+
+class PrefetchTemplateTest {
+
+	private static final Map<String, String> CONTEXT = Map.of("patientId", "Patient/123", "userId", "Practitioner/a b");
+
+	@Test
+	void testRenderSubstitutesContextAndDates() {
+		PrefetchTemplate template = PrefetchTemplate.compile("Encounter?patient={{context.patientId}}&date=ge{{today-1y}}&_lastUpdated=le{{ today }}");
+
+		Assertions.assertEquals(
+			"Encounter?patient=123&date=ge" + LocalDate.now().minusYears(1) + "&_lastUpdated=le" + LocalDate.now(),
+			template.render(CONTEXT::get));
+	}
+
+	@Test
+	void testSubstitutedValuesAreEncodedButNotTheLiterals() {
+		PrefetchTemplate template = PrefetchTemplate.compile("Task?owner={{context.userId}}&status=requested,accepted");
+
+		Assertions.assertEquals("Task?owner=Practitioner%2Fa%20b&status=requested,accepted", template.render(CONTEXT::get));
+	}
+
+	@Test
+	void testMissingContextValueIsNotRendered() {
+		Assertions.assertNull(PrefetchTemplate.compile("Encounter/{{context.encounterId}}").render(CONTEXT::get));
+	}
+
+	@Test
+	void testTemplateWithoutVariables() {
+		Assertions.assertEquals("Organization?active=true", PrefetchTemplate.compile("Organization?active=true").render(CONTEXT::get));
+	}
+
+	@Test
+	void testUnsupportedVariableIsRejected() {
+		Assertions.assertThrows(IllegalArgumentException.class, () -> PrefetchTemplate.compile("Patient/{{userPractitionerId}}"));
+	}
+
+	@Test
+	void testDefaultTemplatesAreLoadedInOrder() {
+		try (PrefetchTemplateRegistry registry = new PrefetchTemplateRegistry("classpath:cds-prefetch-templates.json", 0)) {
+			Assertions.assertEquals(List.of("item1", "item2", "item3", "item4", "item5", "item6"), List.copyOf(registry.getTemplates().keySet()));
+			Assertions.assertEquals("Patient/123", registry.getTemplates().get("item1").render(CONTEXT::get));
+		}
+	}
+
+	@Test
+	void testTemplatesFileIsReloadedWhenModified(@TempDir Path theDirectory) throws Exception {
+		Path file = theDirectory.resolve("templates.json");
+		Files.writeString(file, "{\"patient\": \"Patient/{{context.patientId}}\"}");
+
+		try (PrefetchTemplateRegistry registry = new PrefetchTemplateRegistry(file.toString(), 0)) {
+			Assertions.assertEquals("Patient/123", registry.getTemplates().get("patient").render(CONTEXT::get));
+
+			Files.writeString(file, "{\"conditions\": \"Condition?patient={{context.patientId}}\"}");
+			Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis() + 1000));
+			registry.reloadIfModified();
+			Assertions.assertEquals(List.of("conditions"), List.copyOf(registry.getTemplates().keySet()));
+			Assertions.assertEquals("Condition?patient=123", registry.getTemplates().get("conditions").render(CONTEXT::get));
+
+			// A broken file keeps the previous templates
+			Files.writeString(file, "{\"broken\": \"Patient/{{unknown}}\"}");
+			Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis() + 2000));
+			registry.reloadIfModified();
+			Assertions.assertEquals(List.of("conditions"), List.copyOf(registry.getTemplates().keySet()));
+			Assertions.assertEquals("Condition?patient=123", registry.getTemplates().get("conditions").render(CONTEXT::get));
+		}
+	}
+}
@@ -0,0 +1,190 @@
+package ca.uhn.fhir.jpa.starter.cr;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+import org.cqframework.cql.cql2elm.CqlCompilerOptions;
+import org.cqframework.cql.cql2elm.LibraryContentType;
+import org.cqframework.cql.cql2elm.model.CompiledLibrary;
+import org.hl7.elm.r1.Library;
+import org.hl7.elm.r1.VersionedIdentifier;
+import org.hl7.fhir.r4.model.Attachment;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Assumptions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.ArgumentMatchers;
+import org.mockito.Mockito;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
+import ca.uhn.fhir.jpa.searchparam.SearchParameterMap;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.SimpleBundleProvider;
+
+class CompiledLibraryStoreTest {
+	private static final VersionedIdentifier HELLO_WORLD = new VersionedIdentifier().withId("HelloWorld").withVersion("1.0.0");
+
+	@TempDir
+	Path directory;
+
+	@SuppressWarnings("unchecked")
+	private final IFhirResourceDao<org.hl7.fhir.r4.model.Library> libraryDao = Mockito.mock(IFhirResourceDao.class);
+	private DaoRegistry daoRegistry;
+	private CompiledLibraryStore store;
+
+	@BeforeEach
+	void setUp() {
+		daoRegistry = Mockito.mock(DaoRegistry.class);
+		Mockito.when(daoRegistry.getResourceDao("Library")).thenReturn((IFhirResourceDao) libraryDao);
+		Mockito.when(libraryDao.getContext()).thenReturn(FhirContext.forR4Cached());
+		store = newStore(directory);
+	}
+
+	private CompiledLibraryStore newStore(Path theDirectory) {
+		// Synchronous writer, the files exist as soon as put returns
+		return new CompiledLibraryStore(theDirectory, daoRegistry, new CqlCompilerOptions(), Runnable::run);
+	}
+
+	private void givenLibraryContent(String theCql) {
+		org.hl7.fhir.r4.model.Library library = new org.hl7.fhir.r4.model.Library();
+		library.addContent(new Attachment().setContentType("text/cql").setData(theCql.getBytes(StandardCharsets.UTF_8)));
+		Mockito.when(libraryDao.search(ArgumentMatchers.any(SearchParameterMap.class), ArgumentMatchers.any(RequestDetails.class)))
+				.thenReturn(new SimpleBundleProvider(library));
+	}
+
+	@Test
+	void testCompiledLibraryIsServedBackAsElm() throws IOException {
+		givenLibraryContent("library HelloWorld version '1.0.0'");
+		Map<VersionedIdentifier, CompiledLibrary> cache = store.persisting(new HashMap<>());
+
+		cache.put(HELLO_WORLD, compiledLibrary());
+
+		try (InputStream elm = store.getLibraryContent(HELLO_WORLD, LibraryContentType.JSON)) {
+			Assertions.assertNotNull(elm);
+			Assertions.assertTrue(new String(elm.readAllBytes(), StandardCharsets.UTF_8).contains("HelloWorld"));
+		}
+		Assertions.assertNull(store.getLibraryContent(HELLO_WORLD, LibraryContentType.CQL));
+	}
+
+	@Test
+	void testChangedContentIsNotServedAfterARestart() {
+		givenLibraryContent("library HelloWorld version '1.0.0'");
+		store.persisting(new HashMap<>()).put(HELLO_WORLD, compiledLibrary());
+
+		givenLibraryContent("library HelloWorld version '1.0.0' define X: 1");
+
+		Assertions.assertNull(newStore(directory).getLibraryContent(HELLO_WORLD, LibraryContentType.JSON));
+	}
+
+	@Test
+	void testLibraryIsSearchedOncePerIdentifier() {
+		givenLibraryContent("library HelloWorld version '1.0.0'");
+		Map<VersionedIdentifier, CompiledLibrary> cache = store.persisting(new HashMap<>());
+
+		// The miss lookup, then the put after the compilation, then a lookup from another engine
+		store.getLibraryContent(HELLO_WORLD, LibraryContentType.JSON);
+		cache.put(HELLO_WORLD, compiledLibrary());
+		store.getLibraryContent(HELLO_WORLD, LibraryContentType.JSON);
+
+		Mockito.verify(libraryDao, Mockito.times(1))
+				.search(ArgumentMatchers.any(SearchParameterMap.class), ArgumentMatchers.any(RequestDetails.class));
+	}
+
+	@Test
+	void testIdentifierWithoutLibraryIsRememberedAndNotStored() throws IOException {
+		Mockito.when(libraryDao.search(ArgumentMatchers.any(SearchParameterMap.class), ArgumentMatchers.any(RequestDetails.class)))
+				.thenReturn(new SimpleBundleProvider());
+		VersionedIdentifier fhirHelpers = new VersionedIdentifier().withId("FHIRHelpers").withVersion("4.0.1");
+
+		Assertions.assertNull(store.getLibraryContent(fhirHelpers, LibraryContentType.JSON));
+		store.persisting(new HashMap<>()).put(fhirHelpers, compiledLibrary());
+		Assertions.assertNull(store.getLibraryContent(fhirHelpers, LibraryContentType.JSON));
+
+		Mockito.verify(libraryDao, Mockito.times(1))
+				.search(ArgumentMatchers.any(SearchParameterMap.class), ArgumentMatchers.any(RequestDetails.class));
+		try (var files = Files.list(directory)) {
+			Assertions.assertEquals(0, files.count());
+		}
+	}
+
+	@Test
+	void testRemovalForgetsTheContentHash() {
+		givenLibraryContent("library HelloWorld version '1.0.0'");
+		Map<VersionedIdentifier, CompiledLibrary> cache = store.persisting(new HashMap<>());
+		cache.put(HELLO_WORLD, compiledLibrary());
+
+		cache.remove(HELLO_WORLD);
+		givenLibraryContent("library HelloWorld version '1.0.0' define X: 1");
+		cache.put(HELLO_WORLD, compiledLibrary());
+
+		Assertions.assertNotNull(store.getLibraryContent(HELLO_WORLD, LibraryContentType.JSON));
+		Mockito.verify(libraryDao, Mockito.times(2))
+				.search(ArgumentMatchers.any(SearchParameterMap.class), ArgumentMatchers.any(RequestDetails.class));
+	}
+
+	@Test
+	void testTamperedLibraryIsDeletedInsteadOfServed() throws IOException {
+		givenLibraryContent("library HelloWorld version '1.0.0'");
+		store.persisting(new HashMap<>()).put(HELLO_WORLD, compiledLibrary());
+		Path file;
+		try (var files = Files.list(directory)) {
+			file = files.findFirst().orElseThrow();
+		}
+		try (var out = new GZIPOutputStream(Files.newOutputStream(file))) {
+			out.write("0000\n{\"library\":{}}".getBytes(StandardCharsets.UTF_8));
+		}
+
+		Assertions.assertNull(store.getLibraryContent(HELLO_WORLD, LibraryContentType.JSON));
+		Assertions.assertFalse(Files.exists(file));
+	}
+
+	@Test
+	void testDirectoryIsCreatedForItsOwnerOnly() throws IOException {
+		Assumptions.assumeTrue(directory.getFileSystem().supportedFileAttributeViews().contains("posix"));
+		Path elmDirectory = directory.resolve("elm");
+
+		newStore(elmDirectory).initialize();
+
+		Assertions.assertEquals("rwx------", PosixFilePermissions.toString(Files.getPosixFilePermissions(elmDirectory)));
+	}
+
+	@Test
+	void testDirectoryWritableByOthersIsRefused() throws IOException {
+		Assumptions.assumeTrue(directory.getFileSystem().supportedFileAttributeViews().contains("posix"));
+		Path elmDirectory = Files.createDirectory(directory.resolve("elm"));
+		Files.setPosixFilePermissions(elmDirectory, PosixFilePermissions.fromString("rwxrwxrwx"));
+
+		Assertions.assertThrows(IllegalStateException.class, () -> newStore(elmDirectory).initialize());
+	}
+
+	@Test
+	void testRemovalDeletesTheStoredLibrary() throws IOException {
+		givenLibraryContent("library HelloWorld version '1.0.0'");
+		Map<VersionedIdentifier, CompiledLibrary> cache = store.persisting(new HashMap<>());
+		cache.put(HELLO_WORLD, compiledLibrary());
+
+		// What the ElmCacheResourceChangeListener does on a Library change
+		cache.remove(HELLO_WORLD);
+
+		try (var files = Files.list(directory)) {
+			Assertions.assertEquals(0, files.count());
+		}
+	}
+
+	private static CompiledLibrary compiledLibrary() {
+		CompiledLibrary compiledLibrary = new CompiledLibrary();
+		compiledLibrary.setIdentifier(HELLO_WORLD);
+		compiledLibrary.setLibrary(new Library().withIdentifier(HELLO_WORLD));
+		return compiledLibrary;
+	}
+}
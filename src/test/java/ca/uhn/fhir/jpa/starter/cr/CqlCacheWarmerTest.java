@@ -0,0 +1,75 @@
+package ca.uhn.fhir.jpa.starter.cr;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+
+import org.hl7.elm.r1.VersionedIdentifier;
+import org.hl7.fhir.r4.model.Library;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentMatchers;
+import org.mockito.Mockito;
+import org.opencds.cqf.fhir.cql.EvaluationSettings;
+import org.springframework.boot.DefaultApplicationArguments;
+import org.springframework.boot.actuate.health.Status;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.cr.common.IRepositoryFactory;
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
+import ca.uhn.fhir.jpa.searchparam.SearchParameterMap;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.SimpleBundleProvider;
+
+class CqlCacheWarmerTest {
+
+	private final CqlWarmupProperties properties = new CqlWarmupProperties();
+	private CqlCacheWarmer warmer;
+
+	@BeforeEach
+	void setUp() {
+		@SuppressWarnings("unchecked")
+		IFhirResourceDao<Library> libraryDao = Mockito.mock(IFhirResourceDao.class);
+		Mockito.when(libraryDao.getContext()).thenReturn(FhirContext.forR4Cached());
+		Mockito.when(libraryDao.search(ArgumentMatchers.any(SearchParameterMap.class), ArgumentMatchers.any(RequestDetails.class)))
+				.thenReturn(new SimpleBundleProvider(List.of(
+						new Library().setName("HelloWorld").setVersion("1.0.0").setUrl("http://example.org/Library/HelloWorld"),
+						new Library().setName("FHIRHelpers").setVersion("4.0.1"),
+						new Library().setUrl("http://example.org/Library/Unnamed"))));
+		DaoRegistry daoRegistry = Mockito.mock(DaoRegistry.class);
+		Mockito.when(daoRegistry.getResourceDao("Library")).thenReturn((IFhirResourceDao) libraryDao);
+
+		warmer = new CqlCacheWarmer(
+				properties,
+				daoRegistry,
+				Mockito.mock(IRepositoryFactory.class),
+				EvaluationSettings.getDefault(),
+				Mockito.mock(ExecutorService.class));
+	}
+
+	@Test
+	void testAllNamedLibrariesAreWarmedByDefault() {
+		List<VersionedIdentifier> libraries = warmer.librariesToWarm();
+
+		Assertions.assertEquals(List.of("HelloWorld", "FHIRHelpers"), libraries.stream().map(VersionedIdentifier::getId).toList());
+		Assertions.assertEquals("1.0.0", libraries.get(0).getVersion());
+	}
+
+	@Test
+	void testConfiguredLibrariesByUrlOrName() {
+		properties.setLibraries(List.of("http://example.org/Library/HelloWorld"));
+		Assertions.assertEquals(List.of("HelloWorld"), warmer.librariesToWarm().stream().map(VersionedIdentifier::getId).toList());
+
+		properties.setLibraries(List.of("FHIRHelpers"));
+		Assertions.assertEquals(List.of("FHIRHelpers"), warmer.librariesToWarm().stream().map(VersionedIdentifier::getId).toList());
+	}
+
+	@Test
+	void testDisabledWarmupIsReadyRightAway() {
+		warmer.run(new DefaultApplicationArguments());
+
+		Assertions.assertEquals(CqlCacheWarmer.State.DONE, warmer.getState());
+		Assertions.assertEquals(Status.UP, warmer.health().getStatus());
+	}
+}
@@ -0,0 +1,55 @@
+package ca.uhn.fhir.jpa.starter.cr;
+
+import java.util.List;
+import java.util.Map;
+
+import org.cqframework.cql.cql2elm.model.CompiledLibrary;
+import org.hl7.elm.r1.ExpressionDef;
+import org.hl7.elm.r1.Library;
+import org.hl7.elm.r1.VersionedIdentifier;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.opencds.cqf.cql.engine.runtime.Code;
+
+class CqlCachesTest {
+
+	@Test
+	void testLibraryWeightGrowsWithStatements() {
+		VersionedIdentifier identifier = new VersionedIdentifier().withId("HelloWorld").withVersion("1.0.0");
+
+		Assertions.assertTrue(CqlCaches.weighLibrary(identifier, compiledLibrary(10)) > CqlCaches.weighLibrary(identifier, compiledLibrary(1)));
+		Assertions.assertEquals(CqlCaches.LIBRARY_BASE_BYTES, CqlCaches.weighLibrary(identifier, new CompiledLibrary()));
+	}
+
+	@Test
+	void testValueSetWeightGrowsWithCodes() {
+		List<Code> small = List.of(new Code().withCode("1234-5").withSystem("http://loinc.org"));
+		List<Code> large = List.of(
+				new Code().withCode("1234-5").withSystem("http://loinc.org"),
+				new Code().withCode("6789-0").withSystem("http://loinc.org").withDisplay("Some observation"));
+
+		Assertions.assertTrue(CqlCaches.weighValueSet("http://example.org/ValueSet/vs", large) > CqlCaches.weighValueSet("http://example.org/ValueSet/vs", small));
+	}
+
+	@Test
+	void testMapViewInvalidates() {
+		CqlCacheProperties properties = new CqlCacheProperties();
+		Map<String, List<Code>> cache = CqlCaches.valueSetCache(properties);
+		cache.put("http://example.org/ValueSet/vs", List.of(new Code().withCode("1234-5")));
+
+		// What the CodeCacheResourceChangeListener does on a ValueSet change
+		cache.remove("http://example.org/ValueSet/vs");
+
+		Assertions.assertTrue(cache.isEmpty());
+	}
+
+	private static CompiledLibrary compiledLibrary(int theStatements) {
+		Library library = new Library().withStatements(new Library.Statements());
+		for (int i = 0; i < theStatements; i++) {
+			library.getStatements().getDef().add(new ExpressionDef().withName("Define " + i));
+		}
+		CompiledLibrary compiledLibrary = new CompiledLibrary();
+		compiledLibrary.setLibrary(library);
+		return compiledLibrary;
+	}
+}
@@ -0,0 +1,78 @@
+package ca.uhn.fhir.jpa.starter.cr;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+class CqlExecutorsTest {
+
+	@Test
+	void testFullQueueRejectsAndCounts() throws InterruptedException {
+		Counter rejected = new SimpleMeterRegistry().counter("executor.rejected");
+		ThreadPoolExecutor executor = CqlExecutors.fixed(1, 1, CqlRuntimeProperties.RejectionPolicy.ABORT, rejected);
+		CountDownLatch release = new CountDownLatch(1);
+		try {
+			executor.execute(() -> await(release));
+			executor.execute(() -> await(release));
+
+			Assertions.assertThrows(RejectedExecutionException.class, () -> executor.execute(() -> {}));
+			Assertions.assertEquals(1, rejected.count());
+		} finally {
+			release.countDown();
+			executor.shutdown();
+			executor.awaitTermination(5, TimeUnit.SECONDS);
+		}
+	}
+
+	@Test
+	void testCallerRunsWhenTheQueueIsFull() throws InterruptedException {
+		Counter rejected = new SimpleMeterRegistry().counter("executor.rejected");
+		ThreadPoolExecutor executor = CqlExecutors.fixed(1, 1, CqlRuntimeProperties.RejectionPolicy.CALLER_RUNS, rejected);
+		CountDownLatch release = new CountDownLatch(1);
+		try {
+			executor.execute(() -> await(release));
+			executor.execute(() -> await(release));
+
+			Thread caller = Thread.currentThread();
+			boolean[] ranOnCaller = new boolean[1];
+			executor.execute(() -> ranOnCaller[0] = Thread.currentThread() == caller);
+
+			Assertions.assertTrue(ranOnCaller[0]);
+			Assertions.assertEquals(1, rejected.count());
+		} finally {
+			release.countDown();
+			executor.shutdown();
+			executor.awaitTermination(5, TimeUnit.SECONDS);
+		}
+	}
+
+	@Test
+	void testParallelismDefaultsToTheCores() {
+		CqlRuntimeProperties properties = new CqlRuntimeProperties();
+		properties.setExecutorType(CqlRuntimeProperties.ExecutorType.WORK_STEALING);
+
+		ExecutorService executor = CqlExecutors.create(properties);
+		try {
+			Assertions.assertEquals(Runtime.getRuntime().availableProcessors(), ((ForkJoinPool) executor).getParallelism());
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	private static void await(CountDownLatch theLatch) {
+		try {
+			theLatch.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
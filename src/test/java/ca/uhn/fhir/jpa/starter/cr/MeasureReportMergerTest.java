@@ -0,0 +1,127 @@
+package ca.uhn.fhir.jpa.starter.cr;
+
+import java.util.List;
+
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.Measure;
+import org.hl7.fhir.r4.model.MeasureReport;
+import org.hl7.fhir.r4.model.Quantity;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+class MeasureReportMergerTest {
+	private static final String POPULATION_SYSTEM = "http://terminology.hl7.org/CodeSystem/measure-population";
+
+	private static final Measure PROPORTION = new Measure()
+			.setScoring(new CodeableConcept(new Coding().setCode("proportion")));
+
+	@Test
+	void testCountsAreSummedAndScoredAgain() {
+		MeasureReport first = report(2, 2, 1, "male", 1);
+		MeasureReport second = report(3, 2, 0, "female", 2);
+
+		MeasureReport merged = MeasureReportMerger.merge(PROPORTION, List.of(first, second));
+
+		MeasureReport.MeasureReportGroupComponent group = merged.getGroupFirstRep();
+		Assertions.assertEquals(5, population(group, "initial-population"));
+		Assertions.assertEquals(4, population(group, "denominator"));
+		Assertions.assertEquals(1, population(group, "numerator"));
+		Assertions.assertEquals(new Quantity(1 / (double) 4).getValue(), group.getMeasureScore().getValue());
+		Assertions.assertEquals(2, group.getStratifierFirstRep().getStratum().size());
+		Assertions.assertEquals(List.of("Patient/1", "Patient/2"), merged.getEvaluatedResource().stream().map(r -> r.getReference()).toList());
+	}
+
+	@Test
+	void testScoreUsesTheReportedDenominatorLikeTheSerialScorer() {
+		MeasureReport first = report(3, 3, 1, "male", 1);
+		first.getGroupFirstRep().addPopulation().setCode(code("denominator-exclusion")).setCount(1);
+		MeasureReport second = report(3, 3, 1, "male", 2);
+		second.getGroupFirstRep().addPopulation().setCode(code("denominator-exclusion")).setCount(1);
+
+		MeasureReport merged = MeasureReportMerger.merge(PROPORTION, List.of(first, second));
+
+		// The denominator count already leaves the exclusions out, they are not subtracted again
+		Assertions.assertEquals(new Quantity(2 / (double) 6).getValue(), merged.getGroupFirstRep().getMeasureScore().getValue());
+	}
+
+	@Test
+	void testDecreaseImprovementNotationIsScoredLikeTheSerialScorer() {
+		Measure decrease = PROPORTION.copy().setImprovementNotation(new CodeableConcept(new Coding().setCode("decrease")));
+
+		MeasureReport merged = MeasureReportMerger.merge(decrease, List.of(report(2, 2, 1, "male", 1), report(1, 1, 0, "male", 2)));
+
+		Assertions.assertEquals(new Quantity(1 - 1 / (double) 3).getValue(), merged.getGroupFirstRep().getMeasureScore().getValue());
+	}
+
+	@Test
+	void testEmptyDenominatorHasNoScore() {
+		MeasureReport first = report(1, 0, 0, "male", 1);
+		first.getGroupFirstRep().setMeasureScore(new Quantity(0.5));
+
+		MeasureReport merged = MeasureReportMerger.merge(PROPORTION, List.of(first, report(1, 0, 0, "male", 2)));
+
+		Assertions.assertFalse(merged.getGroupFirstRep().hasMeasureScore());
+	}
+
+	@Test
+	void testStratumIsScored() {
+		MeasureReport first = report(1, 1, 1, "male", 1);
+		stratumPopulation(first, "denominator", 1);
+		stratumPopulation(first, "numerator", 1);
+		MeasureReport second = report(2, 2, 0, "male", 2);
+		stratumPopulation(second, "denominator", 2);
+		stratumPopulation(second, "numerator", 0);
+
+		MeasureReport merged = MeasureReportMerger.merge(PROPORTION, List.of(first, second));
+
+		MeasureReport.StratifierGroupComponent stratum = merged.getGroupFirstRep().getStratifierFirstRep().getStratumFirstRep();
+		Assertions.assertEquals(new Quantity(1 / (double) 3).getValue(), stratum.getMeasureScore().getValue());
+	}
+
+	@Test
+	void testSameStratumIsSummed() {
+		MeasureReport merged = MeasureReportMerger.merge(PROPORTION, List.of(report(1, 1, 1, "male", 1), report(1, 1, 0, "male", 1)));
+
+		MeasureReport.StratifierGroupComponent stratum = merged.getGroupFirstRep().getStratifierFirstRep().getStratumFirstRep();
+		Assertions.assertEquals(1, merged.getGroupFirstRep().getStratifierFirstRep().getStratum().size());
+		Assertions.assertEquals(2, stratum.getPopulationFirstRep().getCount());
+	}
+
+	@Test
+	void testSupplementalDataAndContinuousVariableAreNotMergeable() {
+		Assertions.assertTrue(MeasureReportMerger.isMergeable(PROPORTION));
+		Assertions.assertFalse(MeasureReportMerger.isMergeable(PROPORTION.copy().addSupplementalData(new Measure.MeasureSupplementalDataComponent())));
+		Assertions.assertFalse(MeasureReportMerger.isMergeable(new Measure()
+				.setScoring(new CodeableConcept(new Coding().setCode("continuous-variable")))));
+	}
+
+	private static MeasureReport report(int theInitialPopulation, int theDenominator, int theNumerator, String theStratum, int theSubject) {
+		MeasureReport report = new MeasureReport();
+		MeasureReport.MeasureReportGroupComponent group = report.addGroup();
+		group.addPopulation().setCode(code("initial-population")).setCount(theInitialPopulation);
+		group.addPopulation().setCode(code("denominator")).setCount(theDenominator);
+		group.addPopulation().setCode(code("numerator")).setCount(theNumerator);
+		group.addStratifier().addStratum()
+				.setValue(new CodeableConcept().setText(theStratum))
+				.addPopulation().setCode(code("initial-population")).setCount(theInitialPopulation);
+		report.addEvaluatedResource().setReference("Patient/" + theSubject);
+		return report;
+	}
+
+	private static void stratumPopulation(MeasureReport theReport, String theCode, int theCount) {
+		theReport.getGroupFirstRep().getStratifierFirstRep().getStratumFirstRep().addPopulation().setCode(code(theCode)).setCount(theCount);
+	}
+
+	private static CodeableConcept code(String theCode) {
+		return new CodeableConcept(new Coding().setSystem(POPULATION_SYSTEM).setCode(theCode));
+	}
+
+	private static int population(MeasureReport.MeasureReportGroupComponent theGroup, String theCode) {
+		return theGroup.getPopulation().stream()
+				.filter(p -> theCode.equals(p.getCode().getCodingFirstRep().getCode()))
+				.findFirst()
+				.orElseThrow()
+				.getCount();
+	}
+}
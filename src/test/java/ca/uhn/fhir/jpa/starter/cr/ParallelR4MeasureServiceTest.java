@@ -0,0 +1,49 @@
+package ca.uhn.fhir.jpa.starter.cr;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.Measure;
+import org.hl7.fhir.r4.model.MeasureReport;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentMatchers;
+import org.mockito.Mockito;
+import org.opencds.cqf.fhir.api.Repository;
+import org.opencds.cqf.fhir.cr.measure.MeasureEvaluationOptions;
+
+import ca.uhn.fhir.cr.common.IRepositoryFactory;
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.rest.api.server.SystemRequestDetails;
+import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
+
+class ParallelR4MeasureServiceTest {
+
+	@Test
+	@SuppressWarnings("unchecked")
+	void testRejectedChunkCancelsTheSubmittedOnes() {
+		Future<MeasureReport> submitted = Mockito.mock(Future.class);
+		ExecutorService executor = Mockito.mock(ExecutorService.class);
+		Mockito.when(executor.submit(ArgumentMatchers.<Callable<MeasureReport>>any()))
+				.thenReturn(submitted)
+				.thenThrow(new RejectedExecutionException("queue full"));
+		IRepositoryFactory repositoryFactory = Mockito.mock(IRepositoryFactory.class);
+		Mockito.when(repositoryFactory.create(ArgumentMatchers.any())).thenReturn(Mockito.mock(Repository.class));
+		MeasureEvaluationProperties properties = new MeasureEvaluationProperties();
+		properties.setChunkSize(1);
+		properties.setMaxParallelism(2);
+		ParallelR4MeasureService service = new ParallelR4MeasureService(repositoryFactory, new SystemRequestDetails(),
+				MeasureEvaluationOptions.defaultOptions(), properties, Mockito.mock(DaoRegistry.class), executor);
+		Measure measure = new Measure().setScoring(new CodeableConcept(new Coding().setCode("proportion")));
+
+		Assertions.assertThrows(InternalErrorException.class, () -> service.evaluateInChunks(measure, "2019-01-01",
+				"2019-12-31", "population", List.of("Patient/1", "Patient/2"), null, null));
+
+		Mockito.verify(submitted).cancel(true);
+	}
+}
@@ -0,0 +1,137 @@
+package ca.uhn.fhir.jpa.starter.interceptors;
+
+import ca.uhn.fhir.rest.server.exceptions.AuthenticationException;
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+import ca.uhn.fhir.rest.server.exceptions.ForbiddenOperationException;
+import ca.uhn.fhir.rest.server.exceptions.UnprocessableEntityException;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+import com.sun.net.httpserver.HttpServer;
+import jakarta.servlet.http.HttpServletRequest;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Drives a single interceptor instance from many threads against a stub Homecare Hub that answers
+ * 200 / 401 / 403 / 422 depending on the token, and checks that no request observes another request's outcome.
+ */
+class AuthenticationInterceptorConcurrencyTest {
+
+	private static final int REQUESTS = 400;
+	private static final String[] OUTCOMES = {"ok", "unauthenticated", "forbidden", "invalid"};
+
+	private static HttpServer authServer;
+
+	@BeforeAll
+	static void startAuthServer() throws Exception {
+		authServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		authServer.createContext("/api/authenticate", exchange -> {
+			String token = exchange.getRequestHeaders().getFirst("Authorization").substring("Bearer ".length());
+			int status;
+			String body;
+			if (token.startsWith("ok-")) {
+				status = 200;
+				body = "{\"id\":\"login-" + token + "\"}";
+			} else if (token.startsWith("unauthenticated-")) {
+				status = 401;
+				body = "Unauthenticated";
+			} else if (token.startsWith("forbidden-")) {
+				status = 403;
+				body = "Forbidden";
+			} else {
+				status = 422;
+				body = "{\"errors\":{\"token\":\"" + token + "\"}}";
+			}
+			byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+			exchange.sendResponseHeaders(status, bytes.length);
+			exchange.getResponseBody().write(bytes);
+			exchange.close();
+		});
+		authServer.setExecutor(Executors.newFixedThreadPool(16));
+		authServer.start();
+
+		System.setProperty("HCH_BASE_URL", "http://127.0.0.1:" + authServer.getAddress().getPort());
+		System.setProperty("HCH_AUTHENTICATE_USER_URL", "/api/authenticate");
+	}
+
+	@AfterAll
+	static void stopAuthServer() {
+		authServer.stop(0);
+		System.clearProperty("HCH_BASE_URL");
+		System.clearProperty("HCH_AUTHENTICATE_USER_URL");
+	}
+
+	@Test
+	void testConcurrentRequestsDoNotShareOutcomes() throws Exception {
+		AuthenticationInterceptor interceptor = new AuthenticationInterceptor();
+		ExecutorService executor = Executors.newFixedThreadPool(32);
+		CountDownLatch start = new CountDownLatch(1);
+
+		try {
+			List<Future<?>> futures = new ArrayList<>();
+			for (int i = 0; i < REQUESTS; i++) {
+				String token = OUTCOMES[i % OUTCOMES.length] + "-" + i;
+				futures.add(executor.submit((Callable<Void>) () -> {
+					start.await();
+					assertOutcome(interceptor, token);
+					return null;
+				}));
+			}
+			start.countDown();
+
+			for (Future<?> future : futures) {
+				future.get();
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	private static void assertOutcome(AuthenticationInterceptor interceptor, String token) {
+		ServletRequestDetails requestDetails = newRequestDetails(token);
+
+		if (token.startsWith("ok-")) {
+			interceptor.incomingRequestPreHandled(requestDetails, requestDetails.getServletRequest(), requestDetails);
+			Assertions.assertEquals("login-" + token, requestDetails.getUserData().get("authenticatedUserLoginId"));
+			return;
+		}
+
+		BaseServerResponseException exception = Assertions.assertThrows(BaseServerResponseException.class,
+				() -> interceptor.incomingRequestPreHandled(requestDetails, requestDetails.getServletRequest(), requestDetails));
+		Assertions.assertNull(requestDetails.getUserData().get("authenticatedUserLoginId"));
+
+		if (token.startsWith("unauthenticated-")) {
+			Assertions.assertInstanceOf(AuthenticationException.class, exception);
+			Assertions.assertEquals("Unauthenticated.", exception.getMessage());
+		} else if (token.startsWith("forbidden-")) {
+			Assertions.assertInstanceOf(ForbiddenOperationException.class, exception);
+			Assertions.assertEquals("Unautorized.", exception.getMessage());
+		} else {
+			Assertions.assertInstanceOf(UnprocessableEntityException.class, exception);
+			Assertions.assertTrue(exception.getMessage().contains(token), exception.getMessage());
+		}
+	}
+
+	private static ServletRequestDetails newRequestDetails(String token) {
+		HttpServletRequest servletRequest = Mockito.mock(HttpServletRequest.class);
+		Mockito.when(servletRequest.getHeader("Authorization")).thenReturn("Bearer " + token);
+		Mockito.when(servletRequest.getMethod()).thenReturn("GET");
+
+		ServletRequestDetails requestDetails = new ServletRequestDetails();
+		requestDetails.setServletRequest(servletRequest);
+		requestDetails.setResourceName("Patient");
+		return requestDetails;
+	}
+}
@@ -0,0 +1,93 @@
+package ca.uhn.fhir.jpa.starter.interceptors;
+
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Checks against a stub Homecare Hub which validations are answered from the TokenValidationCache: plain token
+ * verifications are, the Patient POST / PATCH validations that carry the request payload never are.
+ */
+class AuthenticationInterceptorTokenCacheTest {
+
+	private static final String PATIENT = "{\"resourceType\":\"Patient\",\"telecom\":[{\"system\":\"email\",\"value\":\"jane@example.org\"},{\"system\":\"phone\",\"value\":\"555-0100\"}]}";
+
+	private static final AtomicInteger authenticationCalls = new AtomicInteger();
+	private static HttpServer authServer;
+
+	private final AuthenticationInterceptor interceptor = new AuthenticationInterceptor();
+
+	@BeforeAll
+	static void startAuthServer() throws Exception {
+		authServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		authServer.createContext("/api/authenticate", exchange -> {
+			authenticationCalls.incrementAndGet();
+			byte[] bytes = "{\"id\":\"login-1\"}".getBytes(StandardCharsets.UTF_8);
+			exchange.sendResponseHeaders(200, bytes.length);
+			exchange.getResponseBody().write(bytes);
+			exchange.close();
+		});
+		authServer.start();
+
+		System.setProperty("HCH_BASE_URL", "http://127.0.0.1:" + authServer.getAddress().getPort());
+		System.setProperty("HCH_AUTHENTICATE_USER_URL", "/api/authenticate");
+		System.setProperty("VALIDATE_PATIENT", "true");
+	}
+
+	@AfterAll
+	static void stopAuthServer() {
+		authServer.stop(0);
+		System.clearProperty("HCH_BASE_URL");
+		System.clearProperty("HCH_AUTHENTICATE_USER_URL");
+		System.clearProperty("VALIDATE_PATIENT");
+	}
+
+	@BeforeEach
+	void resetCalls() {
+		authenticationCalls.set(0);
+	}
+
+	@Test
+	void testTokenVerificationIsAnsweredFromTheCache() {
+		authenticate("GET", "token-get");
+		authenticate("GET", "token-get");
+		ServletRequestDetails requestDetails = authenticate("GET", "token-get");
+
+		Assertions.assertEquals(1, authenticationCalls.get());
+		Assertions.assertEquals("login-1", requestDetails.getUserData().get("authenticatedUserLoginId"));
+	}
+
+	@Test
+	void testPatientPostAndPatchBypassTheCache() {
+		authenticate("GET", "token-write");
+		authenticate("POST", "token-write");
+		authenticate("POST", "token-write");
+		authenticate("PATCH", "token-write");
+
+		Assertions.assertEquals(4, authenticationCalls.get());
+	}
+
+	private ServletRequestDetails authenticate(String method, String token) {
+		MockHttpServletRequest servletRequest = new MockHttpServletRequest(method, "/fhir/Patient");
+		servletRequest.addHeader("Authorization", "Bearer " + token);
+		if (!"GET".equals(method)) {
+			servletRequest.setContentType("application/fhir+json");
+			servletRequest.setContent(PATIENT.getBytes(StandardCharsets.UTF_8));
+		}
+
+		ServletRequestDetails requestDetails = new ServletRequestDetails();
+		requestDetails.setServletRequest(servletRequest);
+		requestDetails.setResourceName("Patient");
+		interceptor.incomingRequestPreHandled(requestDetails, servletRequest, requestDetails);
+		return requestDetails;
+	}
+}
@@ -0,0 +1,81 @@
+package ca.uhn.fhir.jpa.starter.interceptors;
+
+import ca.uhn.fhir.rest.server.exceptions.PayloadTooLargeException;
+import jakarta.servlet.http.HttpServletRequest;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+import org.springframework.mock.web.DelegatingServletInputStream;
+import org.springframework.mock.web.MockHttpServletRequest;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+class CachedBodyHttpServletRequestTest {
+
+	private static final int MAX_BODY_BYTES = 1024 * 1024;
+
+	@Test
+	void testBodyIsReplayed() throws IOException {
+		MockHttpServletRequest request = new MockHttpServletRequest("POST", "/fhir/Patient");
+		request.setContent("{\"resourceType\":\"Patient\"}".getBytes(StandardCharsets.UTF_8));
+
+		AuthenticationInterceptor.CachedBodyHttpServletRequest cached = new AuthenticationInterceptor.CachedBodyHttpServletRequest(request, MAX_BODY_BYTES);
+
+		Assertions.assertEquals("{\"resourceType\":\"Patient\"}", new String(cached.getInputStream().readAllBytes(), StandardCharsets.UTF_8));
+		Assertions.assertEquals("{\"resourceType\":\"Patient\"}", cached.getReader().readLine());
+	}
+
+	@Test
+	void testDeclaredLengthAboveTheMaximumIsRefusedBeforeReading() throws IOException {
+		HttpServletRequest request = request(Integer.MAX_VALUE, new byte[0]);
+
+		Assertions.assertThrows(PayloadTooLargeException.class, () -> new AuthenticationInterceptor.CachedBodyHttpServletRequest(request, MAX_BODY_BYTES));
+		Mockito.verify(request, Mockito.never()).getInputStream();
+	}
+
+	@Test
+	void testFirstAllocationIsCappedAndGrowsWithTheBody() throws IOException {
+		byte[] body = body(300 * 1024);
+
+		// Declares 1 MiB, sends 300 KiB: the buffer starts at 64 KiB and grows with what is read
+		AuthenticationInterceptor.CachedBodyHttpServletRequest cached = new AuthenticationInterceptor.CachedBodyHttpServletRequest(request(MAX_BODY_BYTES, body), MAX_BODY_BYTES);
+
+		Assertions.assertEquals(body.length, cached.getCachedBodyLength());
+		Assertions.assertTrue(cached.getCachedBody().length < MAX_BODY_BYTES);
+		Assertions.assertArrayEquals(body, Arrays.copyOf(cached.getCachedBody(), cached.getCachedBodyLength()));
+	}
+
+	@Test
+	void testChunkedBodyAboveTheMaximumIsRefused() throws IOException {
+		HttpServletRequest request = request(-1, body(MAX_BODY_BYTES + 1));
+
+		Assertions.assertThrows(PayloadTooLargeException.class, () -> new AuthenticationInterceptor.CachedBodyHttpServletRequest(request, MAX_BODY_BYTES));
+	}
+
+	@Test
+	void testChunkedBodyOfExactlyTheMaximumIsAccepted() throws IOException {
+		byte[] body = body(MAX_BODY_BYTES);
+
+		AuthenticationInterceptor.CachedBodyHttpServletRequest cached = new AuthenticationInterceptor.CachedBodyHttpServletRequest(request(-1, body), MAX_BODY_BYTES);
+
+		Assertions.assertEquals(MAX_BODY_BYTES, cached.getCachedBodyLength());
+	}
+
+	private static HttpServletRequest request(long contentLength, byte[] body) throws IOException {
+		HttpServletRequest request = Mockito.mock(HttpServletRequest.class);
+		Mockito.when(request.getContentLengthLong()).thenReturn(contentLength);
+		Mockito.when(request.getInputStream()).thenReturn(new DelegatingServletInputStream(new ByteArrayInputStream(body)));
+		return request;
+	}
+
+	private static byte[] body(int length) {
+		byte[] body = new byte[length];
+		for (int i = 0; i < length; i++) {
+			body[i] = (byte) ('a' + i % 26);
+		}
+		return body;
+	}
+}
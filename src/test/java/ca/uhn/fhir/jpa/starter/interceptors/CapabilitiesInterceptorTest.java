@@ -0,0 +1,137 @@
+package ca.uhn.fhir.jpa.starter.interceptors;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.rest.annotation.Operation;
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.server.RestfulServer;
+import org.hl7.fhir.r4.model.Parameters;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.SearchParameter;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.mock.web.MockServletConfig;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+class CapabilitiesInterceptorTest {
+
+	private final CapabilitiesInterceptor interceptor = new CapabilitiesInterceptor();
+
+	/**
+	 * Counts the /metadata calls that reach HAPI's capability statement method, a 304 answered from the cached ETag does not
+	 */
+	private final AtomicInteger generatedResponses = new AtomicInteger();
+
+	public static class PingProvider {
+		@Operation(name = "$ping", idempotent = true)
+		public Parameters ping() {
+			return new Parameters();
+		}
+	}
+
+	private RestfulServer startServer() throws Exception {
+		RestfulServer restfulServer = new RestfulServer(FhirContext.forR4Cached());
+		restfulServer.registerInterceptor(interceptor);
+		restfulServer.getInterceptorService().registerAnonymousInterceptor(Pointcut.SERVER_OUTGOING_RESPONSE, -1, (pointcut, params) -> generatedResponses.incrementAndGet());
+		restfulServer.init(new MockServletConfig());
+		return restfulServer;
+	}
+
+	private static MockHttpServletResponse getMetadata(RestfulServer theRestfulServer, String theIfNoneMatch) throws Exception {
+		MockHttpServletRequest request = new MockHttpServletRequest("GET", "/fhir/metadata");
+		request.setServletPath("/fhir");
+		if (theIfNoneMatch != null) {
+			request.addHeader(Constants.HEADER_IF_NONE_MATCH, theIfNoneMatch);
+		}
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		theRestfulServer.service(request, response);
+		return response;
+	}
+
+	@Test
+	void testCustomizeKeepsOnlyAllowedResourceTypesR4() {
+		org.hl7.fhir.r4.model.CapabilityStatement capabilityStatement = new org.hl7.fhir.r4.model.CapabilityStatement();
+		org.hl7.fhir.r4.model.CapabilityStatement.CapabilityStatementRestComponent rest = capabilityStatement.addRest();
+		rest.addResource().setType("Observation");
+		rest.addResource().setType("Patient");
+		rest.addResource().setType("Encounter");
+
+		interceptor.customize(capabilityStatement);
+
+		Assertions.assertEquals(List.of("Patient"), rest.getResource().stream().map(resource -> resource.getType()).collect(Collectors.toList()));
+	}
+
+	@Test
+	void testCustomizeKeepsOnlyAllowedResourceTypesR5() {
+		org.hl7.fhir.r5.model.CapabilityStatement capabilityStatement = new org.hl7.fhir.r5.model.CapabilityStatement();
+		org.hl7.fhir.r5.model.CapabilityStatement.CapabilityStatementRestComponent rest = capabilityStatement.addRest();
+		rest.addResource().setType("Observation");
+		rest.addResource().setType("Patient");
+
+		interceptor.customize(capabilityStatement);
+
+		Assertions.assertEquals(List.of("Patient"), rest.getResource().stream().map(resource -> resource.getType()).collect(Collectors.toList()));
+	}
+
+	@Test
+	void testMetadataIsWrittenByHapiWithAStrongETag() throws Exception {
+		RestfulServer restfulServer = startServer();
+
+		MockHttpServletResponse first = getMetadata(restfulServer, null);
+		MockHttpServletResponse second = getMetadata(restfulServer, null);
+
+		Assertions.assertEquals(200, first.getStatus());
+		Assertions.assertTrue(first.getContentAsString().contains("\"CapabilityStatement\""), first.getContentAsString());
+		String etag = first.getHeader(Constants.HEADER_ETAG);
+		Assertions.assertNotNull(etag);
+		Assertions.assertTrue(etag.startsWith("\""), etag);
+		Assertions.assertEquals(etag, second.getHeader(Constants.HEADER_ETAG));
+		Assertions.assertEquals(first.getContentAsString(), second.getContentAsString());
+	}
+
+	@Test
+	void testIfNoneMatchAnswersNotModifiedBeforeHapiHandlesTheRequest() throws Exception {
+		RestfulServer restfulServer = startServer();
+		String etag = getMetadata(restfulServer, null).getHeader(Constants.HEADER_ETAG);
+		int generated = generatedResponses.get();
+
+		MockHttpServletResponse notModified = getMetadata(restfulServer, etag);
+
+		Assertions.assertEquals(304, notModified.getStatus());
+		Assertions.assertEquals(etag, notModified.getHeader(Constants.HEADER_ETAG));
+		Assertions.assertEquals(generated, generatedResponses.get());
+		Assertions.assertEquals(200, getMetadata(restfulServer, "\"other\"").getStatus());
+	}
+
+	@Test
+	void testConformanceWriteDropsTheCachedETag() throws Exception {
+		RestfulServer restfulServer = startServer();
+		String etag = getMetadata(restfulServer, null).getHeader(Constants.HEADER_ETAG);
+
+		interceptor.resourceCreated(new Patient());
+		int generated = generatedResponses.get();
+		Assertions.assertEquals(304, getMetadata(restfulServer, etag).getStatus());
+		Assertions.assertEquals(generated, generatedResponses.get());
+
+		interceptor.resourceCreated(new SearchParameter());
+		getMetadata(restfulServer, etag);
+		Assertions.assertEquals(generated + 1, generatedResponses.get());
+	}
+
+	@Test
+	void testProviderChangeDropsTheCachedETag() throws Exception {
+		RestfulServer restfulServer = startServer();
+		String etag = getMetadata(restfulServer, null).getHeader(Constants.HEADER_ETAG);
+		int generated = generatedResponses.get();
+
+		restfulServer.registerProvider(new PingProvider());
+		getMetadata(restfulServer, etag);
+
+		Assertions.assertEquals(generated + 1, generatedResponses.get());
+	}
+}
@@ -0,0 +1,135 @@
+package ca.uhn.fhir.jpa.starter.interceptors;
+
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpRequest;
+import java.net.http.HttpTimeoutException;
+import java.time.Duration;
+import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+class HomecareHubHttpClientTest {
+
+	@Test
+	void testFixedPoolOfDaemonThreadsByDefault() throws Exception {
+		Executor executor = HomecareHubHttpClient.createExecutor(false, 3);
+		try {
+			Assertions.assertInstanceOf(ThreadPoolExecutor.class, executor);
+			Assertions.assertEquals(3, ((ThreadPoolExecutor) executor).getMaximumPoolSize());
+
+			Future<Thread> thread = ((ExecutorService) executor).submit(Thread::currentThread);
+			Assertions.assertTrue(thread.get().isDaemon());
+			Assertions.assertTrue(thread.get().getName().startsWith("hch-http-client-"), thread.get().getName());
+		} finally {
+			((ExecutorService) executor).shutdownNow();
+		}
+	}
+
+	@Test
+	void testVirtualThreadsOnlyWhereTheJvmHasThem() {
+		Executor executor = HomecareHubHttpClient.createExecutor(true, 3);
+		try {
+			if (Runtime.version().feature() >= 21) {
+				Assertions.assertFalse(executor instanceof ThreadPoolExecutor);
+			} else {
+				Assertions.assertInstanceOf(ThreadPoolExecutor.class, executor);
+				Assertions.assertEquals(3, ((ThreadPoolExecutor) executor).getMaximumPoolSize());
+			}
+		} finally {
+			((ExecutorService) executor).shutdownNow();
+		}
+	}
+
+	@Test
+	void testRequestBuilderCarriesTheRequestTimeout() {
+		HomecareHubHttpClient client = new HomecareHubHttpClient(1000, 2500, 1, false);
+
+		HttpRequest request = client.newRequestBuilder(URI.create("http://127.0.0.1/api")).GET().build();
+
+		Assertions.assertEquals(Duration.ofMillis(2500), client.getRequestTimeout());
+		Assertions.assertEquals(Optional.of(Duration.ofMillis(2500)), request.timeout());
+	}
+
+	@Test
+	void testNotificationRequestsUseTheSharedTimeout() throws Exception {
+		System.setProperty("HCH_BASE_URL", "http://127.0.0.1");
+		System.setProperty("HCH_NOTIFICATIONS_URL", "/api/notifications");
+		try {
+			for (String method : new String[] {"POST", "PATCH", "DELETE"}) {
+				HttpRequest request = NotificationInterceptor.buildNotificationRequest(method, "Patient/1", "{}");
+				Assertions.assertEquals(Optional.of(HomecareHubHttpClient.getInstance().getRequestTimeout()), request.timeout(), method);
+			}
+		} finally {
+			System.clearProperty("HCH_BASE_URL");
+			System.clearProperty("HCH_NOTIFICATIONS_URL");
+		}
+	}
+
+	@Test
+	void testSlowResponseTimesOut() throws Exception {
+		CountDownLatch release = new CountDownLatch(1);
+		HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/slow", exchange -> {
+			try {
+				release.await(10, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			exchange.close();
+		});
+		server.start();
+		try {
+			HomecareHubHttpClient client = new HomecareHubHttpClient(1000, 200, 1, false);
+			HttpRequest request = client.newRequestBuilder(URI.create("http://127.0.0.1:" + server.getAddress().getPort() + "/slow")).GET().build();
+
+			Assertions.assertThrows(HttpTimeoutException.class, () -> client.send(HomecareHubHttpClient.ENDPOINT_AUTHENTICATE, request));
+		} finally {
+			release.countDown();
+			server.stop(0);
+		}
+	}
+
+	@Test
+	void testRedirectIsNotFollowedWithTheToken() throws Exception {
+		AtomicInteger targetCalls = new AtomicInteger();
+		HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/redirect", exchange -> {
+			exchange.getResponseHeaders().add("Location", "/target");
+			exchange.sendResponseHeaders(302, -1);
+			exchange.close();
+		});
+		server.createContext("/target", exchange -> {
+			targetCalls.incrementAndGet();
+			exchange.sendResponseHeaders(200, -1);
+			exchange.close();
+		});
+		server.start();
+		try {
+			HomecareHubHttpClient client = new HomecareHubHttpClient(1000, 1000, 1, false);
+			HttpRequest request = client.newRequestBuilder(URI.create("http://127.0.0.1:" + server.getAddress().getPort() + "/redirect"))
+					.header("Authorization", "Bearer secret")
+					.GET()
+					.build();
+
+			Assertions.assertThrows(IOException.class, () -> client.send(HomecareHubHttpClient.ENDPOINT_AUTHENTICATE, request));
+			ExecutionException async = Assertions.assertThrows(ExecutionException.class,
+					() -> client.sendAsync(HomecareHubHttpClient.ENDPOINT_NOTIFICATIONS, request).get(5, TimeUnit.SECONDS));
+			Assertions.assertInstanceOf(IOException.class, async.getCause());
+			Assertions.assertEquals(0, targetCalls.get());
+		} finally {
+			server.stop(0);
+		}
+	}
+}
@@ -0,0 +1,124 @@
+package ca.uhn.fhir.jpa.starter.interceptors;
+
+import com.nimbusds.jose.JOSEException;
+import com.nimbusds.jose.JWSAlgorithm;
+import com.nimbusds.jose.JWSHeader;
+import com.nimbusds.jose.crypto.RSASSASigner;
+import com.nimbusds.jose.jwk.JWK;
+import com.nimbusds.jose.jwk.JWKSet;
+import com.nimbusds.jose.jwk.RSAKey;
+import com.nimbusds.jose.jwk.gen.RSAKeyGenerator;
+import com.nimbusds.jwt.JWTClaimsSet;
+import com.nimbusds.jwt.SignedJWT;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Date;
+
+class JwtTokenVerifierTest {
+
+	private static final String AUDIENCE = "hapi-fhir";
+	private static final String ISSUER = "https://hch.example.com";
+
+	@TempDir
+	Path tempDir;
+
+	private Path jwksFile;
+	private RSAKey signingKey;
+	private JwtTokenVerifier verifier;
+
+	@BeforeEach
+	void setUp() throws Exception {
+		signingKey = new RSAKeyGenerator(2048).keyID("key-1").generate();
+		jwksFile = tempDir.resolve("jwks.json");
+		writeJwks(signingKey);
+		// Unknown "kid" refreshes run on the calling thread, the test does not race the background refresh
+		verifier = new JwtTokenVerifier(jwksFile.toUri(), AUDIENCE, ISSUER, "authenticatedUserLoginId", 0, 300, 0, Runnable::run);
+	}
+
+	@AfterEach
+	void tearDown() {
+		verifier.close();
+	}
+
+	@Test
+	void testValidTokenYieldsTheLoginId() throws Exception {
+		String token = sign(signingKey, claims().build());
+
+		Assertions.assertEquals("encrypted-login-id", verifier.verify(token).getAuthenticatedUserLoginId());
+	}
+
+	@Test
+	void testExpiredTokenIsRejected() throws Exception {
+		String token = sign(signingKey, claims().expirationTime(new Date(System.currentTimeMillis() - 60_000)).build());
+
+		Assertions.assertThrows(JwtTokenVerifier.InvalidTokenException.class, () -> verifier.verify(token));
+	}
+
+	@Test
+	void testOtherAudienceIsRejected() throws Exception {
+		String token = sign(signingKey, claims().audience("another-service").build());
+
+		Assertions.assertThrows(JwtTokenVerifier.InvalidTokenException.class, () -> verifier.verify(token));
+	}
+
+	@Test
+	void testOtherIssuerIsRejected() throws Exception {
+		String token = sign(signingKey, claims().issuer("https://evil.example.com").build());
+
+		Assertions.assertThrows(JwtTokenVerifier.InvalidTokenException.class, () -> verifier.verify(token));
+	}
+
+	@Test
+	void testForgedSignatureIsRejected() throws Exception {
+		RSAKey forgedKey = new RSAKeyGenerator(2048).keyID("key-1").generate();
+		String token = sign(forgedKey, claims().build());
+
+		Assertions.assertThrows(JwtTokenVerifier.InvalidTokenException.class, () -> verifier.verify(token));
+	}
+
+	@Test
+	void testMalformedTokenIsRejected() {
+		Assertions.assertThrows(JwtTokenVerifier.InvalidTokenException.class, () -> verifier.verify("not-a-jwt"));
+	}
+
+	@Test
+	void testRotatedKeyIsPickedUpAfterRefresh() throws Exception {
+		RSAKey rotatedKey = new RSAKeyGenerator(2048).keyID("key-2").generate();
+		String token = sign(rotatedKey, claims().build());
+
+		writeJwks(signingKey, rotatedKey);
+
+		// The unknown "kid" is rejected and refreshes the key set for the next call
+		Assertions.assertThrows(JwtTokenVerifier.InvalidTokenException.class, () -> verifier.verify(token));
+		Assertions.assertEquals("encrypted-login-id", verifier.verify(token).getAuthenticatedUserLoginId());
+	}
+
+	private static JWTClaimsSet.Builder claims() {
+		return new JWTClaimsSet.Builder()
+				.issuer(ISSUER)
+				.audience(AUDIENCE)
+				.subject("42")
+				.expirationTime(new Date(System.currentTimeMillis() + 60_000))
+				.claim("authenticatedUserLoginId", "encrypted-login-id");
+	}
+
+	private static String sign(RSAKey key, JWTClaimsSet claims) throws JOSEException {
+		SignedJWT jwt = new SignedJWT(new JWSHeader.Builder(JWSAlgorithm.RS256).keyID(key.getKeyID()).build(), claims);
+		jwt.sign(new RSASSASigner(key));
+		return jwt.serialize();
+	}
+
+	private void writeJwks(RSAKey... keys) throws IOException {
+		JWKSet jwkSet = new JWKSet(Arrays.stream(keys).map(RSAKey::toPublicJWK).<JWK>map(JWK.class::cast).toList());
+		Files.writeString(jwksFile, jwkSet.toString(), StandardCharsets.UTF_8);
+	}
+}
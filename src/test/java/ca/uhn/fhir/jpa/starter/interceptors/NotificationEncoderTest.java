@@ -0,0 +1,88 @@
+package ca.uhn.fhir.jpa.starter.interceptors;
+
+import ca.uhn.fhir.context.FhirContext;
+import org.hl7.fhir.r4.model.ContactPoint;
+import org.hl7.fhir.r4.model.Enumerations;
+import org.hl7.fhir.r4.model.Patient;
+import org.json.JSONObject;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+class NotificationEncoderTest {
+
+	private final FhirContext ctx = FhirContext.forR4Cached();
+
+	@Test
+	void testEncodeMatchesJsonObjectRoundTrip() {
+		Patient patient = newPatient();
+
+		String encoded = new NotificationEncoder(ctx).encode(patient, "encrypted-login-id");
+
+		Assertions.assertTrue(new JSONObject(encoded).similar(legacyEncode(patient, "encrypted-login-id")));
+		Assertions.assertEquals("encrypted-login-id", new JSONObject(encoded).getString("authenticatedUserLoginId"));
+	}
+
+	@Test
+	void testEncodeWithoutLoginIdOmitsTheField() {
+		Patient patient = newPatient();
+
+		String encoded = new NotificationEncoder(ctx).encode(patient, null);
+
+		Assertions.assertFalse(new JSONObject(encoded).has("authenticatedUserLoginId"));
+		Assertions.assertEquals(ctx.newJsonParser().encodeResourceToString(patient), encoded);
+	}
+
+	@Test
+	void testEncodeWithoutServerContextUsesTheResourceVersion() {
+		Patient patient = newPatient();
+
+		NotificationEncoder encoder = new NotificationEncoder(null);
+
+		Assertions.assertSame(FhirContext.forR4Cached(), encoder.getContext(patient));
+		Assertions.assertTrue(new JSONObject(encoder.encode(patient, "id")).similar(legacyEncode(patient, "id")));
+	}
+
+	@Test
+	void testEncodeReusesTheThreadBuffer() {
+		NotificationEncoder encoder = new NotificationEncoder(ctx);
+		Patient patient = newPatient();
+		Patient smallerPatient = new Patient();
+		smallerPatient.setId("Patient/456");
+
+		encoder.encode(patient, "id");
+		StringBuilder buffer = NotificationEncoder.threadBuffer();
+		String encoded = encoder.encode(smallerPatient, "other-id");
+
+		Assertions.assertSame(buffer, NotificationEncoder.threadBuffer());
+		Assertions.assertTrue(new JSONObject(encoded).similar(legacyEncode(smallerPatient, "other-id")));
+	}
+
+	@Test
+	void testLargeBufferIsNotRetained() {
+		NotificationEncoder encoder = new NotificationEncoder(ctx);
+		Patient largePatient = newPatient();
+		largePatient.addName().setText("x".repeat(512 * 1024));
+
+		StringBuilder buffer = NotificationEncoder.threadBuffer();
+		String encoded = encoder.encode(largePatient, "id");
+
+		Assertions.assertNotSame(buffer, NotificationEncoder.threadBuffer());
+		Assertions.assertTrue(new JSONObject(encoded).similar(legacyEncode(largePatient, "id")));
+	}
+
+	private JSONObject legacyEncode(Patient patient, String loginId) {
+		JSONObject jsonResponse = new JSONObject(ctx.newJsonParser().encodeResourceToString(patient));
+		jsonResponse.put("authenticatedUserLoginId", loginId);
+		return jsonResponse;
+	}
+
+	private static Patient newPatient() {
+		Patient patient = new Patient();
+		patient.setId("Patient/123");
+		patient.addName().setFamily("Doe").addGiven("Jane");
+		patient.setGender(Enumerations.AdministrativeGender.FEMALE);
+		patient.addTelecom().setSystem(ContactPoint.ContactPointSystem.EMAIL).setValue("jane.doe@example.com");
+		patient.addTelecom().setSystem(ContactPoint.ContactPointSystem.PHONE).setValue("+1 555 0100");
+		return patient;
+	}
+}
@@ -0,0 +1,285 @@
+package ca.uhn.fhir.jpa.starter.interceptors;
+
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class NotificationOutboxDispatcherTest {
+
+	private static final String[] PROPERTIES = {
+		"HCH_BASE_URL", "HCH_NOTIFICATIONS_URL", "HCH_OUTBOX_MAX_ATTEMPTS", "HCH_OUTBOX_BACKOFF_BASE_MS",
+		"HCH_OUTBOX_BACKOFF_MAX_MS", "HCH_OUTBOX_TENANT_CONCURRENCY", "HCH_NOTIFICATION_DELIVERY", "HCH_NOTIFICATIONS_BATCH_URL",
+		"HCH_BATCH_MAX_SIZE", "HCH_BATCH_MAX_LINGER_MS"
+	};
+
+	private JdbcTemplate jdbcTemplate;
+	private NotificationOutbox outbox;
+	private HomecareHubHttpClient httpClient;
+	private final List<CompletableFuture<HttpResponse<String>>> pendingResponses = new ArrayList<>();
+
+	@BeforeEach
+	void setUp() {
+		System.setProperty("HCH_BASE_URL", "http://hch.test");
+		System.setProperty("HCH_NOTIFICATIONS_URL", "/notifications");
+		System.setProperty("HCH_OUTBOX_BACKOFF_BASE_MS", "1000");
+		System.setProperty("HCH_OUTBOX_BACKOFF_MAX_MS", "60000");
+
+		JdbcDataSource dataSource = new JdbcDataSource();
+		dataSource.setURL("jdbc:h2:mem:dispatcher-" + UUID.randomUUID() + ";DB_CLOSE_DELAY=-1");
+		jdbcTemplate = new JdbcTemplate(dataSource);
+		outbox = new NotificationOutbox(dataSource, "node-a", 60_000);
+		outbox.initialize();
+
+		httpClient = mock(HomecareHubHttpClient.class);
+		when(httpClient.sendAsync(anyString(), any(HttpRequest.class))).thenAnswer(invocation -> {
+			CompletableFuture<HttpResponse<String>> future = new CompletableFuture<>();
+			pendingResponses.add(future);
+			return future;
+		});
+		when(httpClient.newRequestBuilder(any(URI.class))).thenAnswer(invocation -> HttpRequest.newBuilder(invocation.<URI>getArgument(0)));
+	}
+
+	@AfterEach
+	void tearDown() {
+		for (String property : PROPERTIES) {
+			System.clearProperty(property);
+		}
+	}
+
+	@Test
+	void testBackoffDoublesUpToTheMaximum() {
+		NotificationOutboxDispatcher dispatcher = new NotificationOutboxDispatcher(outbox, httpClient);
+
+		Assertions.assertEquals(1000, dispatcher.backoffMs(1));
+		Assertions.assertEquals(2000, dispatcher.backoffMs(2));
+		Assertions.assertEquals(4000, dispatcher.backoffMs(3));
+		Assertions.assertEquals(32000, dispatcher.backoffMs(6));
+		Assertions.assertEquals(60000, dispatcher.backoffMs(7));
+		Assertions.assertEquals(60000, dispatcher.backoffMs(500));
+	}
+
+	@Test
+	void testFailedDeliveryIsRetriedAfterTheBackoff() {
+		NotificationOutboxDispatcher dispatcher = new NotificationOutboxDispatcher(outbox, httpClient);
+		outbox.enqueue("tenant", "POST", "1", "{}");
+
+		dispatcher.drain();
+		long before = System.currentTimeMillis();
+		pendingResponses.get(0).completeExceptionally(new IOException("connection refused"));
+		long after = System.currentTimeMillis();
+
+		long id = onlyId();
+		Assertions.assertEquals(NotificationOutbox.STATUS_PENDING, column(id, "STATUS"));
+		Assertions.assertEquals(1, ((Number) column(id, "ATTEMPTS")).intValue());
+		long nextAttemptAt = ((Number) column(id, "NEXT_ATTEMPT_AT")).longValue();
+		Assertions.assertTrue(nextAttemptAt >= before + 1000 && nextAttemptAt <= after + 1000);
+		Assertions.assertTrue(outbox.findDue(10).isEmpty());
+	}
+
+	@Test
+	void testRowsOfOneResourceAreDeliveredInOrder() {
+		NotificationOutboxDispatcher dispatcher = new NotificationOutboxDispatcher(outbox, httpClient);
+		outbox.enqueue("tenant", "POST", "1", "{}");
+		outbox.enqueue("tenant", "PATCH", "1", "{}");
+		List<Long> ids = jdbcTemplate.queryForList("SELECT ID FROM HCH_NOTIFICATION_OUTBOX ORDER BY ID", Long.class);
+
+		// ? The PATCH waits for the create, also while the create is in its backoff
+		dispatcher.drain();
+		verify(httpClient, times(1)).sendAsync(anyString(), any(HttpRequest.class));
+		pendingResponses.get(0).completeExceptionally(new IOException("connection refused"));
+		dispatcher.drain();
+		verify(httpClient, times(1)).sendAsync(anyString(), any(HttpRequest.class));
+		Assertions.assertEquals(0, ((Number) column(ids.get(1), "ATTEMPTS")).intValue());
+
+		// ? The retried create goes first, the PATCH only once it was delivered
+		jdbcTemplate.update("UPDATE HCH_NOTIFICATION_OUTBOX SET NEXT_ATTEMPT_AT = 0 WHERE ID = ?", ids.get(0));
+		dispatcher.drain();
+		verify(httpClient, times(2)).sendAsync(anyString(), any(HttpRequest.class));
+		Assertions.assertEquals(NotificationOutbox.STATUS_IN_FLIGHT, column(ids.get(0), "STATUS"));
+		Assertions.assertEquals(NotificationOutbox.STATUS_PENDING, column(ids.get(1), "STATUS"));
+
+		pendingResponses.get(1).complete(response(200));
+		dispatcher.drain();
+		verify(httpClient, times(3)).sendAsync(anyString(), any(HttpRequest.class));
+		Assertions.assertEquals(List.of(ids.get(1)), jdbcTemplate.queryForList("SELECT ID FROM HCH_NOTIFICATION_OUTBOX", Long.class));
+		Assertions.assertEquals(NotificationOutbox.STATUS_IN_FLIGHT, column(ids.get(1), "STATUS"));
+	}
+
+	@Test
+	void testRowIsDeadLetteredAtMaxAttempts() {
+		System.setProperty("HCH_OUTBOX_MAX_ATTEMPTS", "1");
+		NotificationOutboxDispatcher dispatcher = new NotificationOutboxDispatcher(outbox, httpClient);
+		outbox.enqueue("tenant", "POST", "1", "{}");
+
+		dispatcher.drain();
+		pendingResponses.get(0).complete(response(500));
+
+		long id = onlyId();
+		Assertions.assertEquals(NotificationOutbox.STATUS_DEAD, column(id, "STATUS"));
+		Assertions.assertEquals(1, ((Number) column(id, "ATTEMPTS")).intValue());
+		Assertions.assertTrue(((String) column(id, "LAST_ERROR")).contains("500"));
+	}
+
+	@Test
+	void testDeliveredRowIsDeleted() {
+		NotificationOutboxDispatcher dispatcher = new NotificationOutboxDispatcher(outbox, httpClient);
+		outbox.enqueue("tenant", "POST", "1", "{}");
+
+		dispatcher.drain();
+		pendingResponses.get(0).complete(response(200));
+
+		Assertions.assertEquals(0, jdbcTemplate.queryForObject("SELECT COUNT(*) FROM HCH_NOTIFICATION_OUTBOX", Integer.class));
+	}
+
+	@Test
+	void testTenantConcurrencyIsLimited() {
+		System.setProperty("HCH_OUTBOX_TENANT_CONCURRENCY", "1");
+		NotificationOutboxDispatcher dispatcher = new NotificationOutboxDispatcher(outbox, httpClient);
+		outbox.enqueue("tenant-a", "POST", "1", "{}");
+		outbox.enqueue("tenant-a", "POST", "2", "{}");
+		outbox.enqueue("tenant-b", "POST", "3", "{}");
+
+		dispatcher.drain();
+
+		// ? One delivery per tenant, the second row of tenant-a waits for the permit
+		verify(httpClient, times(2)).sendAsync(anyString(), any(HttpRequest.class));
+		Assertions.assertEquals(1, outbox.findDue(10).size());
+		Assertions.assertEquals("2", outbox.findDue(10).get(0).getResourceId());
+
+		dispatcher.drain();
+		verify(httpClient, times(2)).sendAsync(anyString(), any(HttpRequest.class));
+
+		pendingResponses.get(0).complete(response(200));
+		dispatcher.drain();
+		verify(httpClient, times(3)).sendAsync(anyString(), any(HttpRequest.class));
+	}
+
+	@Test
+	void testBatchWaitsUntilItIsFull() {
+		NotificationOutboxDispatcher dispatcher = batchDispatcher();
+		outbox.enqueue("tenant", "POST", "1", "{}");
+
+		dispatcher.drain();
+		verify(httpClient, times(0)).sendAsync(anyString(), any(HttpRequest.class));
+
+		outbox.enqueue("tenant", "PUT", "2", "{}");
+		dispatcher.drain();
+		verify(httpClient, times(1)).sendAsync(anyString(), any(HttpRequest.class));
+		Assertions.assertEquals(2, countByStatus(NotificationOutbox.STATUS_IN_FLIGHT));
+	}
+
+	@Test
+	void testBatchIsCappedAtMaxSize() {
+		NotificationOutboxDispatcher dispatcher = batchDispatcher();
+		outbox.enqueue("tenant", "POST", "1", "{}");
+		outbox.enqueue("tenant", "POST", "2", "{}");
+		outbox.enqueue("tenant", "POST", "3", "{}");
+
+		dispatcher.drain();
+
+		verify(httpClient, times(1)).sendAsync(anyString(), any(HttpRequest.class));
+		Assertions.assertEquals(2, countByStatus(NotificationOutbox.STATUS_IN_FLIGHT));
+		Assertions.assertEquals("3", outbox.findDue(10).get(0).getResourceId());
+	}
+
+	@Test
+	void testBatchesAreAssembledPerTenant() {
+		NotificationOutboxDispatcher dispatcher = batchDispatcher();
+		outbox.enqueue("tenant-a", "POST", "1", "{}");
+		outbox.enqueue("tenant-b", "POST", "2", "{}");
+		outbox.enqueue("tenant-a", "POST", "3", "{}");
+		outbox.enqueue("tenant-b", "POST", "4", "{}");
+
+		dispatcher.drain();
+		verify(httpClient, times(2)).sendAsync(anyString(), any(HttpRequest.class));
+
+		pendingResponses.get(0).complete(response(200));
+		Assertions.assertEquals(Arrays.asList("2", "4"), jdbcTemplate.queryForList("SELECT RESOURCE_ID FROM HCH_NOTIFICATION_OUTBOX ORDER BY ID", String.class));
+	}
+
+	@Test
+	void testLingeredBatchIsSentBeforeItIsFull() {
+		NotificationOutboxDispatcher dispatcher = batchDispatcher();
+		outbox.enqueue("tenant", "POST", "1", "{}");
+		long past = System.currentTimeMillis() - 61_000;
+		jdbcTemplate.update("UPDATE HCH_NOTIFICATION_OUTBOX SET CREATED_AT = ?, NEXT_ATTEMPT_AT = ?", past, past);
+
+		dispatcher.drain();
+
+		verify(httpClient, times(1)).sendAsync(anyString(), any(HttpRequest.class));
+	}
+
+	@Test
+	void testLingerIsCountedFromWhenTheRowBecamePending() {
+		NotificationOutboxDispatcher dispatcher = batchDispatcher();
+		outbox.enqueue("tenant", "POST", "1", "{}");
+		jdbcTemplate.update("UPDATE HCH_NOTIFICATION_OUTBOX SET CREATED_AT = ?, ATTEMPTS = 1", System.currentTimeMillis() - 61_000);
+
+		dispatcher.drain();
+
+		verify(httpClient, times(0)).sendAsync(anyString(), any(HttpRequest.class));
+	}
+
+	@Test
+	void testToNdjsonWritesOneLinePerNotification() {
+		List<NotificationOutbox.Entry> entries = Arrays.asList(
+			new NotificationOutbox.Entry(1, "tenant", "POST", "1", "{\"resourceType\":\"Patient\"}", 0, 0, 0),
+			new NotificationOutbox.Entry(2, "tenant", "DELETE", null, null, 0, 0, 0),
+			new NotificationOutbox.Entry(3, "tenant", "PUT", "a\"b", "{}", 0, 0, 0)
+		);
+
+		Assertions.assertEquals(
+			"{\"requestHttpMethod\":\"POST\",\"resourceId\":\"1\",\"resource\":{\"resourceType\":\"Patient\"}}\n"
+				+ "{\"requestHttpMethod\":\"DELETE\",\"resourceId\":null,\"resource\":null}\n"
+				+ "{\"requestHttpMethod\":\"PUT\",\"resourceId\":\"a\\\"b\",\"resource\":{}}\n",
+			NotificationOutboxDispatcher.toNdjson(entries));
+	}
+
+	private NotificationOutboxDispatcher batchDispatcher() {
+		System.setProperty("HCH_NOTIFICATION_DELIVERY", "batch");
+		System.setProperty("HCH_NOTIFICATIONS_BATCH_URL", "/notifications/batch");
+		System.setProperty("HCH_BATCH_MAX_SIZE", "2");
+		System.setProperty("HCH_BATCH_MAX_LINGER_MS", "60000");
+		return new NotificationOutboxDispatcher(outbox, httpClient);
+	}
+
+	private int countByStatus(String status) {
+		return jdbcTemplate.queryForObject("SELECT COUNT(*) FROM HCH_NOTIFICATION_OUTBOX WHERE STATUS = ?", Integer.class, status);
+	}
+
+	@SuppressWarnings("unchecked")
+	private static HttpResponse<String> response(int status) {
+		HttpResponse<String> response = mock(HttpResponse.class);
+		when(response.statusCode()).thenReturn(status);
+		when(response.body()).thenReturn("");
+		return response;
+	}
+
+	private long onlyId() {
+		return jdbcTemplate.queryForObject("SELECT ID FROM HCH_NOTIFICATION_OUTBOX", Long.class);
+	}
+
+	private Object column(long id, String column) {
+		return jdbcTemplate.queryForObject("SELECT " + column + " FROM HCH_NOTIFICATION_OUTBOX WHERE ID = ?", Object.class, id);
+	}
+}
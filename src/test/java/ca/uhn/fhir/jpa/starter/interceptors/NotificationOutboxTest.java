@@ -0,0 +1,126 @@
+package ca.uhn.fhir.jpa.starter.interceptors;
+
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.util.List;
+import java.util.UUID;
+
+class NotificationOutboxTest {
+
+	private JdbcDataSource dataSource;
+	private JdbcTemplate jdbcTemplate;
+	private NotificationOutbox outbox;
+
+	@BeforeEach
+	void setUp() {
+		dataSource = new JdbcDataSource();
+		dataSource.setURL("jdbc:h2:mem:outbox-" + UUID.randomUUID() + ";DB_CLOSE_DELAY=-1");
+		jdbcTemplate = new JdbcTemplate(dataSource);
+		outbox = new NotificationOutbox(dataSource, "node-a", 60_000);
+		outbox.initialize();
+	}
+
+	@Test
+	void testMigrationIsVersionedAndRepeatable() {
+		Integer applied = jdbcTemplate.queryForObject("SELECT COUNT(*) FROM " + NotificationOutboxMigrationTasks.MIGRATION_TABLE, Integer.class);
+
+		new NotificationOutbox(dataSource, "node-b", 60_000).initialize();
+
+		Assertions.assertTrue(applied > 0);
+		Assertions.assertEquals(applied, jdbcTemplate.queryForObject("SELECT COUNT(*) FROM " + NotificationOutboxMigrationTasks.MIGRATION_TABLE, Integer.class));
+	}
+
+	@Test
+	void testOnlyOneNodeCanClaimARow() {
+		outbox.enqueue("tenant", "POST", "1", "{}");
+		long id = outbox.findDue(10).get(0).getId();
+		NotificationOutbox otherNode = new NotificationOutbox(dataSource, "node-b", 60_000);
+
+		Assertions.assertTrue(outbox.claim(id));
+		Assertions.assertFalse(otherNode.claim(id));
+		Assertions.assertFalse(outbox.claim(id));
+		Assertions.assertEquals(NotificationOutbox.STATUS_IN_FLIGHT, column(id, "STATUS"));
+		Assertions.assertEquals("node-a", column(id, "CLAIMED_BY"));
+		Assertions.assertTrue(outbox.findDue(10).isEmpty());
+	}
+
+	@Test
+	void testStartupRecoveryLeavesLiveLeasesAlone() {
+		outbox.enqueue("tenant", "POST", "1", "{}");
+		long id = outbox.findDue(10).get(0).getId();
+		outbox.claim(id);
+
+		new NotificationOutbox(dataSource, "node-b", 60_000).initialize();
+
+		Assertions.assertEquals(NotificationOutbox.STATUS_IN_FLIGHT, column(id, "STATUS"));
+		Assertions.assertEquals("node-a", column(id, "CLAIMED_BY"));
+	}
+
+	@Test
+	void testStartupRecoveryReclaimsExpiredLeases() {
+		outbox.enqueue("tenant", "POST", "1", "{}");
+		long id = outbox.findDue(10).get(0).getId();
+		outbox.claim(id);
+		jdbcTemplate.update("UPDATE HCH_NOTIFICATION_OUTBOX SET LEASE_UNTIL = ? WHERE ID = ?", System.currentTimeMillis() - 1, id);
+
+		new NotificationOutbox(dataSource, "node-b", 60_000).initialize();
+
+		Assertions.assertEquals(NotificationOutbox.STATUS_PENDING, column(id, "STATUS"));
+		Assertions.assertNull(column(id, "CLAIMED_BY"));
+		Assertions.assertEquals(1, outbox.findDue(10).size());
+	}
+
+	@Test
+	void testRetryIsIgnoredOnceAnotherNodeOwnsTheRow() {
+		outbox.enqueue("tenant", "POST", "1", "{}");
+		long id = outbox.findDue(10).get(0).getId();
+		outbox.claim(id);
+		jdbcTemplate.update("UPDATE HCH_NOTIFICATION_OUTBOX SET STATUS = ?, CLAIMED_BY = ? WHERE ID = ?", NotificationOutbox.STATUS_IN_FLIGHT, "node-b", id);
+
+		outbox.markForRetry(id, 1, System.currentTimeMillis(), "boom");
+
+		Assertions.assertEquals(NotificationOutbox.STATUS_IN_FLIGHT, column(id, "STATUS"));
+		Assertions.assertEquals("node-b", column(id, "CLAIMED_BY"));
+	}
+
+	@Test
+	void testFindDueSkipsRowsWaitingForTheirBackoff() {
+		outbox.enqueue("tenant", "POST", "1", "{}");
+		outbox.enqueue("tenant", "POST", "2", "{}");
+		List<NotificationOutbox.Entry> due = outbox.findDue(10);
+		outbox.claim(due.get(0).getId());
+		outbox.markForRetry(due.get(0).getId(), 1, System.currentTimeMillis() + 60_000, "boom");
+
+		List<NotificationOutbox.Entry> stillDue = outbox.findDue(10);
+
+		Assertions.assertEquals(1, stillDue.size());
+		Assertions.assertEquals("2", stillDue.get(0).getResourceId());
+	}
+
+	@Test
+	void testFindDueHoldsBackTheLaterRowsOfAResource() {
+		outbox.enqueue("tenant", "POST", "1", "{}");
+		outbox.enqueue("tenant", "PATCH", "1", "{}");
+		outbox.enqueue("tenant", "POST", "2", "{}");
+		List<NotificationOutbox.Entry> due = outbox.findDue(10);
+
+		Assertions.assertEquals(List.of("1", "2"), due.stream().map(NotificationOutbox.Entry::getResourceId).toList());
+		Assertions.assertEquals("POST", due.get(0).getRequestHttpMethod());
+
+		outbox.claim(due.get(0).getId());
+		Assertions.assertEquals(List.of("2"), outbox.findDue(10).stream().map(NotificationOutbox.Entry::getResourceId).toList());
+
+		outbox.markDead(due.get(0).getId(), 10, "boom");
+		List<NotificationOutbox.Entry> afterDead = outbox.findDue(10);
+		Assertions.assertEquals(List.of("1", "2"), afterDead.stream().map(NotificationOutbox.Entry::getResourceId).toList());
+		Assertions.assertEquals("PATCH", afterDead.get(0).getRequestHttpMethod());
+	}
+
+	private Object column(long id, String column) {
+		return jdbcTemplate.queryForObject("SELECT " + column + " FROM HCH_NOTIFICATION_OUTBOX WHERE ID = ?", Object.class, id);
+	}
+}
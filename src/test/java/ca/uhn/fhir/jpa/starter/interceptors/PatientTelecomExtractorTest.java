@@ -0,0 +1,52 @@
+package ca.uhn.fhir.jpa.starter.interceptors;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+class PatientTelecomExtractorTest {
+
+	@Test
+	void testExtractEmailAndPhone() throws IOException {
+		String body = "{\"resourceType\":\"Patient\",\"name\":[{\"family\":\"Doe\",\"given\":[\"Jane\"]}],"
+				+ "\"telecom\":[{\"system\":\"email\",\"value\":\"jane.doe@example.com\",\"period\":{\"start\":\"2020\"}},"
+				+ "{\"system\":\"phone\",\"value\":\"+1 555 0100\",\"use\":\"mobile\"}],"
+				+ "\"photo\":[{\"contentType\":\"image/png\",\"data\":\"" + "A".repeat(1 << 20) + "\"}]}";
+
+		PatientTelecomExtractor.Telecom telecom = extract(body);
+
+		Assertions.assertEquals("jane.doe@example.com", telecom.getEmail());
+		Assertions.assertEquals("+1 555 0100", telecom.getPhone());
+	}
+
+	@Test
+	void testExtractLastValueWinsAndMissingValuesAreNull() throws IOException {
+		String body = "{\"resourceType\":\"Patient\",\"photo\":[{\"data\":\"AAAA\"}],"
+				+ "\"telecom\":[{\"system\":\"phone\",\"value\":\"1\"},{\"system\":\"fax\",\"value\":\"2\"},{\"system\":\"phone\",\"value\":\"3\"}]}";
+
+		PatientTelecomExtractor.Telecom telecom = extract(body);
+
+		Assertions.assertNull(telecom.getEmail());
+		Assertions.assertEquals("3", telecom.getPhone());
+	}
+
+	@Test
+	void testExtractWithoutTelecom() throws IOException {
+		PatientTelecomExtractor.Telecom telecom = extract("{\"resourceType\":\"Patient\"}");
+
+		Assertions.assertNull(telecom.getEmail());
+		Assertions.assertNull(telecom.getPhone());
+	}
+
+	@Test
+	void testExtractRejectsNonObjectBody() {
+		Assertions.assertThrows(IOException.class, () -> extract("[]"));
+	}
+
+	private static PatientTelecomExtractor.Telecom extract(String body) throws IOException {
+		byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+		return PatientTelecomExtractor.extract(bytes, bytes.length);
+	}
+}
@@ -0,0 +1,52 @@
+package ca.uhn.fhir.jpa.starter.interceptors;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+class RouteAllowListTest {
+
+	private final RouteAllowList allowList = new RouteAllowList("/fhir", List.of("Patient"), List.of("$meta"), List.of("swagger-ui*", "api-docs", "metadata"));
+
+	@Test
+	void testResourceTypeMatchesWholeSegment() {
+		Assertions.assertTrue(allowList.isAllowed("/fhir/Patient"));
+		Assertions.assertTrue(allowList.isAllowed("/fhir/Patient/"));
+		Assertions.assertTrue(allowList.isAllowed("/fhir/Patient/123/_history/2"));
+		Assertions.assertTrue(allowList.isAllowed("/fhir/Patient/$everything"));
+		Assertions.assertFalse(allowList.isAllowed("/fhir/PatientX"));
+		Assertions.assertFalse(allowList.isAllowed("/fhir/Pat"));
+		Assertions.assertFalse(allowList.isAllowed("/fhir/Observation/1"));
+	}
+
+	@Test
+	void testOperationsAndPaths() {
+		Assertions.assertTrue(allowList.isAllowed("/fhir/$meta"));
+		Assertions.assertFalse(allowList.isAllowed("/fhir/$export"));
+		Assertions.assertTrue(allowList.isAllowed("/fhir/metadata"));
+		Assertions.assertFalse(allowList.isAllowed("/fhir/metadata/x"));
+		Assertions.assertTrue(allowList.isAllowed("/fhir/api-docs"));
+		Assertions.assertFalse(allowList.isAllowed("/fhir/api-docs2"));
+		Assertions.assertTrue(allowList.isAllowed("/fhir/swagger-ui"));
+		Assertions.assertTrue(allowList.isAllowed("/fhir/swagger-ui/index.html"));
+	}
+
+	@Test
+	void testBasePathIsRequired() {
+		Assertions.assertFalse(allowList.isAllowed("/Patient"));
+		Assertions.assertFalse(allowList.isAllowed("/fhir"));
+		Assertions.assertFalse(allowList.isAllowed("/fhirPatient"));
+		Assertions.assertFalse(allowList.isAllowed("/fhir/"));
+		Assertions.assertFalse(allowList.isAllowed("/fhir/Patient\u00e9"));
+		Assertions.assertFalse(allowList.isAllowed(null));
+	}
+
+	@Test
+	void testExtractFirstSegment() {
+		Assertions.assertEquals("Observation", allowList.extractFirstSegment("/fhir/Observation/1"));
+		Assertions.assertEquals("Observation", allowList.extractFirstSegment("/fhir/Observation"));
+		Assertions.assertEquals("-", allowList.extractFirstSegment("/other"));
+		Assertions.assertEquals("Patient", allowList.getResourceTypesDisplay());
+	}
+}
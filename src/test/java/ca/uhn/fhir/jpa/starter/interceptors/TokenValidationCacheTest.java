@@ -0,0 +1,80 @@
+package ca.uhn.fhir.jpa.starter.interceptors;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+class TokenValidationCacheTest {
+
+	private final AtomicLong nanos = new AtomicLong();
+	private final TokenValidationCache cache = new TokenValidationCache(true, 60, 5, 100, nanos::get);
+
+	private void advanceSeconds(long seconds) {
+		nanos.addAndGet(TimeUnit.SECONDS.toNanos(seconds));
+	}
+
+	@Test
+	void testSuccessfulValidationIsKeptForTheTtl() {
+		cache.put("token", 200, "login-1");
+
+		advanceSeconds(59);
+		TokenValidationCache.CachedValidation cached = cache.get("token");
+		Assertions.assertTrue(cached.isAuthenticated());
+		Assertions.assertEquals("login-1", cached.getAuthenticatedUserLoginId());
+
+		advanceSeconds(2);
+		Assertions.assertNull(cache.get("token"));
+	}
+
+	@Test
+	void testReadingDoesNotExtendTheTtl() {
+		cache.put("token", 200, "login-1");
+
+		for (int i = 0; i < 6; i++) {
+			advanceSeconds(10);
+			cache.get("token");
+		}
+
+		Assertions.assertNull(cache.get("token"));
+	}
+
+	@Test
+	void testRejectionsAreKeptForTheNegativeTtl() {
+		cache.put("unauthenticated", 401, null);
+		cache.put("forbidden", 403, null);
+
+		advanceSeconds(4);
+		Assertions.assertEquals(401, cache.get("unauthenticated").getStatusCode());
+		Assertions.assertEquals(403, cache.get("forbidden").getStatusCode());
+		Assertions.assertFalse(cache.get("forbidden").isAuthenticated());
+
+		advanceSeconds(2);
+		Assertions.assertNull(cache.get("unauthenticated"));
+		Assertions.assertNull(cache.get("forbidden"));
+	}
+
+	@Test
+	void testOtherFailuresAreNotCached() {
+		cache.put("invalid", 422, null);
+		cache.put("unavailable", 503, null);
+		cache.put("error", 500, null);
+		cache.put("no-login", 200, null);
+
+		Assertions.assertNull(cache.get("invalid"));
+		Assertions.assertNull(cache.get("unavailable"));
+		Assertions.assertNull(cache.get("error"));
+		Assertions.assertNull(cache.get("no-login"));
+	}
+
+	@Test
+	void testDisabledCacheKeepsNothing() {
+		TokenValidationCache disabled = new TokenValidationCache(false, 60, 5, 100);
+		disabled.put("token", 200, "login-1");
+
+		Assertions.assertFalse(disabled.isEnabled());
+		Assertions.assertNull(disabled.get("token"));
+		Assertions.assertFalse(new TokenValidationCache(true, 0, 5, 100).isEnabled());
+	}
+}
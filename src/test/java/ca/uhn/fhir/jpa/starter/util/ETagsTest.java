@@ -0,0 +1,35 @@
+package ca.uhn.fhir.jpa.starter.util;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+
+class ETagsTest {
+
+	@Test
+	void testStrongETagFollowsTheContent() {
+		String etag = ETags.strongETag("a".getBytes(StandardCharsets.UTF_8));
+
+		Assertions.assertTrue(etag.matches("\"[0-9a-f]{32}\""), etag);
+		Assertions.assertEquals(etag, ETags.strongETag("a".getBytes(StandardCharsets.UTF_8)));
+		Assertions.assertNotEquals(etag, ETags.strongETag("b".getBytes(StandardCharsets.UTF_8)));
+	}
+
+	@Test
+	void testMatchesIfNoneMatch() {
+		Assertions.assertTrue(ETags.matchesIfNoneMatch("\"abc\"", "\"abc\""));
+		Assertions.assertTrue(ETags.matchesIfNoneMatch("\"x\", \"abc\"", "\"abc\""));
+		Assertions.assertTrue(ETags.matchesIfNoneMatch("*", "\"abc\""));
+		Assertions.assertFalse(ETags.matchesIfNoneMatch("\"abd\"", "\"abc\""));
+		Assertions.assertFalse(ETags.matchesIfNoneMatch(null, "\"abc\""));
+	}
+
+	@Test
+	void testIfNoneMatchComparesWeakly() {
+		Assertions.assertTrue(ETags.matchesIfNoneMatch("W/\"abc\"", "\"abc\""));
+		Assertions.assertTrue(ETags.matchesIfNoneMatch("\"x\", W/\"abc\"", "\"abc\""));
+		Assertions.assertTrue(ETags.matchesIfNoneMatch("\"abc\"", "W/\"abc\""));
+		Assertions.assertFalse(ETags.matchesIfNoneMatch("W/\"abd\"", "\"abc\""));
+	}
+}